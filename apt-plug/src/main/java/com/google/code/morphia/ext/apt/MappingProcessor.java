@@ -0,0 +1,326 @@
+package com.google.code.morphia.ext.apt;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+import com.google.code.morphia.annotations.AlsoLoad;
+import com.google.code.morphia.annotations.Embedded;
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.PostLoad;
+import com.google.code.morphia.annotations.PostPersist;
+import com.google.code.morphia.annotations.PreLoad;
+import com.google.code.morphia.annotations.PrePersist;
+import com.google.code.morphia.annotations.PreSave;
+import com.google.code.morphia.annotations.Property;
+import com.google.code.morphia.annotations.Reference;
+import com.google.code.morphia.annotations.Serialized;
+import com.google.code.morphia.annotations.Transient;
+import com.google.code.morphia.annotations.Version;
+import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.mapping.MappingIndex;
+
+/**
+ * Checks the {@code @Entity} and {@code @Embedded} classes against the mapping rules which need no runtime (ids,
+ * versions, contradicting annotations, duplicated names, ...), reporting violations as compile errors, and writes
+ * the {@link MappingIndex} of the classes that {@link Mapper} reads instead of reflecting over them. The index of the
+ * last build is kept for the classes not compiled again (nor any of their superclasses), so that incremental builds
+ * still index every class they can.
+ * <p>It is found through {@code META-INF/services} when this jar is on the compile classpath.</p>
+ */
+//every build, not only those compiling mapped classes, may change the classes of the index
+@SupportedAnnotationTypes("*")
+public class MappingProcessor extends AbstractProcessor {
+	@SuppressWarnings("unchecked")
+	private static final List<Class<? extends Annotation>> LIFECYCLE = Arrays.asList(
+			PrePersist.class, PreSave.class, PostPersist.class, PreLoad.class, PostLoad.class);
+
+	@SuppressWarnings("unchecked")
+	private static final Class<? extends Annotation>[][] CONTRADICTING = new Class[][] {
+			{Reference.class, Serialized.class}, {Reference.class, Property.class}, {Reference.class, Embedded.class},
+			{Embedded.class, Serialized.class}, {Embedded.class, Property.class}, {Property.class, Serialized.class}};
+
+	private final Map<String, MappingIndex.Entry> entries = new LinkedHashMap<String, MappingIndex.Entry>();
+	//the (binary names of the) classes compiled
+	private final Set<String> compiled = new HashSet<String>();
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		if (roundEnv.processingOver()) {
+			writeIndex();
+			return false;
+		}
+		for (TypeElement t : ElementFilter.typesIn(roundEnv.getRootElements()))
+			addCompiled(t);
+		for (Element e : roundEnv.getElementsAnnotatedWith(Entity.class))
+			if (e.getKind() == ElementKind.CLASS)
+				process((TypeElement) e);
+		for (Element e : roundEnv.getElementsAnnotatedWith(Embedded.class))
+			if (e.getKind() == ElementKind.CLASS)
+				process((TypeElement) e);
+		return false;
+	}
+
+	private void addCompiled(TypeElement type) {
+		compiled.add(binaryName(type));
+		for (TypeElement nested : ElementFilter.typesIn(type.getEnclosedElements()))
+			addCompiled(nested);
+	}
+
+	private void process(TypeElement type) {
+		String name = binaryName(type);
+		if (entries.containsKey(name))
+			return;
+		boolean valid = validate(type);
+		//transient fields are only left out with MapperOptions.actLikeSerializer, so the rules are checked again then
+		MappingIndex.Entry entry = new MappingIndex.Entry(name, valid && !hasTransientFields(type));
+		for (TypeElement t = type; t != null; t = superclass(t))
+			for (VariableElement f : ElementFilter.fieldsIn(t.getEnclosedElements()))
+				if (!f.getModifiers().contains(Modifier.STATIC))
+					entry.addField(binaryName(t), f.getSimpleName().toString());
+		addLifecycleMethods(type, entry);
+		entries.put(name, entry);
+	}
+
+	/** Adds the lifecycle methods, the superclasses' first (as reflection finds them) */
+	private void addLifecycleMethods(TypeElement type, MappingIndex.Entry entry) {
+		TypeElement parent = superclass(type);
+		if (parent != null)
+			addLifecycleMethods(parent, entry);
+		for (ExecutableElement m : ElementFilter.methodsIn(type.getEnclosedElements())) {
+			if (m.getModifiers().contains(Modifier.STATIC) || !hasAny(m, LIFECYCLE))
+				continue;
+			String[] params = new String[m.getParameters().size()];
+			for (int i = 0; i < params.length; i++)
+				params[i] = className(m.getParameters().get(i).asType());
+			entry.addMethod(binaryName(type), m.getSimpleName().toString(), params);
+		}
+	}
+
+	private static boolean hasTransientFields(TypeElement type) {
+		for (TypeElement t = type; t != null; t = superclass(t))
+			for (VariableElement f : ElementFilter.fieldsIn(t.getEnclosedElements()))
+				if (f.getModifiers().contains(Modifier.TRANSIENT) && !f.getModifiers().contains(Modifier.STATIC) && f.getAnnotation(Transient.class) == null)
+					return true;
+		return false;
+	}
+
+	/** @return whether the class follows the rules (transient fields left out); the violations are reported as errors */
+	private boolean validate(TypeElement type) {
+		boolean valid = true;
+		Entity entity = type.getAnnotation(Entity.class);
+		Embedded embedded = type.getAnnotation(Embedded.class);
+
+		if (type.getNestingKind() == NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC))
+			valid = error(type, "Cannot use non-static inner class: " + type + ". Please make static.");
+		if (entity != null && embedded != null)
+			valid = error(type, "Cannot have both @Entity and @Embedded annotation at class level.");
+		if (embedded != null && !Mapper.IGNORED_FIELDNAME.equals(embedded.value()))
+			valid = error(type, "@Embedded classes cannot specify a fieldName value(); this is on applicable on fields");
+		if (entity != null && (isA(type, "java.util.Map") || isA(type, "java.lang.Iterable")))
+			valid = error(type, "Entities cannot implement Map/Iterable");
+
+		List<VariableElement> ids = new ArrayList<VariableElement>();
+		List<VariableElement> versions = new ArrayList<VariableElement>();
+		Map<String, VariableElement> names = new HashMap<String, VariableElement>();
+		for (TypeElement t = type; t != null; t = superclass(t))
+			for (VariableElement f : ElementFilter.fieldsIn(t.getEnclosedElements())) {
+				if (f.getModifiers().contains(Modifier.STATIC) || f.getModifiers().contains(Modifier.TRANSIENT)
+						|| f.getAnnotation(Transient.class) != null)
+					continue;
+				if (f.getAnnotation(Id.class) != null)
+					ids.add(f);
+				if (f.getAnnotation(Version.class) != null) {
+					versions.add(f);
+					String fieldType = processingEnv.getTypeUtils().erasure(f.asType()).toString();
+					if (!"long".equals(fieldType) && !"java.lang.Long".equals(fieldType))
+						valid = error(f, "@Version can only be used on a Long/long field.");
+				}
+				for (Class<? extends Annotation>[] pair : CONTRADICTING)
+					if (f.getAnnotation(pair[0]) != null && f.getAnnotation(pair[1]) != null)
+						valid = error(f, "A field can be either annotated with @" + pair[0].getSimpleName() + " OR @" + pair[1].getSimpleName() + ", but not both.");
+				for (String n : loadNames(f)) {
+					VariableElement other = names.put(n, f);
+					if (other != null)
+						valid = error(f, "Mapping to MongoDB field name '" + n + "' is duplicated (with " + other.getEnclosingElement() + "." + other
+								+ "); you cannot map different java fields to the same MongoDB field.");
+				}
+			}
+
+		if (embedded == null && ids.isEmpty())
+			valid = error(type, "No field is annotated with @Id; but it is required");
+		if (embedded != null && !ids.isEmpty())
+			valid = error(type, "@Embedded classes cannot specify a @Id field");
+		if (ids.size() > 1)
+			valid = error(type, "More than one @Id Field found " + ids + ".");
+		if (versions.size() > 1)
+			valid = error(type, "Multiple @Version annotations are not allowed. " + versions);
+		return valid;
+	}
+
+	/** @return the names the field is loaded from, like {@code MappedField.getLoadNames()} */
+	private static List<String> loadNames(VariableElement f) {
+		List<String> names = new ArrayList<String>();
+		String name = null;
+		if (f.getAnnotation(Id.class) != null)
+			name = Mapper.ID_KEY;
+		else if (f.getAnnotation(Property.class) != null)
+			name = f.getAnnotation(Property.class).value();
+		else if (f.getAnnotation(Reference.class) != null)
+			name = f.getAnnotation(Reference.class).value();
+		else if (f.getAnnotation(Embedded.class) != null)
+			name = f.getAnnotation(Embedded.class).value();
+		else if (f.getAnnotation(Serialized.class) != null)
+			name = f.getAnnotation(Serialized.class).value();
+		else if (f.getAnnotation(Version.class) != null)
+			name = f.getAnnotation(Version.class).value();
+		names.add(name == null || Mapper.IGNORED_FIELDNAME.equals(name) ? f.getSimpleName().toString() : name);
+		AlsoLoad also = f.getAnnotation(AlsoLoad.class);
+		if (also != null)
+			names.addAll(Arrays.asList(also.value()));
+		return names;
+	}
+
+	private boolean error(Element e, String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, e);
+		return false;
+	}
+
+	private static boolean hasAny(Element e, List<Class<? extends Annotation>> annotations) {
+		for (Class<? extends Annotation> a : annotations)
+			if (e.getAnnotation(a) != null)
+				return true;
+		return false;
+	}
+
+	private boolean isA(TypeElement type, String superType) {
+		TypeElement sup = processingEnv.getElementUtils().getTypeElement(superType);
+		return sup != null && processingEnv.getTypeUtils().isAssignable(
+				processingEnv.getTypeUtils().erasure(type.asType()), processingEnv.getTypeUtils().erasure(sup.asType()));
+	}
+
+	private static TypeElement superclass(TypeElement type) {
+		TypeMirror sup = type.getSuperclass();
+		if (sup.getKind() != TypeKind.DECLARED)
+			return null;
+		TypeElement parent = (TypeElement) ((DeclaredType) sup).asElement();
+		return "java.lang.Object".equals(parent.getQualifiedName().toString()) ? null : parent;
+	}
+
+	private String binaryName(TypeElement type) {
+		return processingEnv.getElementUtils().getBinaryName(type).toString();
+	}
+
+	/** @return the name {@code Class.forName} takes for the (erased) type */
+	private String className(TypeMirror t) {
+		t = processingEnv.getTypeUtils().erasure(t);
+		if (t.getKind().isPrimitive())
+			return t.toString();
+		if (t.getKind() == TypeKind.ARRAY)
+			return "[" + descriptor(((ArrayType) t).getComponentType());
+		return binaryName((TypeElement) ((DeclaredType) t).asElement());
+	}
+
+	private String descriptor(TypeMirror t) {
+		t = processingEnv.getTypeUtils().erasure(t);
+		switch (t.getKind()) {
+		case BOOLEAN: return "Z";
+		case BYTE: return "B";
+		case CHAR: return "C";
+		case SHORT: return "S";
+		case INT: return "I";
+		case LONG: return "J";
+		case FLOAT: return "F";
+		case DOUBLE: return "D";
+		case ARRAY: return "[" + descriptor(((ArrayType) t).getComponentType());
+		default: return "L" + className(t) + ";";
+		}
+	}
+
+	/** @return the entries of the index the last build wrote, if it is there */
+	private List<MappingIndex.Entry> readIndex() {
+		Reader in = null;
+		try {
+			FileObject file = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", MappingIndex.RESOURCE);
+			in = file.openReader(true);
+			return MappingIndex.read(in);
+		} catch (IOException e) {
+			//not there (a clean build), or unreadable; it is made again from the classes compiled
+			return new ArrayList<MappingIndex.Entry>();
+		} finally {
+			if (in != null)
+				try { in.close(); } catch (IOException e) { /* ignore */ }
+		}
+	}
+
+	/**
+	 * @return whether the entry of the last build still holds: the class is still there, and neither it nor a superclass
+	 * was compiled again
+	 */
+	private boolean isCurrent(MappingIndex.Entry old) {
+		if (entries.containsKey(old.getClassName()))
+			return false;
+		TypeElement type = processingEnv.getElementUtils().getTypeElement(old.getClassName().replace('$', '.'));
+		if (type == null)
+			return false;
+		for (TypeElement t = type; t != null; t = superclass(t))
+			if (compiled.contains(binaryName(t)))
+				return false;
+		return true;
+	}
+
+	private void writeIndex() {
+		List<MappingIndex.Entry> previous = readIndex();
+		if (entries.isEmpty() && previous.isEmpty())
+			return;
+		for (MappingIndex.Entry old : previous)
+			if (isCurrent(old))
+				entries.put(old.getClassName(), old);
+		Writer out = null;
+		try {
+			FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", MappingIndex.RESOURCE);
+			out = file.openWriter();
+			MappingIndex.write(entries.values(), out);
+		} catch (IOException e) {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not write " + MappingIndex.RESOURCE + ": " + e);
+		} finally {
+			if (out != null)
+				try { out.close(); } catch (IOException e) { /* ignore */ }
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package com.google.code.morphia.ext.apt;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.code.morphia.mapping.MappingIndex;
+
+public class MappingProcessorTest {
+	private File out;
+	private DiagnosticCollector<JavaFileObject> diagnostics;
+
+	private static JavaFileObject source(final String name, final String code) {
+		return new SimpleJavaFileObject(URI.create("string:///" + name.replace('.', '/') + ".java"), JavaFileObject.Kind.SOURCE) {
+			@Override
+			public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+				return code;
+			}
+		};
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		out = File.createTempFile("apt", "");
+		out.delete();
+		out.mkdirs();
+		diagnostics = new DiagnosticCollector<JavaFileObject>();
+	}
+
+	private boolean compile(JavaFileObject... sources) {
+		return compile(Arrays.asList("-classpath", System.getProperty("java.class.path")), sources);
+	}
+
+	private boolean compile(List<String> classpath, JavaFileObject... sources) {
+		JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+		List<String> options = new ArrayList<String>(classpath);
+		options.add("-d");
+		options.add(out.getPath());
+		CompilationTask task = javac.getTask(null, null, diagnostics, options, null, Arrays.asList(sources));
+		task.setProcessors(Arrays.asList(new MappingProcessor()));
+		return task.call();
+	}
+
+	private List<String> errors() {
+		List<String> errors = new ArrayList<String>();
+		for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics())
+			if (d.getKind() == Diagnostic.Kind.ERROR)
+				errors.add(d.getMessage(null));
+		return errors;
+	}
+
+	@Test
+	public void testIndex() throws Exception {
+		Assert.assertTrue(errors().toString(), compile(
+				source("ex.Base", "package ex; import com.google.code.morphia.annotations.*; "
+						+ "public abstract class Base { @Id String id; @PrePersist void touch() {} }"),
+				source("ex.Person", "package ex; import com.google.code.morphia.annotations.*; "
+						+ "@Entity public class Person extends Base { static int count; String name; @Transient int cache; "
+						+ "@Id transient String copyOfId; @Property(\"name\") transient String copyOfName; "
+						+ "@PreLoad void load(com.mongodb.DBObject o, String[] names) {} "
+						+ "@Embedded public static class Address { String city; } }")));
+
+		FileInputStream in = new FileInputStream(new File(out, MappingIndex.RESOURCE));
+		List<MappingIndex.Entry> entries;
+		try {
+			entries = MappingIndex.read(new InputStreamReader(in, "UTF-8"));
+		} finally {
+			in.close();
+		}
+		Assert.assertEquals(2, entries.size());
+		MappingIndex.Entry person = entries.get(0);
+		Assert.assertEquals("ex.Person", person.getClassName());
+		//its transient fields are mapped unless actLikeSerializer is on, so the runtime checks it
+		Assert.assertFalse(person.isValidated());
+		Assert.assertTrue(entries.get(1).isValidated());
+		Assert.assertEquals("ex.Person$Address", entries.get(1).getClassName());
+	}
+
+	@Test
+	public void testIncrementalBuildKeepsIndex() throws Exception {
+		Assert.assertTrue(errors().toString(), compile(source("ex.First", "package ex; import com.google.code.morphia.annotations.*; "
+				+ "@Entity public class First { @Id String id; }")));
+		//only the changed class is compiled; the other is on the classpath
+		Assert.assertTrue(errors().toString(), compile(Arrays.asList("-classpath", out.getPath() + File.pathSeparator + System.getProperty("java.class.path")),
+				source("ex.Second", "package ex; import com.google.code.morphia.annotations.*; "
+						+ "@Entity public class Second { @Id String id; First first; }")));
+
+		FileInputStream in = new FileInputStream(new File(out, MappingIndex.RESOURCE));
+		List<MappingIndex.Entry> entries;
+		try {
+			entries = MappingIndex.read(new InputStreamReader(in, "UTF-8"));
+		} finally {
+			in.close();
+		}
+		Assert.assertEquals(2, entries.size());
+		Assert.assertEquals("ex.Second", entries.get(0).getClassName());
+		Assert.assertEquals("ex.First", entries.get(1).getClassName());
+	}
+
+	@Test
+	public void testIncrementalBuildDropsSubclassesOfRecompiled() throws Exception {
+		Assert.assertTrue(errors().toString(), compile(
+				source("ex.Base", "package ex; public abstract class Base { String id; }"),
+				source("ex.Sub", "package ex; import com.google.code.morphia.annotations.*; "
+						+ "@Entity public class Sub extends Base { @Id String key; }"),
+				source("ex.Other", "package ex; import com.google.code.morphia.annotations.*; "
+						+ "@Entity public class Other { @Id String id; }")));
+		//the superclass changed; the subclass was not compiled again, so its entry is no longer known to be current
+		Assert.assertTrue(errors().toString(), compile(Arrays.asList("-classpath", out.getPath() + File.pathSeparator + System.getProperty("java.class.path")),
+				source("ex.Base", "package ex; public abstract class Base { String id; String added; }")));
+
+		File index = new File(out, MappingIndex.RESOURCE);
+		Assert.assertTrue(index.isFile());
+		FileInputStream in = new FileInputStream(index);
+		List<MappingIndex.Entry> entries;
+		try {
+			entries = MappingIndex.read(new InputStreamReader(in, "UTF-8"));
+		} finally {
+			in.close();
+		}
+		Assert.assertEquals(1, entries.size());
+		Assert.assertEquals("ex.Other", entries.get(0).getClassName());
+	}
+
+	@Test
+	public void testErrors() throws Exception {
+		Assert.assertFalse(compile(source("ex.Bad", "package ex; import com.google.code.morphia.annotations.*; "
+				+ "@Entity public class Bad { String name; @Property(\"name\") String other; @Version int v; "
+				+ "@Reference @Serialized Object both; }")));
+		String errors = errors().toString();
+		Assert.assertTrue(errors, errors.contains("'name' is duplicated"));
+		Assert.assertTrue(errors, errors.contains("@Version can only be used on a Long/long field"));
+		Assert.assertTrue(errors, errors.contains("@Reference OR @Serialized"));
+		Assert.assertTrue(errors, errors.contains("No field is annotated with @Id"));
+	}
+}
@@ -0,0 +1,94 @@
+package com.google.code.morphia.benchmarks;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.code.morphia.Morphia;
+import com.google.code.morphia.converters.DefaultConverters;
+
+/**
+ * Measures the {@link DefaultConverters} lookup and conversion of single values, in both directions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConvertersBenchmark {
+	enum Color { RED, GREEN, BLUE }
+
+	DefaultConverters converters;
+	Date date;
+	List<String> strings;
+	Object encodedDate;
+	Object encodedLocale;
+
+	@Setup
+	public void setup() {
+		converters = new Morphia().getMapper().getConverters();
+		date = new Date();
+		strings = Arrays.asList("a", "b", "c", "d", "e");
+		encodedDate = converters.encode(date);
+		encodedLocale = converters.encode(Locale.CANADA_FRENCH);
+	}
+
+	@Benchmark
+	public Object encodeString() {
+		return converters.encode("value");
+	}
+
+	@Benchmark
+	public Object encodeDate() {
+		return converters.encode(date);
+	}
+
+	@Benchmark
+	public Object encodeEnum() {
+		return converters.encode(Color.GREEN);
+	}
+
+	@Benchmark
+	public Object encodeLocale() {
+		return converters.encode(Locale.CANADA_FRENCH);
+	}
+
+	@Benchmark
+	public Object encodeStringList() {
+		return converters.encode(strings);
+	}
+
+	@Benchmark
+	public Object decodeInteger() {
+		return converters.decode(Integer.class, 42L);
+	}
+
+	@Benchmark
+	public Object decodeDate() {
+		return converters.decode(Date.class, encodedDate);
+	}
+
+	@Benchmark
+	public Object decodeEnum() {
+		return converters.decode(Color.class, "GREEN");
+	}
+
+	@Benchmark
+	public Object decodeLocale() {
+		return converters.decode(Locale.class, encodedLocale);
+	}
+}
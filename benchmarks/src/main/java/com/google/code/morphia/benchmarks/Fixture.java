@@ -0,0 +1,182 @@
+package com.google.code.morphia.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+
+import com.google.code.morphia.annotations.Embedded;
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+
+/**
+ * The shapes of entity the mapping benchmarks are run against: a few scalar fields, many scalar fields, a deep chain of
+ * embedded documents, large collections, and a list of embedded subclasses (which are mapped by className).
+ */
+public enum Fixture {
+	FLAT {
+		Object create() {
+			Flat f = new Flat();
+			f.id = new ObjectId();
+			f.name = "flat entity";
+			f.email = "someone@example.com";
+			f.count = 42;
+			f.total = 123456789L;
+			f.ratio = 0.75;
+			f.active = true;
+			f.created = new Date();
+			f.optional = 7;
+			return f;
+		}
+	},
+	WIDE {
+		Object create() {
+			Wide w = new Wide();
+			w.id = new ObjectId();
+			w.s0 = w.s1 = w.s2 = w.s3 = w.s4 = w.s5 = w.s6 = w.s7 = w.s8 = w.s9 = "value";
+			w.i0 = w.i1 = w.i2 = w.i3 = w.i4 = w.i5 = w.i6 = w.i7 = w.i8 = w.i9 = 12345;
+			w.l0 = w.l1 = w.l2 = w.l3 = w.l4 = w.l5 = w.l6 = w.l7 = w.l8 = w.l9 = 1234567890123L;
+			w.d0 = w.d1 = w.d2 = w.d3 = w.d4 = w.d5 = w.d6 = w.d7 = w.d8 = w.d9 = 3.14;
+			return w;
+		}
+	},
+	DEEP {
+		Object create() {
+			Deep d = new Deep();
+			d.id = new ObjectId();
+			d.root = Level.chain(8);
+			return d;
+		}
+	},
+	COLLECTIONS {
+		Object create() {
+			Collections c = new Collections();
+			c.id = new ObjectId();
+			for (int i = 0; i < 50; i++) {
+				c.tags.add("tag" + i);
+				c.scores.add(i * 10);
+			}
+			for (int i = 0; i < 20; i++) {
+				c.counts.put("key" + i, i);
+				c.items.add(new Item("item" + i, i));
+			}
+			return c;
+		}
+	},
+	POLYMORPHIC {
+		Object create() {
+			Zoo z = new Zoo();
+			z.id = new ObjectId();
+			for (int i = 0; i < 10; i++) {
+				z.animals.add(new Dog("dog" + i, i % 2 == 0));
+				z.animals.add(new Cat("cat" + i, i));
+			}
+			return z;
+		}
+	};
+
+	abstract Object create();
+
+	static Class<?>[] entityClasses() {
+		return new Class<?>[] { Flat.class, Wide.class, Deep.class, Collections.class, Zoo.class };
+	}
+
+	@Entity(value = "flat", noClassnameStored = true)
+	public static class Flat {
+		@Id ObjectId id;
+		String name;
+		String email;
+		int count;
+		long total;
+		double ratio;
+		boolean active;
+		Date created;
+		Integer optional;
+	}
+
+	@Entity(value = "wide", noClassnameStored = true)
+	public static class Wide {
+		@Id ObjectId id;
+		String s0, s1, s2, s3, s4, s5, s6, s7, s8, s9;
+		int i0, i1, i2, i3, i4, i5, i6, i7, i8, i9;
+		long l0, l1, l2, l3, l4, l5, l6, l7, l8, l9;
+		double d0, d1, d2, d3, d4, d5, d6, d7, d8, d9;
+	}
+
+	@Entity(value = "deep", noClassnameStored = true)
+	public static class Deep {
+		@Id ObjectId id;
+		@Embedded Level root;
+	}
+
+	@Embedded
+	public static class Level {
+		String name;
+		int depth;
+		@Embedded Level child;
+
+		static Level chain(int depth) {
+			Level l = new Level();
+			l.name = "level" + depth;
+			l.depth = depth;
+			if (depth > 1)
+				l.child = chain(depth - 1);
+			return l;
+		}
+	}
+
+	@Entity(value = "collections", noClassnameStored = true)
+	public static class Collections {
+		@Id ObjectId id;
+		List<String> tags = new ArrayList<String>();
+		List<Integer> scores = new ArrayList<Integer>();
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		@Embedded List<Item> items = new ArrayList<Item>();
+	}
+
+	@Embedded
+	public static class Item {
+		String name;
+		int quantity;
+
+		Item() {}
+		Item(String name, int quantity) {
+			this.name = name;
+			this.quantity = quantity;
+		}
+	}
+
+	@Entity(value = "zoo", noClassnameStored = true)
+	public static class Zoo {
+		@Id ObjectId id;
+		@Embedded List<Animal> animals = new ArrayList<Animal>();
+	}
+
+	@Embedded
+	public static abstract class Animal {
+		String name;
+	}
+
+	public static class Dog extends Animal {
+		boolean goodBoy;
+
+		Dog() {}
+		Dog(String name, boolean goodBoy) {
+			this.name = name;
+			this.goodBoy = goodBoy;
+		}
+	}
+
+	public static class Cat extends Animal {
+		int lives;
+
+		Cat() {}
+		Cat(String name, int lives) {
+			this.name = name;
+			this.lives = lives;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package com.google.code.morphia.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.code.morphia.Key;
+import com.google.code.morphia.Morphia;
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.Reference;
+import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.mapping.lazy.DatastoreProvider;
+import com.google.code.morphia.mapping.lazy.DefaultDatastoreProvider;
+import com.google.code.morphia.mapping.lazy.LazyFeatureDependencies;
+import com.google.code.morphia.mapping.lazy.LazyProxyFactory;
+import com.mongodb.DBObject;
+
+/**
+ * Measures creating lazy reference proxies, on their own and when loading an entity with lazy references. The proxies
+ * are never used, so nothing is fetched.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LazyProxyBenchmark {
+
+	@Entity(value = "targets", noClassnameStored = true)
+	public static class Target {
+		@Id ObjectId id = new ObjectId();
+		String name = "target";
+	}
+
+	@Entity(value = "holders", noClassnameStored = true)
+	public static class Holder {
+		@Id ObjectId id = new ObjectId();
+		@Reference(lazy = true) Target target;
+		@Reference(lazy = true) List<Target> targets = new ArrayList<Target>();
+	}
+
+	Mapper mapper;
+	LazyProxyFactory factory;
+	DatastoreProvider provider;
+	Key<Target> key;
+	DBObject holder;
+
+	@Setup
+	public void setup() {
+		if (!LazyFeatureDependencies.testDependencyFullFilled())
+			throw new IllegalStateException("cglib and proxytoys are needed for lazy references");
+		mapper = new Morphia().map(Holder.class, Target.class).getMapper();
+		factory = LazyFeatureDependencies.createDefaultProxyFactory();
+		provider = new DefaultDatastoreProvider();
+		key = new Key<Target>(Target.class, new ObjectId());
+
+		Holder h = new Holder();
+		h.target = new Target();
+		for (int i = 0; i < 10; i++)
+			h.targets.add(new Target());
+		holder = mapper.toDBObject(h);
+	}
+
+	@Benchmark
+	public Target createProxy() {
+		return factory.createProxy(Target.class, key, provider);
+	}
+
+	@Benchmark
+	public Object fromDBObjectWithLazyReferences() {
+		return mapper.fromDBObject(Holder.class, holder, mapper.createEntityCache());
+	}
+}
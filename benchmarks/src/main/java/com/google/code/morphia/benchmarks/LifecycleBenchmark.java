@@ -0,0 +1,89 @@
+package com.google.code.morphia.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.code.morphia.Morphia;
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.EntityListeners;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.PostLoad;
+import com.google.code.morphia.annotations.PrePersist;
+import com.google.code.morphia.annotations.PreSave;
+import com.google.code.morphia.mapping.MappedClass;
+import com.google.code.morphia.mapping.Mapper;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Measures the dispatch of lifecycle callbacks (on the entity and on an {@link EntityListeners} listener), on their own and
+ * as part of mapping.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LifecycleBenchmark {
+
+	@Entity(value = "callbacks", noClassnameStored = true)
+	@EntityListeners(Listener.class)
+	public static class WithCallbacks {
+		@Id ObjectId id = new ObjectId();
+		String name = "callbacks";
+		int persisted;
+		int loaded;
+
+		@PrePersist void prePersist() { persisted++; }
+		@PostLoad void postLoad() { loaded++; }
+	}
+
+	public static class Listener {
+		@PreSave void preSave(DBObject dbObj) { dbObj.put("saved", true); }
+	}
+
+	Mapper mapper;
+	MappedClass mc;
+	WithCallbacks entity;
+	DBObject dbObj;
+
+	@Setup
+	public void setup() {
+		mapper = new Morphia().map(WithCallbacks.class).getMapper();
+		mc = mapper.getMappedClass(WithCallbacks.class);
+		entity = new WithCallbacks();
+		dbObj = mapper.toDBObject(entity);
+	}
+
+	@Benchmark
+	public DBObject prePersistDispatch() {
+		return mc.callLifecycleMethods(PrePersist.class, entity, new BasicDBObject(), mapper);
+	}
+
+	@Benchmark
+	public DBObject postLoadDispatch() {
+		return mc.callLifecycleMethods(PostLoad.class, entity, dbObj, mapper);
+	}
+
+	@Benchmark
+	public DBObject toDBObject() {
+		return mapper.toDBObject(entity);
+	}
+
+	@Benchmark
+	public Object fromDBObject() {
+		return mapper.fromDBObject(WithCallbacks.class, dbObj, mapper.createEntityCache());
+	}
+}
@@ -0,0 +1,58 @@
+package com.google.code.morphia.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.code.morphia.Morphia;
+import com.google.code.morphia.mapping.Mapper;
+import com.mongodb.DBObject;
+
+/**
+ * Measures {@link Mapper#toDBObject(Object)} and {@link Mapper#fromDBObject(Class, DBObject, com.google.code.morphia.mapping.cache.EntityCache)}
+ * for each {@link Fixture}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MappingBenchmark {
+	@Param({"FLAT", "WIDE", "DEEP", "COLLECTIONS", "POLYMORPHIC"})
+	Fixture fixture;
+
+	Mapper mapper;
+	Object entity;
+	Class<?> entityClass;
+	DBObject dbObj;
+
+	@Setup
+	public void setup() {
+		mapper = new Morphia().map(Fixture.entityClasses()).getMapper();
+		entity = fixture.create();
+		entityClass = entity.getClass();
+		dbObj = mapper.toDBObject(entity);
+	}
+
+	@Benchmark
+	public DBObject toDBObject() {
+		return mapper.toDBObject(entity);
+	}
+
+	@Benchmark
+	public Object fromDBObject() {
+		//a new cache per entity, as a query would have
+		return mapper.fromDBObject(entityClass, dbObj, mapper.createEntityCache());
+	}
+}
@@ -0,0 +1,88 @@
+package com.google.code.morphia.benchmarks;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.code.morphia.Datastore;
+import com.google.code.morphia.Morphia;
+import com.google.code.morphia.benchmarks.Fixture.Collections;
+import com.google.code.morphia.benchmarks.Fixture.Deep;
+import com.google.code.morphia.benchmarks.Fixture.Flat;
+import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.query.FilterOperator;
+import com.google.code.morphia.query.QueryImpl;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+
+/**
+ * Measures building queries (including the {@link Mapper#validate} of each path and value) into the DBObject sent to the
+ * server. The driver only connects when a query is run, so no server is needed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBuildingBenchmark {
+	Mongo mongo;
+	Datastore ds;
+	Mapper mapper;
+	List<String> tags;
+
+	@Setup
+	public void setup() throws Exception {
+		Morphia morphia = new Morphia().map(Fixture.entityClasses());
+		mapper = morphia.getMapper();
+		mongo = new Mongo();
+		ds = morphia.createDatastore(mongo, "morphia_benchmarks");
+		tags = Arrays.asList("tag1", "tag2", "tag3");
+	}
+
+	@TearDown
+	public void tearDown() {
+		mongo.close();
+	}
+
+	@Benchmark
+	public DBObject flatQuery() {
+		return ((QueryImpl<Flat>) ds.createQuery(Flat.class)
+				.filter("name", "flat entity")
+				.field("count").greaterThan(5)
+				.order("-total"))
+				.getQueryObject();
+	}
+
+	@Benchmark
+	public DBObject embeddedPathQuery() {
+		return ((QueryImpl<Deep>) ds.createQuery(Deep.class)
+				.filter("root.child.child.name", "level6"))
+				.getQueryObject();
+	}
+
+	@Benchmark
+	public DBObject collectionQuery() {
+		return ((QueryImpl<Collections>) ds.createQuery(Collections.class)
+				.field("tags").hasAnyOf(tags)
+				.field("items.quantity").lessThan(10))
+				.getQueryObject();
+	}
+
+	@Benchmark
+	public Object validate() {
+		return Mapper.validate(Deep.class, mapper, new StringBuffer("root.child.child.depth"), FilterOperator.GREATER_THAN, 3, true, true);
+	}
+}
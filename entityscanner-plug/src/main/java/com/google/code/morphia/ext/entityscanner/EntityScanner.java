@@ -3,11 +3,23 @@
  */
 package com.google.code.morphia.ext.entityscanner;
 
+import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.reflections.Reflections;
 import org.reflections.scanners.TypeAnnotationsScanner;
@@ -18,41 +30,164 @@ import org.scannotation.ClasspathUrlFinder;
 
 import com.google.code.morphia.Morphia;
 import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.logging.Logr;
+import com.google.code.morphia.logging.MorphiaLoggerFactory;
+import com.google.code.morphia.mapping.MappedClass;
+import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.mapping.MappingException;
+import com.google.code.morphia.mapping.MappingIndex;
 import com.google.code.morphia.utils.Assert;
 import com.google.common.base.Predicates;
 
 /**
+ * Maps the {@code @Entity} classes on the classpath. They are taken from the build-time {@link MappingIndex} (the
+ * {@value MappingIndex#RESOURCE} of every jar, merged); only the classpath roots (jars, directories) without an index,
+ * such as jars built without the annotation processor, are scanned. The classes are mapped in parallel.
+ *
  * @author us@thomas-daily.de
  * 
  */
 public class EntityScanner {
-	
+	private static final Logr log = MorphiaLoggerFactory.get(EntityScanner.class);
+
 	public EntityScanner(final Morphia m) {
 		this(m, null);
-		
+
 	}
-	
+
+	/**
+	 * @param predicate the classes to map, by their file name ({@code com.example.Person.class})
+	 */
 	public EntityScanner(final Morphia m, com.google.common.base.Predicate<String> predicate) {
 		if (predicate == null) {
 			predicate = Predicates.alwaysTrue();
 		}
 		Assert.parametersNotNull("m, predicate", m, predicate);
-		final ConfigurationBuilder conf = new ConfigurationBuilder();
-		conf.setScanners(new TypesScanner(), new TypeAnnotationsScanner());
-		
+
+		final MappingIndex index = m.getMapper().getMappingIndex();
+		final Set<URL> roots = classpath();
+		final Collection<Class<?>> entities = new LinkedHashSet<Class<?>>();
+		if (!index.isEmpty()) {
+			entities.addAll(fromIndex(index, predicate));
+			roots.removeAll(indexedRoots(getClassLoader()));
+		}
+		if (!roots.isEmpty()) {
+			if (!index.isEmpty() && log.isDebugEnabled()) {
+				log.debug("Scanning the classpath roots without a mapping index: " + roots);
+			}
+			entities.addAll(scan(predicate, roots));
+		}
+		map(m.getMapper(), entities);
+	}
+
+	private static ClassLoader getClassLoader() {
+		final ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		return loader != null ? loader : EntityScanner.class.getClassLoader();
+	}
+
+	private static Set<URL> classpath() {
 		final Set<URL> s = new HashSet<URL>();
 		s.addAll(ClasspathHelper.getUrlsForCurrentClasspath());
 		s.addAll(Arrays.asList(ClasspathUrlFinder.findClassPaths()));
-		conf.setUrls(new ArrayList(s));
-		
+		return s;
+	}
+
+	/** @return the classpath roots which have a mapping index */
+	static Set<URL> indexedRoots(final ClassLoader loader) {
+		final Set<URL> roots = new HashSet<URL>();
+		try {
+			final Enumeration<URL> urls = loader.getResources(MappingIndex.RESOURCE);
+			while (urls.hasMoreElements()) {
+				String root = urls.nextElement().toExternalForm();
+				root = root.substring(0, root.length() - MappingIndex.RESOURCE.length());
+				if (root.startsWith("jar:") && root.endsWith("!/")) {
+					root = root.substring("jar:".length(), root.length() - "!/".length());
+				}
+				roots.add(new URL(root));
+			}
+		} catch (final IOException e) {
+			//those roots are scanned
+			log.warning("Could not look for mapping indexes", e);
+		}
+		return roots;
+	}
+
+	private static Collection<Class<?>> fromIndex(final MappingIndex index, final com.google.common.base.Predicate<String> predicate) {
+		final ClassLoader loader = getClassLoader();
+		final List<Class<?>> entities = new ArrayList<Class<?>>();
+		for (final String name : index.getClassNames()) {
+			if (!predicate.apply(name + ".class")) {
+				continue;
+			}
+			try {
+				final Class<?> c = Class.forName(name, false, loader);
+				//the index has the @Embedded classes too
+				if (c.isAnnotationPresent(Entity.class)) {
+					entities.add(c);
+				}
+			} catch (final ClassNotFoundException e) {
+				log.warning("Class " + name + " is in the mapping index but not on the classpath; skipping it");
+			}
+		}
+		return entities;
+	}
+
+	private static Collection<Class<?>> scan(final com.google.common.base.Predicate<String> predicate, final Set<URL> roots) {
+		final ConfigurationBuilder conf = new ConfigurationBuilder();
+		conf.setScanners(new TypesScanner(), new TypeAnnotationsScanner());
+
+		conf.setUrls(new ArrayList(roots));
+
 		conf.filterInputsBy(predicate);
-		
+
 		final Reflections r = new Reflections(conf);
-		
-		final Set<Class<?>> entities = r.getTypesAnnotatedWith(Entity.class);
-		for (final Class<?> c : entities) {
-			m.map(c);
+		return r.getTypesAnnotatedWith(Entity.class);
+	}
+
+	/** Builds the MappedClasses in parallel, and adds them from this thread */
+	private static void map(final Mapper mapper, final Collection<Class<?>> classes) {
+		final List<Callable<MappedClass>> tasks = new ArrayList<Callable<MappedClass>>();
+		for (final Class<?> c : classes) {
+			if (!mapper.isMapped(c)) {
+				tasks.add(new Callable<MappedClass>() {
+					public MappedClass call() {
+						return new MappedClass(c, mapper);
+					}
+				});
+			}
+		}
+		if (tasks.isEmpty()) {
+			return;
+		}
+
+		final int threads = Math.min(tasks.size(), Runtime.getRuntime().availableProcessors());
+		final ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "morphia-entityscanner-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			for (final Future<MappedClass> f : pool.invokeAll(tasks)) {
+				final MappedClass mc = f.get();
+				if (!mapper.isMapped(mc.getClazz())) {
+					mapper.addMappedClass(mc);
+				}
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MappingException("Interrupted while mapping the entities");
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new MappingException("Could not map the entities", e.getCause());
+		} finally {
+			pool.shutdownNow();
 		}
 	}
-	
+
 }
\ No newline at end of file
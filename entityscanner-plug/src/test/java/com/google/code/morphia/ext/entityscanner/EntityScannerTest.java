@@ -3,6 +3,9 @@
  */
 package com.google.code.morphia.ext.entityscanner;
 
+import java.net.URL;
+import java.util.Set;
+
 import junit.framework.TestCase;
 
 import org.junit.Test;
@@ -33,4 +36,36 @@ public class EntityScannerTest extends TestCase {
 		
 	}
 	
+	@Test
+	public void testIndex() throws Exception {
+		final Morphia m = new Morphia();
+		new EntityScanner(m, new Predicate<String>() {
+			
+			public boolean apply(final String input) {
+				return input.startsWith(EntityScannerTest.class.getPackage().getName());
+			}
+		});
+		assertTrue(m.isMapped(E.class));
+		assertTrue(m.isMapped(F.class));
+		// only the index is read
+		assertFalse(m.isMapped(G.class));
+	}
+	
+	@Test
+	public void testIndexedRoots() throws Exception {
+		final Set<URL> roots = EntityScanner.indexedRoots(getClass().getClassLoader());
+		// the test classes have an index, the morphia classes don't (so they would be scanned)
+		assertTrue(roots.toString(), roots.contains(E.class.getProtectionDomain().getCodeSource().getLocation()));
+		assertFalse(roots.contains(Morphia.class.getProtectionDomain().getCodeSource().getLocation()));
+	}
+	
+	@Test
+	public void testScanningWithoutIndex() throws Exception {
+		final Morphia m = new Morphia();
+		m.getMapper().getOptions().useMappingIndex = false;
+		new EntityScanner(m, Predicates.equalTo(G.class.getName() + ".class"));
+		assertTrue(m.isMapped(G.class));
+		assertFalse(m.isMapped(E.class));
+	}
+	
 }
@@ -0,0 +1,16 @@
+/**
+ * 
+ */
+package com.google.code.morphia.ext.entityscanner;
+
+import org.bson.types.ObjectId;
+
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+
+/** not in the test mapping index */
+@Entity
+class G {
+	@Id
+	ObjectId id;
+}
\ No newline at end of file
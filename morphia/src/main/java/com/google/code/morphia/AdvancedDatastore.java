@@ -1,5 +1,6 @@
 package com.google.code.morphia;
 
+import com.google.code.morphia.metrics.MorphiaMetrics;
 import com.google.code.morphia.query.Query;
 import com.google.code.morphia.query.UpdateOperations;
 import com.mongodb.DBDecoderFactory;
@@ -48,6 +49,13 @@ public interface AdvancedDatastore extends Datastore {
 	<T> Iterable<Key<T>> insert(String kind, Iterable<T> entities);
 	<T> Iterable<Key<T>> insert(String kind, Iterable<T> entities, WriteConcern wc);
 
+	/** 
+	 * Saves the entities in batches; new entities are inserted together, and existing entities are saved one by one. 
+	 * Entities which fail their {@code @Version} check are not saved, and are returned as conflicts instead of throwing; 
+	 * entities which could not be mapped or written are returned as failures, and the others are still saved.
+	 */
+	<T> BatchSaveResults<T> saveBatch(Iterable<T> entities, WriteConcern wc);
+
 
 	<T> Query<T> createQuery(String kind, Class<T> clazz);
 	//DBObject implementations; in case we don't have features impl'd yet
@@ -62,5 +70,8 @@ public interface AdvancedDatastore extends Datastore {
 	
 	DBDecoderFactory setDecoderFact(DBDecoderFactory fact);
 	DBDecoderFactory getDecoderFact();
+
+	/** The timings and counts of the operations of this datastore */
+	MorphiaMetrics getMetrics();
 	
 }
\ No newline at end of file
@@ -0,0 +1,11 @@
+package com.google.code.morphia;
+
+/**
+ * Notified when an {@link AsyncDatastore} operation completes; called on the thread which completed the operation.
+ */
+public interface AsyncCallback<V> {
+	/** Called with the result of the operation */
+	void onSuccess(V result);
+	/** Called with the exception the operation threw (or the cancellation/rejection) */
+	void onFailure(Throwable t);
+}
@@ -0,0 +1,72 @@
+package com.google.code.morphia;
+
+import java.util.List;
+
+import com.google.code.morphia.query.Query;
+import com.google.code.morphia.query.UpdateOperations;
+import com.google.code.morphia.query.UpdateResults;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+
+/**
+ * <p>
+ * A non-blocking facade over an {@link AdvancedDatastore}; every operation returns a {@link MorphiaFuture}, to which 
+ * {@link AsyncCallback}s may be added.
+ * </p>
+ * <p>
+ * Operations run on a bounded pool, with a limit on the number of concurrent operations per collection. Queries and updates 
+ * are built (without any I/O) with {@link #createQuery(Class)} and {@link #createUpdateOperations(Class)}.
+ * </p>
+ */
+public interface AsyncDatastore {
+	/** Find the given entity (by id) */
+	<T, V> MorphiaFuture<T> get(Class<T> clazz, V id);
+	/** Find the given entities (by key) */
+	<T> MorphiaFuture<List<T>> getByKeys(Class<T> clazz, Iterable<Key<T>> keys);
+	/** Gets the first entity in the query result, or null */
+	<T> MorphiaFuture<T> get(Query<T> query);
+	/** Execute the query and get the results */
+	<T> MorphiaFuture<List<T>> asList(Query<T> query);
+	
+	/** Gets the count of items returned by this query */
+	<T> MorphiaFuture<Long> getCount(Query<T> query);
+	/** Gets the count of this kind */
+	<T> MorphiaFuture<Long> getCount(Class<T> clazz);
+	
+	/** Saves the entity and updates the @Id field */
+	<T> MorphiaFuture<Key<T>> save(T entity);
+	/** Saves the entity and updates the @Id field, with the WriteConcern */
+	<T> MorphiaFuture<Key<T>> save(T entity, WriteConcern wc);
+	/** Inserts the entity and updates the @Id field */
+	<T> MorphiaFuture<Key<T>> insert(T entity);
+	/** Inserts the entity and updates the @Id field, with the WriteConcern */
+	<T> MorphiaFuture<Key<T>> insert(T entity, WriteConcern wc);
+	
+	/** updates all entities found with the operations */
+	<T> MorphiaFuture<UpdateResults<T>> update(Query<T> query, UpdateOperations<T> ops);
+	/** updates all entities found with the operations, inserting if "createIfMissing" is true and nothing is found */
+	<T> MorphiaFuture<UpdateResults<T>> update(Query<T> query, UpdateOperations<T> ops, boolean createIfMissing);
+	/** updates the first entity found with the operations */
+	<T> MorphiaFuture<UpdateResults<T>> updateFirst(Query<T> query, UpdateOperations<T> ops);
+	
+	/** Deletes the given entity (by @Id) */
+	<T> MorphiaFuture<WriteResult> delete(T entity);
+	/** Deletes the given entities based on the query */
+	<T> MorphiaFuture<WriteResult> delete(Query<T> query);
+	
+	/** Find the first Entity from the Query, and modify it; returns the modified entity */
+	<T> MorphiaFuture<T> findAndModify(Query<T> query, UpdateOperations<T> ops);
+	/** Find the first Entity from the Query, and modify it */
+	<T> MorphiaFuture<T> findAndModify(Query<T> query, UpdateOperations<T> ops, boolean oldVersion, boolean createIfMissing);
+	
+	/** Returns a new query bound to the kind; no I/O is done */
+	<T> Query<T> createQuery(Class<T> kind);
+	/** The builder for all update operations */
+	<T> UpdateOperations<T> createUpdateOperations(Class<T> kind);
+	
+	/** The (blocking) datastore operations are run against */
+	AdvancedDatastore getDatastore();
+	
+	/** Stops accepting operations; pending operations are still run. */
+	void shutdown();
+}
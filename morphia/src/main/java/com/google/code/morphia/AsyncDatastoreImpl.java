@@ -0,0 +1,387 @@
+package com.google.code.morphia;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.code.morphia.logging.Logr;
+import com.google.code.morphia.logging.MorphiaLoggerFactory;
+import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.query.MorphiaIterator;
+import com.google.code.morphia.query.Query;
+import com.google.code.morphia.query.QueryImpl;
+import com.google.code.morphia.query.UpdateOperations;
+import com.google.code.morphia.query.UpdateResults;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+
+/**
+ * <p>
+ * Runs {@link DatastoreImpl} operations on a bounded pool. No more than {@code maxPerCollection} operations run at once
+ * against any one collection; the rest wait (without holding a thread) until one finishes, up to
+ * {@code maxWaitingPerCollection}; more are rejected (failed with a {@link RejectedExecutionException}).
+ * </p>
+ * <p>
+ * If a mapping executor is given, reads only fetch the {@link DBObject}s on the I/O pool and the entities are mapped on the
+ * mapping executor; otherwise they are mapped on the thread which completed the read.
+ * </p>
+ */
+@SuppressWarnings("unchecked")
+public class AsyncDatastoreImpl implements AsyncDatastore {
+	private static final Logr log = MorphiaLoggerFactory.get(AsyncDatastoreImpl.class);
+
+	protected final DatastoreImpl ds;
+	protected final ExecutorService executor;
+	protected final ExecutorService mappingExecutor;
+	protected final int maxPerCollection;
+	protected final int maxWaitingPerCollection;
+	private final ConcurrentHashMap<String, CollectionQueue> queues = new ConcurrentHashMap<String, CollectionQueue>();
+	//the operations queued per collection, waiting or running
+	private final AtomicInteger pending = new AtomicInteger();
+	private volatile boolean shutdown = false;
+
+	/** Creates a pool of {@code threads} daemon threads (with a bounded queue), and maps on the I/O threads. */
+	public AsyncDatastoreImpl(Datastore ds, int threads, int maxPerCollection) {
+		this(ds, createExecutor(threads, threads * 64), null, maxPerCollection, threads * 64);
+	}
+
+	/** Lets up to 1024 operations wait per collection */
+	public AsyncDatastoreImpl(Datastore ds, ExecutorService executor, ExecutorService mappingExecutor, int maxPerCollection) {
+		this(ds, executor, mappingExecutor, maxPerCollection, 1024);
+	}
+
+	/**
+	 * @param executor runs the (blocking) operations; should be bounded
+	 * @param mappingExecutor maps the results of reads; can be null
+	 * @param maxPerCollection the max number of operations running at once per collection; 0 means no limit
+	 * @param maxWaitingPerCollection the max number of operations waiting for those per collection
+	 */
+	public AsyncDatastoreImpl(Datastore ds, ExecutorService executor, ExecutorService mappingExecutor, int maxPerCollection, int maxWaitingPerCollection) {
+		this.ds = (DatastoreImpl) ds;
+		this.executor = executor;
+		this.mappingExecutor = mappingExecutor;
+		this.maxPerCollection = maxPerCollection;
+		this.maxWaitingPerCollection = maxWaitingPerCollection;
+	}
+
+	/** Creates a fixed size pool of daemon threads, which rejects operations once {@code queueSize} are waiting */
+	public static ExecutorService createExecutor(int threads, int queueSize) {
+		return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new DaemonThreadFactory());
+	}
+
+	public <T, V> MorphiaFuture<T> get(Class<T> clazz, V id) {
+		return get(ds.createQuery(clazz).filter(Mapper.ID_KEY, id));
+	}
+
+	public <T> MorphiaFuture<List<T>> getByKeys(Class<T> clazz, Iterable<Key<T>> keys) {
+		List<Object> ids = new ArrayList<Object>();
+		for (Key<T> key : keys)
+			ids.add(key.getId());
+		return asList(ds.find(ds.getMapper().getCollectionName(clazz), clazz).disableValidation().filter(Mapper.ID_KEY + " in", ids));
+	}
+
+	public <T> MorphiaFuture<T> get(Query<T> query) {
+		QueryImpl<T> qi = (QueryImpl<T>) query.clone();
+		qi.limit(1);
+		return read(qi, new Mapping<T, T>() {
+			public T map(List<T> entities) {
+				return entities.isEmpty() ? null : entities.get(0);
+			}
+		});
+	}
+
+	public <T> MorphiaFuture<List<T>> asList(Query<T> query) {
+		return read((QueryImpl<T>) query, new Mapping<T, List<T>>() {
+			public List<T> map(List<T> entities) {
+				return entities;
+			}
+		});
+	}
+
+	public <T> MorphiaFuture<Long> getCount(final Query<T> query) {
+		return submit(kind(query), new Callable<Long>() {
+			public Long call() throws Exception {
+				return query.countAll();
+			}
+		});
+	}
+
+	public <T> MorphiaFuture<Long> getCount(final Class<T> clazz) {
+		return submit(ds.getMapper().getCollectionName(clazz), new Callable<Long>() {
+			public Long call() throws Exception {
+				return ds.getCount(clazz);
+			}
+		});
+	}
+
+	public <T> MorphiaFuture<Key<T>> save(T entity) {
+		return save(entity, ds.getWriteConcern(entity));
+	}
+
+	public <T> MorphiaFuture<Key<T>> save(final T entity, final WriteConcern wc) {
+		return submit(ds.getMapper().getCollectionName(entity), new Callable<Key<T>>() {
+			public Key<T> call() throws Exception {
+				return ds.save(entity, wc);
+			}
+		});
+	}
+
+	public <T> MorphiaFuture<Key<T>> insert(T entity) {
+		return insert(entity, ds.getWriteConcern(entity));
+	}
+
+	public <T> MorphiaFuture<Key<T>> insert(final T entity, final WriteConcern wc) {
+		return submit(ds.getMapper().getCollectionName(entity), new Callable<Key<T>>() {
+			public Key<T> call() throws Exception {
+				return ds.insert(entity, wc);
+			}
+		});
+	}
+
+	public <T> MorphiaFuture<UpdateResults<T>> update(Query<T> query, UpdateOperations<T> ops) {
+		return update(query, ops, false);
+	}
+
+	public <T> MorphiaFuture<UpdateResults<T>> update(final Query<T> query, final UpdateOperations<T> ops, final boolean createIfMissing) {
+		return submit(kind(query), new Callable<UpdateResults<T>>() {
+			public UpdateResults<T> call() throws Exception {
+				return ds.update(query, ops, createIfMissing);
+			}
+		});
+	}
+
+	public <T> MorphiaFuture<UpdateResults<T>> updateFirst(final Query<T> query, final UpdateOperations<T> ops) {
+		return submit(kind(query), new Callable<UpdateResults<T>>() {
+			public UpdateResults<T> call() throws Exception {
+				return ds.updateFirst(query, ops);
+			}
+		});
+	}
+
+	public <T> MorphiaFuture<WriteResult> delete(final T entity) {
+		return submit(ds.getMapper().getCollectionName(entity), new Callable<WriteResult>() {
+			public WriteResult call() throws Exception {
+				return ds.delete(entity);
+			}
+		});
+	}
+
+	public <T> MorphiaFuture<WriteResult> delete(final Query<T> query) {
+		return submit(kind(query), new Callable<WriteResult>() {
+			public WriteResult call() throws Exception {
+				return ds.delete(query);
+			}
+		});
+	}
+
+	public <T> MorphiaFuture<T> findAndModify(Query<T> query, UpdateOperations<T> ops) {
+		return findAndModify(query, ops, false, false);
+	}
+
+	public <T> MorphiaFuture<T> findAndModify(final Query<T> query, final UpdateOperations<T> ops, final boolean oldVersion, final boolean createIfMissing) {
+		return submit(kind(query), new Callable<T>() {
+			public T call() throws Exception {
+				return ds.findAndModify(query, ops, oldVersion, createIfMissing);
+			}
+		});
+	}
+
+	public <T> Query<T> createQuery(Class<T> kind) {
+		return ds.createQuery(kind);
+	}
+
+	public <T> UpdateOperations<T> createUpdateOperations(Class<T> kind) {
+		return ds.createUpdateOperations(kind);
+	}
+
+	public AdvancedDatastore getDatastore() {
+		return ds;
+	}
+
+	/** Rejects new operations; the executors are shut down once the ones waiting for their collection have started */
+	public void shutdown() {
+		shutdown = true;
+		if (pending.get() == 0)
+			shutdownExecutors();
+	}
+
+	private void shutdownExecutors() {
+		executor.shutdown();
+		if (mappingExecutor != null)
+			mappingExecutor.shutdown();
+	}
+
+	/** An operation queued per collection is done (or failed to start) */
+	private void finished() {
+		if (pending.decrementAndGet() == 0 && shutdown)
+			shutdownExecutors();
+	}
+
+	/** The documents read on the I/O pool, and the iterator to map them (and report the read) with */
+	private static class Fetched<T> {
+		MorphiaIterator<T, T> it;
+		List<DBObject> dbObjs;
+	}
+
+	/** Converts the mapped entities of a read into the result of the operation */
+	private interface Mapping<T, R> {
+		R map(List<T> entities);
+	}
+
+	/** Reads the DBObjects for the query on the I/O pool, and maps them on the mapping executor (if there is one) */
+	private <T, R> MorphiaFuture<R> read(final QueryImpl<T> query, final Mapping<T, R> mapping) {
+		if (mappingExecutor == null)
+			return submit(kind(query), new Callable<R>() {
+				public R call() throws Exception {
+					MorphiaIterator<T, T> it = iterator(query);
+					return mapping.map(it.map(it.readAll()));
+				}
+			});
+
+		final Fetched<T> fetched = new Fetched<T>();
+		final MorphiaFuture<R> mapped = new MorphiaFuture<R>(new Callable<R>() {
+			public R call() throws Exception {
+				return mapping.map(fetched.it.map(fetched.dbObjs));
+			}
+		});
+		submit(kind(query), new Callable<Fetched<T>>() {
+			public Fetched<T> call() throws Exception {
+				fetched.it = iterator(query);
+				fetched.dbObjs = fetched.it.readAll();
+				return fetched;
+			}
+		}).addCallback(new AsyncCallback<Fetched<T>>() {
+			public void onSuccess(Fetched<T> result) {
+				try {
+					mappingExecutor.execute(mapped);
+				} catch (RejectedExecutionException e) {
+					mapped.fail(e);
+				}
+			}
+			public void onFailure(Throwable t) {
+				mapped.fail(t);
+			}
+		});
+		return mapped;
+	}
+
+	/** @return the (instrumented) iterator of the results; the query is cloned, for a fresh entity cache */
+	private static <T> MorphiaIterator<T, T> iterator(QueryImpl<T> query) {
+		return (MorphiaIterator<T, T>) query.clone().fetch().iterator();
+	}
+
+	private static String kind(Query<?> query) {
+		return ((QueryImpl<?>) query).getCollection().getName();
+	}
+
+	/** Queues the operation behind the others running against the same collection */
+	protected <V> MorphiaFuture<V> submit(String kind, Callable<V> op) {
+		MorphiaFuture<V> future = new MorphiaFuture<V>(op);
+		if (shutdown) {
+			future.fail(new RejectedExecutionException("The datastore is shut down"));
+			return future;
+		}
+		if (maxPerCollection <= 0) {
+			try {
+				executor.execute(future);
+			} catch (RejectedExecutionException e) {
+				future.fail(e);
+			}
+			return future;
+		}
+
+		CollectionQueue queue = queues.get(kind);
+		if (queue == null) {
+			queue = new CollectionQueue(kind);
+			CollectionQueue temp = queues.putIfAbsent(kind, queue);
+			if (temp != null) queue = temp;
+		}
+		//counted before checking again, so that shutdown() waits for it, or it is rejected
+		pending.incrementAndGet();
+		if (shutdown) {
+			finished();
+			future.fail(new RejectedExecutionException("The datastore is shut down"));
+		} else if (!queue.submit(future)) {
+			finished();
+			future.fail(new RejectedExecutionException(maxWaitingPerCollection + " operations are already waiting for " + kind));
+		}
+		return future;
+	}
+
+	/** The operations waiting for (one of the limited number of) slots for a collection */
+	private class CollectionQueue {
+		private final String kind;
+		private final LinkedList<MorphiaFuture<?>> waiting = new LinkedList<MorphiaFuture<?>>();
+		private int running = 0;
+
+		CollectionQueue(String kind) {
+			this.kind = kind;
+		}
+
+		/** @return false if too many operations are waiting already */
+		synchronized boolean submit(MorphiaFuture<?> future) {
+			if (running < maxPerCollection) {
+				running++;
+				if (!start(future))
+					next();
+			} else {
+				if (waiting.size() >= maxWaitingPerCollection)
+					return false;
+				if (log.isTraceEnabled())
+					log.trace("Queueing operation for " + kind + "; " + waiting.size() + " already waiting.");
+				waiting.add(future);
+			}
+			return true;
+		}
+
+		/** @return false if the executor rejected it (and it failed) */
+		private boolean start(final MorphiaFuture<?> future) {
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							future.run();
+						} finally {
+							next();
+							finished();
+						}
+					}
+				});
+				return true;
+			} catch (RejectedExecutionException e) {
+				future.fail(e);
+				finished();
+				return false;
+			}
+		}
+
+		/** Starts the next waiting operation in the slot freed */
+		synchronized void next() {
+			MorphiaFuture<?> future;
+			while ((future = waiting.poll()) != null)
+				if (start(future))
+					return;
+			running--;
+		}
+	}
+
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "morphia-async-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
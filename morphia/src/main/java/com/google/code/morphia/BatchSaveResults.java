@@ -0,0 +1,47 @@
+package com.google.code.morphia;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>The outcome of a batched save ({@link AdvancedDatastore#saveBatch(Iterable, com.mongodb.WriteConcern)}).</p>
+ * <p>Keys are returned in iteration order for every entity which was written; {@code @Version}ed entities whose
+ * optimistic-lock check failed are not written and are reported as conflicts instead, and the entities which could not
+ * be mapped or written are reported as failures, each with its own error.</p>
+ */
+public class BatchSaveResults<T> {
+	private final List<Key<T>> keys = new ArrayList<Key<T>>();
+	private final List<T> conflicts = new ArrayList<T>();
+	private final List<T> failed = new ArrayList<T>();
+	private final Map<T, RuntimeException> failures = new IdentityHashMap<T, RuntimeException>();
+
+	/** @return the keys of the saved entities, in the order they were passed in */
+	public List<Key<T>> getKeys() 		{ return Collections.unmodifiableList(keys); }
+	/** @return the entities which were concurrently updated (their version did not match) and were not saved */
+	public List<T> getConflicts() 		{ return Collections.unmodifiableList(conflicts); }
+	public boolean hasConflicts() 		{ return !conflicts.isEmpty(); }
+	public int getSavedCount() 			{ return keys.size(); }
+	/** @return the entities which could not be mapped or written, in the order they were passed in */
+	public List<T> getFailures() 		{ return Collections.unmodifiableList(failed); }
+	public boolean hasFailures() 		{ return !failed.isEmpty(); }
+	/** @return the error of this (same instance) entity, or null if it did not fail */
+	public RuntimeException getFailure(T entity) { return failures.get(entity); }
+
+	/** @return true if this (same instance) entity failed its optimistic-lock check */
+	public boolean isConflicted(T entity) {
+		for (T c : conflicts)
+			if (c == entity)
+				return true;
+		return false;
+	}
+
+	public void addKey(Key<T> key) 		{ keys.add(key); }
+	public void addConflict(T entity) 	{ conflicts.add(entity); }
+	public void addFailure(T entity, RuntimeException e) {
+		failed.add(entity);
+		failures.put(entity, e);
+	}
+}
@@ -3,6 +3,9 @@ package com.google.code.morphia;
 import java.util.List;
 import java.util.Map;
 
+import com.google.code.morphia.aggregation.AggregationPipeline;
+import com.google.code.morphia.indexing.IndexSyncReport;
+import com.google.code.morphia.indexing.IndexSynchronizer;
 import com.google.code.morphia.query.Query;
 import com.google.code.morphia.query.UpdateOperations;
 import com.google.code.morphia.query.UpdateResults;
@@ -86,7 +89,7 @@ public interface Datastore {
 	
 	/** Saves the entities (Objects) and updates the @Id field */
 	<T> Iterable<Key<T>> save(Iterable<T> entities);
-	/** Saves the entities (Objects) and updates the @Id field, with the WriteConcern  */
+	/** Saves the entities (Objects) and updates the @Id field, with the WriteConcern; the entities are written in batches  */
 	<T> Iterable<Key<T>> save(Iterable<T> entities, WriteConcern wc);
 	/** Saves the entities (Objects) and updates the @Id field */
 	<T> Iterable<Key<T>> save(T... entities);
@@ -100,6 +103,15 @@ public interface Datastore {
 	/** Work as if you did an update with each field in the entity doing a $set; Only at the top level of the entity. */
 	<T> Key<T> merge(T entity, WriteConcern wc);
 
+	/**
+	 * Saves only the fields which changed since the entity was loaded (or last saved), as a $set/$unset, checking the
+	 * {@code @Version} if there is one; nothing is sent if nothing changed. Entities which are not
+	 * {@code @Entity(trackChanges=true)}, or were not loaded/saved by this datastore, are saved whole.
+	 */
+	<T> Key<T> saveChanges(T entity);
+	/** @see #saveChanges(Object) */
+	<T> Key<T> saveChanges(T entity, WriteConcern wc);
+
 	/** updates the entity with the operations; this is an atomic operation*/
 	<T> UpdateResults<T> update(T ent, UpdateOperations<T> ops);
 	/** updates the entity with the operations; this is an atomic operation*/
@@ -151,7 +163,7 @@ public interface Datastore {
 	/**
 	 * Runs a map/reduce job at the server; this should be used with a server version 1.7.4 or higher
 	 * @param <T> The type of resulting data
-	 * @param outputType The type of resulting data; inline is not working yet
+	 * @param outputType The type of resulting data; inline results are mapped to it as they are iterated
 	 * @param type MapreduceType
 	 * @param q The query (only the criteria, limit and sort will be used)
 	 * @param map The map function, in javascript, as a string
@@ -167,12 +179,18 @@ public interface Datastore {
 	 * @param <T> The type of resulting data
 	 * @param type MapreduceType
 	 * @param q The query (only the criteria, limit and sort will be used)
-	 * @param outputType The type of resulting data; inline is not working yet
+	 * @param outputType The type of resulting data; inline results are mapped to it as they are iterated
 	 * @param baseCommand The base command to fill in and send to the server
 	 * @return counts and stuff
 	 */
 	<T> MapreduceResults<T> mapReduce(MapreduceType type, Query q, Class<T> outputType, MapReduceCommand baseCommand);
 	
+	/** Starts an aggregation framework pipeline over all the entities of the kind */
+	<T> AggregationPipeline<T> createAggregation(Class<T> kind);
+	
+	/** Starts an aggregation framework pipeline over the results of the query (its criteria, order, offset and limit) */
+	<T> AggregationPipeline<T> createAggregation(Query<T> query);
+	
 	/** The builder for all update operations */
 	<T> UpdateOperations<T> createUpdateOperations(Class<T> kind);
 	
@@ -204,6 +222,12 @@ public interface Datastore {
 	/** Ensures (creating if necessary) the indexes found during class mapping (using {@code @Indexed, @Indexes)}, possibly in the background*/
 	<T> void ensureIndexes(Class<T>  clazz, boolean background);
 
+	/**
+	 * Compares the existing indexes of the mapped collections with the declared ones (reading each collection's once),
+	 * and creates the missing ones in the background, unless it is a dry run; see {@link IndexSynchronizer}
+	 */
+	IndexSyncReport syncIndexes(boolean dryRun);
+
 	/** ensure capped DBCollections for {@code Entity}(s) */
 	void ensureCaps();
 	
@@ -10,26 +10,36 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.google.code.morphia.aggregation.AggregationPipeline;
+import com.google.code.morphia.aggregation.AggregationPipelineImpl;
 import com.google.code.morphia.annotations.CappedAt;
 import com.google.code.morphia.annotations.Entity;
 import com.google.code.morphia.annotations.Index;
 import com.google.code.morphia.annotations.Indexed;
 import com.google.code.morphia.annotations.Indexes;
-import com.google.code.morphia.annotations.NotSaved;
 import com.google.code.morphia.annotations.PostPersist;
 import com.google.code.morphia.annotations.Reference;
 import com.google.code.morphia.annotations.Serialized;
-import com.google.code.morphia.annotations.Version;
+import com.google.code.morphia.indexing.IndexDefinition;
+import com.google.code.morphia.indexing.IndexSyncReport;
+import com.google.code.morphia.indexing.IndexSynchronizer;
 import com.google.code.morphia.logging.Logr;
 import com.google.code.morphia.logging.MorphiaLoggerFactory;
+import com.google.code.morphia.mapping.ChangeTracker;
 import com.google.code.morphia.mapping.MappedClass;
 import com.google.code.morphia.mapping.MappedField;
 import com.google.code.morphia.mapping.Mapper;
 import com.google.code.morphia.mapping.MappingException;
+import com.google.code.morphia.mapping.cache.DocumentCache;
 import com.google.code.morphia.mapping.cache.EntityCache;
 import com.google.code.morphia.mapping.lazy.DatastoreHolder;
 import com.google.code.morphia.mapping.lazy.proxy.ProxyHelper;
+import com.google.code.morphia.metrics.MorphiaMetrics;
+import com.google.code.morphia.metrics.OperationEvent;
+import com.google.code.morphia.metrics.OperationType;
 import com.google.code.morphia.query.Query;
 import com.google.code.morphia.query.QueryException;
 import com.google.code.morphia.query.QueryImpl;
@@ -71,16 +81,34 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	protected DB db;
 	protected WriteConcern defConcern = WriteConcern.SAFE;
 	protected DBDecoderFactory decoderFactory = null;
+	/** The number of entities mapped and written together by {@link #saveBatch(Iterable, WriteConcern)} */
+	protected int saveBatchSize = 1000;
+	protected MorphiaMetrics metrics;
+	/** The documents get, getByKeys and the references read through; none if null */
+	protected volatile DocumentCache documentCache;
+	//counts the invalidations per collection, so that a document read before one is not cached after it
+	private final ConcurrentHashMap<String, AtomicLong> invalidations = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentHashMap<MappedClass, List<IndexDefinition>> declaredIndexes = new ConcurrentHashMap<MappedClass, List<IndexDefinition>>();
+	private final ConcurrentHashMap<Class, OperationContext> contexts = new ConcurrentHashMap<Class, OperationContext>();
 	
 	public DatastoreImpl(Mapper mapr, Mongo mongo, String dbName) {
 		this.mapr = mapr;
 		this.mongo = mongo;
 		this.db = mongo.getDB(dbName);
+		this.metrics = new MorphiaMetrics(dbName);
 
 		// VERY discussable
 		DatastoreHolder.getInstance().set(this);
 	}
 	
+	/** For datastores which are not backed by a server; there is no Mongo or DB */
+	protected DatastoreImpl(Mapper mapr, String name) {
+		this.mapr = mapr;
+		this.metrics = new MorphiaMetrics(name);
+
+		DatastoreHolder.getInstance().set(this);
+	}
+	
 	public DatastoreImpl(Morphia morphia, Mongo mongo) {
 		this(morphia, mongo, null);
 	}
@@ -99,8 +127,14 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 		this(morphia.getMapper(), mongo, dbName);
 	}
 	
+	/** @return a datastore of the database, with the same metrics; and document cache, if it is the same database */
 	public DatastoreImpl copy(String db) {
-		return new DatastoreImpl(mapr, mongo, db);
+		DatastoreImpl copy = new DatastoreImpl(mapr, mongo, db);
+		copy.metrics = metrics;
+		//the cache is by collection, of one database
+		if (this.db != null && db.equals(this.db.getName()))
+			copy.documentCache = documentCache;
+		return copy;
 	}
 	
 	public <T, V> DBRef createRef(Class<T> clazz, V id) {
@@ -129,9 +163,12 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	}
 	
 	public <T> WriteResult delete(String kind, T id) {
+		long start = System.nanoTime();
 		DBCollection dbColl = getCollection(kind);
 		WriteResult wr = dbColl.remove(BasicDBObjectBuilder.start().add(Mapper.ID_KEY, id).get());
 		throwOnError(null, wr);
+		invalidate(dbColl.getName(), id);
+		metrics.record(OperationType.DELETE, dbColl.getName(), null, start, 0, affected(wr));
 		return wr;
 	}
 
@@ -174,6 +211,7 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	}
 	
 	public <T> WriteResult delete(Query<T> query, WriteConcern wc) {
+		long start = System.nanoTime();
 		QueryImpl<T> q = (QueryImpl<T>) query;
 
 		DBCollection dbColl = q.getCollection();
@@ -198,6 +236,8 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 				wr = dbColl.remove(new BasicDBObject(), wc);
 		
 		throwOnError(wc, wr);
+		invalidate(dbColl, q.getQueryObject());
+		q.recordOperation(OperationType.DELETE, start, 0, affected(wr));
 		
 		return wr;
 	}
@@ -219,6 +259,7 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	}
 	
 	protected <T> void ensureIndex(Class<T> clazz, String name, BasicDBObject fields, boolean unique, boolean dropDupsOnCreate, boolean background, boolean sparse) {
+		long start = System.nanoTime();
 		BasicDBObjectBuilder keyOpts = new BasicDBObjectBuilder();
 		if (name != null && name.length() > 0) {
 			keyOpts.add("name", name);
@@ -244,6 +285,7 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 			log.debug("Ensuring index for " + dbColl.getName() + " with keys:" + fields + " and opts:" + opts);
 			dbColl.ensureIndex(fields, opts);
 		}
+		metrics.record(OperationType.ENSURE_INDEX, dbColl.getName(), clazz, start, 0, 0);
 	}
 	
 	@SuppressWarnings({ "rawtypes"})
@@ -272,10 +314,40 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	}
 	
 	protected void ensureIndexes(MappedClass mc, boolean background) {
-		ensureIndexes(mc, background, new ArrayList<MappedClass>(), new ArrayList<MappedField>());
+		ensureIndexes(getDeclaredIndexes(mc), background);
+	}
+
+	private void ensureIndexes(List<IndexDefinition> defs, boolean background) {
+		for (IndexDefinition def : defs)
+			ensureIndex(def.getEntityClass(), def.getName(), def.getKeys(), def.isUnique(), def.isDropDups(), def.isBackground() || background, def.isSparse());
 	}
 	
+	/** Returns the indexes declared by the class (and its embedded types), validated once and cached */
+	public List<IndexDefinition> getDeclaredIndexes(MappedClass mc) {
+		List<IndexDefinition> defs = declaredIndexes.get(mc);
+		if (defs == null) {
+			defs = new ArrayList<IndexDefinition>();
+			collectIndexes(mc, defs, new ArrayList<MappedClass>(), new ArrayList<MappedField>());
+			defs = Collections.unmodifiableList(defs);
+			declaredIndexes.putIfAbsent(mc, defs);
+		}
+		return defs;
+	}
+	
+	/**
+	 * Ensures the indexes of the class, as embedded under the parents given.
+	 * @deprecated no longer called by {@link #ensureIndexes(MappedClass, boolean)}; override
+	 * {@link #collectIndexes(MappedClass, List, ArrayList, ArrayList)} to change the indexes declared
+	 */
+	@Deprecated
 	protected void ensureIndexes(MappedClass mc, boolean background, ArrayList<MappedClass> parentMCs, ArrayList<MappedField> parentMFs) {
+		List<IndexDefinition> defs = new ArrayList<IndexDefinition>();
+		collectIndexes(mc, defs, parentMCs, parentMFs);
+		ensureIndexes(defs, background);
+	}
+
+	/** Adds the indexes declared by the class, as embedded under the parents given, to the definitions */
+	protected void collectIndexes(MappedClass mc, List<IndexDefinition> defs, ArrayList<MappedClass> parentMCs, ArrayList<MappedField> parentMFs) {
 		if (parentMCs.contains(mc))
 			return;
 		
@@ -283,7 +355,7 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 		if (mc.getEmbeddedAnnotation() != null && (parentMCs == null || parentMCs.isEmpty()))
 			return;
 
-		//Ensure indexes from class annotation
+		//indexes from class annotation
 		ArrayList<Annotation> idxs = mc.getAnnotations(Indexes.class);
 		if (idxs != null)
 			for(Annotation ann : idxs) {
@@ -291,10 +363,10 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 				if (idx != null && idx.value() != null && idx.value().length > 0)
 					for(Index index : idx.value()) {
 						BasicDBObject fields = QueryImpl.parseFieldsString(index.value(), mc.getClazz(), mapr, !index.disableValidation());
-						ensureIndex(mc.getClazz(), index.name(), fields, index.unique(), index.dropDups(), index.background() ? index.background() : background, index.sparse() ? index.sparse() : false );
+						defs.add(new IndexDefinition(mc.getClazz(), index.name(), fields, index.unique(), index.dropDups(), index.background(), index.sparse()));
 					}
 			}
-		//Ensure indexes from field annotations, and embedded entities
+		//indexes from field annotations, and embedded entities
 		for (MappedField mf : mc.getPersistenceFields()) {
 			if (mf.hasAnnotation(Indexed.class)) {
 				Indexed index = mf.getAnnotation(Indexed.class);
@@ -306,7 +378,7 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 				
 				field.append(mf.getNameToStore());
 				
-				ensureIndex(indexedClass, index.name(), new BasicDBObject(field.toString(), index.value().toIndexValue()), index.unique(), index.dropDups(), index.background() ? index.background() : background , index.sparse() ? index.sparse() : false);
+				defs.add(new IndexDefinition(indexedClass, index.name(), new BasicDBObject(field.toString(), index.value().toIndexValue()), index.unique(), index.dropDups(), index.background(), index.sparse()));
 			}
 			
 			if (!mf.isTypeMongoCompatible() && !mf.hasAnnotation(Reference.class) && !mf.hasAnnotation(Serialized.class)) {
@@ -314,7 +386,7 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 				ArrayList<MappedField> newParents = (ArrayList<MappedField>) parentMFs.clone();
 				newParentClasses.add(mc);
 				newParents.add(mf);
-				ensureIndexes(mapr.getMappedClass(mf.isSingleValue() ? mf.getType() : mf.getSubClass()), background, newParentClasses, newParents);
+				collectIndexes(mapr.getMappedClass(mf.isSingleValue() ? mf.getType() : mf.getSubClass()), defs, newParentClasses, newParents);
 			}
 		}
 	}
@@ -341,11 +413,15 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	}
 	
 
+	public IndexSyncReport syncIndexes(boolean dryRun) {
+		return new IndexSynchronizer(this).dryRun(dryRun).sync();
+	}
+
 	public void ensureCaps() {
-		for (MappedClass mc : mapr.getMappedClasses())
-			if (mc.getEntityAnnotation() != null && mc.getEntityAnnotation().cap().value() > 0) {
-				CappedAt cap = mc.getEntityAnnotation().cap();
-				String collName = mapr.getCollectionName(mc.getClazz());
+		for (MappedClass mc : mapr.getMappedClasses()) {
+			CappedAt cap = getOperationContext(mc.getClazz()).getCap();
+			if (cap != null) {
+				String collName = mc.getCollectionName();
 				BasicDBObjectBuilder dbCapOpts = BasicDBObjectBuilder.start("capped", true);
 				if (cap.value() > 0)
 					dbCapOpts.add("size", cap.value());
@@ -366,6 +442,7 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 					log.debug("Created cap'd DBCollection (" + collName + ") with opts " + dbCapOpts);
 				}
 			}
+		}
 	}
 	
 	public <T> Query<T> queryByExample(T ex) {
@@ -436,8 +513,30 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	}
 	
 
+	/** @return the document referenced, from the document cache if it is there (and put there if not); or null */
+	public DBObject fetch(DBRef ref) {
+		//the cache is of this datastore's database only
+		DocumentCache docs = ref.getDB() == null || ref.getDB() == db ? documentCache : null;
+		DBObject dbObj = docs == null ? null : docs.get(ref.getRef(), ref.getId());
+		if (dbObj != null)
+			return dbObj;
+		if (docs != null)
+			docs = readThrough(docs, ref.getRef());
+		//the documents of the cache are decoded without a DB
+		DB refDB = ref.getDB() != null ? ref.getDB() : db;
+		dbObj = refDB.getCollection(ref.getRef()).findOne(new BasicDBObject(Mapper.ID_KEY, ref.getId()));
+		if (docs != null && dbObj != null)
+			docs.put(ref.getRef(), ref.getId(), dbObj);
+		return dbObj;
+	}
+
 	public <T> T get(Class<T> clazz, DBRef ref) {
-		return (T)mapr.fromDBObject(clazz, ref.fetch(), createCache());
+		long start = System.nanoTime();
+		DBObject dbObj = fetch(ref);
+		long mapStart = System.nanoTime();
+		T entity = (T)mapr.fromDBObject(clazz, dbObj, createCache());
+		metrics.record(OperationType.GET, ref.getRef(), clazz, start, System.nanoTime() - mapStart, dbObj == null ? 0 : 1);
+		return entity;
 	}
 	
 
@@ -500,13 +599,33 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 			else
 				kindMap.put(key.getKind(), new ArrayList<Key>(Collections.singletonList((Key) key)));
 		}
+		DocumentCache docs = documentCache;
+		EntityCache cache = createCache();
 		for (String kind : kindMap.keySet()) {
 			List<Object> objIds = new ArrayList<Object>();
 			List<Key> kindKeys = kindMap.get(kind);
+			long start = System.nanoTime();
+			long mapping = 0;
+			int hits = 0;
 			for (Key key : kindKeys) {
-				objIds.add(key.getId());
+				DBObject dbObj = docs == null ? null : docs.get(kind, storedId(key.getKindClass(), key.getId()));
+				if (dbObj == null) {
+					objIds.add(key.getId());
+					continue;
+				}
+				long mapStart = System.nanoTime();
+				entities.add((T) mapr.fromDBObject(key.getKindClass() != null ? key.getKindClass() : clazz, dbObj, cache));
+				mapping += System.nanoTime() - mapStart;
+				hits++;
 			}
-			List kindResults = find(kind, null).disableValidation().filter("_id in", objIds).asList();
+			if (hits > 0)
+				metrics.record(OperationType.GET, kind, clazz, start, mapping, hits);
+			if (objIds.isEmpty())
+				continue;
+			QueryImpl q = ((QueryImpl) find(kind, null)).recordAs(OperationType.GET);
+			if (docs != null)
+				q.cacheResultsIn(readThrough(docs, kind));
+			List kindResults = q.disableValidation().filter("_id in", objIds).asList();
 			entities.addAll(kindResults);
 		}
 		
@@ -516,7 +635,7 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	
 
 	public <T, V> T get(String kind, Class<T> clazz, V id) {
-		List<T> results = find(kind, clazz, Mapper.ID_KEY, id, 0, 1).asList();
+		List<T> results = ((QueryImpl<T>) find(kind, clazz, Mapper.ID_KEY, id, 0, 1)).recordAs(OperationType.GET).asList();
 		if (results == null || results.size() == 0)
 			return null;
 		return results.get(0);
@@ -524,7 +643,135 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	
 
 	public <T, V> T get(Class<T> clazz, V id) {
-		return find(getCollection(clazz).getName(), clazz, Mapper.ID_KEY, id, 0, 1, true).get();
+		String kind = getCollection(clazz).getName();
+		DocumentCache docs = documentCache;
+		if (docs != null) {
+			long start = System.nanoTime();
+			DBObject dbObj = docs.get(kind, storedId(clazz, id));
+			if (dbObj != null) {
+				long mapStart = System.nanoTime();
+				T entity = (T) mapr.fromDBObject(clazz, dbObj, createCache());
+				metrics.record(OperationType.GET, kind, clazz, start, System.nanoTime() - mapStart, 1);
+				return entity;
+			}
+		}
+		QueryImpl<T> q = (QueryImpl<T>) find(kind, clazz, Mapper.ID_KEY, id, 0, 1, true);
+		if (docs != null)
+			q.cacheResultsIn(readThrough(docs, kind));
+		return q.recordAs(OperationType.GET).get();
+	}
+
+	/** @return the id as it is stored (and cached) */
+	private Object storedId(Class clazz, Object id) {
+		MappedField idField = clazz == null ? null : getOperationContext(clazz).getIdField();
+		return idField == null ? id : mapr.toMongoObject(idField, null, id);
+	}
+
+	/** Sets the cache of documents get, getByKeys and the references read through; writes through this datastore invalidate it */
+	public void setDocumentCache(DocumentCache documentCache) {
+		this.documentCache = documentCache;
+	}
+
+	public DocumentCache getDocumentCache() {
+		return documentCache;
+	}
+
+	/**
+	 * @return the cache, to put the documents of the collection read from now on in; they aren't put if the collection
+	 * is invalidated (written) meanwhile, as they may be older than the write
+	 */
+	protected DocumentCache readThrough(DocumentCache docs, String kind) {
+		AtomicLong count = invalidations.get(kind);
+		if (count == null) {
+			count = new AtomicLong();
+			AtomicLong temp = invalidations.putIfAbsent(kind, count);
+			if (temp != null) count = temp;
+		}
+		return new ReadThrough(docs, kind, count);
+	}
+
+	/** Counted before invalidating, so that a put it races with is undone by the one putting */
+	private void countInvalidation(String kind) {
+		AtomicLong count = invalidations.get(kind);
+		if (count != null)
+			count.incrementAndGet();
+	}
+
+	/** Drops the document from the document cache, if there is one */
+	protected void invalidate(String kind, Object storedId) {
+		DocumentCache docs = documentCache;
+		if (docs != null) {
+			countInvalidation(kind);
+			docs.invalidate(kind, storedId);
+		}
+	}
+
+	/** Drops what a write of the documents matching the query may have changed from the document cache */
+	protected void invalidate(DBCollection dbColl, DBObject query) {
+		DocumentCache docs = documentCache;
+		if (docs == null)
+			return;
+		countInvalidation(dbColl.getName());
+		Object id = query == null ? null : query.get(Mapper.ID_KEY);
+		if (id != null && !isOperator(id)) {
+			docs.invalidate(dbColl.getName(), id);
+			return;
+		}
+		if (id instanceof DBObject && ((DBObject) id).keySet().size() == 1 && ((DBObject) id).get("$in") instanceof Iterable) {
+			for (Object in : (Iterable) ((DBObject) id).get("$in"))
+				docs.invalidate(dbColl.getName(), in);
+			return;
+		}
+		docs.invalidate(dbColl.getName());
+	}
+
+	/** The cache, putting the documents of a collection only while it is not invalidated */
+	private static class ReadThrough implements DocumentCache {
+		private final DocumentCache docs;
+		private final String kind;
+		private final AtomicLong invalidations;
+		private final long start;
+
+		ReadThrough(DocumentCache docs, String kind, AtomicLong invalidations) {
+			this.docs = docs;
+			this.kind = kind;
+			this.invalidations = invalidations;
+			this.start = invalidations.get();
+		}
+
+		public DBObject get(String collection, Object id) {
+			return docs.get(collection, id);
+		}
+
+		public void put(String collection, Object id, DBObject doc) {
+			if (!kind.equals(collection) || invalidations.get() != start)
+				return;
+			docs.put(collection, id, doc);
+			//invalidated while putting; it may have been before the put
+			if (invalidations.get() != start)
+				docs.invalidate(collection, id);
+		}
+
+		public void invalidate(String collection, Object id) {
+			docs.invalidate(collection, id);
+		}
+
+		public void invalidate(String collection) {
+			docs.invalidate(collection);
+		}
+
+		public void clear() {
+			docs.clear();
+		}
+	}
+
+	private static boolean isOperator(Object value) {
+		if (!(value instanceof DBObject))
+			return false;
+		for (String key : ((DBObject) value).keySet())
+			if (key.startsWith("$"))
+				return true;
+		return false;
 	}
 	
 
@@ -561,9 +808,26 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	
 	@SuppressWarnings("rawtypes")
 	public DBCollection getCollection(Class clazz) {
-		String collName = mapr.getCollectionName(clazz);
-		DBCollection dbC = getDB().getCollection(collName);
-		return dbC;
+		return getOperationContext(clazz).getCollection();
+	}
+
+	/** Returns what the operations need to know about the class; worked out on first use */
+	@SuppressWarnings("rawtypes")
+	public OperationContext getOperationContext(Class clazz) {
+		OperationContext ctx = contexts.get(clazz);
+		if (ctx == null) {
+			ctx = new OperationContext(mapr.getMappedClass(clazz), getDB());
+			OperationContext temp = contexts.putIfAbsent(clazz, ctx);
+			if (temp != null) ctx = temp;
+		}
+		return ctx;
+	}
+
+	/** Returns the context of the entity's class (or of the class itself) */
+	private OperationContext contextOf(Object clazzOrEntity) {
+		if (clazzOrEntity instanceof Class)
+			return getOperationContext((Class) clazzOrEntity);
+		return getOperationContext(ProxyHelper.isProxy(clazzOrEntity) ? ProxyHelper.getReferentClass(clazzOrEntity) : clazzOrEntity.getClass());
 	}
 
 	public DBCollection getCollection(Object obj) {
@@ -578,17 +842,24 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 
 	public <T> long getCount(T entity) {
 		entity = ProxyHelper.unwrap(entity);
-		return getCollection(entity).count();
+		return count(getCollection(entity), entity.getClass());
 	}
 	
 
 	public <T> long getCount(Class<T> clazz) {
-		return getCollection(clazz).count();
+		return count(getCollection(clazz), clazz);
 	}
 	
 
 	public long getCount(String kind) {
-		return getCollection(kind).count();
+		return count(getCollection(kind), null);
+	}
+	
+	private long count(DBCollection dbColl, Class<?> clazz) {
+		long start = System.nanoTime();
+		long count = dbColl.count();
+		metrics.record(OperationType.COUNT, dbColl.getName(), clazz, start, 0, 0);
+		return count;
 	}
 	
 
@@ -633,15 +904,15 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	}
 	
 	private <T> Iterable<Key<T>> insert(DBCollection dbColl, Iterable<T> entities, WriteConcern wc) {
+		long start = System.nanoTime();
 		ArrayList<DBObject> ents = entities instanceof List ? new ArrayList<DBObject>(((List<T>)entities).size()) : new ArrayList<DBObject>();
 
 		Map<Object, DBObject> involvedObjects = new LinkedHashMap<Object, DBObject>();
 		for (T ent : entities) {
-			MappedClass mc = mapr.getMappedClass(ent);
-			if (mc.getAnnotation(NotSaved.class) != null)
-				throw new MappingException("Entity type: " + mc.getClazz().getName() + " is marked as NotSaved which means you should not try to save it!");
+			checkNotSaved(contextOf(ent));
 			ents.add(entityToDBObj(ent, involvedObjects));
 		}
+		long mapping = System.nanoTime() - start;
 		
 		WriteResult wr = null;
 		
@@ -660,6 +931,7 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 			savedKeys.add(postSaveGetKey(entity, dbObj, dbColl, involvedObjects));
 		}
 		
+		metrics.record(OperationType.INSERT, dbColl.getName(), ents.isEmpty() ? null : entities.iterator().next().getClass(), start, mapping, ents.size());
 		return savedKeys;
 	}
 
@@ -689,8 +961,10 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	}
 
 	protected <T> Key<T> insert(DBCollection dbColl, T entity, WriteConcern wc) {
+		long start = System.nanoTime();
 		LinkedHashMap<Object, DBObject> involvedObjects = new LinkedHashMap<Object, DBObject>();
 		DBObject dbObj = entityToDBObj(entity, involvedObjects);
+		long mapping = System.nanoTime() - start;
 		WriteResult wr;
 		if (wc == null)
 			wr = dbColl.insert(dbObj);
@@ -699,7 +973,9 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 
 		throwOnError(wc, wr);
 
-		return postSaveGetKey(entity, dbObj, dbColl, involvedObjects);
+		Key<T> key = postSaveGetKey(entity, dbObj, dbColl, involvedObjects);
+		metrics.record(OperationType.INSERT, dbColl.getName(), entity.getClass(), start, mapping, 1);
+		return key;
 
 	}
 
@@ -711,10 +987,16 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	
 	/** call postSaveOperations and returns Key for entity */
 	protected <T> Key<T> postSaveGetKey(T entity, DBObject dbObj, DBCollection dbColl, Map<Object, DBObject> involvedObjects){
+		return postSaveGetKey(entity, dbObj, dbColl, involvedObjects, createCache());
+	}
+	
+	/** call postSaveOperations and returns Key for entity */
+	protected <T> Key<T> postSaveGetKey(T entity, DBObject dbObj, DBCollection dbColl, Map<Object, DBObject> involvedObjects, EntityCache cache){
 		if (dbObj.get(Mapper.ID_KEY) == null)
 			throw new MappingException("Missing _id after save!");
+		invalidate(dbColl.getName(), dbObj.get(Mapper.ID_KEY));
 		
-		postSaveOperations(entity, dbObj, involvedObjects);
+		postSaveOperations(entity, dbObj, involvedObjects, cache);
 		Key<T> key = new Key<T>(dbColl.getName(), getId(entity));
 		key.setKindClass((Class<? extends T>) entity.getClass());
 		
@@ -732,12 +1014,177 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	}
 	
 	public <T> Iterable<Key<T>> save(Iterable<T> entities, WriteConcern wc) {
-		ArrayList<Key<T>> savedKeys = new ArrayList<Key<T>>();
-		for (T ent : entities)
-			savedKeys.add(save(ent, wc));
-		return savedKeys;
+		BatchSaveResults<T> res = saveBatch(entities, wc, true);
+		if (res.hasFailures())
+			throw res.getFailure(res.getFailures().get(0));
+		if (res.hasConflicts()) {
+			T ent = res.getConflicts().get(0);
+			throw new ConcurrentModificationException("Entity of class " + ent.getClass().getName()
+					+ " (id='" + getId(ent) + "') was concurrently updated.");
+		}
+		return res.getKeys();
+	}
+	
+	public <T> BatchSaveResults<T> saveBatch(Iterable<T> entities, WriteConcern wc) {
+		return saveBatch(entities, wc, false);
+	}
+	
+	/** With {@code stopOnError}, nothing after the first failure (or version conflict) is written, nor mapped. */
+	private <T> BatchSaveResults<T> saveBatch(Iterable<T> entities, WriteConcern wc, boolean stopOnError) {
+		BatchSaveResults<T> results = new BatchSaveResults<T>();
+		EntityCache cache = createCache();
+		List<PendingSave<T>> batch = new ArrayList<PendingSave<T>>();
+		for (T ent : entities) {
+			ent = ProxyHelper.unwrap(ent);
+			try {
+				batch.add(prepareSave(getCollection(ent), ent));
+			} catch (RuntimeException e) {
+				if (stopOnError)
+					throw e;
+				results.addFailure(ent, e);
+				continue;
+			}
+			if (batch.size() >= saveBatchSize) {
+				boolean stopped = !saveBatch(batch, wc, cache, results, stopOnError);
+				batch.clear();
+				if (stopped)
+					return results;
+			}
+		}
+		if (!batch.isEmpty())
+			saveBatch(batch, wc, cache, results, stopOnError);
+		return results;
+	}
+	
+	/** An entity which has been mapped (and had its pre-save life-cycle methods called) but not written yet. */
+	private static class PendingSave<T> {
+		T entity;
+		DBObject dbObj;
+		DBCollection dbColl;
+		LinkedHashMap<Object, DBObject> involvedObjects = new LinkedHashMap<Object, DBObject>();
+		MappedField mfVersion;
+		Long oldVersion;
+		long newVersion;
+		boolean conflicted = false;
+		RuntimeException error;
+		long mappingNanos;
+		
+		boolean isVersionedUpdate() { return mfVersion != null && oldVersion != null && oldVersion > 0; }
+		boolean isInsert() { return !isVersionedUpdate() && dbObj.get(Mapper.ID_KEY) == null; }
+		boolean failed() { return conflicted || error != null; }
+	}
+	
+	private <T> PendingSave<T> prepareSave(DBCollection dbColl, T entity) {
+		OperationContext ctx = contextOf(entity);
+		checkNotSaved(ctx);
+		
+		long start = System.nanoTime();
+		PendingSave<T> ps = new PendingSave<T>();
+		ps.entity = entity;
+		ps.dbColl = dbColl;
+		ps.dbObj = entityToDBObj(entity, ps.involvedObjects);
+		ps.mappingNanos = System.nanoTime() - start;
+		
+		if (ctx.getVersionField() != null) {
+			ps.mfVersion = ctx.getVersionField();
+			ps.oldVersion = (Long) ps.mfVersion.getFieldValue(entity);
+			ps.newVersion = VersionHelper.nextValue(ps.oldVersion);
+			ps.dbObj.put(ps.mfVersion.getNameToStore(), ps.newVersion);
+		}
+		return ps;
+	}
+	
+	/** 
+	 * Writes a batch in order; runs of new entities (of a collection) are inserted together, and the other entities are 
+	 * saved one by one, so each write is acknowledged (with the WriteConcern) on its own and each entity gets its own 
+	 * error. The post-save life-cycle methods of the entities written are then called in the original order.
+	 * @return false if it stopped on an error
+	 */
+	private <T> boolean saveBatch(List<PendingSave<T>> batch, WriteConcern wc, EntityCache cache, BatchSaveResults<T> results, boolean stopOnError) {
+		int written = 0;
+		boolean stopped = false;
+		while (written < batch.size() && !stopped) {
+			long start = System.nanoTime();
+			long mapping = 0;
+			int first = written;
+			DBCollection dbColl = batch.get(first).dbColl;
+			while (written < batch.size() && batch.get(written).dbColl.getName().equals(dbColl.getName()) && !stopped) {
+				int end = written + 1;
+				if (batch.get(written).isInsert())
+					while (end < batch.size() && batch.get(end).isInsert() && batch.get(end).dbColl.getName().equals(dbColl.getName()))
+						end++;
+				List<PendingSave<T>> run = batch.subList(written, end);
+				if (run.size() > 1)
+					insert(dbColl, run, wc, stopOnError);
+				else
+					write(run.get(0), wc);
+				for (PendingSave<T> ps : run) {
+					mapping += ps.mappingNanos;
+					written++;
+					if (stopOnError && ps.failed()) {
+						stopped = true;
+						break;
+					}
+				}
+			}
+			//the mapping was done before the batch was written
+			metrics.record(new OperationEvent(OperationType.SAVE, dbColl.getName(), batch.get(first).entity.getClass(), 
+					System.nanoTime() - start, mapping, written - first, 0, 0, 0));
+		}
 		
-	}	
+		for (PendingSave<T> ps : batch.subList(0, written)) {
+			if (ps.conflicted)
+				results.addConflict(ps.entity);
+			else if (ps.error != null)
+				results.addFailure(ps.entity, ps.error);
+			else {
+				if (ps.mfVersion != null)
+					ps.mfVersion.setFieldValue(ps.entity, ps.newVersion);
+				results.addKey(postSaveGetKey(ps.entity, ps.dbObj, ps.dbColl, ps.involvedObjects, cache));
+			}
+		}
+		return !stopped;
+	}
+	
+	/** 
+	 * Inserts the new entities together; if that fails, they are written again one by one (by the ids the driver gave 
+	 * them), to find which failed; with {@code stopOnError}, up to the first that fails.
+	 */
+	private <T> void insert(DBCollection dbColl, List<PendingSave<T>> run, WriteConcern wc, boolean stopOnError) {
+		List<DBObject> inserts = new ArrayList<DBObject>(run.size());
+		for (PendingSave<T> ps : run)
+			inserts.add(ps.dbObj);
+		if (log.isTraceEnabled())
+			log.trace("Executing batch insert(" + dbColl.getName() + ") of " + inserts.size() + " entities");
+		try {
+			WriteResult wr = (wc == null) ? dbColl.insert(inserts) : dbColl.insert(inserts, wc);
+			throwOnError(wc, wr);
+		} catch (MongoException e) {
+			log.debug("Batch insert(" + dbColl.getName() + ") failed (" + e + "); writing the entities one by one");
+			for (PendingSave<T> ps : run) {
+				write(ps, wc);
+				if (stopOnError && ps.failed())
+					break;
+			}
+		}
+	}
+	
+	/** Writes the entity, keeping its error (or version conflict) */
+	private <T> void write(PendingSave<T> ps, WriteConcern wc) {
+		try {
+			if (ps.isVersionedUpdate()) {
+				Object idValue = ps.dbObj.get(Mapper.ID_KEY);
+				Query<T> q = find(ps.dbColl.getName(), (Class<T>) ps.entity.getClass()).filter(Mapper.ID_KEY, idValue).filter(ps.mfVersion.getNameToStore(), ps.oldVersion);
+				UpdateResults<T> res = doUpdate(q, ps.dbObj, false, false, wc);
+				ps.conflicted = res.getUpdatedCount() != 1;
+			} else {
+				WriteResult wr = (wc == null) ? ps.dbColl.save(ps.dbObj) : ps.dbColl.save(ps.dbObj, wc);
+				throwOnError(wc, wr);
+			}
+		} catch (RuntimeException e) {
+			ps.error = e;
+		}
+	}
 
 	public <T> Iterable<Key<T>> save(T... entities) {
 		ArrayList<Key<T>> savedKeys = new ArrayList<Key<T>>();
@@ -747,15 +1194,17 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	}
 	
 	protected <T> Key<T> save(DBCollection dbColl, T entity, WriteConcern wc) {
-		MappedClass mc = mapr.getMappedClass(entity);
-		if (mc.getAnnotation(NotSaved.class) != null)
-			throw new MappingException("Entity type: " + mc.getClazz().getName() + " is marked as NotSaved which means you should not try to save it!");
+		long start = System.nanoTime();
+		OperationContext ctx = contextOf(entity);
+		checkNotSaved(ctx);
+		MappedClass mc = ctx.getMappedClass();
 
 		WriteResult wr = null;
 		
 		//involvedObjects is used not only as a cache but also as a list of what needs to be called for life-cycle methods at the end.
 		LinkedHashMap<Object, DBObject> involvedObjects = new LinkedHashMap<Object, DBObject>();
 		DBObject dbObj = entityToDBObj(entity, involvedObjects);
+		long mapping = System.nanoTime() - start;
 
 		//try to do an update if there is a @Version field
 		wr = tryVersionedUpdate(dbColl, entity, dbObj, wc, db, mc);
@@ -767,16 +1216,17 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 				wr = dbColl.save(dbObj, wc);
 
 		throwOnError(wc, wr);
-		return postSaveGetKey(entity, dbObj, dbColl, involvedObjects);
+		Key<T> key = postSaveGetKey(entity, dbObj, dbColl, involvedObjects);
+		metrics.record(OperationType.SAVE, dbColl.getName(), entity.getClass(), start, mapping, 1);
+		return key;
 	}
 	
 	protected <T> WriteResult tryVersionedUpdate(DBCollection dbColl, T entity, DBObject dbObj, WriteConcern wc, DB db, MappedClass mc) {
 		WriteResult wr = null;
-		if (mc.getFieldsAnnotatedWith(Version.class).isEmpty())
+		MappedField mfVersion = getOperationContext(mc.getClazz()).getVersionField();
+		if (mfVersion == null)
 			return wr;
 		
-		
-		MappedField mfVersion = mc.getFieldsAnnotatedWith(Version.class).get(0);
 		String versionKeyName = mfVersion.getNameToStore();
 		Long oldVersion = (Long) mfVersion.getFieldValue(entity);
 		long newVersion = VersionHelper.nextValue(oldVersion);
@@ -784,7 +1234,7 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 		if (oldVersion != null && oldVersion > 0) {
 			Object idValue = dbObj.get(Mapper.ID_KEY);
 			
-			UpdateResults<T> res = update(  find(dbColl.getName(), (Class<T>) entity.getClass()).filter(Mapper.ID_KEY, idValue).filter(versionKeyName, oldVersion), 
+			UpdateResults<T> res = doUpdate(find(dbColl.getName(), (Class<T>) entity.getClass()).filter(Mapper.ID_KEY, idValue).filter(versionKeyName, oldVersion), 
 											dbObj, 
 											false, 
 											false, 
@@ -856,8 +1306,8 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 		Query<T> q = (Query<T>) createQuery(mc.getClazz());
 		q.disableValidation().filter(Mapper.ID_KEY, getId(ent));
 		
-		if (mc.getFieldsAnnotatedWith(Version.class).size() > 0) {
-			MappedField versionMF = mc.getFieldsAnnotatedWith(Version.class).get(0);
+		MappedField versionMF = getOperationContext(mc.getClazz()).getVersionField();
+		if (versionMF != null) {
 			Long oldVer = (Long)versionMF.getFieldValue(ent);
 			q.filter(versionMF.getNameToStore(), oldVer);
 			ops.set(versionMF.getNameToStore(), VersionHelper.nextValue(oldVer));
@@ -911,8 +1361,10 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	}
 
 	public <T> Key<T> merge(T entity, WriteConcern wc) {
+		long start = System.nanoTime();
 		LinkedHashMap<Object, DBObject> involvedObjects = new LinkedHashMap<Object, DBObject>();
 		DBObject dbObj = mapr.toDBObject(entity, involvedObjects);
+		long mapping = System.nanoTime() - start;
 		Key<T> key = getKey(entity);
 		entity = ProxyHelper.unwrap(entity);
 		Object id = getId(entity);
@@ -932,7 +1384,7 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 		
 		if(wr == null) {
 			Query<T> query = (Query<T>) createQuery(entity.getClass()).filter(Mapper.ID_KEY, id);
-			wr = update(query, new BasicDBObject("$set", dbObj), false, false, wc).getWriteResult();
+			wr = doUpdate(query, new BasicDBObject("$set", dbObj), false, false, wc).getWriteResult();
 		}
 
 		UpdateResults<T> res = new UpdateResults<T>(wr);
@@ -945,11 +1397,84 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 			throw new UpdateException("Not updated: " + gle);
 
 		postSaveOperations(entity, dbObj, involvedObjects);
+		metrics.record(OperationType.UPDATE, dbColl.getName(), entity.getClass(), start, mapping, 1);
 		return key;
 	}
 	
-	private <T> void postSaveOperations(Object entity, DBObject dbObj, Map<Object, DBObject> involvedObjects) {
-		mapr.updateKeyInfo(entity, dbObj, createCache());
+	public <T> Key<T> saveChanges(T entity) {
+		return saveChanges(entity, getWriteConcern(entity));
+	}
+
+	public <T> Key<T> saveChanges(T entity, WriteConcern wc) {
+		entity = ProxyHelper.unwrap(entity);
+		DBObject stored = mapr.getChangeTracker().getSnapshot(entity);
+		if (stored == null || !mapr.isTrackingChanges(entity))
+			return save(entity, wc);
+
+		long start = System.nanoTime();
+		LinkedHashMap<Object, DBObject> involvedObjects = new LinkedHashMap<Object, DBObject>();
+		DBObject dbObj = entityToDBObj(entity, involvedObjects);
+		Key<T> key = getKey(entity);
+		Object id = dbObj.get(Mapper.ID_KEY);
+
+		MappedField mfVersion = contextOf(entity).getVersionField();
+		if (mfVersion != null)
+			//the version is compared (and set) below, not diffed
+			dbObj.put(mfVersion.getNameToStore(), stored.get(mfVersion.getNameToStore()));
+
+		DBObject u = ChangeTracker.diff(stored, dbObj);
+		long mapping = System.nanoTime() - start;
+		if (u.keySet().isEmpty()) {
+			if (log.isTraceEnabled())
+				log.trace("No changes to save for " + key);
+			return key;
+		}
+
+		Query<T> query = (Query<T>) createQuery(entity.getClass()).disableValidation().filter(Mapper.ID_KEY, id);
+		Long oldVersion = null;
+		long newVersion = 0;
+		if (mfVersion != null) {
+			oldVersion = (Long) mfVersion.getFieldValue(entity);
+			newVersion = VersionHelper.nextValue(oldVersion);
+			query.filter(mfVersion.getNameToStore(), oldVersion);
+			DBObject set = (DBObject) u.get("$set");
+			if (set == null) {
+				set = new BasicDBObject();
+				u.put("$set", set);
+			}
+			set.put(mfVersion.getNameToStore(), newVersion);
+			dbObj.put(mfVersion.getNameToStore(), newVersion);
+		}
+
+		if (log.isTraceEnabled())
+			log.trace("Saving changes to " + key + ": " + u);
+
+		UpdateResults<T> res = doUpdate(query, u, false, false, wc);
+		throwOnError(wc, res.getWriteResult());
+		if (mfVersion != null) {
+			if (res.getUpdatedCount() != 1)
+				throw new ConcurrentModificationException("Entity of class " + entity.getClass().getName()
+						+ " (id='" + id + "',version='" + oldVersion + "') was concurrently updated.");
+			mfVersion.setFieldValue(entity, newVersion);
+		} else {
+			CommandResult gle = res.getWriteResult().getCachedLastError();
+			if (gle != null && res.getUpdatedCount() == 0)
+				throw new UpdateException("Not updated: " + gle);
+		}
+
+		postSaveOperations(entity, dbObj, involvedObjects);
+		metrics.record(OperationType.UPDATE, ((QueryImpl<T>) query).getCollection().getName(), entity.getClass(), start, mapping, 1);
+		return key;
+	}
+	
+	protected <T> void postSaveOperations(Object entity, DBObject dbObj, Map<Object, DBObject> involvedObjects) {
+		postSaveOperations(entity, dbObj, involvedObjects, createCache());
+	}
+	
+	private <T> void postSaveOperations(Object entity, DBObject dbObj, Map<Object, DBObject> involvedObjects, EntityCache cache) {
+		mapr.updateKeyInfo(entity, dbObj, cache);
+		if (mapr.isTrackingChanges(entity))
+			mapr.getChangeTracker().snapshot(entity, dbObj);
 		
 		//call PostPersist on all involved entities (including the entity)
 		for (Map.Entry<Object, DBObject> e : involvedObjects.entrySet()) {
@@ -977,6 +1502,15 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	}
 	
 	private <T> UpdateResults<T> update(Query<T> query, DBObject u, boolean createIfMissing, boolean multi, WriteConcern wc) {
+		long start = System.nanoTime();
+		UpdateResults<T> res = doUpdate(query, u, createIfMissing, multi, wc);
+		QueryImpl<T> qi = (QueryImpl<T>) query;
+		qi.recordOperation(OperationType.UPDATE, start, 0, affected(res.getWriteResult()));
+		return res;
+	}
+	
+	/** Runs the update, without measuring it; for writes which are measured as part of another operation */
+	private <T> UpdateResults<T> doUpdate(Query<T> query, DBObject u, boolean createIfMissing, boolean multi, WriteConcern wc) {
 		QueryImpl<T> qi = (QueryImpl<T>) query;
 
 		DBCollection dbColl = qi.getCollection();
@@ -1005,6 +1539,7 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 			wr = dbColl.update(q, u, createIfMissing, multi, wc);
 
 		throwOnError(wc, wr);
+		invalidate(dbColl, q);
 		
 		return new UpdateResults<T>(wr);
 	}
@@ -1021,14 +1556,16 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 		if (log.isTraceEnabled())
 			log.trace("Executing findAndModify(" + dbColl.getName() + ") with delete ...");
 
+		long start = System.nanoTime();
 		DBObject result = dbColl.findAndModify(qi.getQueryObject(), qi.getFieldsObject(), qi.getSortObject(), true, null, false, false);
+		invalidate(dbColl, qi.getQueryObject());
 
-		if (result != null) {
-			T entity = (T) mapr.fromDBObject(qi.getEntityClass(), result, cache);
-	        return entity;
-		}
-		
-		return null;
+		T entity = null;
+		long mapStart = System.nanoTime();
+		if (result != null)
+			entity = (T) mapr.fromDBObject(qi.getEntityClass(), result, cache);
+		qi.recordOperation(OperationType.FIND_AND_MODIFY, start, System.nanoTime() - mapStart, result == null ? 0 : 1);
+		return entity;
 	}
 
 	public <T> T findAndModify(Query<T> q, UpdateOperations<T> ops) {
@@ -1049,6 +1586,7 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 
 		if (log.isTraceEnabled())
 			log.info("Executing findAndModify(" + dbColl.getName() + ") with update ");
+		long start = System.nanoTime();
 		DBObject res =null;
 		try {
 			res = dbColl.findAndModify(qi.getQueryObject(), 
@@ -1061,11 +1599,14 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 			if(e.getMessage() == null || !e.getMessage().contains("matching"))
 				throw e;
 		}
+		invalidate(dbColl, qi.getQueryObject());
 		
-		if (res == null) 
-			return null;
-		else
-			return (T) mapr.fromDBObject(qi.getEntityClass(), res, createCache());
+		T entity = null;
+		long mapStart = System.nanoTime();
+		if (res != null) 
+			entity = (T) mapr.fromDBObject(qi.getEntityClass(), res, createCache());
+		qi.recordOperation(OperationType.FIND_AND_MODIFY, start, System.nanoTime() - mapStart, res == null ? 0 : 1);
+		return entity;
 	}
 
 	@SuppressWarnings("rawtypes")
@@ -1074,9 +1615,6 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 		Assert.parametersNotNull("map", baseCommand.getMap()); Assert.parameterNotEmpty(baseCommand.getMap(), "map");
 		Assert.parametersNotNull("reduce", baseCommand.getReduce());	Assert.parameterNotEmpty(baseCommand.getMap(), "reduce");
 
-		
-		if (MapreduceType.INLINE.equals(type))
-			throw new IllegalArgumentException("Inline map/reduce is not supported.");
 
 		QueryImpl<T> qi = (QueryImpl<T>) q;
 		if (qi.getOffset() != 0 || qi.getFieldsObject() != null)
@@ -1101,31 +1639,47 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 
 		DBCollection dbColl = qi.getCollection();
 		
-		MapReduceCommand cmd = new  MapReduceCommand(dbColl, baseCommand.getMap(), baseCommand.getReduce(), baseCommand.getOutputTarget(), outType, qi.getQueryObject());
+		//the query wins over the command, the command's own options are kept as they were set
+		DBObject query = qi.getQueryObject();
+		if ((query == null || query.keySet().isEmpty()) && baseCommand.getQuery() != null)
+			query = baseCommand.getQuery();
+		MapReduceCommand cmd = new  MapReduceCommand(dbColl, baseCommand.getMap(), baseCommand.getReduce(), baseCommand.getOutputTarget(), outType, query);
 		cmd.setFinalize(baseCommand.getFinalize());
 		cmd.setScope(baseCommand.getScope());
-		
-		if(qi.getLimit() > 0) 
-			cmd.setLimit(qi.getLimit());
-		if(qi.getSortObject() != null) 
-			cmd.setSort(qi.getSortObject());
+		cmd.setVerbose(baseCommand.isVerbose());
+		cmd.setOutputDB(baseCommand.getOutputDB());
+		cmd.setReadPreference(baseCommand.getReadPreference());
+		cmd.setLimit(qi.getLimit() > 0 ? qi.getLimit() : baseCommand.getLimit());
+		cmd.setSort(qi.getSortObject() != null ? qi.getSortObject() : baseCommand.getSort());
 		
 		if (log.isTraceEnabled())
 			log.info("Executing " + cmd.toString());
 
-		MapReduceOutput mpo =  dbColl.mapReduce(baseCommand);
+		long start = System.nanoTime();
+		MapReduceOutput mpo =  dbColl.mapReduce(cmd);
+		qi.recordOperation(OperationType.MAP_REDUCE, start, 0, 0);
 		MapreduceResults mrRes = (MapreduceResults) mapr.fromDBObject(MapreduceResults.class, mpo.getRaw(), createCache());
 		
 		QueryImpl baseQ = null;
-		if (!MapreduceType.INLINE.equals(type))
+		if (MapreduceType.INLINE.equals(type))
+			//the results came back in the command's reply, and are mapped as they are iterated
+			mrRes.setInlineRequiredOptions(outputType, mapr, createCache());
+		else
 			baseQ = new QueryImpl(outputType, db.getCollection(mrRes.getOutputCollectionName()), this);
-		//TODO Handle inline case and create an iterator/able.
 		
 		mrRes.setBits(type, baseQ);
 		return mrRes;
 		
 	}
 
+	public <T> AggregationPipeline<T> createAggregation(Class<T> kind) {
+		return createAggregation(createQuery(kind));
+	}
+
+	public <T> AggregationPipeline<T> createAggregation(Query<T> query) {
+		return new AggregationPipelineImpl<T>(this, (QueryImpl<T>) query);
+	}
+
 	@SuppressWarnings("rawtypes")
 	public <T> MapreduceResults<T> mapReduce(MapreduceType type, Query query, String map, String reduce, String finalize, Map<String, Object> scopeFields, Class<T> outputType) {
 
@@ -1188,20 +1742,30 @@ public class DatastoreImpl implements Datastore, AdvancedDatastore {
 	}
 	/** Gets the write concern for entity or returns the default write concern for this datastore */
 	public WriteConcern getWriteConcern(Object clazzOrEntity) {
-		WriteConcern wc = defConcern;
 		if (clazzOrEntity != null) {
-			Entity entityAnn = getMapper().getMappedClass(clazzOrEntity).getEntityAnnotation();
-			if(entityAnn != null && !"".equals(entityAnn.concern()))
-				wc = WriteConcern.valueOf(entityAnn.concern());
+			OperationContext ctx = contextOf(clazzOrEntity);
+			if (ctx.hasWriteConcern())
+				return ctx.getWriteConcern();
 		}
-		
-		return wc;
+		return defConcern;
+	}
+	
+	private static void checkNotSaved(OperationContext ctx) {
+		if (ctx.isNotSaved())
+			throw new MappingException("Entity type: " + ctx.getMappedClass().getClazz().getName() + " is marked as NotSaved which means you should not try to save it!");
 	}
 	
 	public WriteConcern getDefaultWriteConcern() {return defConcern;} 
 	public void setDefaultWriteConcern(WriteConcern wc) {defConcern = wc;}
 
 	public DBDecoderFactory setDecoderFact(DBDecoderFactory fact) { return decoderFactory = fact; }
+	
+	public MorphiaMetrics getMetrics() { return metrics; }
+	
+	/** @return the number of documents the write affected, if it was acknowledged */
+	private static long affected(WriteResult wr) {
+		return wr != null && wr.getCachedLastError() != null ? wr.getN() : 0;
+	}
 
 	public DBDecoderFactory getDecoderFact() { return decoderFactory != null ? decoderFactory : mongo.getMongoOptions().dbDecoderFactory; }
 }
@@ -0,0 +1,204 @@
+package com.google.code.morphia;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.google.code.morphia.annotations.Version;
+import com.google.code.morphia.logging.Logr;
+import com.google.code.morphia.logging.MorphiaLoggerFactory;
+import com.google.code.morphia.mapping.MappedClass;
+import com.google.code.morphia.mapping.MappedField;
+import com.google.code.morphia.mapping.lazy.proxy.ProxyHelper;
+import com.mongodb.WriteConcern;
+
+/**
+ * <p>
+ * Groups the saves (inserts and upserts) made by many threads into batched writes
+ * ({@link AdvancedDatastore#saveBatch(Iterable, WriteConcern)}), so new entities are inserted together. A save waits at
+ * most {@code linger} for others to join it, or until {@code maxBatch} are waiting.
+ * </p>
+ * <p>
+ * Saves are grouped by collection and {@link WriteConcern} (by default from {@code @Entity(concern=...)}), so each is
+ * written with its own concern. The batch reports the result of each entity, so each caller gets its own {@link Key}
+ * or error, and the life-cycle methods of an entity are called once. Entities with a {@code @Version} to check are
+ * saved on their own, right away.
+ * </p>
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+public class GroupCommitWriter {
+	private static final Logr log = MorphiaLoggerFactory.get(GroupCommitWriter.class);
+
+	private final DatastoreImpl ds;
+	private final long lingerNanos;
+	private final int maxBatch;
+	private final ScheduledExecutorService flusher;
+	private final ConcurrentHashMap<String, Group> groups = new ConcurrentHashMap<String, Group>();
+
+	/**
+	 * @param linger the longest a save waits for others before being written
+	 * @param maxBatch the number of waiting saves which are written right away
+	 */
+	public GroupCommitWriter(Datastore ds, long linger, TimeUnit unit, int maxBatch) {
+		this.ds = (DatastoreImpl) ds;
+		this.lingerNanos = unit.toNanos(linger);
+		this.maxBatch = maxBatch;
+		this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "morphia-group-commit");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public <T> MorphiaFuture<Key<T>> save(T entity) {
+		return save(entity, ds.getWriteConcern(entity));
+	}
+
+	public <T> MorphiaFuture<Key<T>> save(T entity, WriteConcern wc) {
+		entity = ProxyHelper.unwrap(entity);
+		MorphiaFuture<Key<T>> future = new MorphiaFuture<Key<T>>();
+		MappedClass mc = ds.getMapper().getMappedClass(entity);
+		if (hasVersionToCheck(mc, entity)) {
+			saveOne(entity, wc, future);
+			return future;
+		}
+		String kind = ds.getCollection(entity.getClass()).getName();
+		String groupKey = kind + "/" + wc;
+		Group group = groups.get(groupKey);
+		if (group == null) {
+			group = new Group(kind, wc);
+			Group temp = groups.putIfAbsent(groupKey, group);
+			if (temp != null) group = temp;
+		}
+		group.add(new Pending(entity, future));
+		return future;
+	}
+
+	/** Writes everything waiting, and stops the writer; later saves fail. */
+	public void shutdown() throws InterruptedException {
+		flusher.execute(new Runnable() {
+			public void run() {
+				for (Group group : groups.values())
+					group.flush();
+			}
+		});
+		flusher.shutdown();
+		flusher.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	private static boolean hasVersionToCheck(MappedClass mc, Object entity) {
+		List<MappedField> versions = mc.getFieldsAnnotatedWith(Version.class);
+		if (versions.isEmpty())
+			return false;
+		Long version = (Long) versions.get(0).getFieldValue(entity);
+		return version != null && version > 0;
+	}
+
+	private <T> void saveOne(T entity, WriteConcern wc, MorphiaFuture<Key<T>> future) {
+		try {
+			future.succeed(ds.save(entity, wc));
+		} catch (Exception e) {
+			future.fail(e);
+		}
+	}
+
+	private static class Pending {
+		final Object entity;
+		final MorphiaFuture future;
+
+		Pending(Object entity, MorphiaFuture future) {
+			this.entity = entity;
+			this.future = future;
+		}
+	}
+
+	/** The saves waiting for one collection and WriteConcern */
+	private class Group {
+		private final String kind;
+		private final WriteConcern wc;
+		private List<Pending> waiting = new ArrayList<Pending>();
+		private boolean scheduled = false;
+
+		Group(String kind, WriteConcern wc) {
+			this.kind = kind;
+			this.wc = wc;
+		}
+
+		void add(Pending p) {
+			boolean schedule, full;
+			synchronized (this) {
+				waiting.add(p);
+				full = waiting.size() >= maxBatch;
+				schedule = !scheduled && !full;
+				if (schedule)
+					scheduled = true;
+			}
+
+			Runnable flush = new Runnable() {
+				public void run() {
+					flush();
+				}
+			};
+			try {
+				if (full)
+					flusher.execute(flush);
+				else if (schedule)
+					flusher.schedule(flush, lingerNanos, TimeUnit.NANOSECONDS);
+			} catch (RejectedExecutionException e) {
+				for (Pending pending : drain())
+					pending.future.fail(new IllegalStateException("GroupCommitWriter has been shut down", e));
+			}
+		}
+
+		synchronized List<Pending> drain() {
+			List<Pending> batch = waiting;
+			waiting = new ArrayList<Pending>();
+			scheduled = false;
+			return batch;
+		}
+
+		/** Writes the waiting entities as one batch; only called on the flusher thread */
+		void flush() {
+			List<Pending> batch = drain();
+			if (batch.isEmpty())
+				return;
+			BatchSaveResults<Object> res;
+			try {
+				if (log.isTraceEnabled())
+					log.trace("Group commit of " + batch.size() + " saves to " + kind);
+				res = ds.saveBatch(entities(batch), wc);
+			} catch (Exception e) {
+				for (Pending p : batch)
+					p.future.fail(e);
+				return;
+			}
+
+			Iterator<Key<Object>> keys = res.getKeys().iterator();
+			for (Pending p : batch) {
+				Exception error = res.getFailure(p.entity);
+				if (error != null)
+					p.future.fail(error);
+				else if (res.isConflicted(p.entity))
+					p.future.fail(new ConcurrentModificationException("Entity of class " + p.entity.getClass().getName() + " was concurrently updated."));
+				else
+					p.future.succeed(keys.next());
+			}
+		}
+
+		private List<Object> entities(List<Pending> batch) {
+			List<Object> entities = new ArrayList<Object>(batch.size());
+			for (Pending p : batch)
+				entities.add(p.entity);
+			return entities;
+		}
+	}
+}
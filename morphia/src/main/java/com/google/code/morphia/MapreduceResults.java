@@ -1,5 +1,6 @@
 package com.google.code.morphia;
 
+import java.util.Collections;
 import java.util.Iterator;
 
 import com.google.code.morphia.annotations.NotSaved;
@@ -36,15 +37,21 @@ public class MapreduceResults<T> implements Iterable<T> {
 	public boolean isOk() 			{ return (ok); }
 	public String getError() 		{ return isOk() ? "" : err; }
 	public MapreduceType getType()	{ return type;}
-	public Query<T> createQuery()	{ return baseQuery.clone(); };
+	public Query<T> createQuery()	{ 
+		if (type == MapreduceType.INLINE)
+			throw new UnsupportedOperationException("Inline map/reduce results have no output collection; iterate them instead");
+		return baseQuery.clone(); 
+	}
 	
 	public void setInlineRequiredOptions(Class<T> clazz, Mapper mapr, EntityCache cache ) { 
 		this.clazz = clazz; this.mapr = mapr; this.cache = cache;
 	}
 	
-	//Inline stuff
+	/** @return the results of an inline map/reduce, each mapped to the output type as it is reached */
 	public Iterator<T> getInlineResults() { 
-		return new MorphiaIterator<T, T>((Iterator<DBObject>) rawResults.get("results"), mapr, clazz, null, cache);
+		Iterable<DBObject> results = rawResults == null ? null : (Iterable<DBObject>) rawResults.get("results");
+		Iterator<DBObject> it = results == null ? Collections.<DBObject>emptyList().iterator() : results.iterator();
+		return new MorphiaIterator<T, T>(it, mapr, clazz, mapr.getCollectionName(clazz), cache);
 	}
 	
 	String getOutputCollectionName(){ return outColl; }
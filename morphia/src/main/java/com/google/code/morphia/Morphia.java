@@ -20,12 +20,10 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.Set;
 
-import com.google.code.morphia.annotations.Embedded;
-import com.google.code.morphia.annotations.Entity;
 import com.google.code.morphia.mapping.Mapper;
 import com.google.code.morphia.mapping.MappingException;
 import com.google.code.morphia.mapping.cache.EntityCache;
-import com.google.code.morphia.utils.ReflectionUtils;
+import com.google.code.morphia.utils.PackageScanner;
 import com.mongodb.DBObject;
 import com.mongodb.Mongo;
 
@@ -59,7 +57,7 @@ public class Morphia {
         return this;
     }
 
-    public synchronized Morphia mapPackageFromClass(Class clazz) {
+    public Morphia mapPackageFromClass(Class clazz) {
         return mapPackage(clazz.getPackage().getName(), false);
     }
 
@@ -70,7 +68,7 @@ public class Morphia {
      *            the name of the package to process
      * @return the Morphia instance
      */
-    public synchronized Morphia mapPackage(String packageName) {
+    public Morphia mapPackage(String packageName) {
         return mapPackage(packageName, false);
     }
 
@@ -83,27 +81,32 @@ public class Morphia {
      *            specifies whether to ignore classes in the package that cannot be mapped
      * @return the Morphia instance
      */
-    public synchronized Morphia mapPackage(String packageName, boolean ignoreInvalidClasses) {
+    public Morphia mapPackage(String packageName, boolean ignoreInvalidClasses) {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null)
+            loader = Morphia.class.getClassLoader();
+        //the scan reads the class files, in parallel and without the lock; only the classes to map are loaded
+        Set<String> classNames;
         try {
-            for (Class c : ReflectionUtils.getClasses(packageName)) {
+            PackageScanner scanner = new PackageScanner(loader, mapper.getOptions().packageScanIndex, Runtime.getRuntime().availableProcessors());
+            classNames = scanner.scan(packageName);
+        } catch (IOException ioex) {
+            throw new MappingException("Could not get map classes from package " + packageName, ioex);
+        }
+        synchronized (this) {
+            for (String className : classNames) {
                 try {
-                    Embedded embeddedAnn = ReflectionUtils.getClassEmbeddedAnnotation(c);
-                    Entity enityAnn = ReflectionUtils.getClassEntityAnnotation(c);
-                    if ( enityAnn != null || embeddedAnn != null ) {
-                        map(c);
-                    }
+                    map(Class.forName(className, false, loader));
+                } catch (ClassNotFoundException cnfex) {
+                    throw new MappingException("Could not get map classes from package " + packageName, cnfex);
                 } catch (MappingException ex) {
                     if (!ignoreInvalidClasses) {
                         throw ex;
                     }
                 }
             }
-            return this;
-        } catch (IOException ioex) {
-            throw new MappingException("Could not get map classes from package " + packageName, ioex);
-        } catch (ClassNotFoundException cnfex) {
-            throw new MappingException("Could not get map classes from package " + packageName, cnfex);
         }
+        return this;
     }
 
     /**
@@ -0,0 +1,98 @@
+package com.google.code.morphia;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import com.google.code.morphia.logging.Logr;
+import com.google.code.morphia.logging.MorphiaLoggerFactory;
+
+/**
+ * The pending result of an {@link AsyncDatastore} operation; {@link AsyncCallback}s can be added at any time, 
+ * and are called (once) when the operation completes.
+ */
+public class MorphiaFuture<V> extends FutureTask<V> {
+	private static final Logr log = MorphiaLoggerFactory.get(MorphiaFuture.class);
+	
+	private final List<AsyncCallback<? super V>> callbacks = new ArrayList<AsyncCallback<? super V>>(1);
+	
+	public MorphiaFuture(Callable<V> callable) {
+		super(callable);
+	}
+	
+	/** A future which is completed by {@link #succeed(Object)} or {@link #fail(Throwable)}, and never run. */
+	MorphiaFuture() {
+		super(new Callable<V>() {
+			public V call() throws Exception {
+				throw new IllegalStateException("This future is completed by its producer, not run.");
+			}
+		});
+	}
+	
+	/** Adds the callback; if the operation is already done it is called right away, on this thread. */
+	public MorphiaFuture<V> addCallback(AsyncCallback<? super V> callback) {
+		synchronized (callbacks) {
+			if (!isDone()) {
+				callbacks.add(callback);
+				return this;
+			}
+		}
+		notify(callback);
+		return this;
+	}
+	
+	@Override
+	protected void done() {
+		List<AsyncCallback<? super V>> toCall;
+		synchronized (callbacks) {
+			toCall = new ArrayList<AsyncCallback<? super V>>(callbacks);
+			callbacks.clear();
+		}
+		for (AsyncCallback<? super V> cb : toCall)
+			notify(cb);
+	}
+	
+	/** Completes the future with the exception, without running the operation. */
+	void fail(Throwable t) {
+		setException(t);
+	}
+	
+	/** Completes the future with the result, without running the operation. */
+	void succeed(V result) {
+		set(result);
+	}
+	
+	private void notify(AsyncCallback<? super V> cb) {
+		V result;
+		try {
+			result = get();
+		} catch (ExecutionException e) {
+			failure(cb, e.getCause());
+			return;
+		} catch (CancellationException e) {
+			failure(cb, e);
+			return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failure(cb, e);
+			return;
+		}
+		
+		try {
+			cb.onSuccess(result);
+		} catch (RuntimeException e) {
+			log.error("Callback " + cb + " threw an exception.", e);
+		}
+	}
+	
+	private void failure(AsyncCallback<? super V> cb, Throwable t) {
+		try {
+			cb.onFailure(t);
+		} catch (RuntimeException e) {
+			log.error("Callback " + cb + " threw an exception.", e);
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package com.google.code.morphia;
+
+import java.util.List;
+
+import com.google.code.morphia.annotations.CappedAt;
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.NotSaved;
+import com.google.code.morphia.annotations.Version;
+import com.google.code.morphia.mapping.MappedClass;
+import com.google.code.morphia.mapping.MappedField;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+
+/**
+ * What the operations of a {@link DatastoreImpl} need to know about an entity class, worked out once (per datastore)
+ * from its {@link MappedClass} and annotations rather than on every call. Immutable.
+ */
+public final class OperationContext {
+	private final MappedClass mc;
+	private final DBCollection collection;
+	private final boolean hasWriteConcern;
+	private final WriteConcern writeConcern;
+	private final ReadPreference readPreference;
+	private final MappedField idField;
+	private final MappedField versionField;
+	private final boolean notSaved;
+	private final CappedAt cap;
+
+	/** @param db the database of the collection; null if the datastore has none */
+	OperationContext(MappedClass mc, DB db) {
+		this.mc = mc;
+		this.collection = db == null ? null : db.getCollection(mc.getCollectionName());
+
+		Entity entityAnn = mc.getEntityAnnotation();
+		hasWriteConcern = entityAnn != null && !"".equals(entityAnn.concern());
+		writeConcern = hasWriteConcern ? WriteConcern.valueOf(entityAnn.concern()) : null;
+		readPreference = entityAnn != null && entityAnn.queryNonPrimary() ? ReadPreference.SECONDARY : null;
+		cap = entityAnn != null && entityAnn.cap().value() > 0 ? entityAnn.cap() : null;
+
+		idField = mc.getMappedIdField();
+		List<MappedField> versions = mc.getFieldsAnnotatedWith(Version.class);
+		versionField = versions.isEmpty() ? null : versions.get(0);
+		notSaved = mc.getAnnotation(NotSaved.class) != null;
+	}
+
+	public MappedClass getMappedClass() 		{ return mc; }
+	/** @return the collection of the class, or null if the datastore has no database */
+	public DBCollection getCollection() 		{ return collection; }
+	/** @return whether {@code @Entity} sets a concern; if not, the datastore's default applies */
+	public boolean hasWriteConcern() 			{ return hasWriteConcern; }
+	/** @return the concern {@code @Entity} sets (null if unknown) */
+	public WriteConcern getWriteConcern() 		{ return writeConcern; }
+	/** @return the read preference of queries, from {@code @Entity.queryNonPrimary()}; null for the default */
+	public ReadPreference getReadPreference() 	{ return readPreference; }
+	public MappedField getIdField() 			{ return idField; }
+	/** @return the {@code @Version} field, or null */
+	public MappedField getVersionField() 		{ return versionField; }
+	/** @return whether the class is {@code @NotSaved} */
+	public boolean isNotSaved() 				{ return notSaved; }
+	/** @return the capped collection settings, or null if it is not capped */
+	public CappedAt getCap() 					{ return cap; }
+}
@@ -0,0 +1,332 @@
+package com.google.code.morphia;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.google.code.morphia.logging.Logr;
+import com.google.code.morphia.logging.MorphiaLoggerFactory;
+import com.google.code.morphia.query.UpdateOperations;
+import com.google.code.morphia.query.UpdateOpsImpl;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * <p>
+ * Buffers {@link Datastore#update(Key, UpdateOperations)}s for the configured entity classes, merging those for the same
+ * {@link Key} until they are flushed:
+ * </p>
+ * <ul>
+ * <li>{@code $inc}s of the same field are summed</li>
+ * <li>the last {@code $set} of a field wins</li>
+ * <li>{@code $addToSet}s of the same field are unioned</li>
+ * </ul>
+ * <p>
+ * Updates which cannot be merged (another operator on the same field, or a path inside it) are kept, in order, as
+ * separate updates. A collection is flushed once it has {@code maxPending} keys waiting, or every {@code maxDelay}; all
+ * flushes run on a single (daemon) thread, so updates for a key are applied in order. Failures go to the
+ * {@link WriteBehindErrorHandler}.
+ * </p>
+ * <p>
+ * Updates for other classes go straight to the datastore.
+ * </p>
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+public class WriteBehindBuffer {
+	private static final Logr log = MorphiaLoggerFactory.get(WriteBehindBuffer.class);
+
+	private final DatastoreImpl ds;
+	private final WriteBehindErrorHandler errorHandler;
+	private final ScheduledExecutorService flusher;
+	private final ConcurrentHashMap<Class<?>, CollectionBuffer> buffers = new ConcurrentHashMap<Class<?>, CollectionBuffer>();
+	private volatile boolean shutdown = false;
+	/** set once shutdown has timed out; flushes which have not yet drained their buffer are skipped */
+	private volatile boolean abandoned = false;
+
+	public WriteBehindBuffer(Datastore ds, WriteBehindErrorHandler errorHandler) {
+		this.ds = (DatastoreImpl) ds;
+		this.errorHandler = errorHandler == null ? new LoggingErrorHandler() : errorHandler;
+		this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "morphia-write-behind");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Buffers the updates to entities of this class.
+	 * @param maxPending the number of keys with waiting updates which triggers a flush
+	 * @param maxDelay the longest an update waits before being flushed
+	 */
+	public WriteBehindBuffer buffer(Class<?> clazz, int maxPending, long maxDelay, TimeUnit unit) {
+		final CollectionBuffer buffer = new CollectionBuffer(clazz, maxPending);
+		if (buffers.putIfAbsent(clazz, buffer) != null)
+			throw new IllegalStateException(clazz.getName() + " is already buffered");
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				buffer.flush();
+			}
+		}, maxDelay, maxDelay, unit);
+		return this;
+	}
+
+	/** Buffers the update, if the class of the key is buffered; otherwise it is applied right away. */
+	public <T> void update(Key<T> key, UpdateOperations<T> ops) {
+		CollectionBuffer buffer = buffers.get(kindClass(key));
+		if (buffer == null || ((UpdateOpsImpl) ops).isIsolated()) {
+			ds.update(key, ops);
+			return;
+		}
+		if (shutdown)
+			throw new IllegalStateException("WriteBehindBuffer has been shut down");
+		buffer.add(key, copy(((UpdateOpsImpl) ops).getOps()));
+	}
+
+	/** @return the number of keys with updates waiting to be flushed */
+	public int getPendingCount() {
+		int count = 0;
+		for (CollectionBuffer buffer : buffers.values())
+			count += buffer.size();
+		return count;
+	}
+
+	/**
+	 * Flushes all waiting updates, and waits for them to be written
+	 * @throws IllegalStateException if the buffer has been shut down
+	 */
+	public void flush() throws InterruptedException {
+		if (shutdown)
+			throw new IllegalStateException("WriteBehindBuffer has been shut down");
+		try {
+			flusher.submit(new Callable<Object>() {
+				public Object call() {
+					for (CollectionBuffer buffer : buffers.values())
+						buffer.flush();
+					return null;
+				}
+			}).get();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} catch (RejectedExecutionException e) {
+			throw new IllegalStateException("WriteBehindBuffer has been shut down");
+		}
+	}
+
+	/**
+	 * Stops taking updates, and flushes those waiting for at most the timeout. A batch which is being written when the
+	 * timeout passes is written to the end; updates which were still waiting are passed to the
+	 * {@link WriteBehindErrorHandler} (with no exception).
+	 * @return true if everything was flushed
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		shutdown = true;
+		flusher.execute(new Runnable() {
+			public void run() {
+				for (CollectionBuffer buffer : buffers.values())
+					buffer.flush();
+			}
+		});
+		//runs the final flush, but no more periodic ones
+		flusher.shutdown();
+		if (flusher.awaitTermination(timeout, unit))
+			return getPendingCount() == 0;
+
+		abandoned = true;
+		while (!flusher.awaitTermination(1, TimeUnit.SECONDS))
+			log.warning("Waiting for the write-behind flush in progress to finish");
+		for (CollectionBuffer buffer : buffers.values())
+			for (Map.Entry<Object, LinkedList<DBObject>> e : buffer.drain().entrySet())
+				for (DBObject u : e.getValue())
+					errorHandler.onFlushError(buffer.key(e.getKey()), u, null);
+		return false;
+	}
+
+	private <T> void apply(Key<T> key, UpdateOperations<T> ops) {
+		ds.update(key, ops);
+	}
+
+	private Class<?> kindClass(Key<?> key) {
+		Class<?> clazz = key.getKindClass();
+		if (clazz == null)
+			clazz = ds.getMapper().getClassFromKind(key.getKind());
+		return clazz;
+	}
+
+	/** The waiting updates for the entities of one class */
+	private class CollectionBuffer {
+		private final Class clazz;
+		private final int maxPending;
+		private LinkedHashMap<Object, LinkedList<DBObject>> pending = new LinkedHashMap<Object, LinkedList<DBObject>>();
+		private boolean flushQueued = false;
+
+		CollectionBuffer(Class<?> clazz, int maxPending) {
+			this.clazz = clazz;
+			this.maxPending = maxPending;
+		}
+
+		Key<?> key(Object id) {
+			return new Key(clazz, id);
+		}
+
+		synchronized int size() {
+			return pending.size();
+		}
+
+		void add(Key<?> key, DBObject update) {
+			boolean full;
+			synchronized (this) {
+				LinkedList<DBObject> updates = pending.get(key.getId());
+				if (updates == null) {
+					updates = new LinkedList<DBObject>();
+					pending.put(key.getId(), updates);
+				}
+				if (updates.isEmpty() || !merge(updates.getLast(), update))
+					updates.add(update);
+				full = !flushQueued && pending.size() >= maxPending;
+				if (full)
+					flushQueued = true;
+			}
+			if (full) {
+				if (log.isTraceEnabled())
+					log.trace("Flushing " + clazz.getName() + "; " + maxPending + " keys waiting");
+				flusher.execute(new Runnable() {
+					public void run() {
+						flush();
+					}
+				});
+			}
+		}
+
+		synchronized LinkedHashMap<Object, LinkedList<DBObject>> drain() {
+			LinkedHashMap<Object, LinkedList<DBObject>> updates = pending;
+			pending = new LinkedHashMap<Object, LinkedList<DBObject>>();
+			flushQueued = false;
+			return updates;
+		}
+
+		/** Writes the waiting updates; only called on the flusher thread */
+		void flush() {
+			if (abandoned)
+				return;
+			Map<Object, LinkedList<DBObject>> updates = drain();
+			for (Map.Entry<Object, LinkedList<DBObject>> e : updates.entrySet()) {
+				Key<?> key = key(e.getKey());
+				for (DBObject u : e.getValue()) {
+					try {
+						apply(key, ds.createUpdateOperations(clazz, u));
+					} catch (Exception ex) {
+						errorHandler.onFlushError(key, u, ex);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merges {@code update} into {@code pending}, if every field it touches is either untouched by pending or touched
+	 * by the same (mergeable) operator.
+	 * @return false if they could not be merged (pending is left unchanged)
+	 */
+	static boolean merge(DBObject pending, DBObject update) {
+		for (String op : update.keySet()) {
+			for (String field : ((DBObject) update.get(op)).keySet()) {
+				for (String pendingOp : pending.keySet()) {
+					for (String pendingField : ((DBObject) pending.get(pendingOp)).keySet()) {
+						if (field.equals(pendingField) && op.equals(pendingOp) && isMergeable(op))
+							continue;
+						if (overlaps(field, pendingField))
+							return false;
+					}
+				}
+			}
+		}
+
+		for (String op : update.keySet()) {
+			DBObject fields = (DBObject) update.get(op);
+			DBObject into = (DBObject) pending.get(op);
+			if (into == null) {
+				into = new BasicDBObject();
+				pending.put(op, into);
+			}
+			for (String field : fields.keySet()) {
+				Object val = fields.get(field);
+				if (!into.containsField(field))
+					into.put(field, val);
+				else if ("$inc".equals(op))
+					into.put(field, add((Number) into.get(field), (Number) val));
+				else if ("$addToSet".equals(op))
+					into.put(field, union(into.get(field), val));
+				else
+					into.put(field, val);
+			}
+		}
+		return true;
+	}
+
+	private static boolean isMergeable(String op) {
+		return "$inc".equals(op) || "$set".equals(op) || "$unset".equals(op) || "$addToSet".equals(op);
+	}
+
+	/** true if the fields are the same, or one is inside the other */
+	private static boolean overlaps(String a, String b) {
+		return a.equals(b) || a.startsWith(b + ".") || b.startsWith(a + ".");
+	}
+
+	private static Number add(Number a, Number b) {
+		if (a instanceof Double || b instanceof Double || a instanceof Float || b instanceof Float)
+			return a.doubleValue() + b.doubleValue();
+		if (a instanceof Long || b instanceof Long)
+			return a.longValue() + b.longValue();
+		return a.intValue() + b.intValue();
+	}
+
+	/** Unions two $addToSet values (either a single value or {$each: [...]}) into {$each: [...]} */
+	private static Object union(Object a, Object b) {
+		Set<Object> values = new LinkedHashSet<Object>();
+		values.addAll(addToSetValues(a));
+		values.addAll(addToSetValues(b));
+		BasicDBList each = new BasicDBList();
+		each.addAll(values);
+		return new BasicDBObject("$each", each);
+	}
+
+	private static Collection<Object> addToSetValues(Object val) {
+		if (val instanceof DBObject && ((DBObject) val).containsField("$each"))
+			return (Collection<Object>) ((DBObject) val).get("$each");
+		List<Object> single = new ArrayList<Object>(1);
+		single.add(val);
+		return single;
+	}
+
+	/** Copies the operator and field levels of an update (as DBObjects), so merging does not change the caller's ops */
+	static DBObject copy(DBObject update) {
+		DBObject copy = new BasicDBObject();
+		for (String op : update.keySet()) {
+			Object fields = update.get(op);
+			copy.put(op, new BasicDBObject(fields instanceof DBObject ? ((DBObject) fields).toMap() : (Map) fields));
+		}
+		return copy;
+	}
+
+	private static class LoggingErrorHandler implements WriteBehindErrorHandler {
+		public void onFlushError(Key<?> key, DBObject update, Exception e) {
+			log.error("Could not write buffered update " + update + " for " + key, e);
+		}
+	}
+}
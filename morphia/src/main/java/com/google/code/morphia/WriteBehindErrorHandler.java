@@ -0,0 +1,15 @@
+package com.google.code.morphia;
+
+import com.mongodb.DBObject;
+
+/**
+ * Told about buffered updates which failed when a {@link WriteBehindBuffer} flushed them.
+ */
+public interface WriteBehindErrorHandler {
+	/**
+	 * @param key the entity the update was for
+	 * @param update the (merged) update which failed, or was never sent because the buffer was shut down first
+	 * @param e the error, if there was one
+	 */
+	void onFlushError(Key<?> key, DBObject update, Exception e);
+}
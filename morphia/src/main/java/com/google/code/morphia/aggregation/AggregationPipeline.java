@@ -0,0 +1,41 @@
+package com.google.code.morphia.aggregation;
+
+import java.util.Iterator;
+import java.util.List;
+
+import com.mongodb.DBObject;
+
+/**
+ * An aggregation framework pipeline over the entities of type {@code T}, starting with the {@code $match} (and
+ * order, offset and limit) of the query it was created from. Until the first {@code $project} or {@code $group} the
+ * documents are still entities, so field names are validated and translated as in queries; after that they name
+ * the fields those stages made.
+ * 
+ * @param <T> the entity type aggregated
+ */
+public interface AggregationPipeline<T> {
+	/** Adds a {@code $project} stage */
+	AggregationPipeline<T> project(Projection... projections);
+
+	/** Adds a {@code $group} stage by the field (or over all the documents if it is null) */
+	AggregationPipeline<T> group(String id, Group... fields);
+
+	/** Adds a {@code $group} stage by the fields; the {@code _id} of each result is a document of them */
+	AggregationPipeline<T> group(List<String> id, Group... fields);
+
+	/** Adds a {@code $sort} stage, like {@link com.google.code.morphia.query.Query#order(String)}: "age, -date" */
+	AggregationPipeline<T> sort(String fields);
+
+	AggregationPipeline<T> limit(int count);
+
+	AggregationPipeline<T> skip(int count);
+
+	/** Adds an {@code $unwind} stage, for a document per value of the array field */
+	AggregationPipeline<T> unwind(String field);
+
+	/** @return the stages, as sent to the server */
+	List<DBObject> getStages();
+
+	/** Runs the pipeline, mapping each result to the class (from its stored names) as it is iterated */
+	<U> Iterator<U> aggregate(Class<U> target);
+}
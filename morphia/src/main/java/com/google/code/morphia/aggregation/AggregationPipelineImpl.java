@@ -0,0 +1,147 @@
+package com.google.code.morphia.aggregation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.code.morphia.DatastoreImpl;
+import com.google.code.morphia.logging.Logr;
+import com.google.code.morphia.logging.MorphiaLoggerFactory;
+import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.metrics.OperationType;
+import com.google.code.morphia.query.FilterOperator;
+import com.google.code.morphia.query.MorphiaIterator;
+import com.google.code.morphia.query.QueryException;
+import com.google.code.morphia.query.QueryImpl;
+import com.mongodb.AggregationOutput;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * The stages are built as they are added; the query's are put first when the pipeline is run.
+ */
+public class AggregationPipelineImpl<T> implements AggregationPipeline<T> {
+	private static final Logr log = MorphiaLoggerFactory.get(AggregationPipelineImpl.class);
+
+	private final DatastoreImpl ds;
+	private final QueryImpl<T> query;
+	private final List<DBObject> stages = new ArrayList<DBObject>();
+	//the documents are entities until a stage reshapes them
+	private boolean entities = true;
+
+	public AggregationPipelineImpl(DatastoreImpl ds, QueryImpl<T> query) {
+		if (query.getFieldsObject() != null)
+			throw new QueryException("Aggregations do not use the retrievedFields of the query; add a projection instead.");
+		this.ds = ds;
+		this.query = query;
+	}
+
+	public AggregationPipeline<T> project(Projection... projections) {
+		BasicDBObject fields = new BasicDBObject();
+		for (Projection p : projections) {
+			if (p.getSource() != null)
+				fields.put(p.getName(), "$" + path(p.getSource()));
+			else
+				fields.put(path(p.getName()), p.isInclude() ? 1 : 0);
+		}
+		stages.add(new BasicDBObject("$project", fields));
+		entities = false;
+		return this;
+	}
+
+	public AggregationPipeline<T> group(String id, Group... fields) {
+		return addGroup(id == null ? null : "$" + path(id), fields);
+	}
+
+	public AggregationPipeline<T> group(List<String> id, Group... fields) {
+		BasicDBObject ids = new BasicDBObject();
+		for (String field : id) {
+			String path = path(field);
+			//the result field can't have dots
+			ids.put(path.replace('.', '_'), "$" + path);
+		}
+		return addGroup(ids, fields);
+	}
+
+	private AggregationPipeline<T> addGroup(Object id, Group... fields) {
+		BasicDBObject group = new BasicDBObject(Mapper.ID_KEY, id);
+		for (Group g : fields) {
+			Object value = g.getField() == null ? g.getValue() : "$" + path(g.getField());
+			group.put(g.getName(), new BasicDBObject(g.getOperator(), value));
+		}
+		stages.add(new BasicDBObject("$group", group));
+		entities = false;
+		return this;
+	}
+
+	public AggregationPipeline<T> sort(String fields) {
+		boolean validate = entities && query.isValidatingNames();
+		stages.add(new BasicDBObject("$sort", QueryImpl.parseFieldsString(fields, query.getEntityClass(), ds.getMapper(), validate)));
+		return this;
+	}
+
+	public AggregationPipeline<T> limit(int count) {
+		stages.add(new BasicDBObject("$limit", count));
+		return this;
+	}
+
+	public AggregationPipeline<T> skip(int count) {
+		stages.add(new BasicDBObject("$skip", count));
+		return this;
+	}
+
+	public AggregationPipeline<T> unwind(String field) {
+		stages.add(new BasicDBObject("$unwind", "$" + path(field)));
+		return this;
+	}
+
+	public List<DBObject> getStages() {
+		List<DBObject> all = new ArrayList<DBObject>();
+		DBObject match = query.getQueryObject();
+		if (match != null && !match.keySet().isEmpty())
+			all.add(new BasicDBObject("$match", match));
+		if (query.getSortObject() != null)
+			all.add(new BasicDBObject("$sort", query.getSortObject()));
+		if (query.getOffset() > 0)
+			all.add(new BasicDBObject("$skip", query.getOffset()));
+		if (query.getLimit() > 0)
+			all.add(new BasicDBObject("$limit", query.getLimit()));
+		all.addAll(stages);
+		return all;
+	}
+
+	@SuppressWarnings("unchecked")
+	public <U> Iterator<U> aggregate(Class<U> target) {
+		List<DBObject> pipeline = getStages();
+		if (pipeline.isEmpty())
+			pipeline.add(new BasicDBObject("$match", new BasicDBObject()));
+		DBCollection dbColl = query.getCollection();
+		if (log.isTraceEnabled())
+			log.trace("Executing aggregation(" + dbColl.getName() + ") : " + pipeline);
+
+		long start = System.nanoTime();
+		AggregationOutput out = dbColl.aggregate(pipeline.get(0), pipeline.subList(1, pipeline.size()).toArray(new DBObject[pipeline.size() - 1]));
+		query.recordOperation(OperationType.AGGREGATE, start, 0, 0);
+		Iterable<DBObject> results = out.results();
+		Iterator<DBObject> it = results == null ? Collections.<DBObject>emptyList().iterator() : results.iterator();
+		return new MorphiaIterator<U, U>(it, ds.getMapper(), target, dbColl.getName(), ds.getMapper().createEntityCache());
+	}
+
+	/** @return the stored name of the field, while the documents are entities */
+	private String path(String field) {
+		if (field.startsWith("$"))
+			field = field.substring(1);
+		if (!entities || !query.isValidatingNames())
+			return field;
+		StringBuffer sb = new StringBuffer(field);
+		Mapper.validate(query.getEntityClass(), ds.getMapper(), sb, FilterOperator.EQUAL, null, true, false);
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return getStages().toString();
+	}
+}
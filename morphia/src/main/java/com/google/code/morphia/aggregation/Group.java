@@ -0,0 +1,37 @@
+package com.google.code.morphia.aggregation;
+
+/**
+ * An accumulated field of a {@code $group} stage, like {@code count: {$sum: 1}}.
+ */
+public class Group {
+	private final String name;
+	private final String operator;
+	private final String field;
+	private final Object value;
+
+	private Group(String name, String operator, String field, Object value) {
+		this.name = name;
+		this.operator = operator;
+		this.field = field;
+		this.value = value;
+	}
+
+	/** The number of documents in the group */
+	public static Group count(String name) 					{ return new Group(name, "$sum", null, 1); }
+	public static Group sum(String name, String field) 		{ return new Group(name, "$sum", field, null); }
+	public static Group average(String name, String field) 	{ return new Group(name, "$avg", field, null); }
+	public static Group min(String name, String field) 		{ return new Group(name, "$min", field, null); }
+	public static Group max(String name, String field) 		{ return new Group(name, "$max", field, null); }
+	public static Group first(String name, String field) 	{ return new Group(name, "$first", field, null); }
+	public static Group last(String name, String field) 	{ return new Group(name, "$last", field, null); }
+	/** All the values of the field, as an array */
+	public static Group push(String name, String field) 	{ return new Group(name, "$push", field, null); }
+	/** The distinct values of the field, as an array */
+	public static Group addToSet(String name, String field) { return new Group(name, "$addToSet", field, null); }
+
+	public String getName() 	{ return name; }
+	public String getOperator() { return operator; }
+	/** @return the field accumulated, or null if it is the constant {@link #getValue()} */
+	public String getField() 	{ return field; }
+	public Object getValue() 	{ return value; }
+}
@@ -0,0 +1,36 @@
+package com.google.code.morphia.aggregation;
+
+/**
+ * A field of a {@code $project} stage: kept, renamed from another field, or left out.
+ */
+public class Projection {
+	private final String name;
+	private final String source;
+	private final boolean include;
+
+	private Projection(String name, String source, boolean include) {
+		this.name = name;
+		this.source = source;
+		this.include = include;
+	}
+
+	/** Keeps the field */
+	public static Projection projection(String field) {
+		return new Projection(field, null, true);
+	}
+
+	/** Sets the field {@code name} to the value of the field {@code source} */
+	public static Projection projection(String name, String source) {
+		return new Projection(name, source, true);
+	}
+
+	/** Leaves the field out; the server only allows this for {@code _id} */
+	public static Projection exclude(String field) {
+		return new Projection(field, null, false);
+	}
+
+	public String getName() 	{ return name; }
+	/** @return the field the value is taken from, or null if it is the field itself */
+	public String getSource() 	{ return source; }
+	public boolean isInclude() 	{ return include; }
+}
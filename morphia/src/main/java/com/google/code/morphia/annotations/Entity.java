@@ -47,4 +47,7 @@ public @interface Entity {
 	//any WriteConcern static string. Case insensitive. STRICT/SAFE, NORMAL, etc...
 	String concern() default "";
 
+	//remember the loaded document, so Datastore.saveChanges can send only what changed.
+	boolean trackChanges() default false;
+
 }
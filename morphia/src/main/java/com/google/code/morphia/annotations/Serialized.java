@@ -23,6 +23,7 @@ import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
 import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.mapping.SerializationCodec;
 
 /**
  * Marker for fields that should be (java) serialized
@@ -35,6 +36,9 @@ import com.google.code.morphia.mapping.Mapper;
 public @interface Serialized {
 
 	boolean disableCompression() default false;
+
+	/** The codec to write the field with; by default the one of the {@code MapperOptions} */
+	Class<? extends SerializationCodec> codec() default SerializationCodec.class;
 	
 	String value() default Mapper.IGNORED_FIELDNAME;
 }
@@ -3,11 +3,10 @@
  */
 package com.google.code.morphia.converters;
 
-import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import com.google.code.morphia.logging.Logr;
 import com.google.code.morphia.logging.MorphiaLoggerFactory;
@@ -20,6 +19,7 @@ import com.mongodb.DBObject;
 
 /**
  * Default encoders
+ * <p>The converters are kept in copy-on-write lists: looking one up takes no lock, and (rare) changes are serialized.</p>
  * 
  * @author Uwe Schaefer, (us@thomas-daily.de)
  * @author scotthernandez
@@ -28,9 +28,9 @@ import com.mongodb.DBObject;
 public class DefaultConverters {
 	private static final Logr log = MorphiaLoggerFactory.get(DefaultConverters.class);
 	
-	private List<TypeConverter> untypedTypeEncoders = new LinkedList<TypeConverter>();
-	private Map<Class,List<TypeConverter>> tcMap = new ConcurrentHashMap<Class,List<TypeConverter>>();
-	private List<Class<? extends TypeConverter>> registeredConverterClasses = new LinkedList<Class<? extends TypeConverter>>();
+	private final List<TypeConverter> untypedTypeEncoders = new CopyOnWriteArrayList<TypeConverter>();
+	private final ConcurrentMap<Class,List<TypeConverter>> tcMap = new ConcurrentHashMap<Class,List<TypeConverter>>();
+	private final List<Class<? extends TypeConverter>> registeredConverterClasses = new CopyOnWriteArrayList<Class<? extends TypeConverter>>();
 	
 	private Mapper mapr;
 	
@@ -74,7 +74,7 @@ public class DefaultConverters {
 	 * Add a type converter. If it is a duplicate for an existing type, it will override that type.
 	 * @param tc
 	 */
-	public TypeConverter addConverter(TypeConverter tc) {
+	public synchronized TypeConverter addConverter(TypeConverter tc) {
 		if (tc.getSupportedTypes() != null)
 			for(Class c : tc.getSupportedTypes())
 				addTypedConverter(c, tc);
@@ -95,7 +95,7 @@ public class DefaultConverters {
 	 * Removes the type converter.
 	 * @param tc
 	 */
-	public void removeConverter(TypeConverter tc) {
+	public synchronized void removeConverter(TypeConverter tc) {
 		if (tc.getSupportedTypes() == null)
 			untypedTypeEncoders.remove(tc);
 		else
@@ -111,14 +111,15 @@ public class DefaultConverters {
 	}
 	
 	private void addTypedConverter(Class type, TypeConverter tc) {
-		if (tcMap.containsKey(type)) {
-			tcMap.get(type).add(0,tc);
-			log.warning("Added duplicate converter for " + type + " ; " + tcMap.get(type));
-		} else {
-			ArrayList<TypeConverter> vals = new ArrayList<TypeConverter>();
-			vals.add(tc);
-			tcMap.put(type, vals);
+		List<TypeConverter> vals = tcMap.get(type);
+		if (vals == null) {
+			vals = new CopyOnWriteArrayList<TypeConverter>();
+			List<TypeConverter> temp = tcMap.putIfAbsent(type, vals);
+			if (temp != null) vals = temp;
 		}
+		vals.add(0,tc);
+		if (vals.size() > 1)
+			log.warning("Added duplicate converter for " + type + " ; " + vals);
 	}
 	
 	public void fromDBObject(final DBObject dbObj, final MappedField mf, final Object targetEntity) {
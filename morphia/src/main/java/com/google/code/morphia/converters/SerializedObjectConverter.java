@@ -35,8 +35,7 @@ public class SerializedObjectConverter extends TypeConverter {
 		}
 		
 		try {
-			boolean useCompression = !f.getAnnotation(Serialized.class).disableCompression();
-			return Serializer.deserialize(fromDBObject, useCompression);
+			return Serializer.deserialize(fromDBObject, f, mapr == null ? null : mapr.getOptions());
 		} catch (IOException e) {
 			throw new MappingException("While deserializing to " + f.getFullName(), e);
 		} catch (ClassNotFoundException e) {
@@ -49,8 +48,7 @@ public class SerializedObjectConverter extends TypeConverter {
 		if (value == null)
 			return null;
 		try {
-			boolean useCompression = !f.getAnnotation(Serialized.class).disableCompression();
-			return Serializer.serialize(value, useCompression);
+			return Serializer.serialize(value, f, mapr == null ? null : mapr.getOptions());
 		} catch (IOException ex) {
 			throw new RuntimeException(ex);
 		}
@@ -0,0 +1,109 @@
+package com.google.code.morphia.indexing;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * An index declared by the mapping ({@code @Indexes} or {@code @Indexed}), with its keys validated and translated to the
+ * stored names.
+ */
+public class IndexDefinition {
+	private final Class<?> entityClass;
+	private final String name;
+	private final BasicDBObject keys;
+	private final boolean unique;
+	private final boolean dropDups;
+	private final boolean background;
+	private final boolean sparse;
+
+	public IndexDefinition(Class<?> entityClass, String name, BasicDBObject keys, boolean unique, boolean dropDups, boolean background, boolean sparse) {
+		this.entityClass = entityClass;
+		this.name = name == null ? "" : name;
+		this.keys = keys;
+		this.unique = unique;
+		this.dropDups = dropDups;
+		this.background = background;
+		this.sparse = sparse;
+	}
+
+	/** @return the class whose collection the index is in */
+	public Class<?> getEntityClass() 	{ return entityClass; }
+	/** @return the declared name, or "" for the server default */
+	public String getName() 			{ return name; }
+	/** @return the keys (not to be changed), like {@code {lastName: 1, age: -1}} */
+	public BasicDBObject getKeys() 		{ return keys; }
+	public boolean isUnique() 			{ return unique; }
+	public boolean isDropDups() 		{ return dropDups; }
+	public boolean isBackground() 		{ return background; }
+	public boolean isSparse() 			{ return sparse; }
+
+	/** @return the declared name, or the one the server gives the index (like {@code lastName_1_age_-1}) */
+	public String getIndexName() {
+		if (name.length() > 0)
+			return name;
+		StringBuilder sb = new StringBuilder();
+		for (String key : keys.keySet()) {
+			if (sb.length() > 0)
+				sb.append('_');
+			sb.append(key).append('_');
+			Object dir = keys.get(key);
+			if (dir instanceof Number || dir instanceof String)
+				sb.append(dir.toString().replace(' ', '_'));
+		}
+		return sb.toString();
+	}
+
+	/** @return the options to create the index with */
+	public BasicDBObject getOptions(boolean background) {
+		BasicDBObject opts = new BasicDBObject();
+		if (name.length() > 0)
+			opts.put("name", name);
+		if (unique) {
+			opts.put("unique", true);
+			if (dropDups)
+				opts.put("dropDups", true);
+		}
+		if (background || this.background)
+			opts.put("background", true);
+		if (sparse)
+			opts.put("sparse", true);
+		return opts;
+	}
+
+	/** @return whether the index (as in {@code getIndexInfo()}) has the same keys, in the same order and directions */
+	public boolean hasKeysOf(DBObject index) {
+		Object other = index.get("key");
+		if (!(other instanceof DBObject))
+			return false;
+		DBObject otherKeys = (DBObject) other;
+		if (!keys.keySet().toString().equals(otherKeys.keySet().toString()))
+			return false;
+		for (String key : keys.keySet())
+			if (!sameDirection(keys.get(key), otherKeys.get(key)))
+				return false;
+		return true;
+	}
+
+	/** @return whether the index (as in {@code getIndexInfo()}) has the same options, besides the build-time ones */
+	public boolean hasOptionsOf(DBObject index) {
+		if (name.length() > 0 && !name.equals(index.get("name")))
+			return false;
+		return unique == isTrue(index.get("unique")) && sparse == isTrue(index.get("sparse"));
+	}
+
+	private static boolean sameDirection(Object a, Object b) {
+		//the server may give 1 back as 1.0
+		if (a instanceof Number && b instanceof Number)
+			return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private static boolean isTrue(Object o) {
+		return Boolean.TRUE.equals(o) || (o instanceof Number && ((Number) o).intValue() != 0);
+	}
+
+	@Override
+	public String toString() {
+		return entityClass.getSimpleName() + " " + getIndexName() + " " + keys + (unique ? " unique" : "") + (sparse ? " sparse" : "");
+	}
+}
@@ -0,0 +1,75 @@
+package com.google.code.morphia.indexing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.DBObject;
+
+/**
+ * What {@link IndexSynchronizer} found (and did): the declared indexes which were missing, the ones which exist with
+ * other options, and the existing ones nothing declares. Changed and extra indexes are only reported, never dropped.
+ */
+public class IndexSyncReport {
+	/** A declared index which exists with the same keys but other options (or name) */
+	public static class Change {
+		private final IndexDefinition declared;
+		private final DBObject existing;
+
+		Change(IndexDefinition declared, DBObject existing) {
+			this.declared = declared;
+			this.existing = existing;
+		}
+
+		public IndexDefinition getDeclared() 	{ return declared; }
+		/** @return the index, as in {@code getIndexInfo()} */
+		public DBObject getExisting() 			{ return existing; }
+
+		@Override
+		public String toString() {
+			return declared + " (is " + existing + ")";
+		}
+	}
+
+	private final boolean dryRun;
+	private final List<IndexDefinition> missing = new ArrayList<IndexDefinition>();
+	private final List<IndexDefinition> created = new ArrayList<IndexDefinition>();
+	private final List<Change> changed = new ArrayList<Change>();
+	private final List<DBObject> extra = new ArrayList<DBObject>();
+	private final Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+
+	/** An empty report, of nothing found */
+	public IndexSyncReport(boolean dryRun) {
+		this.dryRun = dryRun;
+	}
+
+	/** @return whether the report is all there was; nothing was created */
+	public boolean isDryRun() 							{ return dryRun; }
+	/** @return the declared indexes which did not exist (before the run) */
+	public List<IndexDefinition> getMissing() 			{ return Collections.unmodifiableList(missing); }
+	/** @return the missing indexes which were created */
+	public List<IndexDefinition> getCreated() 			{ return Collections.unmodifiableList(created); }
+	public List<Change> getChanged() 					{ return Collections.unmodifiableList(changed); }
+	/** @return the existing indexes (as in {@code getIndexInfo()}, besides {@code _id}) which are not declared */
+	public List<DBObject> getExtra() 					{ return Collections.unmodifiableList(extra); }
+	/** @return the errors, by the collection (or index) they were for */
+	public Map<String, Throwable> getFailures() 		{ return Collections.unmodifiableMap(failures); }
+
+	/** @return whether the declared indexes all exist, as declared */
+	public boolean isInSync() {
+		return missing.size() == created.size() && changed.isEmpty() && failures.isEmpty();
+	}
+
+	synchronized void addMissing(IndexDefinition def) 	{ missing.add(def); }
+	synchronized void addCreated(IndexDefinition def) 	{ created.add(def); }
+	synchronized void addChanged(Change change) 		{ changed.add(change); }
+	synchronized void addExtra(DBObject index) 			{ extra.add(index); }
+	synchronized void addFailure(String what, Throwable t) { failures.put(what, t); }
+
+	@Override
+	public synchronized String toString() {
+		return (dryRun ? "dry run: " : "") + "missing=" + missing + ", created=" + created.size() + ", changed=" + changed + ", extra=" + extra + ", failures=" + failures.keySet();
+	}
+}
@@ -0,0 +1,177 @@
+package com.google.code.morphia.indexing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.code.morphia.Datastore;
+import com.google.code.morphia.DatastoreImpl;
+import com.google.code.morphia.logging.Logr;
+import com.google.code.morphia.logging.MorphiaLoggerFactory;
+import com.google.code.morphia.mapping.MappedClass;
+import com.google.code.morphia.metrics.OperationType;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * Brings the indexes of the mapped collections in line with the declared ones: the existing indexes of each collection
+ * are read once and compared with the declared ones, and only the missing ones are created (in the background,
+ * unless told otherwise). The collections are done concurrently. Indexes which exist with other options, or which
+ * nothing declares, are reported but left alone.
+ * <pre>
+ * IndexSyncReport report = new IndexSynchronizer(ds).dryRun(true).sync();
+ * </pre>
+ */
+public class IndexSynchronizer {
+	private static final Logr log = MorphiaLoggerFactory.get(IndexSynchronizer.class);
+
+	private final DatastoreImpl ds;
+	private boolean dryRun = false;
+	private boolean background = true;
+	private int threads = 4;
+
+	public IndexSynchronizer(Datastore ds) {
+		this.ds = (DatastoreImpl) ds;
+	}
+
+	/** Only reports what would be done */
+	public IndexSynchronizer dryRun(boolean dryRun) {
+		this.dryRun = dryRun;
+		return this;
+	}
+
+	/** Whether the indexes are created in the background (the default), rather than as declared */
+	public IndexSynchronizer background(boolean background) {
+		this.background = background;
+		return this;
+	}
+
+	/** The number of collections done at once; 4 by default */
+	public IndexSynchronizer threads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads must be positive, not " + threads);
+		this.threads = threads;
+		return this;
+	}
+
+	/** Syncs the indexes of all the mapped classes */
+	public IndexSyncReport sync() {
+		return sync(ds.getMapper().getMappedClasses());
+	}
+
+	public IndexSyncReport sync(Collection<MappedClass> classes) {
+		final IndexSyncReport report = new IndexSyncReport(dryRun);
+		final Map<String, List<IndexDefinition>> byCollection = byCollection(classes);
+		if (byCollection.isEmpty())
+			return report;
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, byCollection.size()), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "morphia-index-sync-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			List<Future<?>> done = new ArrayList<Future<?>>();
+			for (final Map.Entry<String, List<IndexDefinition>> e : byCollection.entrySet())
+				done.add(executor.submit(new Runnable() {
+					public void run() {
+						syncCollection(e.getKey(), e.getValue(), report);
+					}
+				}));
+			for (Future<?> f : done)
+				f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			report.addFailure("interrupted", e);
+		} catch (ExecutionException e) {
+			report.addFailure("sync", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		if (!report.isInSync() || !report.getExtra().isEmpty())
+			log.info("Index sync: " + report);
+		return report;
+	}
+
+	/** @return the (distinct) declared indexes, by collection; entity collections without any are included, for their extra indexes */
+	private Map<String, List<IndexDefinition>> byCollection(Collection<MappedClass> classes) {
+		Map<String, List<IndexDefinition>> byCollection = new LinkedHashMap<String, List<IndexDefinition>>();
+		Set<String> seen = new HashSet<String>();
+		for (MappedClass mc : classes) {
+			if (mc.getEntityAnnotation() != null)
+				definitionsOf(byCollection, ds.getMapper().getCollectionName(mc.getClazz()));
+			for (IndexDefinition def : ds.getDeclaredIndexes(mc)) {
+				String collName = ds.getMapper().getCollectionName(def.getEntityClass());
+				//subclasses in the same collection declare the same indexes
+				if (seen.add(collName + "." + def.getIndexName() + def.getKeys()))
+					definitionsOf(byCollection, collName).add(def);
+			}
+		}
+		return byCollection;
+	}
+
+	private static List<IndexDefinition> definitionsOf(Map<String, List<IndexDefinition>> byCollection, String collName) {
+		List<IndexDefinition> defs = byCollection.get(collName);
+		if (defs == null)
+			byCollection.put(collName, defs = new ArrayList<IndexDefinition>());
+		return defs;
+	}
+
+	private void syncCollection(String collName, List<IndexDefinition> defs, IndexSyncReport report) {
+		DBCollection dbColl = ds.getDB().getCollection(collName);
+		List<DBObject> unmatched;
+		try {
+			unmatched = new ArrayList<DBObject>(dbColl.getIndexInfo());
+		} catch (RuntimeException e) {
+			report.addFailure(collName, e);
+			return;
+		}
+		List<DBObject> existing = new ArrayList<DBObject>(unmatched);
+
+		for (IndexDefinition def : defs) {
+			DBObject match = null;
+			for (DBObject index : existing)
+				if (def.hasKeysOf(index)) {
+					match = index;
+					break;
+				}
+			if (match != null) {
+				unmatched.remove(match);
+				if (!def.hasOptionsOf(match))
+					report.addChanged(new IndexSyncReport.Change(def, match));
+				continue;
+			}
+
+			report.addMissing(def);
+			if (dryRun)
+				continue;
+			long start = System.nanoTime();
+			try {
+				log.debug("Creating index for " + collName + " with keys:" + def.getKeys() + " and opts:" + def.getOptions(background));
+				dbColl.createIndex(def.getKeys(), def.getOptions(background));
+				ds.getMetrics().record(OperationType.ENSURE_INDEX, collName, def.getEntityClass(), start, 0, 0);
+				report.addCreated(def);
+			} catch (RuntimeException e) {
+				report.addFailure(collName + "." + def.getIndexName(), e);
+			}
+		}
+
+		for (DBObject index : unmatched)
+			if (!"_id_".equals(index.get("name")))
+				report.addExtra(index);
+	}
+}
@@ -0,0 +1,162 @@
+package com.google.code.morphia.mapping;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * <p>Remembers the document each tracked entity ({@code @Entity(trackChanges=true)}) was loaded from, or last saved as,
+ * so only the differences need be sent on the next save.</p>
+ * <p>Entities are held weakly, by identity; a snapshot goes away with its entity.</p>
+ */
+public class ChangeTracker {
+	private final Map<IdentityRef, DBObject> snapshots = new HashMap<IdentityRef, DBObject>();
+	private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+	/** Records (a copy of) the document as the stored state of the entity */
+	public synchronized void snapshot(Object entity, DBObject dbObj) {
+		expunge();
+		snapshots.put(new IdentityRef(entity, queue), (DBObject) copy(dbObj));
+	}
+
+	/** @return the stored state of the entity, or null if it is not tracked */
+	public synchronized DBObject getSnapshot(Object entity) {
+		expunge();
+		return snapshots.get(new IdentityRef(entity, null));
+	}
+
+	public synchronized void forget(Object entity) {
+		snapshots.remove(new IdentityRef(entity, null));
+	}
+
+	public synchronized int size() {
+		expunge();
+		return snapshots.size();
+	}
+
+	private void expunge() {
+		Object ref;
+		while ((ref = queue.poll()) != null)
+			snapshots.remove(ref);
+	}
+
+	/**
+	 * <p>Computes the update which turns the stored document into the current one: a {@code $set} of each new or changed
+	 * value, and an {@code $unset} of each removed one. Embedded documents are compared field by field (using dotted
+	 * paths); arrays and other values are replaced whole. The {@code _id} is never part of the update.</p>
+	 * @return the update; empty if nothing changed
+	 */
+	public static DBObject diff(DBObject stored, DBObject current) {
+		BasicDBObject set = new BasicDBObject();
+		BasicDBObject unset = new BasicDBObject();
+		diff("", stored, current, set, unset);
+		set.removeField(Mapper.ID_KEY);
+		unset.removeField(Mapper.ID_KEY);
+
+		BasicDBObject update = new BasicDBObject();
+		if (!set.isEmpty())
+			update.put("$set", set);
+		if (!unset.isEmpty())
+			update.put("$unset", unset);
+		return update;
+	}
+
+	private static void diff(String prefix, DBObject stored, DBObject current, DBObject set, DBObject unset) {
+		for (String key : current.keySet()) {
+			Object newVal = current.get(key);
+			if (!stored.containsField(key)) {
+				set.put(prefix + key, newVal);
+				continue;
+			}
+			Object oldVal = stored.get(key);
+			if (isDocument(oldVal) && isDocument(newVal))
+				diff(prefix + key + ".", (DBObject) oldVal, (DBObject) newVal, set, unset);
+			else if (!valuesEqual(oldVal, newVal))
+				set.put(prefix + key, newVal);
+		}
+
+		for (String key : stored.keySet())
+			if (!current.containsField(key))
+				unset.put(prefix + key, 1);
+	}
+
+	private static boolean isDocument(Object o) {
+		return o instanceof DBObject && !(o instanceof List);
+	}
+
+	private static boolean valuesEqual(Object a, Object b) {
+		if (a == null || b == null)
+			return a == b;
+		if (a instanceof byte[] && b instanceof byte[])
+			return Arrays.equals((byte[]) a, (byte[]) b);
+		if (a instanceof List && b instanceof List) {
+			List<?> la = (List<?>) a, lb = (List<?>) b;
+			if (la.size() != lb.size())
+				return false;
+			for (int i = 0; i < la.size(); i++)
+				if (!valuesEqual(la.get(i), lb.get(i)))
+					return false;
+			return true;
+		}
+		if (isDocument(a) && isDocument(b)) {
+			DBObject da = (DBObject) a, db = (DBObject) b;
+			if (!da.keySet().equals(db.keySet()))
+				return false;
+			for (String key : da.keySet())
+				if (!valuesEqual(da.get(key), db.get(key)))
+					return false;
+			return true;
+		}
+		return a.equals(b);
+	}
+
+	/** Deep copies documents and lists, so later changes to the original are not seen */
+	private static Object copy(Object o) {
+		if (o instanceof List) {
+			BasicDBList list = new BasicDBList();
+			for (Object item : (List<?>) o)
+				list.add(copy(item));
+			return list;
+		}
+		if (o instanceof DBObject) {
+			DBObject src = (DBObject) o;
+			BasicDBObject dest = new BasicDBObject();
+			for (String key : src.keySet())
+				dest.put(key, copy(src.get(key)));
+			return dest;
+		}
+		return o;
+	}
+
+	/** A weak reference compared by the identity of its referent */
+	private static class IdentityRef extends WeakReference<Object> {
+		private final int hash;
+
+		IdentityRef(Object referent, ReferenceQueue<Object> queue) {
+			super(referent, queue);
+			hash = System.identityHashCode(referent);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+			if (!(o instanceof IdentityRef))
+				return false;
+			Object referent = get();
+			return referent != null && referent == ((IdentityRef) o).get();
+		}
+	}
+}
@@ -145,8 +145,12 @@ public class MappedClass {
 			for (Class<?> c : entityLisAnn.value())
 				lifecycleClasses.add(c);
 		
+		MappingIndex.Entry indexed = mapr.getMappingIndex().get(clazz);
 		for (Class<?> cls : lifecycleClasses) {
-			for (Method m : ReflectionUtils.getDeclaredAndInheritedMethods(cls)) {
+			List<Method> methods = indexed != null && cls.equals(clazz) ? indexed.resolveMethods(clazz) : null;
+			if (methods == null)
+				methods = ReflectionUtils.getDeclaredAndInheritedMethods(cls);
+			for (Method m : methods) {
 				for(Class<? extends Annotation> c : lifecycleAnnotations) {
 					if (m.isAnnotationPresent(c)) {
 						addLifecycleEventMethod(c, m, cls.equals(clazz) ? null : cls);
@@ -157,7 +161,10 @@ public class MappedClass {
 		
 		update();
 		
-		for (Field field : ReflectionUtils.getDeclaredAndInheritedFields(clazz, true)) {
+		Field[] fields = indexed == null ? null : indexed.resolveFields(clazz);
+		if (fields == null)
+			fields = ReflectionUtils.getDeclaredAndInheritedFields(clazz, true);
+		for (Field field : fields) {
 			field.setAccessible(true);
 			int fieldMods = field.getModifiers();
 			if (field.isAnnotationPresent(Transient.class))
@@ -283,7 +290,11 @@ public class MappedClass {
 	
 	@SuppressWarnings("deprecation")
 	public void validate() {
-		new MappingValidator().validate(this);
+		MappingIndex.Entry indexed = mapr.getMappingIndex().get(clazz);
+		if (indexed != null && indexed.isValidated())
+			new MappingValidator().validateIndexed(Arrays.asList(this));
+		else
+			new MappingValidator().validate(this);
 	}
 	
 	@Override
@@ -353,16 +364,14 @@ public class MappedClass {
 	}
 
 	private Object getOrCreateInstance(Class<?> clazz) {
-		if (mapr.instanceCache.containsKey(clazz))
-			return mapr.instanceCache.get(clazz);
+		Object o = mapr.instanceCache.get(clazz);
+		if (o != null)
+			return o;
 		
-		Object o = mapr.getOptions().objectFactory.createInstance(clazz);
-		Object nullO = mapr.instanceCache.put(clazz, o);
-		if (nullO != null)
-			if(log.isErrorEnabled())
-				log.error("Race-condition, created duplicate class: " + clazz);
-		
-		return o;
+		//a racing thread may create one too; all use the first one cached
+		o = mapr.getOptions().objectFactory.createInstance(clazz);
+		Object cached = mapr.instanceCache.putIfAbsent(clazz, o);
+		return cached != null ? cached : o;
 			
 	}
 	private void callGlobalInterceptors(Class<? extends Annotation> event, Object entity, DBObject dbObj, Mapper mapr,
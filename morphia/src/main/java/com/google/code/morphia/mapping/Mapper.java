@@ -18,12 +18,14 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
 import java.util.regex.Pattern;
 
 import org.bson.BSONEncoder;
@@ -84,14 +86,20 @@ public class Mapper {
 	/** Set of classes that registered by this mapper */
 	private final Map<String, MappedClass> mappedClasses = new ConcurrentHashMap<String, MappedClass>();
 	private final ConcurrentHashMap<String, Set<MappedClass>> mappedClassesByCollection = new ConcurrentHashMap<String, Set<MappedClass>>();
+	/** The classes being mapped, by name; other threads wait for them instead of mapping them again */
+	private final ConcurrentHashMap<String, PendingMapping> pendingMappings = new ConcurrentHashMap<String, PendingMapping>();
 	
 	//EntityInterceptors; these are called before EntityListeners and lifecycle methods on an Entity, for all Entities
-	private final List<EntityInterceptor> interceptors = new LinkedList<EntityInterceptor>();
+	private final List<EntityInterceptor> interceptors = new CopyOnWriteArrayList<EntityInterceptor>();
 
 	//A general cache of instances of classes; used by MappedClass for EntityListerner(s)
-	final Map<Class, Object> instanceCache = new ConcurrentHashMap();
+	final ConcurrentMap<Class, Object> instanceCache = new ConcurrentHashMap<Class, Object>();
 	
 	private MapperOptions opts = new MapperOptions();
+	private volatile MappingIndex mappingIndex;
+
+	//the stored state of entities with @Entity(trackChanges=true)
+	private final ChangeTracker changeTracker = new ChangeTracker();
 
 	// TODO: make these configurable
 	LazyProxyFactory proxyFactory = LazyFeatureDependencies.createDefaultProxyFactory();
@@ -133,14 +141,29 @@ public class Mapper {
 		this.opts = options;
 	}
 
+	/** Returns the build-time mapping metadata on the classpath (read once); empty if {@link MapperOptions#useMappingIndex} is off */
+	public MappingIndex getMappingIndex() {
+		if (!opts.useMappingIndex)
+			return MappingIndex.EMPTY;
+		MappingIndex idx = mappingIndex;
+		if (idx == null) {
+			ClassLoader loader = Thread.currentThread().getContextClassLoader();
+			mappingIndex = idx = MappingIndex.load(loader != null ? loader : Mapper.class.getClassLoader());
+		}
+		return idx;
+	}
+
+	public void setMappingIndex(MappingIndex mappingIndex) {
+		this.mappingIndex = mappingIndex;
+	}
+
 	public boolean isMapped(final Class c) {
 		return mappedClasses.containsKey(c.getName());
 	}
 
-	/** Creates a MappedClass and validates it. */
+	/** Creates a MappedClass (if it isn't mapped yet) and validates it. */
 	public MappedClass addMappedClass(Class c) {
-		MappedClass mc = new MappedClass(c, this);
-		return addMappedClass(mc, true);
+		return mapOnce(c, true);
 	}
 	
 	/** Validates MappedClass and adds to internal cache. */
@@ -156,11 +179,11 @@ public class Mapper {
 		
 		Converters c = (Converters) mc.getAnnotation(Converters.class);
 		if (c != null)
-			for(Class<? extends TypeConverter> clazz : c.value())
-				if(!converters.isRegistered(clazz))
-					converters.addConverter(clazz);
-					
-		mappedClasses.put(mc.getClazz().getName(), mc);
+			synchronized (converters) {
+				for(Class<? extends TypeConverter> clazz : c.value())
+					if(!converters.isRegistered(clazz))
+						converters.addConverter(clazz);
+			}
 		
 		Set<MappedClass> mcs = mappedClassesByCollection.get(mc.getCollectionName());
 		if (mcs == null) {
@@ -171,9 +194,62 @@ public class Mapper {
 		
 		mcs.add(mc);
 
+		//last, as readers of mappedClasses take the class as done
+		mappedClasses.put(mc.getClazz().getName(), mc);
 		return mc;
 	}
 
+	/** A class being mapped by a thread */
+	private static final class PendingMapping {
+		final Thread owner = Thread.currentThread();
+		final CountDownLatch done = new CountDownLatch(1);
+		/** set once created, before it is validated */
+		volatile MappedClass mc;
+	}
+
+	/**
+	 * Returns the MappedClass of the type, creating it if needed; it is created once, however many threads ask for
+	 * it at the same time. Reads of mapped classes take no locks.
+	 */
+	private MappedClass mapOnce(Class type, boolean validate) {
+		String name = type.getName();
+		while (true) {
+			MappedClass mc = mappedClasses.get(name);
+			if (mc != null)
+				return validate ? addMappedClass(mc, true) : mc;
+
+			PendingMapping pending = pendingMappings.get(name);
+			if (pending == null) {
+				PendingMapping mine = new PendingMapping();
+				pending = pendingMappings.putIfAbsent(name, mine);
+				if (pending == null)
+					try {
+						mine.mc = new MappedClass(type, this);
+						return addMappedClass(mine.mc, validate);
+					} finally {
+						pendingMappings.remove(name, mine);
+						mine.done.countDown();
+					}
+			}
+
+			if (pending.owner == Thread.currentThread()) {
+				//the validation of the class asked for it (a self reference); it gets the unvalidated one
+				return pending.mc != null ? pending.mc : new MappedClass(type, this);
+			}
+			//created and being validated, which may wait for a class this thread is validating (classes referencing
+			//each other); unvalidated is all that was asked for
+			if (!validate && pending.mc != null)
+				return pending.mc;
+			try {
+				pending.done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new MappingException("Interrupted while waiting for " + name + " to be mapped");
+			}
+			//mapped, or it failed and this thread tries
+		}
+	}
+
 	/** Returns collection of MappedClasses*/
 	public Collection<MappedClass> getMappedClasses() {
 		return new ArrayList<MappedClass>(mappedClasses.values());
@@ -202,9 +278,8 @@ public class Mapper {
 
 		MappedClass mc = mappedClasses.get(type.getName());
 		if (mc == null) {
-			mc = new MappedClass(type, this);
 			// no validation
-			addMappedClass(mc, false);
+			mc = mapOnce(type, false);
 		}
 		return mc;
 	}
@@ -272,9 +347,21 @@ public class Mapper {
 		Object entity = null;
 		entity = opts.objectFactory.createInstance(entityClass, dbObject);
 		entity = fromDb(dbObject, entity, cache);
+		if (isTrackingChanges(entity))
+			changeTracker.snapshot(entity, dbObject);
 		return entity;
 	}
 
+	/** @return true if the entity's class is marked {@code @Entity(trackChanges=true)} */
+	public boolean isTrackingChanges(Object entity) {
+		MappedClass mc = getMappedClass(entity);
+		return mc != null && mc.getEntityAnnotation() != null && mc.getEntityAnnotation().trackChanges();
+	}
+
+	public ChangeTracker getChangeTracker() {
+		return changeTracker;
+	}
+
 	/**
 	 * <p>
 	 * Converts a java object to a mongo-compatible object (possibly a DBObject
@@ -401,7 +488,7 @@ public class Mapper {
 		}//serialized
 		else if (mf!=null && mf.hasAnnotation(Serialized.class))
 			try {
-				mappedValue = Serializer.serialize(value, !mf.getAnnotation(Serialized.class).disableCompression());
+				mappedValue = Serializer.serialize(value, mf, opts);
 			} catch (IOException e) {
 				throw new RuntimeException(e);
 			}
@@ -699,7 +786,7 @@ public class Mapper {
 	}
 
 	/** Return the first {@link StackTraceElement} not in our code (package). */
-	private static StackTraceElement getFirstClientLine(Throwable t) {
+	public static StackTraceElement getFirstClientLine(Throwable t) {
 		for(StackTraceElement ste : t.getStackTrace())
 			if ( 	!ste.getClassName().startsWith("com.google.code.morphia") && 
 					!ste.getClassName().startsWith("sun.reflect") && 
@@ -1,5 +1,7 @@
 package com.google.code.morphia.mapping;
 
+import java.io.File;
+
 import com.google.code.morphia.ObjectFactory;
 
 /**
@@ -16,6 +18,12 @@ public class MapperOptions {
 	public boolean storeEmpties = false;
 	/** <p>Controls if final fields are stored. </p>*/
 	public boolean ignoreFinals = false; //ignore final fields.
+	/** <p>Uses the mapping metadata made at build time ({@link MappingIndex}), where there is any, instead of reflecting.</p> */
+	public boolean useMappingIndex = true;
+	/** <p>Where mapPackage keeps what it read from jars (see {@link com.google.code.morphia.utils.PackageScanner}); null to read them every time.</p> */
+	public File packageScanIndex = null;
+	/** <p>The codec of <code>@Serialized</code> fields (see {@link Serializer}); null for java serialization, with GZIP unless disabled, readable by older versions.</p> */
+	public SerializationCodec serializationCodec = null;
 	
 	public CustomMapper referenceMapper = new ReferenceMapper();
 	public CustomMapper embeddedMapper = new EmbeddedMapper();
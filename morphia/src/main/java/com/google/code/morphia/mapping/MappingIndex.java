@@ -0,0 +1,258 @@
+package com.google.code.morphia.mapping;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.code.morphia.logging.Logr;
+import com.google.code.morphia.logging.MorphiaLoggerFactory;
+
+/**
+ * The mapping metadata made at build time (by the annotation processor of morphia-apt-plug), read from every
+ * {@value #RESOURCE} on the classpath. For each processed class it has the fields and lifecycle methods, in the order
+ * reflection finds them, and whether the class passed the build-time validation. {@link MappedClass} uses it instead
+ * of scanning the class hierarchy, and skips the validation rules already checked. An entry is only used if every
+ * class of the hierarchy is loaded from the classpath root (directory or jar) the index was read from, so was compiled
+ * by the build which wrote it; a superclass from another jar could have changed since. Nothing is checked by
+ * reflection.
+ * <p>The format is a line per item, tab separated:</p>
+ * <pre>
+ * class	com.example.Person	validated
+ * field	com.example.Person	name
+ * field	com.example.BaseEntity	id
+ * method	com.example.Person	prePersist	com.mongodb.DBObject
+ * </pre>
+ */
+public class MappingIndex {
+	private static final Logr log = MorphiaLoggerFactory.get(MappingIndex.class);
+
+	public static final String RESOURCE = "META-INF/morphia/mapping.idx";
+	private static final String CLASS = "class";
+	private static final String FIELD = "field";
+	private static final String METHOD = "method";
+	private static final String VALIDATED = "validated";
+
+	/** The metadata of a class */
+	public static class Entry {
+		private final String className;
+		private final boolean validated;
+		private final List<String[]> fields = new ArrayList<String[]>();
+		private final List<String[]> methods = new ArrayList<String[]>();
+		//the classpath root the index was read from; null for entries not read from the classpath
+		private final String root;
+
+		public Entry(String className, boolean validated) {
+			this(className, validated, null);
+		}
+
+		Entry(String className, boolean validated, String root) {
+			this.className = className;
+			this.validated = validated;
+			this.root = root;
+		}
+
+		public String getClassName() 	{ return className; }
+		/** @return whether the class passed the build-time validation */
+		public boolean isValidated() 	{ return validated; }
+
+		/** Adds a (non static) field, declared by the class or a superclass */
+		public void addField(String declaringClass, String name) {
+			fields.add(new String[] {declaringClass, name});
+		}
+
+		/** Adds a lifecycle method, declared by the class or a superclass, with the (binary) names of its parameter types */
+		public void addMethod(String declaringClass, String name, String... parameterTypes) {
+			String[] method = new String[parameterTypes.length + 2];
+			method[0] = declaringClass;
+			method[1] = name;
+			System.arraycopy(parameterTypes, 0, method, 2, parameterTypes.length);
+			methods.add(method);
+		}
+
+		/** @return the fields, or null if the entry may not be current (or they aren't those of the class) */
+		public Field[] resolveFields(Class<?> clazz) {
+			if (!isCurrent(clazz))
+				return null;
+			Field[] resolved = new Field[fields.size()];
+			for (int i = 0; i < resolved.length; i++) {
+				String[] f = fields.get(i);
+				Class<?> declaring = declaringClass(clazz, f[0]);
+				if (declaring == null)
+					return null;
+				try {
+					resolved[i] = declaring.getDeclaredField(f[1]);
+				} catch (NoSuchFieldException e) {
+					return null;
+				}
+			}
+			return resolved;
+		}
+
+		/** @return the lifecycle methods, or null if the entry may not be current (or they aren't those of the class) */
+		public List<Method> resolveMethods(Class<?> clazz) {
+			if (!isCurrent(clazz))
+				return null;
+			List<Method> resolved = new ArrayList<Method>(methods.size());
+			Class<?> declaring = null;
+			Method[] declared = null;
+			for (String[] m : methods) {
+				if (declaring == null || !declaring.getName().equals(m[0])) {
+					declaring = declaringClass(clazz, m[0]);
+					if (declaring == null)
+						return null;
+					declared = declaring.getDeclaredMethods();
+				}
+				Method method = find(declared, m);
+				if (method == null)
+					return null;
+				resolved.add(method);
+			}
+			return resolved;
+		}
+
+		/** @return the method with the name and (binary names of the) parameter types; the types are not loaded */
+		private static Method find(Method[] declared, String[] m) {
+			for (Method method : declared) {
+				Class<?>[] params = method.getParameterTypes();
+				if (!method.getName().equals(m[1]) || params.length != m.length - 2)
+					continue;
+				boolean same = true;
+				for (int i = 0; i < params.length && same; i++)
+					same = params[i].getName().equals(m[i + 2]);
+				if (same)
+					return method;
+			}
+			return null;
+		}
+
+		/** @return whether every class of the hierarchy comes from the root of the index (always, if the root isn't known) */
+		boolean isCurrent(Class<?> clazz) {
+			if (root == null)
+				return true;
+			for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+				String resource = c.getName().replace('.', '/') + ".class";
+				URL url = c.getClassLoader() == null ? ClassLoader.getSystemResource(resource) : c.getClassLoader().getResource(resource);
+				if (url == null || !url.toString().equals(root + resource))
+					return false;
+			}
+			return true;
+		}
+
+		private static Class<?> declaringClass(Class<?> clazz, String name) {
+			for (Class<?> c = clazz; c != null; c = c.getSuperclass())
+				if (c.getName().equals(name))
+					return c;
+			return null;
+		}
+	}
+
+	public static final MappingIndex EMPTY = new MappingIndex(Collections.<Entry>emptyList());
+
+	private final Map<String, Entry> entries;
+
+	public MappingIndex(Collection<Entry> entries) {
+		Map<String, Entry> byName = new LinkedHashMap<String, Entry>();
+		for (Entry e : entries)
+			byName.put(e.getClassName(), e);
+		this.entries = Collections.unmodifiableMap(byName);
+	}
+
+	/** Reads all the indexes the class loader has; unreadable ones are logged and skipped */
+	public static MappingIndex load(ClassLoader loader) {
+		List<Entry> entries = new ArrayList<Entry>();
+		try {
+			Enumeration<URL> urls = loader == null ? ClassLoader.getSystemResources(RESOURCE) : loader.getResources(RESOURCE);
+			while (urls.hasMoreElements()) {
+				URL url = urls.nextElement();
+				InputStream in = null;
+				try {
+					in = url.openStream();
+					String u = url.toString();
+					entries.addAll(read(new InputStreamReader(in, "UTF-8"), u.substring(0, u.length() - RESOURCE.length())));
+				} catch (IOException e) {
+					log.warning("Could not read the mapping index " + url, e);
+				} finally {
+					if (in != null)
+						try { in.close(); } catch (IOException e) { /* ignore */ }
+				}
+			}
+		} catch (IOException e) {
+			log.warning("Could not look for mapping indexes", e);
+		}
+		if (!entries.isEmpty() && log.isDebugEnabled())
+			log.debug("Loaded the mapping index of " + entries.size() + " classes");
+		return new MappingIndex(entries);
+	}
+
+	public static List<Entry> read(Reader reader) throws IOException {
+		return read(reader, null);
+	}
+
+	/** @param root the classpath root the index is read from, which the classes must be loaded from for it to be used */
+	static List<Entry> read(Reader reader, String root) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		BufferedReader in = new BufferedReader(reader);
+		Entry current = null;
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.length() == 0 || line.startsWith("#"))
+				continue;
+			String[] parts = line.split("\t");
+			if (CLASS.equals(parts[0]) && parts.length >= 2) {
+				current = new Entry(parts[1], parts.length > 2 && VALIDATED.equals(parts[2]), root);
+				entries.add(current);
+			} else if (current != null && FIELD.equals(parts[0]) && parts.length == 3) {
+				current.addField(parts[1], parts[2]);
+			} else if (current != null && METHOD.equals(parts[0]) && parts.length >= 3) {
+				String[] params = new String[parts.length - 3];
+				System.arraycopy(parts, 3, params, 0, params.length);
+				current.addMethod(parts[1], parts[2], params);
+			} else
+				throw new IOException("Invalid mapping index line: " + line);
+		}
+		return entries;
+	}
+
+	public static void write(Collection<Entry> entries, Writer out) throws IOException {
+		out.write("# generated at build time; see " + MappingIndex.class.getName() + "\n");
+		for (Entry e : entries) {
+			out.write(CLASS + "\t" + e.className + (e.validated ? "\t" + VALIDATED : "") + "\n");
+			for (String[] f : e.fields)
+				out.write(FIELD + "\t" + f[0] + "\t" + f[1] + "\n");
+			for (String[] m : e.methods) {
+				out.write(METHOD);
+				for (String part : m)
+					out.write("\t" + part);
+				out.write("\n");
+			}
+		}
+	}
+
+	/** @return the metadata of the class, or null if it isn't in the index */
+	public Entry get(Class<?> clazz) {
+		return entries.get(clazz.getName());
+	}
+
+	/** @return the names of the classes in the index */
+	public Set<String> getClassNames() {
+		return entries.keySet();
+	}
+
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+}
@@ -23,7 +23,6 @@ import com.google.code.morphia.utils.IterHelper;
 import com.google.code.morphia.utils.IterHelper.IterCallback;
 import com.google.code.morphia.utils.IterHelper.MapIterCallback;
 import com.google.code.morphia.utils.ReflectionUtils;
-import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import com.mongodb.DBRef;
 
@@ -263,9 +262,9 @@ class ReferenceMapper implements CustomMapper {
 
 		DatastoreImpl dsi = (DatastoreImpl) mapr.datastoreProvider.get();
 
-		DBCollection dbColl = dsi.getCollection(c);
-		if (!dbColl.getName().equals(dbRef.getRef()))
-			log.warning("Class " + c.getName() + " is stored in the '" + dbColl.getName()
+		String collName = mapr.getCollectionName(c);
+		if (!collName.equals(dbRef.getRef()))
+			log.warning("Class " + c.getName() + " is stored in the '" + collName
 					+ "' collection but a reference was found for this type to another collection, '" + dbRef.getRef()
 					+ "'. The reference will be loaded using the class anyway. " + dbRef);
 		boolean exists = (dsi.find(dbRef.getRef(), c).disableValidation().filter("_id", dbRef.getId()).asKeyList()
@@ -285,7 +284,7 @@ class ReferenceMapper implements CustomMapper {
 			return cached;
 		
 		//TODO: if _db is null, set it?
-		DBObject refDbObject = (DBObject) dbRef.fetch();
+		DBObject refDbObject = fetch(dbRef, mapr);
 		
 		if (refDbObject != null) {
 			Object refObj = mapr.getOptions().objectFactory.createInstance(mapr, mf, refDbObject);
@@ -303,6 +302,17 @@ class ReferenceMapper implements CustomMapper {
 		}
 	}
 	
+	/** Fetches through the datastore (for its document cache) if there is one */
+	private static DBObject fetch(DBRef dbRef, Mapper mapr) {
+		DatastoreImpl dsi;
+		try {
+			dsi = (DatastoreImpl) mapr.datastoreProvider.get();
+		} catch (IllegalStateException e) {
+			dsi = null;
+		}
+		return dsi != null ? dsi.fetch(dbRef) : (DBObject) dbRef.fetch();
+	}
+	
 	private void readMap(final DBObject dbObject, final MappedField mf, final Object entity, final Reference refAnn,
 			final EntityCache cache, final Mapper mapr) {
 		Class referenceObjClass = mf.getSubClass();
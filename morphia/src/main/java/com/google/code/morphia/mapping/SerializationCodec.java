@@ -0,0 +1,21 @@
+package com.google.code.morphia.mapping;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes and reads the values of {@code @Serialized} fields. The data starts with the codec's id, which finds the codec
+ * to read it with (see {@link Serializer#register(SerializationCodec)}); data without one is read as before codecs were.
+ * Implementations must be thread safe, and have a public no-arg constructor to be named by {@code @Serialized(codec=)}.
+ */
+public interface SerializationCodec {
+	/** @return the id the data starts with; any but 0x1F and 0xAC, which start the (older) GZIP and java serialized data */
+	byte getId();
+
+	/** Writes the object (after the id); the stream must not be closed */
+	void write(Object o, OutputStream out) throws IOException;
+
+	/** Reads the object written (from after the id) */
+	Object read(InputStream in) throws IOException, ClassNotFoundException;
+}
@@ -1,5 +1,5 @@
 /**
- * 
+ *
  */
 package com.google.code.morphia.mapping;
 
@@ -10,55 +10,180 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import org.bson.types.Binary;
 
+import com.google.code.morphia.annotations.Serialized;
+
 /**
+ * Writes and reads the values of {@code @Serialized} fields, with the {@link SerializationCodec} of the field (or of the
+ * {@link MapperOptions}). Without one, the data is java serialized, and compressed with GZIP unless disabled, as it
+ * always was; that data has no codec id, but is told apart by its first byte, so it stays readable whatever the codec.
+ * <p>The output buffers are kept (per thread) for reuse.</p>
+ *
  * @author Uwe Schaefer, (us@thomas-daily.de)
  */
 public class Serializer
 {
+	//the first bytes of java serialized and GZIP data
+	private static final byte JAVA_MAGIC = (byte) 0xAC;
+	private static final byte GZIP_MAGIC = (byte) 0x1F;
+	//bigger buffers are not kept
+	private static final int MAX_KEPT_BUFFER = 1024 * 1024;
+
+	/** Java serialization, uncompressed */
+	public static final SerializationCodec JAVA = new JavaCodec();
+
+	private static final ConcurrentHashMap<Byte, SerializationCodec> codecs = new ConcurrentHashMap<Byte, SerializationCodec>();
+	private static final ConcurrentHashMap<Class<?>, SerializationCodec> codecsByClass = new ConcurrentHashMap<Class<?>, SerializationCodec>();
+	private static final ThreadLocal<Buffer> buffers = new ThreadLocal<Buffer>() {
+		@Override
+		protected Buffer initialValue() {
+			return new Buffer();
+		}
+	};
+
+	static
+	{
+		register(JAVA);
+		register(new DeflateCodec());
+	}
+
+	/** Lets the data written by the codec be read; the codecs of the fields and options are registered when used */
+	public static void register(final SerializationCodec codec)
+	{
+		final byte id = codec.getId();
+		if (id == JAVA_MAGIC || id == GZIP_MAGIC)
+			throw new IllegalArgumentException("The codec id " + id + " is taken by the java serialized and GZIP data; " + codec);
+		final SerializationCodec other = codecs.putIfAbsent(id, codec);
+		if (other != null && other.getClass() != codec.getClass())
+			throw new IllegalArgumentException("The codec id " + id + " of " + codec + " is taken by " + other);
+	}
+
+	/** @return the codec the field is written with; null for the (java serialized, maybe GZIPed) data without a codec id */
+	public static SerializationCodec getCodec(final MappedField mf, final MapperOptions opts)
+	{
+		final Serialized ann = mf.getAnnotation(Serialized.class);
+		if (ann != null && ann.codec() != SerializationCodec.class)
+			return getCodec(ann.codec());
+		final SerializationCodec codec = opts == null ? null : opts.serializationCodec;
+		if (codec instanceof DeflateCodec && ann != null && ann.disableCompression())
+			return JAVA;
+		return codec;
+	}
+
+	private static SerializationCodec getCodec(final Class<? extends SerializationCodec> type)
+	{
+		SerializationCodec codec = codecsByClass.get(type);
+		if (codec == null)
+		{
+			try
+			{
+				codec = type.newInstance();
+			}
+			catch (final Exception e)
+			{
+				throw new MappingException("Could not create the codec " + type.getName(), e);
+			}
+			register(codec);
+			final SerializationCodec temp = codecsByClass.putIfAbsent(type, codec);
+			if (temp != null)
+				codec = temp;
+		}
+		return codec;
+	}
+
+	/** serializes the value of the {@code @Serialized} field */
+	public static byte[] serialize(final Object o, final MappedField mf, final MapperOptions opts) throws IOException
+	{
+		final SerializationCodec codec = getCodec(mf, opts);
+		if (codec == null)
+			return serialize(o, !mf.getAnnotation(Serialized.class).disableCompression());
+		return serialize(o, codec);
+	}
+
+	/** serializes object to byte[], after the codec's id */
+	public static byte[] serialize(final Object o, final SerializationCodec codec) throws IOException
+	{
+		register(codec);
+		final Buffer out = Buffer.acquire();
+		try
+		{
+			out.write(codec.getId());
+			codec.write(o, out);
+			return out.toByteArray();
+		}
+		finally
+		{
+			out.release();
+		}
+	}
+
 	/** serializes object to byte[] */
 	public static byte[] serialize(final Object o, final boolean zip) throws IOException
 	{
-		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		OutputStream os = baos;
-		if (zip)
-		{
-			os = new GZIPOutputStream(os);
-		}
-		final ObjectOutputStream oos = new ObjectOutputStream(os);
-		oos.writeObject(o);
-		oos.flush();
-		oos.close();
-		
-		return baos.toByteArray();
+		final Buffer baos = Buffer.acquire();
+		try
+		{
+			OutputStream os = baos;
+			if (zip)
+			{
+				os = new GZIPOutputStream(os);
+			}
+			final ObjectOutputStream oos = new ObjectOutputStream(os);
+			oos.writeObject(o);
+			oos.flush();
+			oos.close();
+
+			return baos.toByteArray();
+		}
+		finally
+		{
+			baos.release();
+		}
 	}
-	
-	/** deserializes DBBinary/byte[] to object */
+
+	/** deserializes the value of the {@code @Serialized} field */
+	public static Object deserialize(final Object data, final MappedField mf, final MapperOptions opts) throws IOException,
+	ClassNotFoundException
+	{
+		final SerializationCodec codec = getCodec(mf, opts);
+		if (codec != null)
+			register(codec);
+		return deserialize(data, !mf.getAnnotation(Serialized.class).disableCompression());
+	}
+
+	/**
+	 * deserializes DBBinary/byte[] to object; the data is read in place. The format is told by the data, so
+	 * {@code zipped} is only a hint now.
+	 */
 	public static Object deserialize(final Object data, final boolean zipped) throws IOException,
 	ClassNotFoundException
 	{
-		ByteArrayInputStream bais;
-		if (data instanceof Binary)
+		final byte[] bytes = data instanceof Binary ? ((Binary) data).getData() : (byte[]) data;
+		if (bytes.length > 0 && bytes[0] != JAVA_MAGIC && bytes[0] != GZIP_MAGIC)
 		{
-			bais = new ByteArrayInputStream(((Binary) data).getData());
+			final SerializationCodec codec = codecs.get(bytes[0]);
+			if (codec == null)
+				throw new IOException("No codec is registered with the id " + bytes[0]);
+			return codec.read(new ByteArrayInputStream(bytes, 1, bytes.length - 1));
 		}
-		else
-		{
-			bais = new ByteArrayInputStream((byte[]) data);
-		}
-		
-		InputStream is = bais;
+
+		InputStream is = new ByteArrayInputStream(bytes);
 		try
 		{
-			if (zipped)
+			if (bytes.length > 0 && bytes[0] == GZIP_MAGIC)
 			{
 				is = new GZIPInputStream(is);
 			}
-			
+
 			final ObjectInputStream ois = new ObjectInputStream(is);
 			return ois.readObject();
 		}
@@ -67,5 +192,145 @@ public class Serializer
 			is.close();
 		}
 	}
-	
+
+	/** An output buffer kept by its thread between uses */
+	private static final class Buffer extends ByteArrayOutputStream
+	{
+		private boolean inUse = false;
+
+		static Buffer acquire()
+		{
+			Buffer b = buffers.get();
+			//serializing from within a serialization
+			if (b.inUse)
+				b = new Buffer();
+			b.reset();
+			b.inUse = true;
+			return b;
+		}
+
+		void release()
+		{
+			inUse = false;
+			if (buf.length > MAX_KEPT_BUFFER && buffers.get() == this)
+				buffers.remove();
+		}
+	}
+
+	/** Java serialization, uncompressed */
+	public static class JavaCodec implements SerializationCodec
+	{
+		public byte getId()
+		{
+			return 1;
+		}
+
+		public void write(final Object o, final OutputStream out) throws IOException
+		{
+			final ObjectOutputStream oos = new ObjectOutputStream(out);
+			oos.writeObject(o);
+			oos.flush();
+		}
+
+		public Object read(final InputStream in) throws IOException, ClassNotFoundException
+		{
+			return new ObjectInputStream(in).readObject();
+		}
+	}
+
+	/**
+	 * Java serialization, compressed with deflate (zlib) at the level given; at the lower levels, much faster than GZIP's
+	 * default. The (native) deflaters and inflaters are kept per thread. The level is not needed to read the data.
+	 */
+	public static class DeflateCodec implements SerializationCodec
+	{
+		private final int level;
+		private final ThreadLocal<Kept<Deflater>> deflaters = new ThreadLocal<Kept<Deflater>>();
+		private final ThreadLocal<Kept<Inflater>> inflaters = new ThreadLocal<Kept<Inflater>>();
+
+		/** At {@link Deflater#BEST_SPEED} */
+		public DeflateCodec()
+		{
+			this(Deflater.BEST_SPEED);
+		}
+
+		public DeflateCodec(final int level)
+		{
+			if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+				throw new IllegalArgumentException("Not a deflate level: " + level);
+			this.level = level;
+		}
+
+		public byte getId()
+		{
+			return 2;
+		}
+
+		public void write(final Object o, final OutputStream out) throws IOException
+		{
+			Kept<Deflater> kept = deflaters.get();
+			if (kept == null)
+			{
+				kept = new Kept<Deflater>(new Deflater(level));
+				deflaters.set(kept);
+			}
+			//serializing from within a serialization gets a deflater of its own
+			final boolean own = kept.inUse;
+			final Deflater deflater = own ? new Deflater(level) : kept.value;
+			deflater.reset();
+			kept.inUse = true;
+			try
+			{
+				final DeflaterOutputStream dos = new DeflaterOutputStream(out, deflater, 8192);
+				final ObjectOutputStream oos = new ObjectOutputStream(dos);
+				oos.writeObject(o);
+				oos.flush();
+				dos.finish();
+			}
+			finally
+			{
+				if (own)
+					deflater.end();
+				else
+					kept.inUse = false;
+			}
+		}
+
+		public Object read(final InputStream in) throws IOException, ClassNotFoundException
+		{
+			Kept<Inflater> kept = inflaters.get();
+			if (kept == null)
+			{
+				kept = new Kept<Inflater>(new Inflater());
+				inflaters.set(kept);
+			}
+			final boolean own = kept.inUse;
+			final Inflater inflater = own ? new Inflater() : kept.value;
+			inflater.reset();
+			kept.inUse = true;
+			try
+			{
+				return new ObjectInputStream(new InflaterInputStream(in, inflater, 8192)).readObject();
+			}
+			finally
+			{
+				if (own)
+					inflater.end();
+				else
+					kept.inUse = false;
+			}
+		}
+	}
+
+	/** A (de)compressor kept by its thread between uses */
+	private static final class Kept<T>
+	{
+		final T value;
+		boolean inUse = false;
+
+		Kept(final T value)
+		{
+			this.value = value;
+		}
+	}
 }
@@ -0,0 +1,22 @@
+package com.google.code.morphia.mapping.cache;
+
+import com.mongodb.DBObject;
+
+/**
+ * Keeps documents as they are stored (rather than the entities mapped from them), by collection and stored id, so
+ * they can be mapped again without asking the server. Unlike an {@link EntityCache} it outlives operations; the
+ * datastore invalidates what it writes. Implementations must be thread safe.
+ */
+public interface DocumentCache {
+	/** @return a copy of the cached document, or null */
+	DBObject get(String collection, Object id);
+
+	void put(String collection, Object id, DBObject doc);
+
+	void invalidate(String collection, Object id);
+
+	/** Drops all documents of the collection */
+	void invalidate(String collection);
+
+	void clear();
+}
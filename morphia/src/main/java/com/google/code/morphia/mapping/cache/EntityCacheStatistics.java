@@ -11,6 +11,10 @@ public class EntityCacheStatistics {
 		return this.getClass().getSimpleName() + ": " + entities + " entities, " + hits + " hits, " + misses + " misses.";
 	}
 	
+	public int getEntities() 	{ return entities; }
+	public int getHits() 		{ return hits; }
+	public int getMisses() 		{ return misses; }
+	
 	public void reset() {
 		entities = 0;
 		hits = 0;
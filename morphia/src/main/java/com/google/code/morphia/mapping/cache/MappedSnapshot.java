@@ -0,0 +1,509 @@
+package com.google.code.morphia.mapping.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.code.morphia.mapping.Mapper;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+
+/**
+ * The documents of a collection written to a file in BSON, sorted by {@code _id} (and by other fields if asked), and
+ * read from it memory-mapped; see {@link SnapshotCache}. A file is only appended to, or replaced; the bytes a reader
+ * has mapped never change. Up to 2GB.
+ * <p>The file has the documents, the keys (BSON values: the type byte, then the value), the {@code _id} index, the field
+ * indexes, their directory and a trailer. The keys are ordered by their bytes, which is all finding equal ones takes.
+ * An append adds the new (and changed) documents and their keys, then new indexes and a trailer; the indexes point at
+ * the documents kept from before where they are.</p>
+ */
+final class MappedSnapshot {
+	private static final int MAGIC = 0x4d534e50;
+	private static final int FORMAT = 1;
+	private static final int TRAILER = 40;
+	//document position and length, key position and length
+	private static final int ID_ENTRY = 16;
+	//key position and length, document number (in the _id index)
+	private static final int FIELD_ENTRY = 12;
+
+	static final int MARK_NONE = 0;
+	static final int MARK_NUMBER = 1;
+	static final int MARK_DATE = 2;
+
+	private static final Comparator<byte[]> KEY_ORDER = new Comparator<byte[]>() {
+		public int compare(byte[] a, byte[] b) {
+			for (int i = 0; i < a.length && i < b.length; i++)
+				if (a[i] != b[i])
+					return (a[i] & 0xff) - (b[i] & 0xff);
+			return a.length - b.length;
+		}
+	};
+
+	private final ByteBuffer buf;
+	private final long lastModified;
+	private final long length;
+	private final int count;
+	private final int idIndex;
+	private final long mark;
+	private final int markType;
+	//field -> position, count of its entries
+	private final Map<String, int[]> fields = new HashMap<String, int[]>();
+
+	private MappedSnapshot(File file, ByteBuffer buf) throws IOException {
+		this.buf = buf;
+		this.lastModified = file.lastModified();
+		this.length = file.length();
+		int t = buf.capacity() - TRAILER;
+		if (buf.getInt(t + 36) != MAGIC || buf.getInt(t + 32) != FORMAT)
+			throw new IOException("Not a snapshot (of this version): " + file);
+		count = buf.getInt(t);
+		idIndex = buf.getInt(t + 4);
+		int dir = buf.getInt(t + 8);
+		int fieldCount = buf.getInt(t + 12);
+		mark = buf.getLong(t + 16);
+		markType = buf.getInt(t + 24);
+		for (int i = 0; i < fieldCount; i++) {
+			byte[] name = new byte[buf.getInt(dir)];
+			ByteBuffer b = buf.duplicate();
+			b.position(dir + 4);
+			b.get(name);
+			dir += 4 + name.length;
+			fields.put(new String(name, "UTF-8"), new int[] {buf.getInt(dir), buf.getInt(dir + 4)});
+			dir += 8;
+		}
+	}
+
+	static MappedSnapshot open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long size = raf.length();
+			if (size < TRAILER || size > Integer.MAX_VALUE)
+				throw new IOException("Not a snapshot: " + file);
+			MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+			return new MappedSnapshot(file, mapped);
+		} finally {
+			//the mapping stays valid
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes the documents to the file, through a temporary file it is then renamed from (so that readers, in this JVM
+	 * or another, see either the old file or the new one)
+	 * @param mark the greatest timestamp of the documents, and its type
+	 */
+	static void write(File file, Collection<DBObject> documents, List<String> indexed, long mark, int markType) throws IOException {
+		Doc[] docs = sortById(documents);
+		int n = docs.length;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		int[] idEntries = writeDocuments(out, 0, docs);
+		int[] numbers = new int[n];
+		for (int i = 0; i < n; i++)
+			numbers[i] = i;
+		List<int[]> fieldEntries = new ArrayList<int[]>();
+		for (String field : indexed) {
+			List<FieldKey> keys = writeKeys(out, 0, docs, numbers, field);
+			int[] entries = new int[keys.size() * 3];
+			for (int k = 0; k < keys.size(); k++)
+				keys.get(k).copyTo(entries, k * 3);
+			fieldEntries.add(entries);
+		}
+		writeIndexes(out, 0, idEntries, indexed, fieldEntries, mark, markType);
+		if (out.size() == Integer.MAX_VALUE)
+			throw new IOException("The snapshot is too big: " + file);
+
+		File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			bytes.writeTo(fos);
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		//renaming over an existing file fails on some platforms
+		if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+			tmp.delete();
+			throw new IOException("Could not replace " + file);
+		}
+	}
+
+	/**
+	 * Appends the documents to the file of the snapshot, with indexes (and a trailer) which leave out the deleted
+	 * documents and the older versions of the ones appended. The file must be the one the snapshot maps, and no one else
+	 * may write it meanwhile.
+	 * @param deleted the numbers (in the _id index) of the documents deleted
+	 */
+	static void append(File file, MappedSnapshot on, Collection<DBObject> documents, BitSet deleted, List<String> indexed, long mark, int markType) throws IOException {
+		int base = on.buf.capacity();
+		Doc[] docs = sortById(documents);
+		int n = docs.length;
+		BitSet dropped = (BitSet) deleted.clone();
+		for (Doc doc : docs) {
+			int old = on.number(doc.id);
+			if (old >= 0)
+				dropped.set(old);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		int[] added = writeDocuments(out, base, docs);
+
+		//the entries kept and the ones added, merged by key; and where each one went
+		int count = on.count - dropped.cardinality() + n;
+		int[] idEntries = new int[count * 4];
+		int[] renumbered = new int[on.count];
+		Arrays.fill(renumbered, -1);
+		int[] numbers = new int[n];
+		int i = 0, j = 0;
+		for (int number = 0; number < count; number++) {
+			while (i < on.count && dropped.get(i))
+				i++;
+			if (j == n || (i < on.count && on.compareId(i, docs[j].id) < 0)) {
+				int entry = on.idIndex + i * ID_ENTRY;
+				for (int k = 0; k < 4; k++)
+					idEntries[number * 4 + k] = on.buf.getInt(entry + k * 4);
+				renumbered[i++] = number;
+			} else {
+				System.arraycopy(added, j * 4, idEntries, number * 4, 4);
+				numbers[j++] = number;
+			}
+		}
+		List<int[]> fieldEntries = new ArrayList<int[]>();
+		for (String field : indexed) {
+			List<FieldKey> keys = writeKeys(out, base, docs, numbers, field);
+			int[] index = on.fields.get(field);
+			int old = index == null ? 0 : index[1];
+			int[] entries = new int[(old + keys.size()) * 3];
+			int m = 0, e = 0, k = 0;
+			while (e < old || k < keys.size()) {
+				if (e < old) {
+					int entry = index[0] + e * FIELD_ENTRY;
+					int number = renumbered[on.buf.getInt(entry + 8)];
+					if (number < 0) {
+						e++;
+						continue;
+					}
+					if (k == keys.size() || on.compare(entry, number, keys.get(k)) < 0) {
+						entries[m++] = on.buf.getInt(entry);
+						entries[m++] = on.buf.getInt(entry + 4);
+						entries[m++] = number;
+						e++;
+						continue;
+					}
+				}
+				keys.get(k++).copyTo(entries, m);
+				m += 3;
+			}
+			fieldEntries.add(Arrays.copyOf(entries, m));
+		}
+		writeIndexes(out, base, idEntries, indexed, fieldEntries, mark, markType);
+		if ((long) base + out.size() >= Integer.MAX_VALUE)
+			throw new IOException("The snapshot is too big: " + file);
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() != base)
+				throw new IOException("The snapshot " + file + " was changed meanwhile");
+			raf.seek(base);
+			raf.write(bytes.toByteArray());
+			raf.getFD().sync();
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static Doc[] sortById(Collection<DBObject> documents) {
+		Doc[] docs = new Doc[documents.size()];
+		int i = 0;
+		for (DBObject doc : documents)
+			docs[i++] = new Doc(doc);
+		Arrays.sort(docs, new Comparator<Doc>() {
+			public int compare(Doc a, Doc b) {
+				return KEY_ORDER.compare(a.id, b.id);
+			}
+		});
+		return docs;
+	}
+
+	/** Writes the documents, and then their ids; @return their _id index entries */
+	private static int[] writeDocuments(DataOutputStream out, int base, Doc[] docs) throws IOException {
+		int[] entries = new int[docs.length * 4];
+		DefaultDBEncoder encoder = new DefaultDBEncoder();
+		for (int i = 0; i < docs.length; i++) {
+			byte[] encoded = encoder.encode(docs[i].doc);
+			entries[i * 4] = base + out.size();
+			entries[i * 4 + 1] = encoded.length;
+			out.write(encoded);
+		}
+		for (int i = 0; i < docs.length; i++) {
+			entries[i * 4 + 2] = base + out.size();
+			entries[i * 4 + 3] = docs[i].id.length;
+			out.write(docs[i].id);
+		}
+		return entries;
+	}
+
+	/** Writes the keys of the field of the documents; @return them sorted, with the numbers (in the _id index) given */
+	private static List<FieldKey> writeKeys(DataOutputStream out, int base, Doc[] docs, int[] numbers, String field) throws IOException {
+		List<FieldKey> keys = new ArrayList<FieldKey>();
+		for (int i = 0; i < docs.length; i++)
+			for (Object value : values(docs[i].doc, field)) {
+				FieldKey k = new FieldKey(key(value), numbers[i]);
+				k.pos = base + out.size();
+				out.write(k.key);
+				keys.add(k);
+			}
+		Collections.sort(keys, new Comparator<FieldKey>() {
+			public int compare(FieldKey a, FieldKey b) {
+				int c = KEY_ORDER.compare(a.key, b.key);
+				return c != 0 ? c : a.number - b.number;
+			}
+		});
+		return keys;
+	}
+
+	/** Writes the _id index, the field indexes, their directory and the trailer */
+	private static void writeIndexes(DataOutputStream out, int base, int[] idEntries, List<String> indexed, List<int[]> fieldEntries,
+			long mark, int markType) throws IOException {
+		int idIndex = base + out.size();
+		for (int e : idEntries)
+			out.writeInt(e);
+		int[] fieldIndex = new int[indexed.size()];
+		for (int f = 0; f < fieldIndex.length; f++) {
+			fieldIndex[f] = base + out.size();
+			for (int e : fieldEntries.get(f))
+				out.writeInt(e);
+		}
+		int dir = base + out.size();
+		for (int f = 0; f < fieldIndex.length; f++) {
+			byte[] name = indexed.get(f).getBytes("UTF-8");
+			out.writeInt(name.length);
+			out.write(name);
+			out.writeInt(fieldIndex[f]);
+			out.writeInt(fieldEntries.get(f).length / 3);
+		}
+		out.writeInt(idEntries.length / 4);
+		out.writeInt(idIndex);
+		out.writeInt(dir);
+		out.writeInt(fieldIndex.length);
+		out.writeLong(mark);
+		out.writeInt(markType);
+		out.writeInt(0);
+		out.writeInt(FORMAT);
+		out.writeInt(MAGIC);
+		out.flush();
+	}
+
+	/** @return the values of the (dotted) field; the elements, if it is an array */
+	private static List<Object> values(DBObject doc, String field) {
+		Object value = doc;
+		for (String part : field.split("\\.")) {
+			if (!(value instanceof DBObject) || value instanceof List)
+				return Collections.emptyList();
+			value = ((DBObject) value).get(part);
+		}
+		if (value instanceof List)
+			return (List<Object>) value;
+		return value == null ? Collections.emptyList() : Collections.singletonList(value);
+	}
+
+	/** @return whether this is (still) the mapping of the file, and not of one which replaced it */
+	boolean isOf(File file) {
+		return file.lastModified() == lastModified && file.length() == length;
+	}
+
+	boolean hasIndex(String field) {
+		return fields.containsKey(field);
+	}
+
+	boolean hasIndexes(Collection<String> indexed) {
+		return fields.keySet().containsAll(indexed);
+	}
+
+	int size() {
+		return count;
+	}
+
+	long getMark() {
+		return mark;
+	}
+
+	int getMarkType() {
+		return markType;
+	}
+
+	/** @return whether most of the file is documents (and keys) replaced or deleted since it was written */
+	boolean isMostlyGarbage() {
+		long live = buf.capacity() - idIndex;
+		for (int i = 0; i < count; i++) {
+			int entry = idIndex + i * ID_ENTRY;
+			live += buf.getInt(entry + 4) + buf.getInt(entry + 12);
+		}
+		for (int[] index : fields.values())
+			for (int i = 0; i < index[1]; i++)
+				live += buf.getInt(index[0] + i * FIELD_ENTRY + 4);
+		return live * 2 < buf.capacity();
+	}
+
+	/** @return the document with the (stored) id, or null */
+	DBObject get(Object id) {
+		int number = number(key(id));
+		return number < 0 ? null : document(number);
+	}
+
+	/** @return the number (in the _id index) of the document with the (stored) id; -1 if there is none */
+	int number(Object id) {
+		return number(key(id));
+	}
+
+	private int number(byte[] key) {
+		int lo = 0, hi = count - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = compareId(mid, key);
+			if (c == 0)
+				return mid;
+			if (c < 0)
+				lo = mid + 1;
+			else
+				hi = mid - 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the key of the field of each document, by its number in the _id index (the last one, for arrays), or
+	 * null; the field must be indexed
+	 */
+	ByteBuffer[] keys(String field) {
+		int[] index = fields.get(field);
+		if (index == null)
+			throw new IllegalArgumentException("The field " + field + " is not indexed");
+		ByteBuffer[] keys = new ByteBuffer[count];
+		for (int i = 0; i < index[1]; i++) {
+			int entry = index[0] + i * FIELD_ENTRY;
+			ByteBuffer key = buf.duplicate();
+			key.position(buf.getInt(entry));
+			key.limit(buf.getInt(entry) + buf.getInt(entry + 4));
+			keys[buf.getInt(entry + 8)] = key.slice();
+		}
+		return keys;
+	}
+
+	/** @return the documents whose field is (or has, if it is an array) the value; the field must be indexed */
+	List<DBObject> find(String field, Object value) {
+		int[] index = fields.get(field);
+		if (index == null)
+			throw new IllegalArgumentException("The field " + field + " is not indexed");
+		byte[] key = key(value);
+		//the first key not less than it
+		int lo = 0, hi = index[1];
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int entry = index[0] + mid * FIELD_ENTRY;
+			if (compare(buf.getInt(entry), buf.getInt(entry + 4), key) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		List<DBObject> found = new ArrayList<DBObject>();
+		int last = -1;
+		for (int i = lo; i < index[1]; i++) {
+			int entry = index[0] + i * FIELD_ENTRY;
+			if (compare(buf.getInt(entry), buf.getInt(entry + 4), key) != 0)
+				break;
+			//an array may have the value more than once
+			int number = buf.getInt(entry + 8);
+			if (number != last)
+				found.add(document(number));
+			last = number;
+		}
+		return found;
+	}
+
+	/** @return the document, by its number in the _id index */
+	private DBObject document(int number) {
+		int entry = idIndex + number * ID_ENTRY;
+		byte[] doc = new byte[buf.getInt(entry + 4)];
+		ByteBuffer b = buf.duplicate();
+		b.position(buf.getInt(entry));
+		b.get(doc);
+		return new DefaultDBDecoder().decode(doc, (DBCollection) null);
+	}
+
+	private int compareId(int number, byte[] key) {
+		int entry = idIndex + number * ID_ENTRY;
+		return compare(buf.getInt(entry + 8), buf.getInt(entry + 12), key);
+	}
+
+	/** Compares the field index entry, as of the (new) number of its document, with the key */
+	private int compare(int entry, int number, FieldKey key) {
+		int c = compare(buf.getInt(entry), buf.getInt(entry + 4), key.key);
+		return c != 0 ? c : number - key.number;
+	}
+
+	private int compare(int pos, int len, byte[] key) {
+		for (int i = 0; i < len && i < key.length; i++) {
+			byte b = buf.get(pos + i);
+			if (b != key[i])
+				return (b & 0xff) - (key[i] & 0xff);
+		}
+		return len - key.length;
+	}
+
+	/** @return the value as a key: its BSON type and bytes */
+	static byte[] key(Object value) {
+		byte[] doc = new DefaultDBEncoder().encode(new BasicDBObject("", value));
+		//the document is its length, the type, the (empty) name's terminating 0, the value, and its own terminating 0
+		byte[] key = new byte[doc.length - 6];
+		key[0] = doc[4];
+		System.arraycopy(doc, 6, key, 1, doc.length - 7);
+		return key;
+	}
+
+	private static final class Doc {
+		final DBObject doc;
+		final byte[] id;
+
+		Doc(DBObject doc) {
+			this.doc = doc;
+			this.id = key(doc.get(Mapper.ID_KEY));
+		}
+	}
+
+	private static final class FieldKey {
+		final byte[] key;
+		final int number;
+		int pos;
+
+		FieldKey(byte[] key, int number) {
+			this.key = key;
+			this.number = number;
+		}
+
+		/** Copies the entry (key position and length, document number) to the index */
+		void copyTo(int[] entries, int at) {
+			entries[at] = pos;
+			entries[at + 1] = key.length;
+			entries[at + 2] = number;
+		}
+	}
+}
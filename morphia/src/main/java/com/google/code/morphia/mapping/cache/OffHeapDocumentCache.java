@@ -0,0 +1,301 @@
+package com.google.code.morphia.mapping.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+
+/**
+ * A {@link DocumentCache} keeping the documents as BSON in direct (off-heap) memory, so there is next to nothing for
+ * the garbage collector to trace however many there are; only a small entry per document (where it is) is on the heap.
+ * Hits are decoded again each time, never kept.
+ * <p>The memory is allocated in slabs of one size, up to the capacity. Each slab is cut into chunks of a size class
+ * (powers of two, from {@value #MIN_CHUNK} bytes), and a document takes the smallest chunk it fits in. When a size class
+ * has no free chunk and no more slabs can be allocated, one of its documents is evicted with the clock (second chance)
+ * algorithm; a size class with no slabs at all takes one over from the size class with the most. Documents bigger than
+ * a slab are not cached.</p>
+ * <p>Thread safe; the bytes are copied in and out under a lock, but encoded and decoded outside it.</p>
+ */
+public class OffHeapDocumentCache implements DocumentCache {
+	public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+	static final int MIN_CHUNK = 64;
+
+	private final long capacity;
+	private final int slabSize;
+	private final SizeClass[] classes;
+	private final Map<String, Map<Object, Entry>> index = new HashMap<String, Map<Object, Entry>>();
+
+	private long allocated = 0;
+	private long used = 0;
+	private long count = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	public OffHeapDocumentCache(long capacityBytes) {
+		this(capacityBytes, DEFAULT_SLAB_SIZE);
+	}
+
+	/** @param slabSize a power of two, at least {@value #MIN_CHUNK}; the biggest document cached */
+	public OffHeapDocumentCache(long capacityBytes, int slabSize) {
+		if (slabSize < MIN_CHUNK || Integer.bitCount(slabSize) != 1)
+			throw new IllegalArgumentException("The slab size must be a power of two, at least " + MIN_CHUNK + ": " + slabSize);
+		if (capacityBytes < slabSize)
+			throw new IllegalArgumentException("The capacity (" + capacityBytes + ") is less than a slab (" + slabSize + ")");
+		this.capacity = capacityBytes;
+		this.slabSize = slabSize;
+		classes = new SizeClass[Integer.numberOfTrailingZeros(slabSize / MIN_CHUNK) + 1];
+		for (int i = 0; i < classes.length; i++)
+			classes[i] = new SizeClass(MIN_CHUNK << i);
+	}
+
+	public DBObject get(String collection, Object id) {
+		byte[] bytes;
+		synchronized (this) {
+			Entry e = lookup(collection, id);
+			if (e == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+			Slab s = e.slab;
+			s.referenced[e.chunk] = true;
+			bytes = new byte[e.length];
+			ByteBuffer buf = s.buf.duplicate();
+			buf.position(e.chunk * s.owner.chunkSize);
+			buf.get(bytes);
+		}
+		return new DefaultDBDecoder().decode(bytes, (DBCollection) null);
+	}
+
+	public void put(String collection, Object id, DBObject doc) {
+		if (id == null || doc == null)
+			return;
+		byte[] bytes = new DefaultDBEncoder().encode(doc);
+		synchronized (this) {
+			Entry old = lookup(collection, id);
+			if (old != null)
+				remove(old);
+			if (bytes.length > slabSize)
+				return;
+			Entry e = allocate(collection, id, bytes.length);
+			if (e == null)
+				return;
+			ByteBuffer buf = e.slab.buf.duplicate();
+			buf.position(e.chunk * e.slab.owner.chunkSize);
+			buf.put(bytes);
+
+			Map<Object, Entry> ids = index.get(collection);
+			if (ids == null) {
+				ids = new HashMap<Object, Entry>();
+				index.put(collection, ids);
+			}
+			ids.put(id, e);
+			used += e.length;
+			count++;
+		}
+	}
+
+	public synchronized void invalidate(String collection, Object id) {
+		Entry e = lookup(collection, id);
+		if (e != null)
+			remove(e);
+	}
+
+	public synchronized void invalidate(String collection) {
+		Map<Object, Entry> ids = index.remove(collection);
+		if (ids != null)
+			for (Entry e : ids.values())
+				release(e);
+	}
+
+	/** Drops all documents; the slabs are kept for the next ones */
+	public synchronized void clear() {
+		for (Map<Object, Entry> ids : index.values())
+			for (Entry e : ids.values())
+				release(e);
+		index.clear();
+	}
+
+	public synchronized long getHits() 		{ return hits; }
+	public synchronized long getMisses() 		{ return misses; }
+	public synchronized long getEvictions() 	{ return evictions; }
+	/** @return the number of documents cached */
+	public synchronized long getCount() 		{ return count; }
+	/** @return the bytes of the documents cached */
+	public synchronized long getUsedBytes() 	{ return used; }
+	/** @return the bytes of the slabs allocated so far */
+	public synchronized long getAllocatedBytes() { return allocated; }
+	public long getCapacity() 					{ return capacity; }
+
+	private Entry lookup(String collection, Object id) {
+		Map<Object, Entry> ids = index.get(collection);
+		return ids == null ? null : ids.get(id);
+	}
+
+	/** @return the chunk for the document, evicting to make one if needed; null if there is none */
+	private Entry allocate(String collection, Object id, int length) {
+		SizeClass cls = classFor(length);
+		if (cls.withFree.isEmpty()) {
+			if (allocated + slabSize <= capacity) {
+				allocated += slabSize;
+				cls.add(new Slab(slabSize));
+			} else if (!evict(cls) && !takeSlab(cls))
+				return null;
+		}
+		Slab s = cls.withFree.peek();
+		int chunk = s.free[--s.freeCount];
+		if (s.freeCount == 0)
+			cls.withFree.poll();
+		Entry e = new Entry(collection, id, s, chunk, length);
+		s.entries[chunk] = e;
+		return e;
+	}
+
+	private SizeClass classFor(int length) {
+		int i = 0;
+		while ((MIN_CHUNK << i) < length)
+			i++;
+		return classes[i];
+	}
+
+	/** Evicts the first document of the size class the clock finds unreferenced since it last passed */
+	private boolean evict(SizeClass cls) {
+		int chunks = cls.slabs.size() * (slabSize / cls.chunkSize);
+		//two rounds at most; the first clears the reference bits
+		for (int i = 0; i < 2 * chunks; i++) {
+			if (cls.handSlab >= cls.slabs.size()) {
+				cls.handSlab = 0;
+				cls.handChunk = 0;
+			}
+			Slab s = cls.slabs.get(cls.handSlab);
+			int chunk = cls.handChunk;
+			if (++cls.handChunk == s.entries.length) {
+				cls.handChunk = 0;
+				cls.handSlab++;
+			}
+			Entry e = s.entries[chunk];
+			if (e == null)
+				continue;
+			if (s.referenced[chunk]) {
+				s.referenced[chunk] = false;
+				continue;
+			}
+			remove(e);
+			evictions++;
+			return true;
+		}
+		return false;
+	}
+
+	/** Moves a slab (and evicts its documents) from the size class with the most slabs */
+	private boolean takeSlab(SizeClass cls) {
+		SizeClass from = null;
+		for (SizeClass c : classes)
+			if (c != cls && (from == null || c.slabs.size() > from.slabs.size()))
+				from = c;
+		if (from == null || from.slabs.isEmpty())
+			return false;
+
+		Slab s = from.slabs.remove(from.handSlab < from.slabs.size() ? from.handSlab : 0);
+		from.withFree.remove(s);
+		from.handChunk = 0;
+		for (Entry e : s.entries)
+			if (e != null) {
+				unindex(e);
+				used -= e.length;
+				count--;
+				evictions++;
+			}
+		cls.add(s);
+		return true;
+	}
+
+	private void remove(Entry e) {
+		unindex(e);
+		release(e);
+	}
+
+	private void unindex(Entry e) {
+		Map<Object, Entry> ids = index.get(e.collection);
+		ids.remove(e.id);
+		if (ids.isEmpty())
+			index.remove(e.collection);
+	}
+
+	/** Frees the chunk of the (unindexed) entry */
+	private void release(Entry e) {
+		Slab s = e.slab;
+		s.entries[e.chunk] = null;
+		s.referenced[e.chunk] = false;
+		s.free[s.freeCount++] = e.chunk;
+		if (s.freeCount == 1)
+			s.owner.withFree.add(s);
+		used -= e.length;
+		count--;
+	}
+
+	private static final class Entry {
+		final String collection;
+		final Object id;
+		final Slab slab;
+		final int chunk;
+		final int length;
+
+		Entry(String collection, Object id, Slab slab, int chunk, int length) {
+			this.collection = collection;
+			this.id = id;
+			this.slab = slab;
+			this.chunk = chunk;
+			this.length = length;
+		}
+	}
+
+	private static final class Slab {
+		final ByteBuffer buf;
+		SizeClass owner;
+		Entry[] entries;
+		boolean[] referenced;
+		int[] free;
+		int freeCount;
+
+		Slab(int size) {
+			buf = ByteBuffer.allocateDirect(size);
+		}
+	}
+
+	private static final class SizeClass {
+		final int chunkSize;
+		final List<Slab> slabs = new ArrayList<Slab>();
+		//the slabs with a free chunk
+		final ArrayDeque<Slab> withFree = new ArrayDeque<Slab>();
+		//the clock hand
+		int handSlab = 0;
+		int handChunk = 0;
+
+		SizeClass(int chunkSize) {
+			this.chunkSize = chunkSize;
+		}
+
+		/** Cuts the slab into (free) chunks of this size */
+		void add(Slab s) {
+			int chunks = s.buf.capacity() / chunkSize;
+			s.owner = this;
+			s.entries = new Entry[chunks];
+			s.referenced = new boolean[chunks];
+			s.free = new int[chunks];
+			for (int i = 0; i < chunks; i++)
+				s.free[i] = chunks - 1 - i;
+			s.freeCount = chunks;
+			slabs.add(s);
+			withFree.add(s);
+		}
+	}
+}
@@ -0,0 +1,388 @@
+package com.google.code.morphia.mapping.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.code.morphia.Datastore;
+import com.google.code.morphia.DatastoreImpl;
+import com.google.code.morphia.logging.Logr;
+import com.google.code.morphia.logging.MorphiaLoggerFactory;
+import com.google.code.morphia.mapping.MappedField;
+import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.mapping.MappingException;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * A {@link DocumentCache} serving some collections (small ones, read all the time and seldom written: catalogs,
+ * settings, ...) from local snapshots. A snapshot is a file with the whole collection in BSON, sorted by {@code _id}
+ * and by the fields asked for, which is memory-mapped. Reading it takes no heap beyond the document decoded, the JVMs
+ * of a host share it (through the page cache), and it is there right away after a restart.
+ * <p>{@link #refresh()} (run by {@link #schedule(long, TimeUnit)}) brings the snapshots up to date. It reads the ids
+ * (and {@code @Version}s) of each collection, and then only the documents which are new, have changed (by their
+ * version, or a timestamp field) or were written through the datastore since, and appends them to the snapshot. Until
+ * then, the documents written through the datastore are read from the server. Other collections are left to the
+ * delegate cache, if any.</p>
+ * <p>A {@code @Version} only changes when an entity is saved: documents changed by updates ({@code ds.update(...)},
+ * {@code findAndModify}, other applications) are only refreshed if they were updated through this datastore. To see
+ * those made elsewhere (other JVMs included), snapshot the collection by a timestamp field which every write sets.</p>
+ * <p>The snapshots are files named after the database and collection, in the directory given; a JVM which finds one
+ * appended to or replaced (by another JVM) maps it again on its next refresh. Writing a snapshot takes a lock file
+ * next to it.</p>
+ */
+public class SnapshotCache implements DocumentCache {
+	private static final Logr log = MorphiaLoggerFactory.get(SnapshotCache.class);
+	private static final ConcurrentHashMap<String, Object> FILE_LOCKS = new ConcurrentHashMap<String, Object>();
+
+	private final DatastoreImpl ds;
+	private final File dir;
+	private final DocumentCache delegate;
+	private final ConcurrentHashMap<String, Snapshot> snapshots = new ConcurrentHashMap<String, Snapshot>();
+	private ScheduledExecutorService refresher;
+
+	public SnapshotCache(Datastore ds, File dir) {
+		this(ds, dir, null);
+	}
+
+	/** @param delegate the cache of the other collections; can be null */
+	public SnapshotCache(Datastore ds, File dir, DocumentCache delegate) {
+		this.ds = (DatastoreImpl) ds;
+		this.dir = dir;
+		this.delegate = delegate;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IllegalArgumentException("Cannot create the directory " + dir);
+	}
+
+	/**
+	 * Snapshots the collection of the class; its changed documents are found by their {@code @Version} (so updates
+	 * made elsewhere are missed, see above), or (without one) all documents are read on each refresh. A snapshot found
+	 * in the directory is used right away (and brought up to date by the next refresh); otherwise one is written now.
+	 * @param indexedFields the (stored) fields {@link #find(Class, String, Object)} finds the documents by
+	 */
+	public SnapshotCache snapshot(Class<?> clazz, String... indexedFields) {
+		return add(clazz, null, indexedFields);
+	}
+
+	/**
+	 * Snapshots the collection of the class, like {@link #snapshot(Class, String...)}, finding its changed documents by
+	 * the (stored) field set to the time, or a growing number, whenever a document is written
+	 */
+	public SnapshotCache snapshotByTimestamp(Class<?> clazz, String timestampField, String... indexedFields) {
+		return add(clazz, timestampField, indexedFields);
+	}
+
+	private SnapshotCache add(Class<?> clazz, String timestampField, String... indexedFields) {
+		DBCollection coll = ds.getCollection(clazz);
+		MappedField version = ds.getOperationContext(clazz).getVersionField();
+		String versionField = version == null ? null : version.getNameToStore();
+		//the versions are compared by the index of them
+		List<String> indexed = new ArrayList<String>(Arrays.asList(indexedFields));
+		if (versionField != null && !indexed.contains(versionField))
+			indexed.add(versionField);
+		Snapshot s = new Snapshot(coll, new File(dir, ds.getDB().getName() + "." + coll.getName() + ".snapshot"),
+				versionField, timestampField, indexed);
+		if (snapshots.putIfAbsent(coll.getName(), s) != null)
+			throw new IllegalStateException("The collection " + coll.getName() + " is already snapshotted");
+		refresh(s);
+		return this;
+	}
+
+	/** Refreshes the snapshots periodically, on a (daemon) thread of its own; failures are logged */
+	public synchronized SnapshotCache schedule(long period, TimeUnit unit) {
+		if (refresher == null)
+			refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "morphia-snapshot");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		refresher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				for (Snapshot s : snapshots.values())
+					try {
+						refresh(s);
+					} catch (RuntimeException e) {
+						log.error("Could not refresh the snapshot " + s.file, e);
+					}
+			}
+		}, period, period, unit);
+		return this;
+	}
+
+	/** Stops the periodic refreshes */
+	public synchronized void shutdown() {
+		if (refresher != null)
+			refresher.shutdownNow();
+		refresher = null;
+	}
+
+	/** Brings all snapshots up to date */
+	public void refresh() {
+		for (Snapshot s : snapshots.values())
+			refresh(s);
+	}
+
+	/**
+	 * @return the entities whose (stored) field is the value (or has it, for arrays); from the snapshot if it indexes
+	 *  the field and no document was written since it was refreshed, else from the server
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> List<T> find(Class<T> clazz, String field, Object value) {
+		Snapshot s = snapshots.get(ds.getCollection(clazz).getName());
+		MappedSnapshot on = s == null ? null : s.current;
+		if (on == null || !on.hasIndex(field) || s.isStale())
+			return ds.find(clazz).disableValidation().filter(field, value).asList();
+
+		List<T> found = new ArrayList<T>();
+		Mapper mapr = ds.getMapper();
+		EntityCache cache = mapr.createEntityCache();
+		for (DBObject doc : on.find(field, value))
+			found.add((T) mapr.fromDBObject(clazz, doc, cache));
+		return found;
+	}
+
+	/** @return the number of documents in the snapshot of the collection; -1 if it has none */
+	public int size(String collection) {
+		Snapshot s = snapshots.get(collection);
+		return s == null || s.current == null ? -1 : s.current.size();
+	}
+
+	public DBObject get(String collection, Object id) {
+		Snapshot s = snapshots.get(collection);
+		if (s == null)
+			return delegate == null ? null : delegate.get(collection, id);
+		MappedSnapshot on = s.current;
+		return on == null || s.isStale(id) ? null : on.get(id);
+	}
+
+	/** Puts the documents of other collections in the delegate; the snapshots are only changed by refreshing them */
+	public void put(String collection, Object id, DBObject doc) {
+		if (delegate != null && !snapshots.containsKey(collection))
+			delegate.put(collection, id, doc);
+	}
+
+	public void invalidate(String collection, Object id) {
+		Snapshot s = snapshots.get(collection);
+		if (s != null && id == null)
+			s.invalidatedAll.incrementAndGet();
+		else if (s != null)
+			s.staleIds.put(id, s.stamps.incrementAndGet());
+		else if (delegate != null)
+			delegate.invalidate(collection, id);
+	}
+
+	public void invalidate(String collection) {
+		Snapshot s = snapshots.get(collection);
+		if (s != null)
+			s.invalidatedAll.incrementAndGet();
+		else if (delegate != null)
+			delegate.invalidate(collection);
+	}
+
+	/** Clears the delegate, and reads all snapshots from the server until they are refreshed */
+	public void clear() {
+		for (Snapshot s : snapshots.values())
+			s.invalidatedAll.incrementAndGet();
+		if (delegate != null)
+			delegate.clear();
+	}
+
+	/** Brings the snapshot up to date; a new one only maps the file found, if any, and is refreshed next time */
+	private void refresh(Snapshot s) {
+		synchronized (s) {
+			long invalidated = s.invalidatedAll.get();
+			Map<Object, Long> stale = new HashMap<Object, Long>(s.staleIds);
+			try {
+				synchronized (lockOf(s.file)) {
+					FileLock lock = lock(s.file);
+					try {
+						refresh(s, invalidated, stale.keySet());
+					} finally {
+						lock.release();
+						lock.channel().close();
+					}
+				}
+			} catch (IOException e) {
+				throw new MappingException("Could not write the snapshot " + s.file, e);
+			}
+			s.refreshedThrough = invalidated;
+			//unless written again since
+			for (Map.Entry<Object, Long> e : stale.entrySet())
+				s.staleIds.remove(e.getKey(), e.getValue());
+		}
+	}
+
+	private void refresh(Snapshot s, long invalidated, Set<Object> stale) throws IOException {
+		MappedSnapshot on = s.current;
+		//another JVM may have refreshed it
+		if ((on == null || !on.isOf(s.file)) && s.file.isFile())
+			try {
+				MappedSnapshot found = MappedSnapshot.open(s.file);
+				if (found.hasIndexes(s.indexed)) {
+					if (on == null) {
+						s.current = found;
+						return;
+					}
+					on = s.current = found;
+				}
+			} catch (IOException e) {
+				log.warning("Rewriting the snapshot " + s.file + ": " + e);
+				on = null;
+			}
+		boolean full = on == null || !on.isOf(s.file) || invalidated != s.refreshedThrough || (s.versionField == null && s.timestampField == null)
+				|| on.isMostlyGarbage();
+
+		Collection<DBObject> docs;
+		BitSet deleted = new BitSet();
+		if (full) {
+			docs = new ArrayList<DBObject>();
+			for (DBObject doc : s.coll.find())
+				docs.add(doc);
+		} else {
+			Map<Object, DBObject> changed = new HashMap<Object, DBObject>();
+			diff(s, on, changed, deleted, stale);
+			if (changed.isEmpty() && deleted.isEmpty())
+				return;
+			docs = changed.values();
+		}
+
+		long mark = full ? 0 : on.getMark();
+		int markType = full ? MappedSnapshot.MARK_NONE : on.getMarkType();
+		if (s.timestampField != null)
+			for (DBObject doc : docs) {
+				Object ts = doc.get(s.timestampField);
+				if (ts instanceof Date || ts instanceof Number) {
+					mark = Math.max(mark, ts instanceof Date ? ((Date) ts).getTime() : ((Number) ts).longValue());
+					markType = ts instanceof Date ? MappedSnapshot.MARK_DATE : MappedSnapshot.MARK_NUMBER;
+				}
+			}
+		if (full)
+			MappedSnapshot.write(s.file, docs, s.indexed, mark, markType);
+		else
+			MappedSnapshot.append(s.file, on, docs, deleted, s.indexed, mark, markType);
+		s.current = MappedSnapshot.open(s.file);
+		if (log.isDebugEnabled())
+			log.debug((full ? "Wrote " : "Appended ") + docs.size() + " documents to the snapshot " + s.file
+					+ (full ? "" : ", dropping " + deleted.cardinality()));
+	}
+
+	/**
+	 * Finds how the snapshot differs from the server: reads the documents which are new or changed (or were written
+	 * through the datastore), and finds the deleted ones.
+	 * @param changed gets the documents read, by id
+	 * @param deleted gets the numbers (in the _id index of the snapshot) of the deleted documents
+	 */
+	private void diff(Snapshot s, MappedSnapshot on, Map<Object, DBObject> changed, BitSet deleted, Set<Object> stale) {
+		DBObject keys = new BasicDBObject(Mapper.ID_KEY, 1);
+		if (s.versionField != null)
+			keys.put(s.versionField, 1);
+		ByteBuffer[] versions = s.versionField == null ? null : on.keys(s.versionField);
+		deleted.set(0, on.size());
+		Set<Object> fetch = new HashSet<Object>();
+		for (DBObject doc : s.coll.find(new BasicDBObject(), keys)) {
+			Object id = doc.get(Mapper.ID_KEY);
+			int number = on.number(id);
+			if (number >= 0)
+				deleted.clear(number);
+			if (number < 0 || stale.contains(id) || (versions != null && !sameVersion(versions[number], doc.get(s.versionField))))
+				fetch.add(id);
+		}
+		if (s.timestampField != null && on.getMarkType() != MappedSnapshot.MARK_NONE) {
+			//the documents written in the same tick as the last ones read are read again
+			Object mark = on.getMarkType() == MappedSnapshot.MARK_DATE ? new Date(on.getMark()) : (Object) on.getMark();
+			for (DBObject doc : s.coll.find(new BasicDBObject(s.timestampField, new BasicDBObject("$gte", mark)))) {
+				Object id = doc.get(Mapper.ID_KEY);
+				if (!doc.equals(on.get(id)))
+					changed.put(id, doc);
+				fetch.remove(id);
+			}
+		}
+		if (!fetch.isEmpty())
+			for (DBObject doc : s.coll.find(new BasicDBObject(Mapper.ID_KEY, new BasicDBObject("$in", fetch))))
+				changed.put(doc.get(Mapper.ID_KEY), doc);
+	}
+
+	/** @param stored the key of the version in the snapshot (null if it has none) */
+	private static boolean sameVersion(ByteBuffer stored, Object version) {
+		if (stored == null || version == null)
+			return stored == null && version == null;
+		return stored.equals(ByteBuffer.wrap(MappedSnapshot.key(version)));
+	}
+
+	/** @return what the threads of this JVM lock the file by, as a JVM can't hold a file lock twice */
+	private static Object lockOf(File file) {
+		String path = file.getAbsolutePath();
+		Object lock = FILE_LOCKS.get(path);
+		if (lock == null) {
+			Object created = new Object();
+			lock = FILE_LOCKS.putIfAbsent(path, created);
+			if (lock == null)
+				lock = created;
+		}
+		return lock;
+	}
+
+	/** @return the lock of the snapshot file, against the other JVMs writing it; its channel is closed with it */
+	private static FileLock lock(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(new File(file.getPath() + ".lock"), "rw");
+		try {
+			return raf.getChannel().lock();
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	private static final class Snapshot {
+		final DBCollection coll;
+		final File file;
+		final String versionField;
+		final String timestampField;
+		final List<String> indexed;
+		volatile MappedSnapshot current;
+
+		//the ids written through the datastore since the last refresh, and when (by the stamps)
+		final ConcurrentHashMap<Object, Long> staleIds = new ConcurrentHashMap<Object, Long>();
+		final AtomicLong stamps = new AtomicLong();
+		//the writes of (maybe) any document, and how many of them the last refresh read after
+		final AtomicLong invalidatedAll = new AtomicLong();
+		volatile long refreshedThrough = 0;
+
+		Snapshot(DBCollection coll, File file, String versionField, String timestampField, List<String> indexed) {
+			this.coll = coll;
+			this.file = file;
+			this.versionField = versionField;
+			this.timestampField = timestampField;
+			this.indexed = indexed;
+		}
+
+		boolean isStale() {
+			return invalidatedAll.get() != refreshedThrough || !staleIds.isEmpty();
+		}
+
+		boolean isStale(Object id) {
+			return invalidatedAll.get() != refreshedThrough || staleIds.containsKey(id);
+		}
+	}
+}
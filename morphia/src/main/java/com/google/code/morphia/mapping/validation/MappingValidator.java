@@ -45,6 +45,18 @@ public class MappingValidator {
 	private static final Logr logger = MorphiaLoggerFactory.get(MappingValidator.class);
 	
 	public void validate(List<MappedClass> classes) {
+		validate(classes, getConstraints());
+	}
+	
+	/**
+	 * Validates classes which passed the build-time validation (see {@link com.google.code.morphia.mapping.MappingIndex})
+	 * with the rules that needs the runtime: the referenced classes, the optional dependencies and initial values.
+	 */
+	public void validateIndexed(List<MappedClass> classes) {
+		validate(classes, getRuntimeConstraints());
+	}
+	
+	private void validate(List<MappedClass> classes, List<ClassConstraint> rules) {
 		Set<ConstraintViolation> ve = new TreeSet<ConstraintViolation>(new Comparator<ConstraintViolation>() {
 			
 			public int compare(ConstraintViolation o1, ConstraintViolation o2) {
@@ -52,7 +64,6 @@ public class MappingValidator {
 			}
 		});
 
-		List<ClassConstraint> rules = getConstraints();
 		for (MappedClass c : classes) {
 			for (ClassConstraint v : rules) {
 				v.check(c, ve);
@@ -116,6 +127,18 @@ public class MappingValidator {
 		return constraints;
 	}
 	
+	private List<ClassConstraint> getRuntimeConstraints() {
+		List<ClassConstraint> constraints = new ArrayList<ClassConstraint>(8);
+		constraints.add(new MisplacedProperty());
+		constraints.add(new ReferenceToUnidentifiable());
+		constraints.add(new LazyReferenceMissingDependencies());
+		constraints.add(new LazyReferenceOnArray());
+		constraints.add(new MapKeyDifferentFromString());
+		constraints.add(new MapNotSerializable());
+		constraints.add(new VersionMisuse());
+		return constraints;
+	}
+	
 	class LogLine implements Comparable<LogLine> {
 		private ConstraintViolation v;
 
@@ -0,0 +1,156 @@
+package com.google.code.morphia.memory;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.query.UpdateOperator;
+import com.mongodb.BasicDBList;
+import com.mongodb.DBObject;
+
+/**
+ * Applies update documents to stored documents: the {@link UpdateOperator}s which
+ * {@link com.google.code.morphia.query.UpdateOpsImpl} builds, or a whole replacement document.
+ */
+final class DocumentUpdater {
+	private DocumentUpdater() {}
+
+	static boolean isReplacement(DBObject update) {
+		for (String key : update.keySet())
+			if (key.startsWith("$"))
+				return false;
+		return true;
+	}
+
+	/** Changes the document (keeping its _id, if it has one) */
+	static void apply(DBObject doc, DBObject update) {
+		if (isReplacement(update)) {
+			Object id = doc.get(Mapper.ID_KEY);
+			for (String key : doc.keySet().toArray(new String[0]))
+				doc.removeField(key);
+			for (String key : update.keySet())
+				doc.put(key, Documents.copy(update.get(key)));
+			if (id != null)
+				doc.put(Mapper.ID_KEY, id);
+			return;
+		}
+
+		for (String op : update.keySet()) {
+			UpdateOperator uo = UpdateOperator.fromString(op);
+			if (uo == null)
+				throw new UnsupportedOperationException("The update operator " + op + " is not supported by the in-memory datastore.");
+			Object fields = update.get(op);
+			for (String field : Documents.keys(fields)) {
+				if (Mapper.ID_KEY.equals(field))
+					throw new IllegalArgumentException("The _id of a document cannot be updated");
+				apply(doc, uo, field, Documents.get(fields, field));
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void apply(DBObject doc, UpdateOperator op, String field, Object val) {
+		switch (op) {
+			case SET:
+				Documents.set(doc, field, Documents.copy(val));
+				break;
+			case UNSET:
+				Documents.unset(doc, field);
+				break;
+			case INC: {
+				Object cur = Documents.at(doc, field);
+				if (cur != null && !(cur instanceof Number))
+					throw new IllegalArgumentException("Cannot $inc the non-numeric field " + field);
+				Documents.set(doc, field, cur == null ? val : add((Number) cur, (Number) val));
+				break;
+			}
+			case PUSH:
+				if (isEach(val))
+					list(doc, field).addAll((List<Object>) Documents.copy(Documents.get(val, "$each")));
+				else
+					list(doc, field).add(Documents.copy(val));
+				break;
+			case PUSH_ALL:
+				list(doc, field).addAll((List<Object>) Documents.copy(val));
+				break;
+			case ADD_TO_SET: {
+				List<Object> list = list(doc, field);
+				for (Object v : isEach(val) ? Documents.asList(Documents.get(val, "$each")) : single(val))
+					if (!contains(list, v))
+						list.add(Documents.copy(v));
+				break;
+			}
+			case POP: {
+				List<Object> list = list(doc, field);
+				if (!list.isEmpty())
+					list.remove(((Number) val).intValue() < 0 ? 0 : list.size() - 1);
+				break;
+			}
+			case PULL:
+				for (Iterator<Object> it = list(doc, field).iterator(); it.hasNext();) {
+					Object e = it.next();
+					if (Documents.isDocument(val) && !QueryMatcher.isOperatorDocument(val) && Documents.isDocument(e)
+							? QueryMatcher.matches(val, e) : QueryMatcher.matchesField(single(e), val))
+						it.remove();
+				}
+				break;
+			case PULL_ALL:
+				for (Iterator<Object> it = list(doc, field).iterator(); it.hasNext();)
+					if (contains(Documents.asList(val), it.next()))
+						it.remove();
+				break;
+			default:
+				throw new UnsupportedOperationException("The update operator " + op.val() + " is not supported by the in-memory datastore.");
+		}
+	}
+
+	/** The array at the path, created if missing */
+	@SuppressWarnings("unchecked")
+	private static List<Object> list(DBObject doc, String field) {
+		Object cur = Documents.at(doc, field);
+		if (cur == null) {
+			cur = new BasicDBList();
+			Documents.set(doc, field, cur);
+		} else if (!(cur instanceof List))
+			throw new IllegalArgumentException("The field " + field + " is not an array");
+		return (List<Object>) cur;
+	}
+
+	private static boolean isEach(Object val) {
+		return Documents.isDocument(val) && Documents.containsKey(val, "$each");
+	}
+
+	private static boolean contains(List<Object> list, Object v) {
+		for (Object e : list)
+			if (Documents.equal(e, v))
+				return true;
+		return false;
+	}
+
+	private static List<Object> single(Object v) {
+		BasicDBList l = new BasicDBList();
+		l.add(v);
+		return l;
+	}
+
+	private static Number add(Number a, Number b) {
+		if (a instanceof Double || b instanceof Double || a instanceof Float || b instanceof Float)
+			return a.doubleValue() + b.doubleValue();
+		if (a instanceof Long || b instanceof Long)
+			return a.longValue() + b.longValue();
+		return a.intValue() + b.intValue();
+	}
+
+	/** The document an upsert starts from: the fields the query matches by equality */
+	static void seedUpsert(DBObject doc, Object query) {
+		if (query == null)
+			return;
+		for (String key : Documents.keys(query)) {
+			Object cond = Documents.get(query, key);
+			if (key.startsWith("$") || QueryMatcher.isOperatorDocument(cond) || cond instanceof Pattern)
+				continue;
+			Documents.set(doc, key, Documents.copy(cond));
+		}
+	}
+}
@@ -0,0 +1,364 @@
+package com.google.code.morphia.memory;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * The value semantics of the in-memory store: dotted paths, comparison (in the server's type order), equality, and
+ * copying of documents.
+ */
+final class Documents {
+	/** Sorts before every value; only used in index keys */
+	static final Object MIN_KEY = new Object();
+	/** Sorts after every value; only used in index keys */
+	static final Object MAX_KEY = new Object();
+
+	private Documents() {}
+
+	static boolean isDocument(Object o) {
+		return o instanceof Map || (o instanceof DBObject && !(o instanceof List));
+	}
+
+	static boolean isList(Object o) {
+		return o instanceof Collection || (o != null && o.getClass().isArray() && !(o instanceof byte[]));
+	}
+
+	@SuppressWarnings("unchecked")
+	static Object get(Object doc, String key) {
+		if (doc instanceof DBObject)
+			return ((DBObject) doc).get(key);
+		return ((Map<String, Object>) doc).get(key);
+	}
+
+	@SuppressWarnings("unchecked")
+	static boolean containsKey(Object doc, String key) {
+		if (doc instanceof DBObject)
+			return ((DBObject) doc).containsField(key);
+		return ((Map<String, Object>) doc).containsKey(key);
+	}
+
+	@SuppressWarnings("unchecked")
+	static Collection<String> keys(Object doc) {
+		if (doc instanceof DBObject)
+			return ((DBObject) doc).keySet();
+		return ((Map<String, Object>) doc).keySet();
+	}
+
+	/** @return the list (or array, or iterable) as a List */
+	@SuppressWarnings("unchecked")
+	static List<Object> asList(Object o) {
+		if (o instanceof List)
+			return (List<Object>) o;
+		List<Object> list = new ArrayList<Object>();
+		if (o instanceof Iterable)
+			for (Object e : (Iterable<Object>) o)
+				list.add(e);
+		else if (o != null && o.getClass().isArray())
+			for (int i = 0; i < Array.getLength(o); i++)
+				list.add(Array.get(o, i));
+		else
+			list.add(o);
+		return list;
+	}
+
+	/**
+	 * The values at the (dotted) path. As on the server, a path continues into every document of an array on the way,
+	 * and a numeric part also selects an element; so there can be several values. Missing fields have none.
+	 */
+	static List<Object> values(Object doc, String path) {
+		List<Object> out = new ArrayList<Object>(1);
+		collect(doc, path.split("\\."), 0, out);
+		return out;
+	}
+
+	private static void collect(Object node, String[] parts, int i, List<Object> out) {
+		if (i == parts.length) {
+			out.add(node);
+			return;
+		}
+		if (isDocument(node)) {
+			if (containsKey(node, parts[i]))
+				collect(get(node, parts[i]), parts, i + 1, out);
+		} else if (isList(node)) {
+			List<Object> list = asList(node);
+			int index = index(parts[i]);
+			if (index >= 0 && index < list.size())
+				collect(list.get(index), parts, i + 1, out);
+			for (Object e : list)
+				if (isDocument(e))
+					collect(e, parts, i, out);
+		}
+	}
+
+	/** @return the first value at the path, or null */
+	static Object first(Object doc, String path) {
+		List<Object> values = values(doc, path);
+		return values.isEmpty() ? null : values.get(0);
+	}
+
+	static int index(String part) {
+		if (part.length() == 0 || part.length() > 9)
+			return -1;
+		for (int i = 0; i < part.length(); i++)
+			if (!Character.isDigit(part.charAt(i)))
+				return -1;
+		return Integer.parseInt(part);
+	}
+
+	/** The server's ordering of types: null, numbers, strings, documents, arrays, binary, ObjectId, booleans, dates, regex */
+	private static int typeRank(Object o) {
+		if (o == MIN_KEY) return 0;
+		if (o == null) return 1;
+		if (o instanceof Number) return 2;
+		if (o instanceof String || o instanceof Character) return 3;
+		if (isDocument(o)) return 4;
+		if (isList(o)) return 5;
+		if (o instanceof byte[]) return 6;
+		if (o instanceof ObjectId) return 7;
+		if (o instanceof Boolean) return 8;
+		if (o instanceof Date) return 9;
+		if (o instanceof Pattern) return 11;
+		if (o == MAX_KEY) return 99;
+		return 12;
+	}
+
+	/** @return true if the values have the same type (for the server), so they can be compared by a range */
+	static boolean comparable(Object a, Object b) {
+		return typeRank(a) == typeRank(b);
+	}
+
+	@SuppressWarnings("unchecked")
+	static int compare(Object a, Object b) {
+		int ra = typeRank(a), rb = typeRank(b);
+		if (ra != rb)
+			return ra < rb ? -1 : 1;
+		switch (ra) {
+			case 0: case 1: case 99:
+				return 0;
+			case 2:
+				return compareNumbers((Number) a, (Number) b);
+			case 3:
+				return a.toString().compareTo(b.toString());
+			case 4: {
+				Iterator<String> ia = keys(a).iterator(), ib = keys(b).iterator();
+				while (ia.hasNext() && ib.hasNext()) {
+					String ka = ia.next(), kb = ib.next();
+					int c = compare(get(a, ka), get(b, kb));
+					if (c == 0)
+						c = ka.compareTo(kb);
+					if (c != 0)
+						return c;
+				}
+				return ia.hasNext() ? 1 : ib.hasNext() ? -1 : 0;
+			}
+			case 5: {
+				List<Object> la = asList(a), lb = asList(b);
+				for (int i = 0; i < la.size() && i < lb.size(); i++) {
+					int c = compare(la.get(i), lb.get(i));
+					if (c != 0)
+						return c;
+				}
+				return la.size() < lb.size() ? -1 : la.size() == lb.size() ? 0 : 1;
+			}
+			case 7: case 8: case 9:
+				return ((Comparable<Object>) a).compareTo(b);
+			default:
+				return a.toString().compareTo(b.toString());
+		}
+	}
+
+	private static int compareNumbers(Number a, Number b) {
+		if (isIntegral(a) && isIntegral(b)) {
+			long la = a.longValue(), lb = b.longValue();
+			return la < lb ? -1 : la == lb ? 0 : 1;
+		}
+		return Double.compare(a.doubleValue(), b.doubleValue());
+	}
+
+	private static boolean isIntegral(Number n) {
+		return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+	}
+
+	/** Equality as the server sees it: numbers by value, documents and arrays field by field */
+	static boolean equal(Object a, Object b) {
+		if (a == b)
+			return true;
+		if (a == null || b == null)
+			return false;
+		if (a instanceof Number && b instanceof Number)
+			return compareNumbers((Number) a, (Number) b) == 0;
+		if (isDocument(a) && isDocument(b)) {
+			Collection<String> ka = keys(a);
+			if (ka.size() != keys(b).size())
+				return false;
+			for (String k : ka)
+				if (!containsKey(b, k) || !equal(get(a, k), get(b, k)))
+					return false;
+			return true;
+		}
+		if (isList(a) && isList(b)) {
+			List<Object> la = asList(a), lb = asList(b);
+			if (la.size() != lb.size())
+				return false;
+			for (int i = 0; i < la.size(); i++)
+				if (!equal(la.get(i), lb.get(i)))
+					return false;
+			return true;
+		}
+		if (a instanceof byte[] && b instanceof byte[])
+			return Arrays.equals((byte[]) a, (byte[]) b);
+		return a.equals(b);
+	}
+
+	/** @return the id in a form usable as a map key (so 1, 1L and 1.0 are the same id) */
+	static Object idKey(Object id) {
+		if (id instanceof Number) {
+			Number n = (Number) id;
+			return n.doubleValue() == n.longValue() ? (Object) n.longValue() : (Object) n.doubleValue();
+		}
+		if (isDocument(id) || isList(id))
+			return new IdKey(id);
+		return id;
+	}
+
+	/** Deep copies documents and lists (so stored documents are never shared with callers) */
+	@SuppressWarnings("unchecked")
+	static Object copy(Object o) {
+		if (isDocument(o)) {
+			BasicDBObject copy = new BasicDBObject();
+			for (String k : keys(o))
+				copy.put(k, copy(get(o, k)));
+			return copy;
+		}
+		if (isList(o)) {
+			BasicDBList copy = new BasicDBList();
+			for (Object e : asList(o))
+				copy.add(copy(e));
+			return copy;
+		}
+		if (o instanceof Date)
+			return new Date(((Date) o).getTime());
+		if (o instanceof byte[])
+			return ((byte[]) o).clone();
+		return o;
+	}
+
+	static DBObject copyDocument(Object doc) {
+		return (DBObject) copy(doc);
+	}
+
+	/** Sets the value at the dotted path, creating the documents on the way */
+	static void set(DBObject doc, String path, Object value) {
+		String[] parts = path.split("\\.");
+		Object node = doc;
+		for (int i = 0; i < parts.length - 1; i++) {
+			Object child = child(node, parts[i]);
+			if (child == null) {
+				child = new BasicDBObject();
+				put(node, parts[i], child);
+			} else if (!isDocument(child) && !(child instanceof List))
+				throw new IllegalArgumentException("Cannot set " + path + "; " + parts[i] + " is not a document");
+			node = child;
+		}
+		put(node, parts[parts.length - 1], value);
+	}
+
+	/** Removes the value at the dotted path, if there is one */
+	@SuppressWarnings("unchecked")
+	static void unset(DBObject doc, String path) {
+		String[] parts = path.split("\\.");
+		Object node = doc;
+		for (int i = 0; i < parts.length - 1 && node != null; i++)
+			node = child(node, parts[i]);
+		if (node == null)
+			return;
+		String last = parts[parts.length - 1];
+		if (isDocument(node))
+			removeKey(node, last);
+		else if (node instanceof List) {
+			int index = index(last);
+			if (index >= 0 && index < ((List<Object>) node).size())
+				((List<Object>) node).set(index, null);
+		}
+	}
+
+	/** @return the (single) value at the path, without expanding arrays, or null */
+	static Object at(Object doc, String path) {
+		Object node = doc;
+		for (String part : path.split("\\.")) {
+			if (node == null)
+				return null;
+			node = child(node, part);
+		}
+		return node;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object child(Object node, String part) {
+		if (isDocument(node))
+			return get(node, part);
+		if (node instanceof List) {
+			int index = index(part);
+			List<Object> list = (List<Object>) node;
+			return index >= 0 && index < list.size() ? list.get(index) : null;
+		}
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void put(Object node, String key, Object value) {
+		if (node instanceof DBObject && !(node instanceof List))
+			((DBObject) node).put(key, value);
+		else if (node instanceof Map)
+			((Map<String, Object>) node).put(key, value);
+		else {
+			List<Object> list = (List<Object>) node;
+			int index = index(key);
+			if (index < 0)
+				throw new IllegalArgumentException("Cannot set field " + key + " of an array");
+			while (list.size() <= index)
+				list.add(null);
+			list.set(index, value);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void removeKey(Object doc, String key) {
+		if (doc instanceof DBObject)
+			((DBObject) doc).removeField(key);
+		else
+			((Map<String, Object>) doc).remove(key);
+	}
+
+	/** A document or array used as an _id; equal (and hashed) by value */
+	private static class IdKey {
+		private final Object id;
+
+		IdKey(Object id) {
+			this.id = id;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof IdKey && equal(id, ((IdKey) obj).id);
+		}
+
+		@Override
+		public int hashCode() {
+			return id.toString().hashCode();
+		}
+	}
+}
@@ -0,0 +1,586 @@
+package com.google.code.morphia.memory;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.types.ObjectId;
+
+import com.google.code.morphia.BatchSaveResults;
+import com.google.code.morphia.DatastoreImpl;
+import com.google.code.morphia.Key;
+import com.google.code.morphia.MapreduceResults;
+import com.google.code.morphia.MapreduceType;
+import com.google.code.morphia.Morphia;
+import com.google.code.morphia.VersionHelper;
+import com.google.code.morphia.aggregation.AggregationPipeline;
+import com.google.code.morphia.annotations.NotSaved;
+import com.google.code.morphia.indexing.IndexSyncReport;
+import com.google.code.morphia.annotations.Version;
+import com.google.code.morphia.mapping.ChangeTracker;
+import com.google.code.morphia.mapping.MappedClass;
+import com.google.code.morphia.mapping.MappedField;
+import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.mapping.MappingException;
+import com.google.code.morphia.mapping.cache.DocumentCache;
+import com.google.code.morphia.mapping.lazy.proxy.ProxyHelper;
+import com.google.code.morphia.query.Query;
+import com.google.code.morphia.query.QueryException;
+import com.google.code.morphia.query.UpdateException;
+import com.google.code.morphia.query.UpdateOperations;
+import com.google.code.morphia.query.UpdateOpsImpl;
+import com.google.code.morphia.query.UpdateResults;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.DBRef;
+import com.mongodb.MapReduceCommand;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+
+/**
+ * <p>
+ * A {@link com.google.code.morphia.Datastore} which keeps its collections in memory, for tests and for embedding
+ * without a server. Entities are mapped by the {@link Mapper} as usual, queries and update operations are built as
+ * usual and evaluated against the stored documents, and the {@code @Indexed}/{@code @Indexes} (single-field and
+ * compound, optionally unique) indexes are maintained and used to look up queries.
+ * </p>
+ * <p>
+ * The collections are thread-safe; each write is atomic (and isolated), like a single document write on the server.
+ * There is no server, so:
+ * </p>
+ * <ul>
+ * <li>deletes return an acknowledged {@link WriteResult} with the number of documents removed, and updates return
+ * {@link MemoryUpdateResults} without one;</li>
+ * <li>write concerns, capped collections, read preferences and index options other than {@code unique} are
+ * ignored, and {@link #setDocumentCache(DocumentCache)} and {@link #syncIndexes(boolean)} do nothing;</li>
+ * <li>map/reduce, aggregation, {@code $where}, the geo operators and cursors (tailable, streamed or partitioned
+ * queries) are not supported, there are no {@link DBCollection}s, and {@link #getMongo()}/{@link #getDB()} return
+ * null.</li>
+ * </ul>
+ * <p>
+ * {@code @Reference}s, lazy or not, are resolved from the collections of this datastore.
+ * </p>
+ */
+@SuppressWarnings("unchecked")
+public class InMemoryDatastore extends DatastoreImpl {
+	private final ConcurrentHashMap<String, MemoryCollection> collections = new ConcurrentHashMap<String, MemoryCollection>();
+
+	public InMemoryDatastore(Mapper mapr) {
+		super(mapr, "memory");
+	}
+
+	public InMemoryDatastore(Morphia morphia) {
+		this(morphia.getMapper());
+	}
+
+	/** @return a new (empty) datastore with the same mapper */
+	@Override
+	public DatastoreImpl copy(String db) {
+		return new InMemoryDatastore(mapr);
+	}
+
+	MemoryCollection collection(String kind) {
+		MemoryCollection coll = collections.get(kind);
+		if (coll == null) {
+			MemoryCollection created = new MemoryCollection(kind);
+			coll = collections.putIfAbsent(kind, created);
+			if (coll == null)
+				coll = created;
+		}
+		return coll;
+	}
+
+	/** @return the names of the collections which have been used */
+	public Set<String> getCollectionNames() {
+		return new TreeSet<String>(collections.keySet());
+	}
+
+	/** @return the names of the indexes of the collection */
+	public List<String> getIndexNames(String kind) {
+		return collections.containsKey(kind) ? collection(kind).getIndexNames() : new ArrayList<String>();
+	}
+
+	/** Drops the collection, and its indexes */
+	public void dropCollection(String kind) {
+		MemoryCollection coll = collections.remove(kind);
+		if (coll != null)
+			coll.clear();
+	}
+
+	/** Drops all the collections */
+	public void clear() {
+		for (String kind : new ArrayList<String>(collections.keySet()))
+			dropCollection(kind);
+	}
+
+	private String kindOf(Object entityOrClass) {
+		return mapr.getCollectionName(entityOrClass);
+	}
+
+	private static <T> MemoryQuery<T> memoryQuery(Query<T> query) {
+		if (!(query instanceof MemoryQuery))
+			throw new IllegalArgumentException("The query was not created by an InMemoryDatastore: " + query);
+		return (MemoryQuery<T>) query;
+	}
+
+	// queries
+
+	@Override
+	public <T> Query<T> createQuery(Class<T> clazz) {
+		return new MemoryQuery<T>(clazz, kindOf(clazz), this);
+	}
+
+	@Override
+	public <T> Query<T> createQuery(Class<T> kind, DBObject q) {
+		return new MemoryQuery<T>(kind, kindOf(kind), this, q);
+	}
+
+	@Override
+	public <T> Query<T> createQuery(String kind, Class<T> clazz, DBObject q) {
+		return new MemoryQuery<T>(clazz, kind, this, q);
+	}
+
+	@Override
+	public <T> Query<T> createQuery(String kind, Class<T> clazz) {
+		return new MemoryQuery<T>(clazz, kind, this);
+	}
+
+	@Override
+	public <T> Query<T> find(String kind, Class<T> clazz) {
+		return new MemoryQuery<T>(clazz, kind, this);
+	}
+
+	@Override
+	public <T> Query<T> queryByExample(T ex) {
+		return queryByExample(kindOf(ex), ex);
+	}
+
+	@Override
+	public <T> Query<T> queryByExample(String kind, T ex) {
+		return new MemoryQuery<T>((Class<T>) ex.getClass(), kind, this, entityToDBObj(ex, new HashMap<Object, DBObject>()));
+	}
+
+	@Override
+	public <T, V> T get(Class<T> clazz, V id) {
+		return find(kindOf(clazz), clazz, Mapper.ID_KEY, id, 0, 1, true).get();
+	}
+
+	@Override
+	public <T> T get(Class<T> clazz, DBRef ref) {
+		DBObject dbObj = fetch(ref);
+		return dbObj == null ? null : (T) mapr.fromDBObject(clazz, dbObj, mapr.createEntityCache());
+	}
+
+	@Override
+	public DBObject fetch(DBRef ref) {
+		List<DBObject> found = collection(ref.getRef()).find(new BasicDBObject(Mapper.ID_KEY, ref.getId()), null, null, 0, 1);
+		return found.isEmpty() ? null : found.get(0);
+	}
+
+	@Override
+	public Key<?> exists(Object entityOrKey) {
+		entityOrKey = ProxyHelper.unwrap(entityOrKey);
+		Key<?> key = mapr.getKey(entityOrKey);
+		if (key.getId() == null)
+			throw new MappingException("Could not get id for " + entityOrKey.getClass().getName());
+		String kind = key.getKind() != null ? key.getKind() : kindOf(key.getKindClass());
+		return find(kind, key.getKindClass()).filter(Mapper.ID_KEY, key.getId()).getKey();
+	}
+
+	@Override
+	public <T, V> DBRef createRef(Class<T> clazz, V id) {
+		if (id == null)
+			throw new MappingException("Could not get id for " + clazz.getName());
+		return new DBRef(null, kindOf(clazz), id);
+	}
+
+	@Override
+	public <T> long getCount(T entity) {
+		return collection(kindOf(ProxyHelper.unwrap(entity))).count(null);
+	}
+
+	@Override
+	public <T> long getCount(Class<T> clazz) {
+		return collection(kindOf(clazz)).count(null);
+	}
+
+	@Override
+	public long getCount(String kind) {
+		return collection(kind).count(null);
+	}
+
+	// writes
+
+	@Override
+	public <T> Key<T> save(T entity, WriteConcern wc) {
+		entity = ProxyHelper.unwrap(entity);
+		return save(kindOf(entity), entity);
+	}
+
+	@Override
+	public <T> Key<T> save(String kind, T entity) {
+		entity = ProxyHelper.unwrap(entity);
+		MappedClass mc = checkSaved(entity);
+		LinkedHashMap<Object, DBObject> involvedObjects = new LinkedHashMap<Object, DBObject>();
+		DBObject dbObj = toStored(entity, involvedObjects);
+		MemoryCollection coll = collection(kind);
+
+		List<MappedField> versions = mc.getFieldsAnnotatedWith(Version.class);
+		if (versions.isEmpty())
+			coll.save(dbObj);
+		else {
+			MappedField mfVersion = versions.get(0);
+			Long oldVersion = (Long) mfVersion.getFieldValue(entity);
+			long newVersion = VersionHelper.nextValue(oldVersion);
+			dbObj.put(mfVersion.getNameToStore(), newVersion);
+			if (oldVersion != null && oldVersion > 0) {
+				Object id = dbObj.get(Mapper.ID_KEY);
+				DBObject q = new BasicDBObject(Mapper.ID_KEY, id).append(mfVersion.getNameToStore(), oldVersion);
+				if (coll.update(q, dbObj, false, false).n != 1)
+					throw new ConcurrentModificationException("Entity of class " + entity.getClass().getName()
+							+ " (id='" + id + "',version='" + oldVersion + "') was concurrently updated.");
+			} else
+				coll.save(dbObj);
+			mfVersion.setFieldValue(entity, newVersion);
+		}
+		return postSave(kind, entity, dbObj, involvedObjects);
+	}
+
+	@Override
+	public <T> BatchSaveResults<T> saveBatch(Iterable<T> entities, WriteConcern wc) {
+		BatchSaveResults<T> results = new BatchSaveResults<T>();
+		for (T ent : entities)
+			try {
+				results.addKey(save(ent, wc));
+			} catch (ConcurrentModificationException e) {
+				results.addConflict(ent);
+			} catch (RuntimeException e) {
+				results.addFailure(ent, e);
+			}
+		return results;
+	}
+
+	@Override
+	public <T> Key<T> insert(T entity, WriteConcern wc) {
+		entity = ProxyHelper.unwrap(entity);
+		return insert(kindOf(entity), entity, wc);
+	}
+
+	@Override
+	public <T> Key<T> insert(String kind, T entity) {
+		return insert(kind, entity, null);
+	}
+
+	@Override
+	public <T> Key<T> insert(String kind, T entity, WriteConcern wc) {
+		entity = ProxyHelper.unwrap(entity);
+		checkSaved(entity);
+		LinkedHashMap<Object, DBObject> involvedObjects = new LinkedHashMap<Object, DBObject>();
+		DBObject dbObj = toStored(entity, involvedObjects);
+		collection(kind).insert(dbObj);
+		return postSave(kind, entity, dbObj, involvedObjects);
+	}
+
+	@Override
+	public <T> Iterable<Key<T>> insert(Iterable<T> entities, WriteConcern wc) {
+		return insert(kindOf(ProxyHelper.unwrap(entities.iterator().next())), entities, wc);
+	}
+
+	@Override
+	public <T> Iterable<Key<T>> insert(String kind, Iterable<T> entities, WriteConcern wc) {
+		List<Key<T>> keys = new ArrayList<Key<T>>();
+		for (T ent : entities)
+			keys.add(insert(kind, ent, wc));
+		return keys;
+	}
+
+	private MappedClass checkSaved(Object entity) {
+		MappedClass mc = mapr.getMappedClass(entity);
+		if (mc.getAnnotation(NotSaved.class) != null)
+			throw new MappingException("Entity type: " + mc.getClazz().getName() + " is marked as NotSaved which means you should not try to save it!");
+		return mc;
+	}
+
+	/** Maps the entity, giving it an _id (as the driver does) if it has none */
+	private DBObject toStored(Object entity, Map<Object, DBObject> involvedObjects) {
+		DBObject dbObj = entityToDBObj(entity, involvedObjects);
+		if (dbObj.get(Mapper.ID_KEY) == null)
+			dbObj.put(Mapper.ID_KEY, new ObjectId());
+		return dbObj;
+	}
+
+	private <T> Key<T> postSave(String kind, T entity, DBObject dbObj, Map<Object, DBObject> involvedObjects) {
+		postSaveOperations(entity, dbObj, involvedObjects);
+		Key<T> key = new Key<T>(kind, mapr.getId(entity));
+		key.setKindClass((Class<? extends T>) entity.getClass());
+		return key;
+	}
+
+	@Override
+	public <T> WriteResult delete(String kind, T id) {
+		return writeResult(collection(kind).remove(new BasicDBObject(Mapper.ID_KEY, id)));
+	}
+
+	@Override
+	public <T> WriteResult delete(Query<T> query, WriteConcern wc) {
+		MemoryQuery<T> q = memoryQuery(query);
+		if (q.getSortObject() != null || q.getOffset() != 0 || q.getLimit() > 0)
+			throw new QueryException("Delete does not allow sort/offset/limit query options.");
+		return writeResult(collection(q.getKind()).remove(q.getQueryObject()));
+	}
+
+	/** @return an acknowledged result of n documents; the driver has no public constructor for one */
+	private static WriteResult writeResult(int n) {
+		try {
+			Constructor<CommandResult> lastError = CommandResult.class.getDeclaredConstructor(ServerAddress.class);
+			lastError.setAccessible(true);
+			CommandResult res = lastError.newInstance((ServerAddress) null);
+			res.put("ok", 1.0);
+			res.put("n", n);
+			res.put("err", null);
+			Constructor<WriteResult> ctor = WriteResult.class.getDeclaredConstructor(CommandResult.class, WriteConcern.class);
+			ctor.setAccessible(true);
+			return ctor.newInstance(res, WriteConcern.ACKNOWLEDGED);
+		} catch (Exception e) {
+			throw new IllegalStateException("Could not create a WriteResult with this version of the driver", e);
+		}
+	}
+
+	@Override
+	public <T> UpdateResults<T> update(Query<T> query, UpdateOperations<T> ops, boolean createIfMissing, WriteConcern wc) {
+		return update(query, ((UpdateOpsImpl<T>) ops).getOps(), createIfMissing, true);
+	}
+
+	@Override
+	public <T> UpdateResults<T> update(Query<T> query, UpdateOperations<T> ops) {
+		return update(query, ops, false, null);
+	}
+
+	@Override
+	public <T> UpdateResults<T> updateFirst(Query<T> query, UpdateOperations<T> ops) {
+		return updateFirst(query, ops, false, null);
+	}
+
+	@Override
+	public <T> UpdateResults<T> updateFirst(Query<T> query, UpdateOperations<T> ops, boolean createIfMissing) {
+		return updateFirst(query, ops, createIfMissing, null);
+	}
+
+	@Override
+	public <T> UpdateResults<T> updateFirst(Query<T> query, UpdateOperations<T> ops, boolean createIfMissing, WriteConcern wc) {
+		return update(query, ((UpdateOpsImpl<T>) ops).getOps(), createIfMissing, false);
+	}
+
+	@Override
+	public <T> UpdateResults<T> updateFirst(Query<T> query, T entity, boolean createIfMissing) {
+		LinkedHashMap<Object, DBObject> involvedObjects = new LinkedHashMap<Object, DBObject>();
+		DBObject dbObj = mapr.toDBObject(entity, involvedObjects);
+
+		UpdateResults<T> res = update(query, dbObj, createIfMissing, false);
+		if (res.getInsertedCount() > 0)
+			dbObj.put(Mapper.ID_KEY, res.getNewId());
+
+		postSaveOperations(entity, dbObj, involvedObjects);
+		return res;
+	}
+
+	private <T> UpdateResults<T> update(Query<T> query, DBObject u, boolean createIfMissing, boolean multi) {
+		MemoryQuery<T> q = memoryQuery(query);
+		if (q.getSortObject() != null && !q.getSortObject().keySet().isEmpty())
+			throw new QueryException("sorting is not allowed for updates.");
+		if (q.getOffset() > 0)
+			throw new QueryException("a query offset is not allowed for updates.");
+		if (q.getLimit() > 0)
+			throw new QueryException("a query limit is not allowed for updates.");
+		return new MemoryUpdateResults<T>(collection(q.getKind()).update(q.getQueryObject(), u, createIfMissing, multi));
+	}
+
+	@Override
+	public <T> Key<T> merge(T entity, WriteConcern wc) {
+		entity = ProxyHelper.unwrap(entity);
+		LinkedHashMap<Object, DBObject> involvedObjects = new LinkedHashMap<Object, DBObject>();
+		DBObject dbObj = mapr.toDBObject(entity, involvedObjects);
+		Key<T> key = mapr.getKey(entity);
+		Object id = mapr.getId(entity);
+		if (id == null)
+			throw new MappingException("Could not get id for " + entity.getClass().getName());
+
+		//remove (immutable) _id field for update.
+		dbObj.removeField(Mapper.ID_KEY);
+
+		DBObject q = new BasicDBObject(Mapper.ID_KEY, id);
+		List<MappedField> versions = mapr.getMappedClass(entity).getFieldsAnnotatedWith(Version.class);
+		MappedField mfVersion = versions.isEmpty() ? null : versions.get(0);
+		Long oldVersion = null;
+		long newVersion = 0;
+		if (mfVersion != null) {
+			oldVersion = (Long) mfVersion.getFieldValue(entity);
+			newVersion = VersionHelper.nextValue(oldVersion);
+			dbObj.put(mfVersion.getNameToStore(), newVersion);
+			if (oldVersion != null && oldVersion > 0)
+				q.put(mfVersion.getNameToStore(), oldVersion);
+		}
+
+		if (collection(kindOf(entity)).update(q, new BasicDBObject("$set", dbObj), false, false).n == 0) {
+			if (oldVersion != null && oldVersion > 0)
+				throw new ConcurrentModificationException("Entity of class " + entity.getClass().getName()
+						+ " (id='" + id + "',version='" + oldVersion + "') was concurrently updated.");
+			throw new UpdateException("Not updated: " + key);
+		}
+		if (mfVersion != null)
+			mfVersion.setFieldValue(entity, newVersion);
+
+		postSaveOperations(entity, dbObj, involvedObjects);
+		return key;
+	}
+
+	@Override
+	public <T> Key<T> saveChanges(T entity, WriteConcern wc) {
+		entity = ProxyHelper.unwrap(entity);
+		DBObject stored = mapr.getChangeTracker().getSnapshot(entity);
+		if (stored == null || !mapr.isTrackingChanges(entity))
+			return save(entity, wc);
+
+		LinkedHashMap<Object, DBObject> involvedObjects = new LinkedHashMap<Object, DBObject>();
+		DBObject dbObj = entityToDBObj(entity, involvedObjects);
+		Key<T> key = mapr.getKey(entity);
+		Object id = dbObj.get(Mapper.ID_KEY);
+
+		List<MappedField> versions = mapr.getMappedClass(entity).getFieldsAnnotatedWith(Version.class);
+		MappedField mfVersion = versions.isEmpty() ? null : versions.get(0);
+		if (mfVersion != null)
+			//the version is compared (and set) below, not diffed
+			dbObj.put(mfVersion.getNameToStore(), stored.get(mfVersion.getNameToStore()));
+
+		DBObject u = ChangeTracker.diff(stored, dbObj);
+		if (u.keySet().isEmpty())
+			return key;
+
+		DBObject q = new BasicDBObject(Mapper.ID_KEY, id);
+		Long oldVersion = null;
+		long newVersion = 0;
+		if (mfVersion != null) {
+			oldVersion = (Long) mfVersion.getFieldValue(entity);
+			newVersion = VersionHelper.nextValue(oldVersion);
+			q.put(mfVersion.getNameToStore(), oldVersion);
+			DBObject set = (DBObject) u.get("$set");
+			if (set == null) {
+				set = new BasicDBObject();
+				u.put("$set", set);
+			}
+			set.put(mfVersion.getNameToStore(), newVersion);
+			dbObj.put(mfVersion.getNameToStore(), newVersion);
+		}
+
+		int n = collection(kindOf(entity)).update(q, u, false, false).n;
+		if (mfVersion != null) {
+			if (n != 1)
+				throw new ConcurrentModificationException("Entity of class " + entity.getClass().getName()
+						+ " (id='" + id + "',version='" + oldVersion + "') was concurrently updated.");
+			mfVersion.setFieldValue(entity, newVersion);
+		} else if (n == 0)
+			throw new UpdateException("Not updated: " + key);
+
+		postSaveOperations(entity, dbObj, involvedObjects);
+		return key;
+	}
+
+	@Override
+	public <T> T findAndDelete(Query<T> query) {
+		MemoryQuery<T> q = memoryQuery(query);
+		DBObject result = collection(q.getKind()).findAndModify(q.getQueryObject(), q.getFieldsObject(), q.getSortObject(), true, null, false, false);
+		return result == null ? null : (T) mapr.fromDBObject(q.getEntityClass(), result, mapr.createEntityCache());
+	}
+
+	@Override
+	public <T> T findAndModify(Query<T> query, UpdateOperations<T> ops, boolean oldVersion, boolean createIfMissing) {
+		MemoryQuery<T> q = memoryQuery(query);
+		DBObject result = collection(q.getKind()).findAndModify(q.getQueryObject(), q.getFieldsObject(), q.getSortObject(), false,
+				((UpdateOpsImpl<T>) ops).getOps(), !oldVersion, createIfMissing);
+		return result == null ? null : (T) mapr.fromDBObject(q.getEntityClass(), result, mapr.createEntityCache());
+	}
+
+	// indexes
+
+	/** Creates the index; only {@code unique} is used of the options */
+	@Override
+	protected <T> void ensureIndex(Class<T> clazz, String name, BasicDBObject fields, boolean unique, boolean dropDupsOnCreate, boolean background, boolean sparse) {
+		if (name == null || name.length() == 0) {
+			StringBuilder sb = new StringBuilder();
+			for (String field : fields.keySet()) {
+				if (sb.length() > 0)
+					sb.append('_');
+				sb.append(field).append('_').append(fields.get(field));
+			}
+			name = sb.toString();
+		}
+		collection(kindOf(clazz)).ensureIndex(name, fields.keySet().toArray(new String[0]), unique);
+	}
+
+	/** Capped collections are not supported; does nothing */
+	@Override
+	public void ensureCaps() {
+	}
+
+	/** The documents are in memory already; does nothing */
+	@Override
+	public void setDocumentCache(DocumentCache documentCache) {
+	}
+
+	/** There are no existing indexes but the ones {@link #ensureIndexes()} creates; does nothing, and reports nothing */
+	@Override
+	public IndexSyncReport syncIndexes(boolean dryRun) {
+		return new IndexSyncReport(dryRun);
+	}
+
+	// not supported
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public DBCollection getCollection(Class clazz) {
+		throw new UnsupportedOperationException("The in-memory datastore has no DBCollections.");
+	}
+
+	@Override
+	public DBCollection getCollection(Object obj) {
+		throw new UnsupportedOperationException("The in-memory datastore has no DBCollections.");
+	}
+
+	@Override
+	protected DBCollection getCollection(String kind) {
+		throw new UnsupportedOperationException("The in-memory datastore has no DBCollections.");
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public <T> MapreduceResults<T> mapReduce(MapreduceType type, Query q, Class<T> outputType, MapReduceCommand baseCommand) {
+		throw new UnsupportedOperationException("The in-memory datastore does not support map/reduce.");
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public <T> MapreduceResults<T> mapReduce(MapreduceType type, Query query, String map, String reduce, String finalize, Map<String, Object> scopeFields, Class<T> outputType) {
+		throw new UnsupportedOperationException("The in-memory datastore does not support map/reduce.");
+	}
+
+	@Override
+	public <T> AggregationPipeline<T> createAggregation(Query<T> query) {
+		throw new UnsupportedOperationException("The in-memory datastore does not support aggregation.");
+	}
+
+	@Override
+	public DBDecoderFactory getDecoderFact() {
+		return decoderFactory;
+	}
+}
@@ -0,0 +1,378 @@
+package com.google.code.morphia.memory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.bson.types.ObjectId;
+
+import com.google.code.morphia.mapping.Mapper;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * <p>
+ * The documents of one collection of an {@link InMemoryDatastore}, in insertion order, with their indexes. Documents are
+ * copied on the way in and out, so callers never share the stored ones.
+ * </p>
+ * <p>
+ * Reads share a read lock, and writes take the write lock, so reads run concurrently and see each write whole.
+ * </p>
+ */
+class MemoryCollection {
+	private final String name;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final LinkedHashMap<Object, Stored> docs = new LinkedHashMap<Object, Stored>();
+	private final List<MemoryIndex> indexes = new ArrayList<MemoryIndex>();
+	private long nextSeq = 0;
+
+	/** A stored document, and its place in the insertion order */
+	private static class Stored {
+		final long seq;
+		DBObject doc;
+
+		Stored(long seq, DBObject doc) {
+			this.seq = seq;
+			this.doc = doc;
+		}
+	}
+
+	/** The result of an update */
+	static class WriteOutcome {
+		final int n;
+		final boolean updatedExisting;
+		final Object upserted;
+
+		WriteOutcome(int n, boolean updatedExisting, Object upserted) {
+			this.n = n;
+			this.updatedExisting = updatedExisting;
+			this.upserted = upserted;
+		}
+	}
+
+	private static final Comparator<Stored> INSERTION_ORDER = new Comparator<Stored>() {
+		public int compare(Stored a, Stored b) {
+			return a.seq < b.seq ? -1 : a.seq == b.seq ? 0 : 1;
+		}
+	};
+
+	MemoryCollection(String name) {
+		this.name = name;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	List<DBObject> find(DBObject query, DBObject fields, DBObject sort, int offset, int limit) {
+		lock.readLock().lock();
+		try {
+			List<Stored> found = sorted(matching(query), sort);
+			int from = Math.min(Math.max(offset, 0), found.size());
+			int to = limit > 0 ? Math.min(from + limit, found.size()) : found.size();
+			List<DBObject> results = new ArrayList<DBObject>(to - from);
+			for (Stored s : found.subList(from, to))
+				results.add(project(s.doc, fields));
+			return results;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	long count(DBObject query) {
+		lock.readLock().lock();
+		try {
+			return matching(query).size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** @return a description of how the query is run: the index used, and the documents looked at and matched */
+	DBObject explain(DBObject query) {
+		lock.readLock().lock();
+		try {
+			MemoryIndex index = bestIndex(query);
+			Set<Object> ids = index == null ? null : index.lookup(query);
+			return new BasicDBObject("cursor", index == null ? "BasicCursor" : "BtreeCursor " + index.getName())
+					.append("nscanned", ids == null ? docs.size() : ids.size())
+					.append("n", matching(query).size());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** @throws MongoException if a document with the same _id (or unique key) exists */
+	void insert(DBObject doc) {
+		lock.writeLock().lock();
+		try {
+			add(Documents.copyDocument(doc));
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Inserts the document, or replaces the one with the same _id */
+	void save(DBObject doc) {
+		lock.writeLock().lock();
+		try {
+			DBObject copy = Documents.copyDocument(doc);
+			Stored s = docs.get(Documents.idKey(copy.get(Mapper.ID_KEY)));
+			if (s == null)
+				add(copy);
+			else
+				replace(s, copy);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** @return the number of documents removed */
+	int remove(DBObject query) {
+		lock.writeLock().lock();
+		try {
+			List<Stored> found = matching(query);
+			for (Stored s : found)
+				drop(s);
+			return found.size();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	WriteOutcome update(DBObject query, DBObject update, boolean upsert, boolean multi) {
+		lock.writeLock().lock();
+		try {
+			List<Stored> found = sorted(matching(query), null);
+			if (found.isEmpty()) {
+				if (!upsert)
+					return new WriteOutcome(0, false, null);
+				return new WriteOutcome(1, false, upsert(query, update).get(Mapper.ID_KEY));
+			}
+			if (!multi)
+				found = found.subList(0, 1);
+			for (Stored s : found) {
+				DBObject changed = Documents.copyDocument(s.doc);
+				DocumentUpdater.apply(changed, update);
+				replace(s, changed);
+			}
+			return new WriteOutcome(found.size(), true, null);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Updates (or removes) the first document matched, in the sort order
+	 * @return the document before or after the change, or null if none matched (and none was upserted)
+	 */
+	DBObject findAndModify(DBObject query, DBObject fields, DBObject sort, boolean remove, DBObject update, boolean returnNew, boolean upsert) {
+		lock.writeLock().lock();
+		try {
+			List<Stored> found = sorted(matching(query), sort);
+			if (found.isEmpty()) {
+				if (remove || !upsert)
+					return null;
+				DBObject inserted = upsert(query, update);
+				return returnNew ? project(inserted, fields) : null;
+			}
+			Stored s = found.get(0);
+			DBObject old = s.doc;
+			if (remove) {
+				drop(s);
+				return project(old, fields);
+			}
+			DBObject changed = Documents.copyDocument(old);
+			DocumentUpdater.apply(changed, update);
+			replace(s, changed);
+			return project(returnNew ? changed : old, fields);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Creates the index, unless there is one on the same fields */
+	void ensureIndex(String indexName, String[] fields, boolean unique) {
+		lock.writeLock().lock();
+		try {
+			for (MemoryIndex index : indexes)
+				if (index.covers(fields))
+					return;
+			MemoryIndex index = new MemoryIndex(indexName, fields, unique);
+			for (Stored s : docs.values()) {
+				Object id = Documents.idKey(s.doc.get(Mapper.ID_KEY));
+				index.checkUnique(id, s.doc);
+				index.add(id, s.doc);
+			}
+			indexes.add(index);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	List<String> getIndexNames() {
+		lock.readLock().lock();
+		try {
+			List<String> names = new ArrayList<String>(indexes.size());
+			for (MemoryIndex index : indexes)
+				names.add(index.getName());
+			return names;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	void clear() {
+		lock.writeLock().lock();
+		try {
+			docs.clear();
+			indexes.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private DBObject upsert(DBObject query, DBObject update) {
+		DBObject doc = new BasicDBObject();
+		DocumentUpdater.seedUpsert(doc, query);
+		DocumentUpdater.apply(doc, update);
+		if (doc.get(Mapper.ID_KEY) == null)
+			doc.put(Mapper.ID_KEY, new ObjectId());
+		add(doc);
+		return doc;
+	}
+
+	private void add(DBObject doc) {
+		if (doc.get(Mapper.ID_KEY) == null)
+			doc.put(Mapper.ID_KEY, new ObjectId());
+		Object id = Documents.idKey(doc.get(Mapper.ID_KEY));
+		if (docs.containsKey(id))
+			throw new MongoException(MemoryIndex.DUPLICATE_KEY, "E11000 duplicate key error index: " + name + ".$_id_  dup key: " + id);
+		for (MemoryIndex index : indexes)
+			index.checkUnique(id, doc);
+		for (MemoryIndex index : indexes)
+			index.add(id, doc);
+		docs.put(id, new Stored(nextSeq++, doc));
+	}
+
+	private void replace(Stored s, DBObject doc) {
+		Object id = Documents.idKey(doc.get(Mapper.ID_KEY));
+		for (MemoryIndex index : indexes)
+			index.remove(id, s.doc);
+		try {
+			for (MemoryIndex index : indexes)
+				index.checkUnique(id, doc);
+		} catch (MongoException e) {
+			for (MemoryIndex index : indexes)
+				index.add(id, s.doc);
+			throw e;
+		}
+		for (MemoryIndex index : indexes)
+			index.add(id, doc);
+		s.doc = doc;
+	}
+
+	private void drop(Stored s) {
+		Object id = Documents.idKey(s.doc.get(Mapper.ID_KEY));
+		for (MemoryIndex index : indexes)
+			index.remove(id, s.doc);
+		docs.remove(id);
+	}
+
+	/** The matching documents; looked up by the index which narrows the query the most, if any can be used */
+	private List<Stored> matching(DBObject query) {
+		List<Stored> found = new ArrayList<Stored>();
+		Set<Object> ids = null;
+		MemoryIndex index = bestIndex(query);
+		if (index != null)
+			ids = index.lookup(query);
+
+		if (ids == null) {
+			for (Stored s : docs.values())
+				if (QueryMatcher.matches(query, s.doc))
+					found.add(s);
+		} else {
+			for (Object id : ids) {
+				Stored s = docs.get(id);
+				if (s != null && QueryMatcher.matches(query, s.doc))
+					found.add(s);
+			}
+		}
+		return found;
+	}
+
+	private MemoryIndex bestIndex(DBObject query) {
+		if (query == null || indexes.isEmpty())
+			return null;
+		//an _id lookup needs no index
+		Object id = query.get(Mapper.ID_KEY);
+		if (id != null && !Documents.isDocument(id) && !Documents.isList(id))
+			return null;
+		MemoryIndex best = null;
+		int bestSize = Integer.MAX_VALUE;
+		for (MemoryIndex index : indexes) {
+			Set<Object> ids = index.lookup(query);
+			if (ids != null && ids.size() < bestSize) {
+				best = index;
+				bestSize = ids.size();
+			}
+		}
+		return best;
+	}
+
+	/** Sorts by the sort document (ties, or no sort, in insertion order) */
+	private static List<Stored> sorted(List<Stored> found, final DBObject sort) {
+		Collections.sort(found, sort == null || sort.keySet().isEmpty() ? INSERTION_ORDER : new Comparator<Stored>() {
+			public int compare(Stored a, Stored b) {
+				for (String key : sort.keySet()) {
+					int c = Documents.compare(Documents.first(a.doc, key), Documents.first(b.doc, key));
+					if (c != 0)
+						return ((Number) sort.get(key)).intValue() < 0 ? -c : c;
+				}
+				return INSERTION_ORDER.compare(a, b);
+			}
+		});
+		return found;
+	}
+
+	/** Copies the document, keeping only the fields asked for (or dropping those excluded) */
+	static DBObject project(DBObject doc, DBObject fields) {
+		if (fields == null || fields.keySet().isEmpty())
+			return Documents.copyDocument(doc);
+
+		boolean include = false;
+		for (String key : fields.keySet())
+			if (!Mapper.ID_KEY.equals(key) && isTrue(fields.get(key)))
+				include = true;
+
+		if (!include) {
+			DBObject out = Documents.copyDocument(doc);
+			for (String key : fields.keySet())
+				Documents.unset(out, key);
+			return out;
+		}
+
+		DBObject out = new BasicDBObject();
+		if (!fields.containsField(Mapper.ID_KEY) || isTrue(fields.get(Mapper.ID_KEY)))
+			out.put(Mapper.ID_KEY, Documents.copy(doc.get(Mapper.ID_KEY)));
+		for (Iterator<String> it = fields.keySet().iterator(); it.hasNext();) {
+			String key = it.next();
+			if (Mapper.ID_KEY.equals(key) || !isTrue(fields.get(key)))
+				continue;
+			Object val = Documents.at(doc, key);
+			if (val != null)
+				Documents.set(out, key, Documents.copy(val));
+		}
+		return out;
+	}
+
+	private static boolean isTrue(Object o) {
+		return o instanceof Boolean ? (Boolean) o : o instanceof Number && ((Number) o).intValue() != 0;
+	}
+}
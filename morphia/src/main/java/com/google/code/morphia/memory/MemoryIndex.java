@@ -0,0 +1,229 @@
+package com.google.code.morphia.memory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * <p>
+ * A single-field or compound index of a {@link MemoryCollection}: a sorted map from the values of the fields to the ids of
+ * the documents. As on the server, an array is indexed by each of its elements, and a missing field as null.
+ * </p>
+ * <p>
+ * A query can use the index if it matches the first field(s) by equality or {@code $in}, or the first field by a range;
+ * the documents found are still matched against the whole query. Not thread-safe; the collection locks around it.
+ * </p>
+ */
+class MemoryIndex {
+	/** The server's duplicate key error code */
+	static final int DUPLICATE_KEY = 11000;
+
+	private static final Comparator<List<Object>> KEY_ORDER = new Comparator<List<Object>>() {
+		public int compare(List<Object> a, List<Object> b) {
+			for (int i = 0; i < a.size() && i < b.size(); i++) {
+				int c = Documents.compare(a.get(i), b.get(i));
+				if (c != 0)
+					return c;
+			}
+			//a longer key only differs by its sentinel (for looking up a prefix)
+			if (a.size() == b.size())
+				return 0;
+			if (a.size() > b.size())
+				return a.get(b.size()) == Documents.MIN_KEY ? -1 : 1;
+			return b.get(a.size()) == Documents.MIN_KEY ? 1 : -1;
+		}
+	};
+
+	private final String name;
+	private final String[] fields;
+	private final boolean unique;
+	private final TreeMap<List<Object>, Set<Object>> entries = new TreeMap<List<Object>, Set<Object>>(KEY_ORDER);
+
+	MemoryIndex(String name, String[] fields, boolean unique) {
+		this.name = name;
+		this.fields = fields;
+		this.unique = unique;
+	}
+
+	String getName() 		{ return name; }
+	String[] getFields() 	{ return fields; }
+	boolean isUnique() 		{ return unique; }
+
+	boolean covers(String[] fields) {
+		return Arrays.equals(this.fields, fields);
+	}
+
+	void add(Object id, DBObject doc) {
+		for (List<Object> key : keysOf(doc)) {
+			Set<Object> ids = entries.get(key);
+			if (ids == null) {
+				ids = new HashSet<Object>(2);
+				entries.put(key, ids);
+			}
+			ids.add(id);
+		}
+	}
+
+	void remove(Object id, DBObject doc) {
+		for (List<Object> key : keysOf(doc)) {
+			Set<Object> ids = entries.get(key);
+			if (ids != null) {
+				ids.remove(id);
+				if (ids.isEmpty())
+					entries.remove(key);
+			}
+		}
+	}
+
+	/** @throws MongoException (duplicate key) if another document has the same key */
+	void checkUnique(Object id, DBObject doc) {
+		if (!unique)
+			return;
+		for (List<Object> key : keysOf(doc)) {
+			Set<Object> ids = entries.get(key);
+			if (ids != null && (ids.size() > 1 || !ids.contains(id)))
+				throw new MongoException(DUPLICATE_KEY, "E11000 duplicate key error index: " + name + "  dup key: " + key);
+		}
+	}
+
+	/** The keys of the document: one per combination of (array) values */
+	private List<List<Object>> keysOf(DBObject doc) {
+		List<List<Object>> keys = new ArrayList<List<Object>>();
+		keys.add(new ArrayList<Object>(fields.length));
+		for (String field : fields) {
+			List<Object> values = new ArrayList<Object>();
+			for (Object v : Documents.values(doc, field))
+				if (Documents.isList(v))
+					values.addAll(Documents.asList(v));
+				else
+					values.add(v);
+			if (values.isEmpty())
+				values.add(null);
+
+			List<List<Object>> next = new ArrayList<List<Object>>(keys.size() * values.size());
+			for (List<Object> key : keys)
+				for (Object v : values) {
+					List<Object> k = new ArrayList<Object>(key);
+					k.add(v);
+					next.add(k);
+				}
+			keys = next;
+		}
+		return keys;
+	}
+
+	/**
+	 * @return the ids of the documents which may match the query, or null if the index cannot be used for it
+	 */
+	Set<Object> lookup(Object query) {
+		if (query == null)
+			return null;
+		List<List<Object>> prefixes = new ArrayList<List<Object>>();
+		prefixes.add(new ArrayList<Object>());
+		for (String field : fields) {
+			if (!Documents.containsKey(query, field))
+				break;
+			Collection<Object> values = equalityValues(Documents.get(query, field));
+			if (values == null)
+				break;
+			List<List<Object>> next = new ArrayList<List<Object>>();
+			for (List<Object> prefix : prefixes)
+				for (Object v : values) {
+					List<Object> p = new ArrayList<Object>(prefix);
+					p.add(v);
+					next.add(p);
+				}
+			prefixes = next;
+		}
+
+		Set<Object> ids = new HashSet<Object>();
+		if (prefixes.get(0).isEmpty()) {
+			//no equality on the first field; maybe a range
+			Object cond = Documents.containsKey(query, fields[0]) ? Documents.get(query, fields[0]) : null;
+			if (!isRange(cond))
+				return null;
+			Object from = Documents.MIN_KEY, to = Documents.MAX_KEY;
+			boolean fromInclusive = true, toInclusive = true;
+			for (String op : Documents.keys(cond)) {
+				Object arg = Documents.get(cond, op);
+				if (op.startsWith("$gt")) {
+					from = arg;
+					fromInclusive = "$gte".equals(op);
+				} else if (op.startsWith("$lt")) {
+					to = arg;
+					toInclusive = "$lte".equals(op);
+				}
+			}
+			List<Object> lo = new ArrayList<Object>();
+			lo.add(from);
+			lo.add(fromInclusive ? Documents.MIN_KEY : Documents.MAX_KEY);
+			List<Object> hi = new ArrayList<Object>();
+			hi.add(to);
+			hi.add(toInclusive ? Documents.MAX_KEY : Documents.MIN_KEY);
+			if (KEY_ORDER.compare(lo, hi) <= 0)
+				addAll(ids, entries.subMap(lo, true, hi, true));
+			return ids;
+		}
+
+		for (List<Object> prefix : prefixes) {
+			List<Object> lo = new ArrayList<Object>(prefix);
+			lo.add(Documents.MIN_KEY);
+			List<Object> hi = new ArrayList<Object>(prefix);
+			hi.add(Documents.MAX_KEY);
+			addAll(ids, entries.subMap(lo, true, hi, true));
+		}
+		return ids;
+	}
+
+	private static void addAll(Set<Object> ids, Map<List<Object>, Set<Object>> found) {
+		for (Set<Object> s : found.values())
+			ids.addAll(s);
+	}
+
+	/** @return the values the condition matches by equality, or null if it is not an equality (or $in) */
+	private static Collection<Object> equalityValues(Object cond) {
+		if (cond instanceof Pattern || Documents.isList(cond))
+			return null;
+		if (Documents.isDocument(cond)) {
+			if (!QueryMatcher.isOperatorDocument(cond) || Documents.keys(cond).size() != 1)
+				return null;
+			String op = Documents.keys(cond).iterator().next();
+			Object arg = Documents.get(cond, op);
+			if ("$eq".equals(op))
+				return equalityValues(arg);
+			if (!"$in".equals(op))
+				return null;
+			List<Object> values = Documents.asList(arg);
+			for (Object v : values)
+				if (v instanceof Pattern || Documents.isList(v) || Documents.isDocument(v))
+					return null;
+			return values;
+		}
+		List<Object> single = new ArrayList<Object>(1);
+		single.add(cond);
+		return single;
+	}
+
+	private static boolean isRange(Object cond) {
+		if (!QueryMatcher.isOperatorDocument(cond))
+			return false;
+		for (String op : Documents.keys(cond))
+			if (!op.equals("$gt") && !op.equals("$gte") && !op.equals("$lt") && !op.equals("$lte"))
+				return false;
+		return true;
+	}
+
+	int size() {
+		return entries.size();
+	}
+}
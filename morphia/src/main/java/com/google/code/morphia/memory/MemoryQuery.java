@@ -0,0 +1,137 @@
+package com.google.code.morphia.memory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.code.morphia.Key;
+import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.mapping.cache.EntityCache;
+import com.google.code.morphia.query.BatchHandler;
+import com.google.code.morphia.query.MorphiaIterator;
+import com.google.code.morphia.query.Query;
+import com.google.code.morphia.query.QueryImpl;
+import com.google.code.morphia.query.QuerySubscriber;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * A query of an {@link InMemoryDatastore}; it is built like any other query, and run against the in-memory collection
+ * instead of a cursor. Results are read when the query is run, so iterating them never sees later writes.
+ *
+ * @param <T> The type we will be querying for, and returning.
+ */
+public class MemoryQuery<T> extends QueryImpl<T> {
+	private final String kind;
+	private final InMemoryDatastore ds;
+
+	public MemoryQuery(Class<T> clazz, String kind, InMemoryDatastore ds) {
+		super(clazz, null, ds);
+		this.kind = kind;
+		this.ds = ds;
+	}
+
+	public MemoryQuery(Class<T> clazz, String kind, InMemoryDatastore ds, DBObject baseQuery) {
+		this(clazz, kind, ds);
+		setQueryObject(baseQuery);
+	}
+
+	@Override
+	protected QueryImpl<T> newQuery() {
+		return new MemoryQuery<T>(getEntityClass(), kind, ds);
+	}
+
+	/** The name of the (in-memory) collection queried */
+	public String getKind() {
+		return kind;
+	}
+
+	/** @return how the query is run: the index used ({@code cursor}), and the documents looked at and matched */
+	public DBObject explain() {
+		return ds.collection(kind).explain(getQueryObject());
+	}
+
+	/** The (copied) documents matched, sorted and limited */
+	List<DBObject> find() {
+		return ds.collection(kind).find(getQueryObject(), getFieldsObject(), getSortObject(), getOffset(), getLimit());
+	}
+
+	@Override
+	public long countAll() {
+		return ds.collection(kind).count(getQueryObject());
+	}
+
+	@Override
+	public Iterable<T> fetch() {
+		Mapper mapr = ds.getMapper();
+		return new MorphiaIterator<T, T>(find().iterator(), mapr, getEntityClass(), kind, mapr.createEntityCache());
+	}
+
+	@Override
+	public Iterable<Key<T>> fetchKeys() {
+		DBObject fields = new BasicDBObject(Mapper.ID_KEY, 1);
+		List<DBObject> docs = ds.collection(kind).find(getQueryObject(), fields, getSortObject(), getOffset(), getLimit());
+		List<Key<T>> keys = new ArrayList<Key<T>>(docs.size());
+		for (DBObject dbObj : docs) {
+			Key<T> key = new Key<T>(kind, dbObj.get(Mapper.ID_KEY));
+			key.setKindClass(getEntityClass());
+			keys.add(key);
+		}
+		return keys;
+	}
+
+	@Override
+	public List<T> asList() {
+		List<T> results = new ArrayList<T>();
+		for (T ent : fetch())
+			results.add(ent);
+		return results;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void forEachBatch(int batchSize, BatchHandler<T> handler) {
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("batchSize must be positive, not " + batchSize);
+
+		Mapper mapr = ds.getMapper();
+		List<T> batch = new ArrayList<T>(batchSize);
+		EntityCache batchCache = null;
+		for (DBObject dbObj : find()) {
+			if (batch.isEmpty())
+				batchCache = mapr.createEntityCache();
+			batch.add((T) mapr.fromDBObject(getEntityClass(), dbObj, batchCache));
+			if (batch.size() == batchSize) {
+				handler.handle(batch);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty())
+			handler.handle(batch);
+	}
+
+	@Override
+	public DBCursor prepareCursor() {
+		throw unsupported("cursors");
+	}
+
+	@Override
+	public void subscribe(QuerySubscriber<T> subscriber) {
+		throw unsupported("subscriptions");
+	}
+
+	@Override
+	public List<Query<T>> partition(int partitions) {
+		throw unsupported("partitioned queries");
+	}
+
+	@Override
+	public Iterator<T> tail(boolean awaitData) {
+		throw unsupported("tailable queries");
+	}
+
+	private static UnsupportedOperationException unsupported(String what) {
+		return new UnsupportedOperationException("The in-memory datastore does not support " + what + ".");
+	}
+}
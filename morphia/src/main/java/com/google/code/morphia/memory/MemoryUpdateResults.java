@@ -0,0 +1,40 @@
+package com.google.code.morphia.memory;
+
+import com.google.code.morphia.query.UpdateResults;
+
+/**
+ * The results of an update of an {@link InMemoryDatastore}; there is no {@link com.mongodb.WriteResult}, so
+ * {@link #getWriteResult()} is null.
+ */
+public class MemoryUpdateResults<T> extends UpdateResults<T> {
+	private final int n;
+	private final boolean updatedExisting;
+	private final Object newId;
+
+	MemoryUpdateResults(MemoryCollection.WriteOutcome outcome) {
+		super(null);
+		this.n = outcome.n;
+		this.updatedExisting = outcome.updatedExisting;
+		this.newId = outcome.upserted;
+	}
+
+	@Override
+	public String getError() {
+		return null;
+	}
+
+	@Override
+	public boolean getUpdatedExisting() {
+		return updatedExisting;
+	}
+
+	@Override
+	protected int getN() {
+		return n;
+	}
+
+	@Override
+	public Object getNewId() {
+		return newId;
+	}
+}
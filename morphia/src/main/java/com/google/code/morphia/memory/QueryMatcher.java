@@ -0,0 +1,210 @@
+package com.google.code.morphia.memory;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.bson.types.ObjectId;
+
+import com.google.code.morphia.query.FilterOperator;
+
+/**
+ * Evaluates query documents (as built by {@link com.google.code.morphia.query.QueryImpl}) against stored documents:
+ * equality, the comparison and set operators, {@code $exists}, {@code $all}, {@code $size}, {@code $type},
+ * {@code $mod}, {@code $not}, {@code $elemMatch}, regular expressions, dotted paths, and {@code $or}/{@code $and}/
+ * {@code $nor}. {@code $where} and the geo operators need a server, and are rejected.
+ */
+final class QueryMatcher {
+	private QueryMatcher() {}
+
+	static boolean matches(Object query, Object doc) {
+		if (query == null)
+			return true;
+		for (String key : Documents.keys(query)) {
+			Object cond = Documents.get(query, key);
+			if ("$or".equals(key)) {
+				if (!any(cond, doc))
+					return false;
+			} else if ("$and".equals(key)) {
+				for (Object clause : Documents.asList(cond))
+					if (!matches(clause, doc))
+						return false;
+			} else if ("$nor".equals(key)) {
+				if (any(cond, doc))
+					return false;
+			} else if ("$atomic".equals(key) || "$isolated".equals(key))
+				continue; //every write is isolated here
+			else if (key.startsWith("$"))
+				throw unsupported(key);
+			else if (!matchesField(Documents.values(doc, key), cond))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean any(Object clauses, Object doc) {
+		for (Object clause : Documents.asList(clauses))
+			if (matches(clause, doc))
+				return true;
+		return false;
+	}
+
+	/** @param values the values at the path of the condition (none if missing) */
+	static boolean matchesField(List<Object> values, Object cond) {
+		if (isOperatorDocument(cond)) {
+			for (String op : Documents.keys(cond))
+				if (!matchesOperator(values, op, Documents.get(cond, op)))
+					return false;
+			return true;
+		}
+		return matchesValue(values, cond);
+	}
+
+	/** @return true if it is a non-empty document of $operators */
+	static boolean isOperatorDocument(Object cond) {
+		if (!Documents.isDocument(cond) || Documents.keys(cond).isEmpty())
+			return false;
+		for (String k : Documents.keys(cond))
+			if (!k.startsWith("$"))
+				return false;
+		return true;
+	}
+
+	/** Equality (or regex) match; an array matches if it, or any of its elements, matches */
+	private static boolean matchesValue(List<Object> values, Object cond) {
+		if (cond == null) {
+			if (values.isEmpty())
+				return true;
+			for (Object v : values)
+				if (v == null)
+					return true;
+			return false;
+		}
+		for (Object v : values) {
+			if (matchesSingle(v, cond))
+				return true;
+			if (Documents.isList(v))
+				for (Object e : Documents.asList(v))
+					if (matchesSingle(e, cond))
+						return true;
+		}
+		return false;
+	}
+
+	private static boolean matchesSingle(Object v, Object cond) {
+		if (cond instanceof Pattern)
+			return v instanceof String && ((Pattern) cond).matcher((String) v).find() || (v instanceof Pattern && v.toString().equals(cond.toString()));
+		return Documents.equal(v, cond);
+	}
+
+	/** The values, with the elements of arrays added (for the operators which look inside arrays) */
+	private static List<Object> expand(List<Object> values) {
+		List<Object> all = new ArrayList<Object>(values);
+		for (Object v : values)
+			if (Documents.isList(v))
+				all.addAll(Documents.asList(v));
+		return all;
+	}
+
+	private static boolean matchesOperator(List<Object> values, String op, Object arg) {
+		FilterOperator fo = FilterOperator.fromString(op);
+		if (fo == null)
+			throw unsupported(op);
+		switch (fo) {
+			case EQUAL:
+				return matchesValue(values, arg);
+			case NOT_EQUAL:
+				return !matchesValue(values, arg);
+			case GREATER_THAN:
+			case GREATER_THAN_OR_EQUAL:
+			case LESS_THAN:
+			case LESS_THAN_OR_EQUAL:
+				for (Object v : expand(values)) {
+					if (!Documents.comparable(v, arg))
+						continue;
+					int c = Documents.compare(v, arg);
+					if (fo == FilterOperator.GREATER_THAN ? c > 0 : fo == FilterOperator.GREATER_THAN_OR_EQUAL ? c >= 0
+							: fo == FilterOperator.LESS_THAN ? c < 0 : c <= 0)
+						return true;
+				}
+				return false;
+			case IN:
+				for (Object e : Documents.asList(arg))
+					if (matchesValue(values, e))
+						return true;
+				return false;
+			case NOT_IN:
+				for (Object e : Documents.asList(arg))
+					if (matchesValue(values, e))
+						return false;
+				return true;
+			case ALL:
+				for (Object e : Documents.asList(arg))
+					if (!matchesValue(values, e))
+						return false;
+				return true;
+			case EXISTS:
+				return !values.isEmpty() == isTrue(arg);
+			case SIZE:
+				for (Object v : values)
+					if (Documents.isList(v) && Documents.asList(v).size() == ((Number) arg).intValue())
+						return true;
+				return false;
+			case TYPE:
+				for (Object v : expand(values))
+					if (bsonType(v) == ((Number) arg).intValue())
+						return true;
+				return false;
+			case MOD: {
+				List<Object> mod = Documents.asList(arg);
+				long divisor = ((Number) mod.get(0)).longValue(), remainder = ((Number) mod.get(1)).longValue();
+				for (Object v : expand(values))
+					if (v instanceof Number && ((Number) v).longValue() % divisor == remainder)
+						return true;
+				return false;
+			}
+			case NOT:
+				return arg instanceof Pattern ? !matchesValue(values, arg) : !matchesField(values, arg);
+			case ELEMENT_MATCH:
+				for (Object v : values)
+					if (Documents.isList(v))
+						for (Object e : Documents.asList(v))
+							if (isOperatorDocument(arg) ? matchesField(single(e), arg) : Documents.isDocument(e) && matches(arg, e))
+								return true;
+				return false;
+			default:
+				throw unsupported(op);
+		}
+	}
+
+	private static List<Object> single(Object e) {
+		List<Object> l = new ArrayList<Object>(1);
+		l.add(e);
+		return l;
+	}
+
+	private static boolean isTrue(Object arg) {
+		return arg instanceof Boolean ? (Boolean) arg : arg instanceof Number ? ((Number) arg).intValue() != 0 : arg != null;
+	}
+
+	private static int bsonType(Object v) {
+		if (v instanceof Double || v instanceof Float) return 1;
+		if (v instanceof String) return 2;
+		if (Documents.isDocument(v)) return 3;
+		if (Documents.isList(v)) return 4;
+		if (v instanceof byte[]) return 5;
+		if (v instanceof ObjectId) return 7;
+		if (v instanceof Boolean) return 8;
+		if (v instanceof Date) return 9;
+		if (v == null) return 10;
+		if (v instanceof Pattern) return 11;
+		if (v instanceof Integer || v instanceof Short || v instanceof Byte) return 16;
+		if (v instanceof Long) return 18;
+		return -1;
+	}
+
+	private static UnsupportedOperationException unsupported(String op) {
+		return new UnsupportedOperationException("The operator " + op + " is not supported by the in-memory datastore.");
+	}
+}
@@ -0,0 +1,64 @@
+package com.google.code.morphia.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A lock-free histogram of nanosecond latencies, in power-of-two buckets; bucket i counts values in
+ * [2<sup>i-1</sup>, 2<sup>i</sup>). Percentiles are reported as the upper bound of their bucket, so are at most 2x high.</p>
+ */
+public class LatencyHistogram {
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		buckets.incrementAndGet(bucket(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long m = max.get();
+		while (nanos > m && !max.compareAndSet(m, nanos))
+			m = max.get();
+	}
+
+	static int bucket(long nanos) {
+		return Math.min(BUCKETS - 1, BUCKETS - Long.numberOfLeadingZeros(nanos));
+	}
+
+	public long getCount() 			{ return count.get(); }
+	public long getTotalNanos() 	{ return total.get(); }
+	public long getMaxNanos() 		{ return max.get(); }
+
+	public long getMeanNanos() {
+		long c = count.get();
+		return c == 0 ? 0 : total.get() / c;
+	}
+
+	/** @param percentile between 0 and 100 */
+	public long getPercentileNanos(double percentile) {
+		long c = count.get();
+		if (c == 0)
+			return 0;
+		long target = (long) Math.ceil(c * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= target)
+				return Math.min(i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1, max.get());
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			buckets.set(i, 0);
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+}
@@ -0,0 +1,9 @@
+package com.google.code.morphia.metrics;
+
+/**
+ * Told about every measured operation, to forward them to another metrics system. Called on the thread which ran the
+ * operation, so implementations must be thread-safe and quick.
+ */
+public interface MetricsListener {
+	void onOperation(OperationEvent event);
+}
@@ -0,0 +1,175 @@
+package com.google.code.morphia.metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.code.morphia.logging.Logr;
+import com.google.code.morphia.logging.MorphiaLoggerFactory;
+
+/**
+ * <p>
+ * Collects the {@link OperationStats} of a datastore, per operation, collection and entity class, and passes each
+ * {@link OperationEvent} on to the {@link MetricsListener}s.
+ * </p>
+ * <p>
+ * Once {@link #registerMBeans(MBeanServer)} is called, each {@link OperationStats} (including those created later) is
+ * registered as {@code com.google.code.morphia:type=Operations,datastore=...,collection=...,entity=...,operation=...}.
+ * </p>
+ * <p>
+ * With a {@link SlowOperationDetector}, slow operations are also logged, with their call site (and query shape).
+ * </p>
+ */
+public class MorphiaMetrics {
+	private static final Logr log = MorphiaLoggerFactory.get(MorphiaMetrics.class);
+
+	public static final String JMX_DOMAIN = "com.google.code.morphia";
+
+	private final String name;
+	//by collection, then entity class (NO_CLASS for none), then operation type (ordinal); found without building keys
+	private final ConcurrentHashMap<String, ConcurrentHashMap<Object, AtomicReferenceArray<OperationStats>>> stats = 
+		new ConcurrentHashMap<String, ConcurrentHashMap<Object, AtomicReferenceArray<OperationStats>>>();
+	private static final Object NO_CLASS = new Object();
+	private final List<MetricsListener> listeners = new CopyOnWriteArrayList<MetricsListener>();
+	private final List<ObjectName> registered = new ArrayList<ObjectName>();
+	private volatile boolean enabled = true;
+	private MBeanServer server;
+	private volatile SlowOperationDetector slowDetector;
+
+	/** @param name identifies the datastore (usually the database name) in the JMX names */
+	public MorphiaMetrics(String name) {
+		this.name = name;
+	}
+
+	public boolean isEnabled() 				{ return enabled; }
+	/** Turns measuring (and the listeners) on or off; on by default */
+	public void setEnabled(boolean enabled) { this.enabled = enabled; }
+
+	public void addListener(MetricsListener listener) 		{ listeners.add(listener); }
+	public void removeListener(MetricsListener listener) 	{ listeners.remove(listener); }
+
+	/** @return the detector, or null if slow operations are not looked for */
+	public SlowOperationDetector getSlowOperationDetector() 				{ return slowDetector; }
+	public void setSlowOperationDetector(SlowOperationDetector detector) 	{ this.slowDetector = detector; }
+
+	/** Records a write (or other operation without a query) which started at {@code startNanos} */
+	public void record(OperationType type, String collection, Class<?> entityClass, long startNanos, long mappingNanos, long documents) {
+		if (!enabled)
+			return;
+		long elapsed = System.nanoTime() - startNanos;
+		SlowOperationDetector detector = slowDetector;
+		SlowOperation slow = null;
+		if (detector != null && detector.isSlow(elapsed))
+			slow = new SlowOperation(type, collection, entityClass, elapsed, SlowOperationDetector.callSite());
+		record(new OperationEvent(type, collection, entityClass, elapsed - mappingNanos, mappingNanos, documents, 0, 0, 0, slow));
+	}
+
+	public void record(OperationEvent event) {
+		if (!enabled)
+			return;
+		if (event.getSlowOperation() != null)
+			log.warning("Slow operation: " + event.getSlowOperation());
+		getOrCreate(event.getType(), event.getCollection(), event.getEntityClass()).record(event);
+		for (MetricsListener l : listeners) {
+			try {
+				l.onOperation(event);
+			} catch (RuntimeException e) {
+				log.error("MetricsListener " + l + " threw an exception.", e);
+			}
+		}
+	}
+
+	/** @return the stats, or null if there has been no such operation */
+	public OperationStats getStats(OperationType type, String collection, Class<?> entityClass) {
+		ConcurrentHashMap<Object, AtomicReferenceArray<OperationStats>> byClass = stats.get(collection == null ? "" : collection);
+		AtomicReferenceArray<OperationStats> byType = byClass == null ? null : byClass.get(entityClass == null ? NO_CLASS : entityClass);
+		return byType == null ? null : byType.get(type.ordinal());
+	}
+
+	public Collection<OperationStats> getAllStats() {
+		List<OperationStats> all = new ArrayList<OperationStats>();
+		for (ConcurrentHashMap<Object, AtomicReferenceArray<OperationStats>> byClass : stats.values())
+			for (AtomicReferenceArray<OperationStats> byType : byClass.values())
+				for (int i = 0; i < byType.length(); i++)
+					if (byType.get(i) != null)
+						all.add(byType.get(i));
+		return all;
+	}
+
+	public void reset() {
+		for (OperationStats s : getAllStats())
+			s.reset();
+	}
+
+	/** Registers every {@link OperationStats}, now and as they are created, with the server */
+	public synchronized void registerMBeans(MBeanServer server) {
+		this.server = server;
+		for (OperationStats s : getAllStats())
+			register(s);
+	}
+
+	public synchronized void unregisterMBeans() {
+		if (server == null)
+			return;
+		for (ObjectName on : registered) {
+			try {
+				server.unregisterMBean(on);
+			} catch (JMException e) {
+				log.warning("Could not unregister " + on + ": " + e);
+			}
+		}
+		registered.clear();
+		server = null;
+	}
+
+	private OperationStats getOrCreate(OperationType type, String collection, Class<?> entityClass) {
+		String coll = collection == null ? "" : collection;
+		ConcurrentHashMap<Object, AtomicReferenceArray<OperationStats>> byClass = stats.get(coll);
+		if (byClass == null) {
+			byClass = new ConcurrentHashMap<Object, AtomicReferenceArray<OperationStats>>();
+			ConcurrentHashMap<Object, AtomicReferenceArray<OperationStats>> temp = stats.putIfAbsent(coll, byClass);
+			if (temp != null) byClass = temp;
+		}
+		Object clazz = entityClass == null ? NO_CLASS : entityClass;
+		AtomicReferenceArray<OperationStats> byType = byClass.get(clazz);
+		if (byType == null) {
+			byType = new AtomicReferenceArray<OperationStats>(OperationType.values().length);
+			AtomicReferenceArray<OperationStats> temp = byClass.putIfAbsent(clazz, byType);
+			if (temp != null) byType = temp;
+		}
+		OperationStats s = byType.get(type.ordinal());
+		if (s == null) {
+			s = new OperationStats(type, collection, entityClass);
+			if (!byType.compareAndSet(type.ordinal(), null, s))
+				return byType.get(type.ordinal());
+			synchronized (this) {
+				if (server != null)
+					register(s);
+			}
+		}
+		return s;
+	}
+
+	private void register(OperationStats s) {
+		try {
+			ObjectName on = new ObjectName(JMX_DOMAIN + ":type=Operations"
+					+ ",datastore=" + ObjectName.quote(String.valueOf(name))
+					+ ",collection=" + ObjectName.quote(String.valueOf(s.getCollection()))
+					+ ",entity=" + ObjectName.quote(String.valueOf(s.getEntityClass()))
+					+ ",operation=" + s.getOperation());
+			if (!server.isRegistered(on)) {
+				server.registerMBean(s, on);
+				registered.add(on);
+			}
+		} catch (JMException e) {
+			log.warning("Could not register the MBean for " + s + ": " + e);
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package com.google.code.morphia.metrics;
+
+/**
+ * <p>One measured operation. Driver time is the time spent in the driver (and waiting on the server); mapping time is the
+ * time spent converting between entities and {@link com.mongodb.DBObject}s.</p>
+ * <p>Bytes are only known for documents read with a lazy decoder ({@link org.bson.LazyBSONObject}); otherwise they are 0.</p>
+ */
+public class OperationEvent {
+	private final OperationType type;
+	private final String collection;
+	private final Class<?> entityClass;
+	private final long driverNanos;
+	private final long mappingNanos;
+	private final long documents;
+	private final long bytes;
+	private final long cacheHits;
+	private final long cacheMisses;
+	private final SlowOperation slowOperation;
+
+	public OperationEvent(OperationType type, String collection, Class<?> entityClass, long driverNanos, long mappingNanos,
+			long documents, long bytes, long cacheHits, long cacheMisses) {
+		this(type, collection, entityClass, driverNanos, mappingNanos, documents, bytes, cacheHits, cacheMisses, null);
+	}
+
+	public OperationEvent(OperationType type, String collection, Class<?> entityClass, long driverNanos, long mappingNanos,
+			long documents, long bytes, long cacheHits, long cacheMisses, SlowOperation slowOperation) {
+		this.type = type;
+		this.collection = collection;
+		this.entityClass = entityClass;
+		this.driverNanos = driverNanos;
+		this.mappingNanos = mappingNanos;
+		this.documents = documents;
+		this.bytes = bytes;
+		this.cacheHits = cacheHits;
+		this.cacheMisses = cacheMisses;
+		this.slowOperation = slowOperation;
+	}
+
+	public OperationType getType() 		{ return type; }
+	public String getCollection() 		{ return collection; }
+	/** @return the entity class, or null if not known */
+	public Class<?> getEntityClass() 	{ return entityClass; }
+	public long getDriverNanos() 		{ return driverNanos; }
+	public long getMappingNanos() 		{ return mappingNanos; }
+	public long getDocuments() 			{ return documents; }
+	public long getBytes() 				{ return bytes; }
+	public long getCacheHits() 			{ return cacheHits; }
+	public long getCacheMisses() 		{ return cacheMisses; }
+	/** @return the details of the operation if it was slow, or null */
+	public SlowOperation getSlowOperation() { return slowOperation; }
+
+	@Override
+	public String toString() {
+		return type + "(" + collection + ") driver:" + driverNanos + "ns, mapping:" + mappingNanos + "ns, docs:" + documents;
+	}
+}
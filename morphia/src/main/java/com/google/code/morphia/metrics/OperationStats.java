@@ -0,0 +1,78 @@
+package com.google.code.morphia.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The totals for one {@link OperationType} on one collection and entity class.
+ */
+public class OperationStats implements OperationStatsMBean {
+	private final OperationType type;
+	private final String collection;
+	private final Class<?> entityClass;
+
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong documents = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+	private final LatencyHistogram driver = new LatencyHistogram();
+	private final LatencyHistogram mapping = new LatencyHistogram();
+
+	public OperationStats(OperationType type, String collection, Class<?> entityClass) {
+		this.type = type;
+		this.collection = collection;
+		this.entityClass = entityClass;
+	}
+
+	void record(OperationEvent e) {
+		count.incrementAndGet();
+		documents.addAndGet(e.getDocuments());
+		bytes.addAndGet(e.getBytes());
+		cacheHits.addAndGet(e.getCacheHits());
+		cacheMisses.addAndGet(e.getCacheMisses());
+		driver.record(e.getDriverNanos());
+		mapping.record(e.getMappingNanos());
+	}
+
+	public OperationType getType() 				{ return type; }
+	public LatencyHistogram getDriverLatency() 	{ return driver; }
+	public LatencyHistogram getMappingLatency() { return mapping; }
+
+	public String getOperation() 		{ return type.name(); }
+	public String getCollection() 		{ return collection; }
+	public String getEntityClass() 		{ return entityClass == null ? null : entityClass.getName(); }
+
+	public long getCount() 				{ return count.get(); }
+	public long getDocuments() 			{ return documents.get(); }
+	public long getBytes() 				{ return bytes.get(); }
+
+	public double getMeanDriverMicros() { return driver.getMeanNanos() / 1000.0; }
+	public double getP50DriverMicros() 	{ return driver.getPercentileNanos(50) / 1000.0; }
+	public double getP99DriverMicros() 	{ return driver.getPercentileNanos(99) / 1000.0; }
+	public double getMaxDriverMicros() 	{ return driver.getMaxNanos() / 1000.0; }
+
+	public double getMeanMappingMicros(){ return mapping.getMeanNanos() / 1000.0; }
+	public double getP99MappingMicros() { return mapping.getPercentileNanos(99) / 1000.0; }
+
+	public double getCacheHitRate() {
+		long hits = cacheHits.get(), lookups = hits + cacheMisses.get();
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	public void reset() {
+		count.set(0);
+		documents.set(0);
+		bytes.set(0);
+		cacheHits.set(0);
+		cacheMisses.set(0);
+		driver.reset();
+		mapping.reset();
+	}
+
+	@Override
+	public String toString() {
+		return type + "(" + collection + (entityClass == null ? "" : ", " + entityClass.getSimpleName()) + "): " + count + " calls, "
+				+ documents + " docs, driver mean " + getMeanDriverMicros() + "us p99 " + getP99DriverMicros() + "us, mapping mean "
+				+ getMeanMappingMicros() + "us";
+	}
+}
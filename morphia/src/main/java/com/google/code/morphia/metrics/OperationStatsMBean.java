@@ -0,0 +1,27 @@
+package com.google.code.morphia.metrics;
+
+/**
+ * The JMX view of the {@link OperationStats} for one operation on one collection (and entity class).
+ */
+public interface OperationStatsMBean {
+	String getOperation();
+	String getCollection();
+	String getEntityClass();
+
+	long getCount();
+	long getDocuments();
+	long getBytes();
+
+	double getMeanDriverMicros();
+	double getP50DriverMicros();
+	double getP99DriverMicros();
+	double getMaxDriverMicros();
+
+	double getMeanMappingMicros();
+	double getP99MappingMicros();
+
+	/** @return the fraction of {@link com.google.code.morphia.mapping.cache.EntityCache} lookups which hit, or 0 if none */
+	double getCacheHitRate();
+
+	void reset();
+}
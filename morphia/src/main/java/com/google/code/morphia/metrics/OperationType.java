@@ -0,0 +1,8 @@
+package com.google.code.morphia.metrics;
+
+/**
+ * The kinds of {@link com.google.code.morphia.Datastore} operations which are measured.
+ */
+public enum OperationType {
+	FIND, GET, COUNT, INSERT, SAVE, UPDATE, DELETE, FIND_AND_MODIFY, MAP_REDUCE, ENSURE_INDEX, AGGREGATE
+}
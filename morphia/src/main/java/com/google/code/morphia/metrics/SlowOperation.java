@@ -0,0 +1,127 @@
+package com.google.code.morphia.metrics;
+
+import java.util.List;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * <p>
+ * An operation which took longer than the {@link SlowOperationDetector} threshold: where it was called from, and the
+ * shape of its query. The query shape keeps the fields and operators, but every value is replaced by {@code "?"}, so it
+ * can be logged without leaking data and slow operations can be grouped by shape.
+ * </p>
+ * <p>
+ * Only operations run by a query have a query, fields, sort, limit or hint; the explain output is only there for the
+ * (sampled) reads which were explained, and only its plan summary is kept (its bounds and parsed query have the values).
+ * </p>
+ */
+public class SlowOperation {
+	private static final String REDACTED = "?";
+	/** The explain() output kept; they have no query values */
+	private static final String[] EXPLAIN_SUMMARY = {"cursor", "isMultiKey", "n", "nscannedObjects", "nscanned", "scanAndOrder", "indexOnly", "millis"};
+
+	private final OperationType type;
+	private final String collection;
+	private final Class<?> entityClass;
+	private final long elapsedNanos;
+	private final StackTraceElement callSite;
+	private final DBObject queryShape;
+	private final DBObject fields;
+	private final DBObject sort;
+	private final int limit;
+	private final String hint;
+	private final DBObject explain;
+
+	public SlowOperation(OperationType type, String collection, Class<?> entityClass, long elapsedNanos, StackTraceElement callSite) {
+		this(type, collection, entityClass, elapsedNanos, callSite, null, null, null, -1, null, null);
+	}
+
+	public SlowOperation(OperationType type, String collection, Class<?> entityClass, long elapsedNanos, StackTraceElement callSite,
+			DBObject query, DBObject fields, DBObject sort, int limit, String hint, DBObject explain) {
+		this.type = type;
+		this.collection = collection;
+		this.entityClass = entityClass;
+		this.elapsedNanos = elapsedNanos;
+		this.callSite = callSite;
+		this.queryShape = query == null ? null : shapeOf(query);
+		this.fields = fields;
+		this.sort = sort;
+		this.limit = limit;
+		this.hint = hint;
+		this.explain = explain == null ? null : summaryOf(explain);
+	}
+
+	public OperationType getType() 			{ return type; }
+	public String getCollection() 			{ return collection; }
+	public Class<?> getEntityClass() 		{ return entityClass; }
+	public long getElapsedNanos() 			{ return elapsedNanos; }
+	/** @return the first caller outside of morphia, or null if not known */
+	public StackTraceElement getCallSite() 	{ return callSite; }
+	/** @return the query with its values redacted, or null */
+	public DBObject getQueryShape() 		{ return queryShape; }
+	public DBObject getFields() 			{ return fields; }
+	public DBObject getSort() 				{ return sort; }
+	/** @return the limit, or a negative value if there is none */
+	public int getLimit() 					{ return limit; }
+	public String getHint() 				{ return hint; }
+	/** @return the summary of the explain() output (cursor, nscanned, n, millis, ...), or null if it was not sampled */
+	public DBObject getExplain() 			{ return explain; }
+
+	/** Copies the query, replacing each value by "?"; operators, fields and the nesting of $and/$or/$nor/$elemMatch are kept. */
+	@SuppressWarnings("unchecked")
+	public static DBObject shapeOf(DBObject query) {
+		BasicDBObject shape = new BasicDBObject();
+		for (String key : query.keySet()) {
+			Object val = query.get(key);
+			if (val instanceof List && key.startsWith("$") && isAllDocuments((List<Object>) val)) {
+				BasicDBList clauses = new BasicDBList();
+				for (Object clause : (List<Object>) val)
+					clauses.add(shapeOf((DBObject) clause));
+				shape.put(key, clauses);
+			} else if (val instanceof DBObject && !(val instanceof List))
+				shape.put(key, shapeOf((DBObject) val));
+			else
+				shape.put(key, REDACTED);
+		}
+		return shape;
+	}
+
+	/** Copies the plan summary of the explain() output, which has no query values; unlike the index bounds and parsed query */
+	public static DBObject summaryOf(DBObject explain) {
+		BasicDBObject summary = new BasicDBObject();
+		for (String key : EXPLAIN_SUMMARY)
+			if (explain.containsField(key))
+				summary.put(key, explain.get(key));
+		return summary;
+	}
+
+	private static boolean isAllDocuments(List<Object> values) {
+		for (Object o : values)
+			if (!(o instanceof DBObject) || o instanceof List)
+				return false;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(type).append("(").append(collection).append(") took ").append(elapsedNanos / 1000000).append("ms");
+		if (queryShape != null)
+			sb.append(", query:").append(queryShape);
+		if (fields != null)
+			sb.append(", fields:").append(fields);
+		if (sort != null)
+			sb.append(", sort:").append(sort);
+		if (limit > 0)
+			sb.append(", limit:").append(limit);
+		if (hint != null)
+			sb.append(", hint:").append(hint);
+		if (callSite != null)
+			sb.append("\r\n --@--").append(callSite);
+		if (explain != null)
+			sb.append("\r\n explain:").append(explain);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,67 @@
+package com.google.code.morphia.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.code.morphia.mapping.Mapper;
+
+/**
+ * <p>
+ * Decides which operations are slow (took at least the threshold, including mapping), and which of the slow reads are
+ * explained. Set it with {@link MorphiaMetrics#setSlowOperationDetector(SlowOperationDetector)}; slow operations are then
+ * logged (as warnings) and passed to the listeners with their {@link OperationEvent}.
+ * </p>
+ * <p>
+ * Explaining costs another round trip, so it is off by default; when on, only one in {@code oneIn} slow reads is
+ * explained, and at most {@code maxPerMinute} a minute.
+ * </p>
+ */
+public class SlowOperationDetector {
+	private static final long MINUTE = TimeUnit.MINUTES.toNanos(1);
+
+	private final long thresholdNanos;
+	private volatile int explainOneIn = 0;
+	private volatile int maxExplainsPerMinute = 0;
+
+	private final AtomicLong slowReads = new AtomicLong();
+	private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+	private final AtomicInteger windowExplains = new AtomicInteger();
+
+	public SlowOperationDetector(long threshold, TimeUnit unit) {
+		this.thresholdNanos = unit.toNanos(threshold);
+	}
+
+	/** Explains one in {@code oneIn} slow reads, but no more than {@code maxPerMinute}; 0 turns explaining off */
+	public SlowOperationDetector setExplainSampling(int oneIn, int maxPerMinute) {
+		this.explainOneIn = oneIn;
+		this.maxExplainsPerMinute = maxPerMinute;
+		return this;
+	}
+
+	public long getThresholdNanos() {
+		return thresholdNanos;
+	}
+
+	public boolean isSlow(long elapsedNanos) {
+		return elapsedNanos >= thresholdNanos;
+	}
+
+	/** Called once per slow read; true if this one should be explained */
+	public boolean shouldExplain() {
+		int oneIn = explainOneIn;
+		if (oneIn <= 0 || slowReads.incrementAndGet() % oneIn != 0)
+			return false;
+
+		long now = System.nanoTime();
+		long start = windowStart.get();
+		if (now - start >= MINUTE && windowStart.compareAndSet(start, now))
+			windowExplains.set(0);
+		return windowExplains.incrementAndGet() <= maxExplainsPerMinute;
+	}
+
+	/** @return the first caller outside of morphia (of the current thread), or null */
+	public static StackTraceElement callSite() {
+		return Mapper.getFirstClientLine(new Throwable());
+	}
+}
@@ -0,0 +1,98 @@
+package com.google.code.morphia.query;
+
+import org.bson.BasicBSONEncoder;
+import org.bson.LazyBSONObject;
+
+import com.mongodb.DBObject;
+
+/**
+ * Picks the size of the next cursor batch (getMore) from what the iteration has seen so far: as many documents as
+ * make the round trip a small share of the time it takes to map and consume them, but no more than fit in the
+ * memory budget. Fast scans get big batches (fewer round trips), slow consumers small ones (less held on the heap).
+ * One per cursor; not thread safe.
+ */
+class AdaptiveBatchSizer {
+	/** The server's first batch, when no batchSize is set */
+	static final int DEFAULT_FIRST_BATCH = 101;
+	/** The driver closes the cursor after a batch of 1 */
+	static final int MIN_BATCH = 2;
+	/** The share of the time spent on a batch the round trip may take */
+	static final double ROUND_TRIP_SHARE = 0.1;
+	/** How much a batch may grow from one to the next; shrinking is not damped */
+	static final int MAX_GROWTH = 4;
+	/** Documents which don't know their size are measured (encoded) one in this many */
+	static final int SIZE_SAMPLE_INTERVAL = 16;
+	private static final double WEIGHT = 0.25;
+
+	private final long memoryBudget;
+	private int batchSize;
+	private int seen = 0;
+	private long slowestCall = 0;
+	private double docBytes = -1;
+	private double docNanos = -1;
+	private double roundTripNanos = -1;
+
+	/**
+	 * @param memoryBudget the most bytes of documents a batch should hold
+	 * @param firstBatch the size of the first batch, or 0 for the server default
+	 */
+	AdaptiveBatchSizer(long memoryBudget, int firstBatch) {
+		if (memoryBudget <= 0)
+			throw new IllegalArgumentException("memoryBudget must be positive, not " + memoryBudget);
+		this.memoryBudget = memoryBudget;
+		this.batchSize = firstBatch > 0 ? firstBatch : DEFAULT_FIRST_BATCH;
+	}
+
+	/**
+	 * Records a document handed to the consumer.
+	 * @param driverNanos the time in the driver since the last document (includes the getMore, if there was one)
+	 * @param mappingNanos the time spent mapping the document
+	 * @param consumerNanos the time the consumer took with the last document, before asking for this one
+	 * @return the batch size to ask for from now on, or 0 to keep the current one
+	 */
+	int observe(DBObject doc, long driverNanos, long mappingNanos, long consumerNanos) {
+		if (doc instanceof LazyBSONObject)
+			docBytes = average(docBytes, ((LazyBSONObject) doc).getBSONSize());
+		else if (seen % SIZE_SAMPLE_INTERVAL == 0 && doc != null)
+			docBytes = average(docBytes, new BasicBSONEncoder().encode(doc).length);
+		docNanos = average(docNanos, mappingNanos + consumerNanos);
+		slowestCall = Math.max(slowestCall, driverNanos);
+
+		//one batch used up, the slowest call in it was the round trip
+		if (++seen < batchSize)
+			return 0;
+		roundTripNanos = average(roundTripNanos, slowestCall);
+		seen = 0;
+		slowestCall = 0;
+		int next = nextBatchSize();
+		if (next == batchSize)
+			return 0;
+		batchSize = next;
+		return next;
+	}
+
+	int nextBatchSize() {
+		double size = batchSize;
+		if (roundTripNanos > 0 && docNanos > 0)
+			size = roundTripNanos / (ROUND_TRIP_SHARE * docNanos);
+		else if (roundTripNanos > 0)
+			size = Double.MAX_VALUE;
+		size = Math.min(size, (double) batchSize * MAX_GROWTH);
+		if (docBytes > 0)
+			size = Math.min(size, memoryBudget / docBytes);
+		return (int) Math.max(MIN_BATCH, size);
+	}
+
+	int getBatchSize() {
+		return batchSize;
+	}
+
+	/** @return the average document size seen, or -1 */
+	double getAverageDocumentBytes() {
+		return docBytes;
+	}
+
+	private static double average(double avg, double sample) {
+		return avg < 0 ? sample : avg + WEIGHT * (sample - avg);
+	}
+}
@@ -0,0 +1,13 @@
+package com.google.code.morphia.query;
+
+import java.util.List;
+
+/**
+ * Receives the results of {@link QueryResults#forEachBatch(int, BatchHandler)}, one cursor batch at a time.
+ */
+public interface BatchHandler<T> {
+	/**
+	 * Handles one batch. The list is reused for the next batch, so copy anything which must outlive this call.
+	 */
+	void handle(List<T> batch);
+}
@@ -0,0 +1,135 @@
+package com.google.code.morphia.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+
+import com.google.code.morphia.mapping.Mapper;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * The continuation tokens of keyset paging: the sort values and {@code _id} of the last result of a page, BSON encoded
+ * (as hex), and the range query for the results after them.
+ */
+final class KeysetToken {
+	private KeysetToken() {}
+
+	/** @return the sort, with {@code _id} added (in the direction of the last key) to break ties */
+	static BasicDBObject keysOf(DBObject sort) {
+		BasicDBObject keys = new BasicDBObject();
+		Object lastDir = 1;
+		if (sort != null)
+			for (String key : sort.keySet()) {
+				lastDir = sort.get(key);
+				keys.put(key, lastDir);
+			}
+		if (!keys.containsField(Mapper.ID_KEY))
+			keys.put(Mapper.ID_KEY, lastDir);
+		return keys;
+	}
+
+	static String encode(DBObject keys, DBObject lastDoc) {
+		BasicDBList values = new BasicDBList();
+		for (String key : keys.keySet())
+			values.add(valueAt(lastDoc, key));
+		BasicDBObject token = new BasicDBObject("k", signature(keys)).append("v", values);
+		byte[] bytes = new BasicBSONEncoder().encode(token);
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	/** @return the sort values of the token; they must have been for the same keys */
+	static List<Object> decode(String token, DBObject keys) {
+		BSONObject decoded;
+		try {
+			if (token.length() % 2 != 0)
+				throw new IllegalArgumentException("odd length");
+			byte[] bytes = new byte[token.length() / 2];
+			for (int i = 0; i < bytes.length; i++)
+				bytes[i] = (byte) Integer.parseInt(token.substring(i * 2, i * 2 + 2), 16);
+			decoded = new BasicBSONDecoder().readObject(bytes);
+		} catch (RuntimeException e) {
+			decoded = null;
+		}
+		if (decoded == null || !(decoded.get("v") instanceof Iterable))
+			throw new QueryException("Invalid continuation token: " + token);
+		if (!signature(keys).equals(decoded.get("k")))
+			throw new QueryException("The continuation token was made for the order " + decoded.get("k") + ", not " + signature(keys));
+		List<Object> values = new ArrayList<Object>();
+		for (Object v : (Iterable<?>) decoded.get("v"))
+			values.add(v);
+		return values;
+	}
+
+	/**
+	 * The query for the results after the values, in the order of the keys:
+	 * {@code k1 > v1 or (k1 = v1 and k2 > v2) or ...}, which can be answered from an index on the keys.
+	 * <p>Null (or missing) sorts before any value, so after null ascending is any non-null value, after a value
+	 * descending includes null, and nothing is after null descending.</p>
+	 */
+	static DBObject after(DBObject query, DBObject keys, List<Object> values) {
+		List<String> names = new ArrayList<String>(keys.keySet());
+		BasicDBList or = new BasicDBList();
+		for (int i = 0; i < names.size(); i++) {
+			String name = names.get(i);
+			Object value = values.get(i);
+			boolean descending = ((Number) keys.get(name)).intValue() < 0;
+			if (descending && value == null)
+				continue;
+			BasicDBObject clause = new BasicDBObject();
+			//{k: null} also matches a missing k
+			for (int j = 0; j < i; j++)
+				clause.put(names.get(j), values.get(j));
+			if (value == null)
+				clause.put(name, new BasicDBObject("$ne", null));
+			else
+				clause.put(name, new BasicDBObject(descending ? "$lt" : "$gt", value));
+			or.add(clause);
+			if (descending) {
+				BasicDBObject nulls = new BasicDBObject();
+				for (int j = 0; j < i; j++)
+					nulls.put(names.get(j), values.get(j));
+				nulls.put(name, null);
+				or.add(nulls);
+			}
+		}
+		DBObject range = or.size() == 1 ? (DBObject) or.get(0) : new BasicDBObject("$or", or);
+		if (query == null || query.keySet().isEmpty())
+			return range;
+		BasicDBList and = new BasicDBList();
+		and.add(query);
+		and.add(range);
+		return new BasicDBObject("$and", and);
+	}
+
+	private static String signature(DBObject keys) {
+		StringBuilder sb = new StringBuilder();
+		for (String key : keys.keySet()) {
+			if (sb.length() > 0)
+				sb.append(',');
+			if (((Number) keys.get(key)).intValue() < 0)
+				sb.append('-');
+			sb.append(key);
+		}
+		return sb.toString();
+	}
+
+	private static Object valueAt(DBObject doc, String path) {
+		Object node = doc;
+		for (String part : path.split("\\.")) {
+			if (!(node instanceof DBObject) || node instanceof List)
+				return null;
+			node = ((DBObject) node).get(part);
+		}
+		return node;
+	}
+}
@@ -1,10 +1,21 @@
 package com.google.code.morphia.query;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
+import org.bson.LazyBSONObject;
+
 import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.mapping.cache.DocumentCache;
 import com.google.code.morphia.mapping.cache.EntityCache;
+import com.google.code.morphia.mapping.cache.EntityCacheStatistics;
+import com.google.code.morphia.metrics.MorphiaMetrics;
+import com.google.code.morphia.metrics.OperationEvent;
+import com.google.code.morphia.metrics.OperationType;
+import com.google.code.morphia.metrics.SlowOperation;
+import com.google.code.morphia.metrics.SlowOperationDetector;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 
@@ -18,9 +29,31 @@ public class MorphiaIterator<T, V> implements Iterable<V>, Iterator<V>{
 	protected final Mapper m;
 	protected final Class<T> clazz;
 	protected final String kind;
-	protected final EntityCache cache;
+	protected EntityCache cache;
 	protected long  driverTime = 0;
 	protected long  mapperTime= 0;
+	protected DBObject current;
+
+	//reported to the metrics when the results are used up, or the iterator closed
+	private MorphiaMetrics metrics;
+	private OperationType opType;
+	private QueryImpl<?> query;
+	private EntityCacheStatistics startStats;
+	//of the entity caches used before the current one
+	private long hits = 0;
+	private long misses = 0;
+	private long documents = 0;
+	private long bytes = 0;
+	private boolean reported = false;
+
+	//sizes the following batches of the cursor, if set
+	private AdaptiveBatchSizer sizer;
+	private long lastReturned = 0;
+	private long driverMark = 0;
+	private long mapperMark = 0;
+
+	//keeps the documents read, if set
+	private DocumentCache documentCache;
 
 	public MorphiaIterator(Iterator<DBObject> it, Mapper m, Class<T> clazz, String kind, EntityCache cache) {
 		this.wrapped = it;
@@ -30,35 +63,135 @@ public class MorphiaIterator<T, V> implements Iterable<V>, Iterator<V>{
 		this.cache = cache;
 	}
 	
+	/**
+	 * Reports the time, documents and cache hits to the metrics (as the operation type) once iteration is done
+	 * @param query describes the operation if it was slow; can be null
+	 */
+	public MorphiaIterator<T, V> instrument(MorphiaMetrics metrics, OperationType opType, QueryImpl<?> query) {
+		if (metrics != null && metrics.isEnabled()) {
+			this.metrics = metrics;
+			this.opType = opType;
+			this.query = query;
+			this.startStats = cache == null ? null : cache.stats();
+		}
+		return this;
+	}
+	
+	/** Puts the documents read in the cache, by their {@code _id}; for documents read whole only */
+	public MorphiaIterator<T, V> cacheDocumentsIn(DocumentCache documentCache) {
+		this.documentCache = documentCache;
+		return this;
+	}
+	
+	/** Lets the sizer pick the size of the following batches of the (wrapped) cursor as the results are used */
+	MorphiaIterator<T, V> adaptBatchSize(AdaptiveBatchSizer sizer) {
+		if (wrapped instanceof DBCursor)
+			this.sizer = sizer;
+		return this;
+	}
+	
+	/** Maps the following items with the cache (a fresh one per batch, say, so that it doesn't grow with the results) */
+	void useCache(EntityCache cache) {
+		if (startStats != null) {
+			EntityCacheStatistics now = this.cache.stats();
+			hits += now.getHits() - startStats.getHits();
+			misses += now.getMisses() - startStats.getMisses();
+		}
+		this.cache = cache;
+		this.startStats = metrics == null || cache == null ? null : cache.stats();
+	}
+	
 	public Iterator<V> iterator() {
 		return this;
 	}
 	
 	public boolean hasNext() {
 		if(wrapped == null) return false;
-    	long start = System.currentTimeMillis();
+    	long start = System.nanoTime();
 		boolean ret = wrapped.hasNext();
-    	driverTime += System.currentTimeMillis() - start;
+    	driverTime += System.nanoTime() - start;
+		if (!ret)
+			report();
 		return ret;
 	}
 	
 	public V next() {
 		if(!hasNext()) throw new NoSuchElementException();
     	DBObject dbObj = getNext();
-    	return processItem(dbObj);
+		current = dbObj;
+		V item = processItem(dbObj);
+		if (sizer != null)
+			adapt(dbObj);
+		return item;
+	}
+	
+	private void adapt(DBObject dbObj) {
+		long now = System.nanoTime();
+		long driverNanos = driverTime - driverMark;
+		long mapperNanos = mapperTime - mapperMark;
+		//the time since the last item, less our own, was the consumer's
+		long consumerNanos = lastReturned == 0 ? 0 : Math.max(0, now - lastReturned - driverNanos - mapperNanos);
+		int size = sizer.observe(dbObj, driverNanos, mapperNanos, consumerNanos);
+		if (size > 0)
+			((DBCursor) wrapped).batchSize(size);
+		driverMark = driverTime;
+		mapperMark = mapperTime;
+		lastReturned = System.nanoTime();
+	}
+	
+	/** @return the document the item last returned by {@link #next()} was mapped from */
+	public DBObject getCurrentDocument() {
+		return current;
+	}
+	
+	/**
+	 * Reads the remaining documents without mapping them, and closes the cursor; {@link #map(List)} maps them (on
+	 * another thread, say) and reports the operation
+	 */
+	public List<DBObject> readAll() {
+		List<DBObject> dbObjs = new ArrayList<DBObject>();
+		if (wrapped == null)
+			return dbObjs;
+		try {
+			while (true) {
+				long start = System.nanoTime();
+				boolean more = wrapped.hasNext();
+				driverTime += System.nanoTime() - start;
+				if (!more)
+					return dbObjs;
+				dbObjs.add(getNext());
+			}
+		} finally {
+			if (wrapped instanceof DBCursor)
+				((DBCursor) wrapped).close();
+		}
+	}
+	
+	/** Maps the documents read by {@link #readAll()}, and reports the operation */
+	public List<V> map(List<DBObject> dbObjs) {
+		List<V> items = new ArrayList<V>(dbObjs.size());
+		for (DBObject dbObj : dbObjs)
+			items.add(processItem(dbObj));
+		report();
+		return items;
 	}
 	
 	protected V processItem(DBObject dbObj) {
-    	long start = System.currentTimeMillis();
+    	long start = System.nanoTime();
 		V item = convertItem(dbObj);
-    	mapperTime += System.currentTimeMillis() - start;
+    	mapperTime += System.nanoTime() - start;
 		return (V) item;
 	}
 	
 	protected DBObject getNext() {
-		long start = System.currentTimeMillis();
+		long start = System.nanoTime();
 		DBObject dbObj = (DBObject) wrapped.next();
-    	driverTime += System.currentTimeMillis() - start;
+    	driverTime += System.nanoTime() - start;
+		documents++;
+		if (dbObj instanceof LazyBSONObject)
+			bytes += ((LazyBSONObject) dbObj).getBSONSize();
+		if (documentCache != null)
+			documentCache.put(kind, dbObj.get(Mapper.ID_KEY), dbObj);
     	return dbObj;
 	}
 	
@@ -67,18 +200,28 @@ public class MorphiaIterator<T, V> implements Iterable<V>, Iterator<V>{
 	}
 	
 	public void remove() {
-		long start = System.currentTimeMillis();
+		long start = System.nanoTime();
 		wrapped.remove();
-    	driverTime += System.currentTimeMillis() - start;
+    	driverTime += System.nanoTime() - start;
 	}
 	
 	/** Returns the time spent calling the driver in ms */
 	public long getDriverTime() {
-		return driverTime;
+		return driverTime / 1000000;
 	}
 	
 	/** Returns the time spent calling the mapper in ms */
 	public long getMapperTime() {
+		return mapperTime / 1000000;
+	}
+	
+	/** Returns the time spent calling the driver in ns */
+	public long getDriverNanos() {
+		return driverTime;
+	}
+	
+	/** Returns the time spent calling the mapper in ns */
+	public long getMapperNanos() {
 		return mapperTime;
 	}
 	
@@ -89,5 +232,24 @@ public class MorphiaIterator<T, V> implements Iterable<V>, Iterator<V>{
 	public void close() {
 		if (wrapped != null && wrapped instanceof DBCursor)
 			((DBCursor)wrapped).close();
+		report();
+	}
+	
+	private void report() {
+		if (metrics == null || reported)
+			return;
+		reported = true;
+		if (startStats != null) {
+			EntityCacheStatistics now = cache.stats();
+			hits += now.getHits() - startStats.getHits();
+			misses += now.getMisses() - startStats.getMisses();
+		}
+		SlowOperation slow = null;
+		SlowOperationDetector detector = metrics.getSlowOperationDetector();
+		long elapsed = driverTime + mapperTime;
+		if (detector != null && detector.isSlow(elapsed))
+			slow = query != null ? query.toSlowOperation(opType, elapsed, detector) 
+					: new SlowOperation(opType, kind, clazz, elapsed, SlowOperationDetector.callSite());
+		metrics.record(new OperationEvent(opType, kind, clazz, driverTime, mapperTime, documents, bytes, hits, misses, slow));
 	}
 }
\ No newline at end of file
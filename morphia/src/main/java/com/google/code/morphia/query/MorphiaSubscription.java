@@ -0,0 +1,155 @@
+package com.google.code.morphia.query;
+
+import com.google.code.morphia.logging.Logr;
+import com.google.code.morphia.logging.MorphiaLoggerFactory;
+import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.mapping.cache.EntityCache;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * <p>Delivers the results of a query to a {@link QuerySubscriber} as they are requested.</p>
+ * <p>The cursor is opened on the first request, and each getmore asks the server for no more than the outstanding demand
+ * (capped at {@code maxBatchSize}), so at most one batch of {@link DBObject}s and one entity are held at any time. Each
+ * request gets a fresh {@link EntityCache}, so the cache does not grow with the size of the result.</p>
+ */
+@SuppressWarnings("unchecked")
+public class MorphiaSubscription<T> implements QuerySubscription {
+	private static final Logr log = MorphiaLoggerFactory.get(MorphiaSubscription.class);
+
+	private final QueryImpl<T> query;
+	private final QuerySubscriber<T> subscriber;
+	private final Mapper mapr;
+	private final int maxBatchSize;
+
+	private DBCursor cursor;
+	//reads (and maps) the documents of the cursor, reporting them to the metrics
+	private MorphiaIterator<T, T> it;
+	private long demand = 0;
+	private boolean emitting = false;
+	private boolean done = false;
+
+	public MorphiaSubscription(QueryImpl<T> query, QuerySubscriber<T> subscriber, Mapper mapr, int maxBatchSize) {
+		this.query = query;
+		this.subscriber = subscriber;
+		this.mapr = mapr;
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public void request(long n) {
+		if (n <= 0) {
+			boolean close;
+			synchronized (this) {
+				if (done) return;
+				done = true;
+				close = !emitting;
+			}
+			if (close)
+				closeCursor();
+			subscriber.onError(new IllegalArgumentException("Must request a positive number of results, not " + n));
+			return;
+		}
+
+		synchronized (this) {
+			if (done) return;
+			demand += n;
+			if (demand < 0) demand = Long.MAX_VALUE;
+			if (emitting) return;
+			emitting = true;
+		}
+		drain();
+	}
+
+	public void cancel() {
+		synchronized (this) {
+			if (done) return;
+			done = true;
+			//the draining thread closes the cursor when it sees we are done
+			if (emitting) return;
+		}
+		closeCursor();
+	}
+
+	private void drain() {
+		EntityCache cache = mapr.createEntityCache();
+		boolean cacheUsed = false;
+		while (true) {
+			long wanted;
+			synchronized (this) {
+				if (done || demand == 0) {
+					emitting = false;
+					break;
+				}
+				wanted = demand;
+			}
+
+			T entity;
+			try {
+				DBObject dbObj = nextDBObject(wanted);
+				if (dbObj == null) {
+					finish(null);
+					return;
+				}
+				if (!cacheUsed) {
+					it.useCache(cache);
+					cacheUsed = true;
+				}
+				entity = it.processItem(dbObj);
+			} catch (RuntimeException e) {
+				finish(e);
+				return;
+			}
+
+			synchronized (this) {
+				if (done) break;
+				if (demand != Long.MAX_VALUE) demand--;
+			}
+			try {
+				subscriber.onNext(entity);
+			} catch (RuntimeException e) {
+				synchronized (this) { done = true; }
+				closeCursor();
+				throw e;
+			}
+		}
+
+		//cancelled while we were emitting
+		synchronized (this) {
+			if (!done) return;
+		}
+		closeCursor();
+	}
+
+	/** Reads the next document, sizing the next getmore (if one is needed) to the outstanding demand. */
+	private DBObject nextDBObject(long wanted) {
+		int size = (int) Math.min(wanted, maxBatchSize);
+		if (cursor == null) {
+			cursor = query.prepareCursor();
+			if (log.isTraceEnabled())
+				log.trace("Streaming cursor(" + query.getCollection().getName() + ") for query:" + cursor.getQuery());
+			it = query.instrument(new MorphiaIterator<T, T>(cursor, mapr, query.getEntityClass(), query.getCollection().getName(), null));
+		}
+		//a batchSize of 1 closes the cursor on the server, so ask for at least 2
+		cursor.batchSize(Math.max(size, 2));
+		return it.hasNext() ? it.getNext() : null;
+	}
+
+	private void finish(Throwable t) {
+		synchronized (this) {
+			done = true;
+			emitting = false;
+		}
+		closeCursor();
+		if (t == null)
+			subscriber.onComplete();
+		else
+			subscriber.onError(t);
+	}
+
+	private synchronized void closeCursor() {
+		if (cursor != null) {
+			it.close();
+			cursor = null;
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package com.google.code.morphia.query;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A page of results from {@link QueryResults#page(String, int)}, with the token to get the next page by.
+ */
+public class Page<T> implements Iterable<T> {
+	private final List<T> items;
+	private final String nextToken;
+
+	public Page(List<T> items, String nextToken) {
+		this.items = Collections.unmodifiableList(items);
+		this.nextToken = nextToken;
+	}
+
+	public List<T> getItems() 		{ return items; }
+	/** @return the continuation token for the next page, or null if this is the last page */
+	public String getNextToken() 	{ return nextToken; }
+	public boolean hasNext() 		{ return nextToken != null; }
+	public int size() 				{ return items.size(); }
+
+	public Iterator<T> iterator() {
+		return items.iterator();
+	}
+}
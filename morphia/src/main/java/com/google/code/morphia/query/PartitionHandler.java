@@ -0,0 +1,15 @@
+package com.google.code.morphia.query;
+
+import java.util.List;
+
+/**
+ * Receives the results of a {@link PartitionedScan}. Partitions are scanned concurrently, so implementations must be
+ * thread-safe; batches of any one partition are delivered in order, on one thread.
+ */
+public interface PartitionHandler<T> {
+	/** Handles a batch from one partition; the list is reused once this returns. */
+	void handle(int partition, List<T> batch);
+
+	/** Called once all of a partition is handled; save the checkpoint to be able to resume from here. */
+	void partitionComplete(int partition, ScanCheckpoint checkpoint);
+}
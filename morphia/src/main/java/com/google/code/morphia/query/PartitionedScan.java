@@ -0,0 +1,118 @@
+package com.google.code.morphia.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.code.morphia.logging.Logr;
+import com.google.code.morphia.logging.MorphiaLoggerFactory;
+
+/**
+ * <p>Scans the results of a query in parallel, one {@code _id} range ({@link Query#partition(int)}) per worker. Each
+ * partition is mapped batch by batch ({@link Query#forEachBatch(int, BatchHandler)}) on its own thread.</p>
+ * <p>Progress is kept in a {@link ScanCheckpoint}; a scan created from a saved checkpoint skips the partitions which had
+ * completed.</p>
+ *
+ * <pre>
+ * PartitionedScan&lt;Hotel&gt; scan = new PartitionedScan&lt;Hotel&gt;(ds.createQuery(Hotel.class), 16);
+ * scan.run(4, handler);
+ * </pre>
+ */
+@SuppressWarnings("unchecked")
+public class PartitionedScan<T> {
+	private static final Logr log = MorphiaLoggerFactory.get(PartitionedScan.class);
+
+	private final QueryImpl<T> query;
+	private final ScanCheckpoint checkpoint;
+	private int batchSize = 100;
+
+	/** Splits the query into (up to) {@code partitions} partitions */
+	public PartitionedScan(Query<T> query, int partitions) {
+		this.query = (QueryImpl<T>) query;
+		this.checkpoint = new ScanCheckpoint(this.query.partitionBounds(partitions));
+	}
+
+	/** Resumes a scan of the same query, using the partitions of the checkpoint and skipping those already complete */
+	public PartitionedScan(Query<T> query, ScanCheckpoint checkpoint) {
+		this.query = (QueryImpl<T>) query;
+		this.checkpoint = checkpoint;
+	}
+
+	/** Sets the number of entities passed to the handler at once (and the cursor batch size); defaults to 100 */
+	public PartitionedScan<T> batchSize(int batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	public ScanCheckpoint getCheckpoint() {
+		return checkpoint;
+	}
+
+	/** @return the query for one partition */
+	public Query<T> getPartition(int partition) {
+		List<Object> bounds = checkpoint.getBounds();
+		return query.range(partition == 0 ? null : bounds.get(partition - 1), partition == bounds.size() ? null : bounds.get(partition));
+	}
+
+	/** Runs the scan on a pool of {@code threads} threads, which is shut down afterwards */
+	public ScanCheckpoint run(int threads, PartitionHandler<T> handler) throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			return run(executor, handler);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Scans each incomplete partition on the executor, and waits for them all. If one fails the rest are cancelled, and
+	 * its error is thrown; the checkpoint still records the partitions which did complete.
+	 */
+	public ScanCheckpoint run(ExecutorService executor, final PartitionHandler<T> handler) throws InterruptedException {
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int i = 0; i < checkpoint.getPartitionCount(); i++) {
+			if (checkpoint.isComplete(i))
+				continue;
+			final int partition = i;
+			futures.add(executor.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					scan(partition, handler);
+					return null;
+				}
+			}));
+		}
+
+		try {
+			for (Future<?> f : futures)
+				f.get();
+		} catch (ExecutionException e) {
+			for (Future<?> f : futures)
+				f.cancel(true);
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new QueryException("Partitioned scan failed", cause);
+		}
+		return checkpoint;
+	}
+
+	private void scan(final int partition, final PartitionHandler<T> handler) {
+		checkpoint.restart(partition);
+		getPartition(partition).forEachBatch(batchSize, new BatchHandler<T>() {
+			public void handle(List<T> batch) {
+				handler.handle(partition, batch);
+				checkpoint.addProcessed(partition, batch.size());
+			}
+		});
+		checkpoint.complete(partition);
+		if (log.isTraceEnabled())
+			log.trace("Partition " + partition + " of " + query.getCollection().getName() + " complete; " + checkpoint);
+		handler.partitionComplete(partition, checkpoint);
+	}
+}
@@ -1,5 +1,7 @@
 package com.google.code.morphia.query;
 
+import java.util.List;
+
 import org.bson.types.CodeWScope;
 
 import com.mongodb.ReadPreference;
@@ -75,6 +77,15 @@ public interface Query<T> extends QueryResults<T>, Cloneable {
 	 * @param value must be >= 0.  A value of 0 indicates the server default.
 	 */
 	Query<T> batchSize(int value);
+
+	/**
+	 * Lets the size of each following batch of the results ({@link #fetch()}) adapt to the average document size, the
+	 * mapping time and how fast the results are used: big batches for fast scans, small ones for slow consumers.
+	 * The {@link #batchSize(int)} is the size of the first batch.
+	 * 
+	 * @param memoryBudget the most bytes of documents a batch should hold; 0 turns adapting off
+	 */
+	Query<T> adaptiveBatchSize(long memoryBudget);
 	
 	/**
 	 * Starts the query results at a particular zero-based offset.
@@ -135,4 +146,13 @@ public interface Query<T> extends QueryResults<T>, Cloneable {
 	Class<T> getEntityClass();
 	
 	Query<T> clone();
+
+	/**
+	 * <p>Splits this query into (up to) {@code partitions} queries over disjoint {@code _id} ranges, which together
+	 * return the same results. The boundaries are sampled from the {@code _id} index, so the partitions are about the
+	 * same size.</p>
+	 * <p>Fewer partitions are returned if there are fewer results than partitions. Cannot be used with limit/offset.</p>
+	 * @see PartitionedScan
+	 */
+	List<Query<T>> partition(int partitions);
 }
\ No newline at end of file
@@ -13,13 +13,18 @@ import org.bson.types.CodeWScope;
 import com.google.code.morphia.Datastore;
 import com.google.code.morphia.DatastoreImpl;
 import com.google.code.morphia.Key;
-import com.google.code.morphia.annotations.Entity;
 import com.google.code.morphia.logging.Logr;
 import com.google.code.morphia.logging.MorphiaLoggerFactory;
 import com.google.code.morphia.mapping.MappedClass;
 import com.google.code.morphia.mapping.MappedField;
 import com.google.code.morphia.mapping.Mapper;
+import com.google.code.morphia.mapping.cache.DocumentCache;
 import com.google.code.morphia.mapping.cache.EntityCache;
+import com.google.code.morphia.metrics.MorphiaMetrics;
+import com.google.code.morphia.metrics.OperationEvent;
+import com.google.code.morphia.metrics.OperationType;
+import com.google.code.morphia.metrics.SlowOperation;
+import com.google.code.morphia.metrics.SlowOperationDetector;
 import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.Bytes;
@@ -37,6 +42,8 @@ import com.mongodb.ReadPreference;
  */
 public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Criteria {
 	private static final Logr log = MorphiaLoggerFactory.get(QueryImpl.class);
+	/** The largest cursor batch {@link #subscribe(QuerySubscriber)} asks for when no batchSize is set */
+	static final int DEFAULT_STREAM_BATCH_SIZE = 100;
 	
 	private EntityCache cache;
 	private boolean validateName = true;
@@ -50,6 +57,7 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 	private int offset = 0;
 	private int limit = -1;
 	private int batchSize = 0;
+	private long batchMemoryBudget = 0;
 	private String indexHint;
 	private Class<T> clazz = null;
 	private BasicDBObject baseQuery = null;
@@ -58,6 +66,8 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 	private boolean tail = false;
 	private boolean tail_await_data;
 	private ReadPreference readPref = null;
+	private OperationType opType = OperationType.FIND;
+	private DocumentCache documentCache = null;
 	
 	public QueryImpl(Class<T> clazz, DBCollection coll, Datastore ds) {
 		super(CriteriaJoin.AND);
@@ -68,10 +78,8 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 		this.dbColl = coll;
 		this.cache = this.ds.getMapper().createEntityCache();
 		
-		MappedClass mc = this.ds.getMapper().getMappedClass(clazz);
-		Entity entAn = mc == null ? null : mc.getEntityAnnotation();
-		if (entAn != null)
-			this.readPref = this.ds.getMapper().getMappedClass(clazz).getEntityAnnotation().queryNonPrimary() ? ReadPreference.SECONDARY : null;
+		if (clazz != null)
+			this.readPref = this.ds.getOperationContext(clazz).getReadPreference();
 	}
 	
 	public QueryImpl(Class<T> clazz, DBCollection coll, Datastore ds, int offset, int limit) {
@@ -87,8 +95,9 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 	
 	@Override
 	public QueryImpl<T> clone(){
-		QueryImpl<T> n = new QueryImpl<T>(clazz, dbColl, ds);
+		QueryImpl<T> n = newQuery();
 		n.batchSize = batchSize;
+		n.batchMemoryBudget = batchMemoryBudget;
 		n.cache = this.ds.getMapper().createEntityCache(); // fresh cache
 		n.fields = fields == null ? null : Arrays.copyOf(fields, fields.length);
 		n.includeFields = includeFields;
@@ -109,13 +118,32 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 		n.children = children == null ? null : new ArrayList<Criteria>(children);
 		n.tail = tail;
 		n.tail_await_data = tail_await_data;
+		n.opType = opType;
+		n.documentCache = documentCache;
 		return n;
 	}
 
+	/** Creates the (empty) query {@link #clone()} copies this one into */
+	protected QueryImpl<T> newQuery() {
+		return new QueryImpl<T>(clazz, dbColl, ds);
+	}
+
 	public DBCollection getCollection() {
 		return dbColl;
 	}
 	
+	/** Sets the operation the reads of this query are measured as (in the datastore's metrics); FIND by default */
+	public QueryImpl<T> recordAs(OperationType opType) {
+		this.opType = opType;
+		return this;
+	}
+	
+	/** Puts the documents this query reads in the cache (unless only some fields are read) */
+	public QueryImpl<T> cacheResultsIn(DocumentCache documentCache) {
+		this.documentCache = documentCache;
+		return this;
+	}
+	
 	public void setQueryObject(DBObject query) {
 		this.baseQuery = (BasicDBObject) query;
 	}
@@ -175,10 +203,39 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 	}
 	
 	public long countAll() {
+		long start = System.nanoTime();
 		DBObject query = getQueryObject();
 		if (log.isTraceEnabled())
 			log.trace("Executing count(" + dbColl.getName() + ") for query: " + query);
-		return dbColl.getCount(query);
+		long count = dbColl.getCount(query);
+		recordOperation(OperationType.COUNT, start, 0, 0);
+		return count;
+	}
+	
+	/** Records an operation run with this query (which started at {@code startNanos}) in the datastore's metrics */
+	public void recordOperation(OperationType type, long startNanos, long mappingNanos, long documents) {
+		MorphiaMetrics metrics = ds.getMetrics();
+		if (!metrics.isEnabled())
+			return;
+		long elapsed = System.nanoTime() - startNanos;
+		SlowOperationDetector detector = metrics.getSlowOperationDetector();
+		SlowOperation slow = detector != null && detector.isSlow(elapsed) ? toSlowOperation(type, elapsed, detector) : null;
+		metrics.record(new OperationEvent(type, dbColl.getName(), clazz, elapsed - mappingNanos, mappingNanos, documents, 0, 0, 0, slow));
+	}
+	
+	/** Describes this query as having taken {@code elapsedNanos}; reads are explained if the detector samples them */
+	SlowOperation toSlowOperation(OperationType type, long elapsedNanos, SlowOperationDetector detector) {
+		DBObject explain = null;
+		boolean read = type == OperationType.FIND || type == OperationType.GET || type == OperationType.COUNT;
+		if (read && detector.shouldExplain()) {
+			try {
+				explain = prepareCursor().explain();
+			} catch (RuntimeException e) {
+				log.warning("Could not explain the slow query on " + dbColl.getName() + ": " + e);
+			}
+		}
+		return new SlowOperation(type, dbColl.getName(), clazz, elapsedNanos, SlowOperationDetector.callSite(), 
+				getQueryObject(), getFieldsObject(), getSortObject(), limit, indexHint, explain);
 	}
 	
 	public DBCursor prepareCursor() {
@@ -237,7 +294,18 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 		if (log.isTraceEnabled())
 			log.trace("Getting cursor(" + dbColl.getName() + ")  for query:" + cursor.getQuery());
 
-		return new MorphiaIterator<T,T>(cursor, ds.getMapper(), clazz, dbColl.getName(), cache);
+		MorphiaIterator<T,T> it = new MorphiaIterator<T,T>(cursor, ds.getMapper(), clazz, dbColl.getName(), cache);
+		if (batchMemoryBudget > 0)
+			it.adaptBatchSize(new AdaptiveBatchSizer(batchMemoryBudget, batchSize));
+		if (documentCache != null && (fields == null || fields.length == 0))
+			it.cacheDocumentsIn(documentCache);
+		return it.instrument(ds.getMetrics(), opType, this);
+	}
+	
+
+	/** Reports the iteration to the metrics, as this query */
+	<V> MorphiaIterator<T, V> instrument(MorphiaIterator<T, V> it) {
+		return it.instrument(ds.getMetrics(), opType, this);
 	}
 	
 
@@ -253,10 +321,91 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 
 		fields = oldFields;
 		includeFields = oldInclude;
-		return new MorphiaKeyIterator<T>(cursor, ds.getMapper(), clazz, dbColl.getName());
+		return new MorphiaKeyIterator<T>(cursor, ds.getMapper(), clazz, dbColl.getName()).instrument(ds.getMetrics(), opType, this);
 	}
 	
 
+	public void subscribe(QuerySubscriber<T> subscriber) {
+		int maxBatch = batchSize > 0 ? batchSize : DEFAULT_STREAM_BATCH_SIZE;
+		subscriber.onSubscribe(new MorphiaSubscription<T>(clone(), subscriber, ds.getMapper(), maxBatch));
+	}
+	
+
+	@SuppressWarnings("unchecked")
+	public void forEachBatch(int batchSize, BatchHandler<T> handler) {
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("batchSize must be positive, not " + batchSize);
+
+		QueryImpl<T> q = clone();
+		q.batchSize = batchSize;
+		DBCursor cursor = q.prepareCursor();
+		if (log.isTraceEnabled())
+			log.trace("Getting cursor(" + dbColl.getName() + ") in batches of " + batchSize + " for query:" + cursor.getQuery());
+
+		Mapper mapr = ds.getMapper();
+		MorphiaIterator<T,T> it = q.instrument(new MorphiaIterator<T,T>(cursor, mapr, clazz, dbColl.getName(), null));
+		List<T> batch = new ArrayList<T>(batchSize);
+		try {
+			while (it.hasNext()) {
+				it.useCache(mapr.createEntityCache());
+				do {
+					batch.add(it.next());
+				} while (batch.size() < batchSize && it.hasNext());
+
+				handler.handle(batch);
+				batch.clear();
+			}
+		} finally {
+			it.close();
+		}
+	}
+	
+
+	public Page<T> page(int size) {
+		return page(null, size);
+	}
+
+	@SuppressWarnings("unchecked")
+	public Page<T> page(String token, int size) {
+		if (size <= 0)
+			throw new IllegalArgumentException("size must be positive, not " + size);
+		if (offset > 0 || limit > 0)
+			throw new QueryException("Cannot page a query with a limit or offset.");
+
+		BasicDBObject keys = KeysetToken.keysOf(sort);
+		for (String key : keys.keySet()) {
+			if (Mapper.ID_KEY.equals(key))
+				continue;
+			MappedField mf = Mapper.validate(clazz, ds.getMapper(), new StringBuffer(key), FilterOperator.EQUAL, null, validateName, false);
+			if (mf != null && mf.isMultipleValues())
+				throw new QueryException("Cannot page by " + key + "; it has multiple values.");
+		}
+
+		QueryImpl<T> q = clone();
+		q.children = new ArrayList<Criteria>();
+		q.baseQuery = (BasicDBObject) (token == null ? getQueryObject() : KeysetToken.after(getQueryObject(), keys, KeysetToken.decode(token, keys)));
+		q.sort = keys;
+		q.limit = size + 1;
+		if (Boolean.TRUE.equals(includeFields)) {
+			List<String> retrieved = new ArrayList<String>(Arrays.asList(fields));
+			retrieved.addAll(keys.keySet());
+			q.fields = retrieved.toArray(new String[retrieved.size()]);
+		}
+
+		List<T> items = new ArrayList<T>(size);
+		DBObject last = null;
+		MorphiaIterator<T,T> it = (MorphiaIterator<T,T>) q.fetch().iterator();
+		try {
+			while (items.size() < size && it.hasNext()) {
+				items.add(it.next());
+				last = it.getCurrentDocument();
+			}
+			return new Page<T>(items, it.hasNext() ? KeysetToken.encode(keys, last) : null);
+		} finally {
+			it.close();
+		}
+	}
+
 	@SuppressWarnings("unchecked")
 	public List<T> asList() {
 		List<T> results = new ArrayList<T>();
@@ -265,11 +414,11 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 			results.add(ent);
 
 		if (log.isTraceEnabled())
-			log.trace(String.format("\nasList: %s \t %d entities, iterator time: driver %n ms, mapper %n ms \n cache: %s \n for $s \n ", 
+			log.trace(String.format("\nasList: %s \t %d entities, iterator time: driver %d us, mapper %d us \n cache: %s \n for %s \n ", 
 					dbColl.getName(),
 					results.size(),
-					iter.getDriverTime(),
-					iter.getMapperTime(),
+					iter.getDriverNanos() / 1000,
+					iter.getMapperNanos() / 1000,
 					cache.stats().toString(),
 					getQueryObject()));
 
@@ -371,7 +520,11 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 		limit = 1;
 		Iterator<T> it = fetch().iterator();
 		limit = oldLimit;
-		return (it.hasNext()) ? it.next() : null ;
+		try {
+			return (it.hasNext()) ? it.next() : null ;
+		} finally {
+			close(it);
+		}
 	}
 	
 
@@ -380,7 +533,17 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 		limit = 1;
 		Iterator<Key<T>> it = fetchKeys().iterator();
 		limit = oldLimit;
-		return (it.hasNext()) ?  it.next() : null;
+		try {
+			return (it.hasNext()) ?  it.next() : null;
+		} finally {
+			close(it);
+		}
+	}
+	
+	/** Closes the cursor of the results not used up, which reports the operation to the metrics */
+	private static void close(Iterator<?> it) {
+		if (it instanceof MorphiaIterator)
+			((MorphiaIterator<?, ?>) it).close();
 	}
 	
 
@@ -398,6 +561,13 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 		return batchSize;
 	}
 
+	public Query<T> adaptiveBatchSize(long memoryBudget) {
+		if (memoryBudget < 0)
+			throw new IllegalArgumentException("memoryBudget must be >= 0, not " + memoryBudget);
+		this.batchMemoryBudget = memoryBudget;
+		return this;
+	}
+
 	public Query<T> skip(int value) {
 		this.offset = value;
 		return this;
@@ -447,6 +617,76 @@ public class QueryImpl<T> extends CriteriaContainerImpl implements Query<T>, Cri
 		return (BasicDBObject) ret.get();
 	}
 
+	public List<Query<T>> partition(int partitions) {
+		List<Object> bounds = partitionBounds(partitions);
+		List<Query<T>> queries = new ArrayList<Query<T>>(bounds.size() + 1);
+		for (int i = 0; i <= bounds.size(); i++)
+			queries.add(range(i == 0 ? null : bounds.get(i - 1), i == bounds.size() ? null : bounds.get(i)));
+		return queries;
+	}
+
+	/**
+	 * Finds the {@code _id}s which split the results into (up to) {@code partitions} parts of about the same size, by
+	 * sampling along the {@code _id} index: each bound is found by skipping from the one before, so the server walks the
+	 * index once in all and only the bounds are sent back.
+	 */
+	List<Object> partitionBounds(int partitions) {
+		if (partitions < 1)
+			throw new IllegalArgumentException("partitions must be positive, not " + partitions);
+		if (offset > 0 || limit > 0)
+			throw new QueryException("Cannot partition a query with a limit or offset.");
+
+		DBObject query = getQueryObject();
+		long count = dbColl.getCount(query);
+		//(more parts than results would only make empty ones)
+		int parts = (int) Math.min(partitions, count);
+		List<Object> bounds = new ArrayList<Object>();
+		long at = 0;
+		for (int i = 1; i < parts; i++) {
+			long next = position(count, i, parts);
+			Object from = bounds.isEmpty() ? null : bounds.get(bounds.size() - 1);
+			DBObject q = query;
+			if (from != null) {
+				DBObject after = new BasicDBObject(Mapper.ID_KEY, new BasicDBObject("$gte", from));
+				q = query.keySet().isEmpty() ? after : new BasicDBObject("$and", Arrays.asList(query, after));
+			}
+			DBCursor cursor = dbColl.find(q, new BasicDBObject(Mapper.ID_KEY, 1))
+					.sort(new BasicDBObject(Mapper.ID_KEY, 1)).skip((int) Math.min(next - at, Integer.MAX_VALUE)).limit(1);
+			try {
+				//fewer results than counted; they changed since
+				if (!cursor.hasNext())
+					break;
+				bounds.add(cursor.next().get(Mapper.ID_KEY));
+			} finally {
+				cursor.close();
+			}
+			at = next;
+		}
+
+		if (log.isTraceEnabled())
+			log.trace("Partitioning query(" + dbColl.getName() + ") of " + count + " results at " + bounds);
+		return bounds;
+	}
+
+	/** @return count * i / partitions, without overflowing */
+	private static long position(long count, int i, int partitions) {
+		return count / partitions * i + count % partitions * i / partitions;
+	}
+
+	/** A copy of this query restricted to {@code from <= _id < to}; a null bound is open. */
+	QueryImpl<T> range(Object from, Object to) {
+		QueryImpl<T> q = clone();
+		//the bounds are raw _id values, so don't map/validate them
+		q.validateName = q.validateType = false;
+		if (from != null)
+			q.filter(Mapper.ID_KEY + " >=", from);
+		if (to != null)
+			q.filter(Mapper.ID_KEY + " <", to);
+		q.validateName = validateName;
+		q.validateType = validateType;
+		return q;
+	}
+
 	public Iterator<T> iterator() {
 		return fetch().iterator();
 	}
@@ -49,6 +49,33 @@ public interface QueryResults<T>  extends Iterable<T> {
 	 * Execute the query and get the keys for the objects. @see fetchEmptyEntities 
 	 */
 	Iterable<Key<T>> fetchKeys();
+
+	/**
+	 * <p>Streams the results to the subscriber as it asks for them (see {@link QuerySubscription#request(long)}), instead of
+	 * holding them all in memory; cancelling the subscription closes the cursor.</p>
+	 * <p>The cursor batches follow the outstanding demand, up to the {@link Query#batchSize(int)} (or 100 if not set).</p>
+	 */
+	void subscribe(QuerySubscriber<T> subscriber);
+
+	/**
+	 * <p>Maps the results one cursor batch (of {@code batchSize}) at a time, and passes each to the handler. Only one batch,
+	 * and the {@link com.google.code.morphia.mapping.cache.EntityCache} used to map it, is held at a time.</p>
+	 * <p>The cursor is closed when all batches are handled, or if the handler throws.</p>
+	 */
+	void forEachBatch(int batchSize, BatchHandler<T> handler);
+
+	/** Gets the first page; see {@link #page(String, int)} */
+	Page<T> page(int size);
+
+	/**
+	 * <p>Gets the page of (up to) {@code size} results after the continuation token (of the previous page; null for the
+	 * first page). Instead of skipping the earlier results, the page is queried by the sort values of the last result
+	 * before it, so every page costs the same given an index on the {@link Query#order(String)} fields (and
+	 * {@code _id}, which is added to the order to break ties).</p>
+	 * <p>The sort fields must be single values, and (for an include {@link Query#retrievedFields(boolean, String...)})
+	 * are retrieved; a token can only be used with the order it was made for. Cannot be used with limit/offset.</p>
+	 */
+	Page<T> page(String token, int size);
 	
 	/**
 	 * <p>Count the total number of values in the result, <strong>ignoring <em>limit</em> and <em>offset</em>.</p>
@@ -0,0 +1,20 @@
+package com.google.code.morphia.query;
+
+/**
+ * <p>Receives the results of {@link QueryResults#subscribe(QuerySubscriber)}.</p>
+ * <p>Nothing is read until {@link QuerySubscription#request(long)} is called; at most that many {@link #onNext(Object)}
+ * calls follow. Exactly one of {@link #onError(Throwable)} or {@link #onComplete()} ends the stream, unless it is
+ * cancelled first.</p>
+ */
+public interface QuerySubscriber<T> {
+	/** Called once, before anything else; use the subscription to request results (or cancel). */
+	void onSubscribe(QuerySubscription subscription);
+
+	void onNext(T entity);
+
+	/** The query or the mapping failed; the cursor has been closed. */
+	void onError(Throwable t);
+
+	/** All results have been delivered; the cursor has been closed. */
+	void onComplete();
+}
@@ -0,0 +1,16 @@
+package com.google.code.morphia.query;
+
+/**
+ * The link between a {@link QuerySubscriber} and the cursor feeding it.
+ */
+public interface QuerySubscription {
+	/**
+	 * Asks for {@code n} more results. Results are read (and mapped) on the calling thread, in cursor batches no
+	 * larger than the outstanding demand; calls made from within {@link QuerySubscriber#onNext(Object)} just add to the
+	 * demand.
+	 */
+	void request(long n);
+
+	/** Stops delivery and closes the cursor. Results already requested may not be delivered. */
+	void cancel();
+}
@@ -0,0 +1,60 @@
+package com.google.code.morphia.query;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>The progress of a {@link PartitionedScan}: the {@code _id} boundaries of its partitions, which are complete, and how
+ * many entities each has handled.</p>
+ * <p>Serializable (as long as the {@code _id}s are), so it can be stored and a scan resumed with
+ * {@link PartitionedScan#PartitionedScan(Query, ScanCheckpoint)}; partitions which did not complete are scanned again from
+ * their start.</p>
+ */
+public class ScanCheckpoint implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final List<Object> bounds;
+	private final boolean[] completed;
+	private final long[] processed;
+
+	public ScanCheckpoint(List<Object> bounds) {
+		this.bounds = new ArrayList<Object>(bounds);
+		this.completed = new boolean[bounds.size() + 1];
+		this.processed = new long[bounds.size() + 1];
+	}
+
+	/** @return the {@code _id}s separating the partitions; partition i is {@code bounds[i-1] <= _id < bounds[i]} */
+	public List<Object> getBounds() 						{ return Collections.unmodifiableList(bounds); }
+	public int getPartitionCount() 							{ return completed.length; }
+	public synchronized boolean isComplete(int partition) 	{ return completed[partition]; }
+	public synchronized long getProcessed(int partition) 	{ return processed[partition]; }
+
+	/** @return true if every partition is complete */
+	public synchronized boolean isDone() {
+		for (boolean c : completed)
+			if (!c) return false;
+		return true;
+	}
+
+	/** @return the number of entities handled, in all partitions */
+	public synchronized long getProcessed() {
+		long total = 0;
+		for (long p : processed)
+			total += p;
+		return total;
+	}
+
+	synchronized void addProcessed(int partition, int count) 	{ processed[partition] += count; }
+	synchronized void restart(int partition) 					{ processed[partition] = 0; }
+	synchronized void complete(int partition) 					{ completed[partition] = true; }
+
+	@Override
+	public synchronized String toString() {
+		int done = 0;
+		for (boolean c : completed)
+			if (c) done++;
+		return "ScanCheckpoint(" + done + "/" + completed.length + " partitions, " + getProcessed() + " entities)";
+	}
+}
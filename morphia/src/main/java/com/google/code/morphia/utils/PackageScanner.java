@@ -0,0 +1,468 @@
+package com.google.code.morphia.utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.google.code.morphia.annotations.Embedded;
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.logging.Logr;
+import com.google.code.morphia.logging.MorphiaLoggerFactory;
+
+/**
+ * Finds the classes of a package which are (or inherit) {@code @Entity} or {@code @Embedded}, like
+ * {@link ReflectionUtils#getAnnotation(Class, Class)} does, but from the class files: nothing is loaded (or
+ * initialized) to find them. The classpath roots (directories and jars) of the package are scanned in parallel.
+ * <p>With an index file, what was read from a jar is kept there, keyed by the checksum of the jar's entries, so it is
+ * only read again when the jar changes. Directories, being build output, are always scanned.</p>
+ */
+public class PackageScanner {
+	private static final Logr log = MorphiaLoggerFactory.get(PackageScanner.class);
+
+	private static final Set<String> ANNOTATIONS = new TreeSet<String>(Arrays.asList(
+			"L" + Entity.class.getName().replace('.', '/') + ";", "L" + Embedded.class.getName().replace('.', '/') + ";"));
+	private static final String JAR = "jar";
+	private static final String CLASS = "class";
+
+	/** What the scan needs from a class file; names are internal ({@code a/b/C}) */
+	static class ClassInfo {
+		final String name;
+		final boolean annotated;
+		final String superName;
+		final List<String> interfaces;
+
+		ClassInfo(String name, boolean annotated, String superName, List<String> interfaces) {
+			this.name = name;
+			this.annotated = annotated;
+			this.superName = superName;
+			this.interfaces = interfaces;
+		}
+
+		/** Reads the class file up to its attributes */
+		static ClassInfo read(InputStream stream) throws IOException {
+			DataInputStream in = new DataInputStream(stream);
+			if (in.readInt() != 0xCAFEBABE)
+				throw new IOException("Not a class file");
+			in.skipBytes(4);
+			int count = in.readUnsignedShort();
+			String[] utf8 = new String[count];
+			int[] classes = new int[count];
+			for (int i = 1; i < count; i++) {
+				int tag = in.readUnsignedByte();
+				switch (tag) {
+				case 1: utf8[i] = in.readUTF(); break;
+				case 7: classes[i] = in.readUnsignedShort(); break;
+				case 8: case 16: case 19: case 20: in.skipBytes(2); break;
+				case 15: in.skipBytes(3); break;
+				case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18: in.skipBytes(4); break;
+				case 5: case 6: in.skipBytes(8); i++; break;
+				default: throw new IOException("Unknown constant pool tag " + tag);
+				}
+			}
+			in.skipBytes(2);
+			String name = utf8[classes[in.readUnsignedShort()]];
+			int superIndex = in.readUnsignedShort();
+			String superName = superIndex == 0 ? null : utf8[classes[superIndex]];
+			List<String> interfaces = new ArrayList<String>();
+			for (int i = in.readUnsignedShort(); i > 0; i--)
+				interfaces.add(utf8[classes[in.readUnsignedShort()]]);
+			skipMembers(in);
+			skipMembers(in);
+
+			boolean annotated = false;
+			for (int i = in.readUnsignedShort(); i > 0; i--) {
+				String attribute = utf8[in.readUnsignedShort()];
+				int length = in.readInt();
+				if (!"RuntimeVisibleAnnotations".equals(attribute)) {
+					in.skipBytes(length);
+					continue;
+				}
+				for (int a = in.readUnsignedShort(); a > 0; a--)
+					annotated |= ANNOTATIONS.contains(readAnnotation(in, utf8));
+			}
+			return new ClassInfo(name, annotated, superName, interfaces);
+		}
+
+		private static void skipMembers(DataInputStream in) throws IOException {
+			for (int i = in.readUnsignedShort(); i > 0; i--) {
+				in.skipBytes(6);
+				for (int a = in.readUnsignedShort(); a > 0; a--) {
+					in.skipBytes(2);
+					in.skipBytes(in.readInt());
+				}
+			}
+		}
+
+		/** @return the type descriptor of the annotation */
+		private static String readAnnotation(DataInputStream in, String[] utf8) throws IOException {
+			String type = utf8[in.readUnsignedShort()];
+			for (int i = in.readUnsignedShort(); i > 0; i--) {
+				in.skipBytes(2);
+				skipElementValue(in, utf8);
+			}
+			return type;
+		}
+
+		private static void skipElementValue(DataInputStream in, String[] utf8) throws IOException {
+			int tag = in.readUnsignedByte();
+			switch (tag) {
+			case 'e': in.skipBytes(4); break;
+			case '@': readAnnotation(in, utf8); break;
+			case '[':
+				for (int i = in.readUnsignedShort(); i > 0; i--)
+					skipElementValue(in, utf8);
+				break;
+			default: in.skipBytes(2);
+			}
+		}
+	}
+
+	/** The classes read from a jar, for a package */
+	private static class JarScan {
+		final String fingerprint;
+		final List<ClassInfo> classes;
+
+		JarScan(String fingerprint, List<ClassInfo> classes) {
+			this.fingerprint = fingerprint;
+			this.classes = classes;
+		}
+	}
+
+	private final ClassLoader loader;
+	private final File indexFile;
+	private final int threads;
+	/** by jar path and package */
+	private final Map<String, JarScan> index = new ConcurrentHashMap<String, JarScan>();
+	private volatile boolean indexChanged = false;
+	/** the classes read outside the scanned roots (superclasses, interfaces); MISSING for the missing ones */
+	private final Map<String, ClassInfo> outside = new ConcurrentHashMap<String, ClassInfo>();
+	private static final ClassInfo MISSING = new ClassInfo("", false, null, Collections.<String>emptyList());
+	/** by the absolute path of the index file */
+	private static final ConcurrentHashMap<String, Object> writeLocks = new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * @param indexFile where to keep what was read from jars, or null
+	 * @param threads how many roots to scan at once
+	 */
+	public PackageScanner(ClassLoader loader, File indexFile, int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads must be positive, not " + threads);
+		this.loader = loader == null ? ClassLoader.getSystemClassLoader() : loader;
+		this.indexFile = indexFile;
+		this.threads = threads;
+		if (indexFile != null)
+			try {
+				index.putAll(readIndex(indexFile));
+			} catch (IOException e) {
+				log.warning("Ignoring the scan index " + indexFile, e);
+			}
+	}
+
+	public PackageScanner(ClassLoader loader) {
+		this(loader, null, Runtime.getRuntime().availableProcessors());
+	}
+
+	/** @return the names of the package's classes (not its subpackages') which are or inherit {@code @Entity} or {@code @Embedded} */
+	public Set<String> scan(final String packageName) throws IOException {
+		final String path = packageName.replace('.', '/');
+		List<Callable<List<ClassInfo>>> tasks = new ArrayList<Callable<List<ClassInfo>>>();
+		Enumeration<URL> roots = loader.getResources(path);
+		while (roots.hasMoreElements()) {
+			final URL root = roots.nextElement();
+			tasks.add(new Callable<List<ClassInfo>>() {
+				public List<ClassInfo> call() throws IOException {
+					return scanRoot(root, path);
+				}
+			});
+		}
+
+		Map<String, ClassInfo> found = new HashMap<String, ClassInfo>();
+		for (List<ClassInfo> classes : run(tasks))
+			for (ClassInfo ci : classes)
+				found.put(ci.name, ci);
+		if (indexChanged)
+			writeIndex();
+
+		Set<String> names = new TreeSet<String>();
+		Map<String, Boolean> resolved = new HashMap<String, Boolean>();
+		for (ClassInfo ci : found.values())
+			if (isMappable(ci.name, found, resolved))
+				names.add(ci.name.replace('/', '.'));
+		return names;
+	}
+
+	private List<List<ClassInfo>> run(List<Callable<List<ClassInfo>>> tasks) throws IOException {
+		List<List<ClassInfo>> results = new ArrayList<List<ClassInfo>>();
+		if (tasks.size() <= 1 || threads == 1) {
+			for (Callable<List<ClassInfo>> task : tasks)
+				try {
+					results.add(task.call());
+				} catch (IOException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			return results;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, tasks.size()), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "morphia-scan-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			for (Future<List<ClassInfo>> f : pool.invokeAll(tasks))
+				results.add(f.get());
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while scanning");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private List<ClassInfo> scanRoot(URL root, String path) throws IOException {
+		if ("file".equals(root.getProtocol())) {
+			try {
+				return scanDirectory(new File(root.toURI()));
+			} catch (URISyntaxException e) {
+				throw new IOException("Invalid classpath root " + root);
+			}
+		}
+		if (JAR.equals(root.getProtocol())) {
+			URL jar = ((JarURLConnection) root.openConnection()).getJarFileURL();
+			try {
+				return scanJar(new File(jar.toURI()), path);
+			} catch (URISyntaxException e) {
+				throw new IOException("Invalid classpath root " + root);
+			}
+		}
+		log.warning("Cannot scan " + root + "; its classes will not be mapped");
+		return Collections.emptyList();
+	}
+
+	private static List<ClassInfo> scanDirectory(File dir) throws IOException {
+		List<ClassInfo> classes = new ArrayList<ClassInfo>();
+		File[] files = dir.listFiles();
+		if (files == null)
+			return classes;
+		for (File f : files) {
+			if (!f.isFile() || !f.getName().endsWith(".class"))
+				continue;
+			InputStream in = new FileInputStream(f);
+			try {
+				classes.add(ClassInfo.read(in));
+			} finally {
+				in.close();
+			}
+		}
+		return classes;
+	}
+
+	private List<ClassInfo> scanJar(File file, String path) throws IOException {
+		ZipFile zip = new ZipFile(file);
+		try {
+			//the central directory has a crc per entry; no need to read the whole jar
+			CRC32 crc = new CRC32();
+			List<ZipEntry> entries = new ArrayList<ZipEntry>();
+			for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+				ZipEntry entry = e.nextElement();
+				crc.update(entry.getName().getBytes("UTF-8"));
+				crc.update(Long.toString(entry.getCrc()).getBytes("UTF-8"));
+				String name = entry.getName();
+				if (name.endsWith(".class") && name.startsWith(path + "/") && name.indexOf('/', path.length() + 1) < 0)
+					entries.add(entry);
+			}
+			String fingerprint = Long.toHexString(crc.getValue()) + "-" + Long.toHexString(file.length());
+			String key = file.getAbsolutePath() + "!" + path;
+			JarScan known = index.get(key);
+			if (known != null && known.fingerprint.equals(fingerprint))
+				return known.classes;
+
+			List<ClassInfo> classes = new ArrayList<ClassInfo>();
+			for (ZipEntry entry : entries) {
+				InputStream in = zip.getInputStream(entry);
+				try {
+					classes.add(ClassInfo.read(in));
+				} finally {
+					in.close();
+				}
+			}
+			if (indexFile != null) {
+				index.put(key, new JarScan(fingerprint, classes));
+				indexChanged = true;
+			}
+			return classes;
+		} finally {
+			zip.close();
+		}
+	}
+
+	private boolean isMappable(String name, Map<String, ClassInfo> found, Map<String, Boolean> resolved) {
+		if (name == null || name.startsWith("java/"))
+			return false;
+		Boolean known = resolved.get(name);
+		if (known != null)
+			return known;
+		resolved.put(name, false);
+		ClassInfo ci = found.containsKey(name) ? found.get(name) : readOutside(name);
+		boolean mappable = ci.annotated || isMappable(ci.superName, found, resolved);
+		for (String i : ci.interfaces)
+			mappable |= isAnnotated(i, found);
+		resolved.put(name, mappable);
+		return mappable;
+	}
+
+	private boolean isAnnotated(String name, Map<String, ClassInfo> found) {
+		if (name.startsWith("java/"))
+			return false;
+		return (found.containsKey(name) ? found.get(name) : readOutside(name)).annotated;
+	}
+
+	/** Reads a class out of the scanned package (a superclass or interface) through the class loader */
+	private ClassInfo readOutside(String name) {
+		ClassInfo ci = outside.get(name);
+		if (ci != null)
+			return ci;
+		ci = MISSING;
+		InputStream in = loader.getResourceAsStream(name + ".class");
+		if (in != null)
+			try {
+				ci = ClassInfo.read(in);
+			} catch (IOException e) {
+				log.warning("Could not read " + name, e);
+			} finally {
+				try { in.close(); } catch (IOException e) { /* ignore */ }
+			}
+		outside.put(name, ci);
+		return ci;
+	}
+
+	/*
+	 * The index is a line per jar and package, followed by a line per class:
+	 * jar	/path/app.jar!com/example	fingerprint
+	 * class	com/example/Person	1	com/example/Base	com/example/Named,java/io/Serializable
+	 */
+	private static Map<String, JarScan> readIndex(File indexFile) throws IOException {
+		Map<String, JarScan> index = new HashMap<String, JarScan>();
+		if (!indexFile.isFile())
+			return index;
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+		try {
+			List<ClassInfo> current = null;
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] parts = line.split("\t", -1);
+				if (JAR.equals(parts[0]) && parts.length == 3) {
+					current = new ArrayList<ClassInfo>();
+					index.put(parts[1], new JarScan(parts[2], current));
+				} else if (CLASS.equals(parts[0]) && parts.length == 5 && current != null) {
+					List<String> interfaces = parts[4].length() == 0 ? Collections.<String>emptyList() : Arrays.asList(parts[4].split(","));
+					current.add(new ClassInfo(parts[1], "1".equals(parts[2]), parts[3].length() == 0 ? null : parts[3], interfaces));
+				} else
+					throw new IOException("Invalid line: " + line);
+			}
+		} finally {
+			in.close();
+		}
+		return index;
+	}
+
+	/**
+	 * Writes the index, with what other scanners (in this JVM or another) wrote to the file since it was read, through
+	 * a temporary file of its own it is then renamed from. Writers of the file in this JVM take turns.
+	 */
+	private void writeIndex() {
+		synchronized (writeLock(indexFile)) {
+			writeMergedIndex();
+		}
+	}
+
+	private static Object writeLock(File file) {
+		String path = file.getAbsolutePath();
+		Object lock = writeLocks.get(path);
+		if (lock == null) {
+			lock = new Object();
+			Object temp = writeLocks.putIfAbsent(path, lock);
+			if (temp != null) lock = temp;
+		}
+		return lock;
+	}
+
+	private void writeMergedIndex() {
+		File tmp = null;
+		try {
+			Map<String, JarScan> merged = new HashMap<String, JarScan>();
+			try {
+				merged.putAll(readIndex(indexFile));
+			} catch (IOException e) {
+				log.warning("Replacing the unreadable scan index " + indexFile, e);
+			}
+			//what this scanner read is newer
+			merged.putAll(index);
+			File dir = indexFile.getAbsoluteFile().getParentFile();
+			dir.mkdirs();
+			tmp = File.createTempFile(indexFile.getName() + ".tmp", null, dir);
+			Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+			try {
+				for (Map.Entry<String, JarScan> e : merged.entrySet()) {
+					out.write(JAR + "\t" + e.getKey() + "\t" + e.getValue().fingerprint + "\n");
+					for (ClassInfo ci : e.getValue().classes) {
+						StringBuilder interfaces = new StringBuilder();
+						for (String i : ci.interfaces)
+							interfaces.append(interfaces.length() > 0 ? "," : "").append(i);
+						out.write(CLASS + "\t" + ci.name + "\t" + (ci.annotated ? "1" : "0") + "\t" + (ci.superName == null ? "" : ci.superName) + "\t" + interfaces + "\n");
+					}
+				}
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(indexFile) && !(indexFile.delete() && tmp.renameTo(indexFile)))
+				throw new IOException("Could not rename " + tmp);
+			indexChanged = false;
+		} catch (IOException e) {
+			if (tmp != null)
+				tmp.delete();
+			log.warning("Could not write the scan index " + indexFile, e);
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package com.google.code.morphia;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.code.morphia.testmodel.Hotel;
+
+public class TestAsyncDatastore extends TestBase {
+	private AsyncDatastore async;
+
+	@Override
+	@Before
+	public void setUp() {
+		super.setUp();
+		async = new AsyncDatastoreImpl(ds, AsyncDatastoreImpl.createExecutor(4, 256), AsyncDatastoreImpl.createExecutor(2, 256), 2);
+	}
+
+	@Override
+	@After
+	public void tearDown() {
+		async.shutdown();
+		super.tearDown();
+	}
+
+	@Test
+	public void testSaveAndGet() throws Exception {
+		Hotel h = Hotel.create();
+		h.setName("async");
+		Key<Hotel> key = async.save(h).get(5, TimeUnit.SECONDS);
+		Assert.assertNotNull(key);
+
+		Hotel loaded = async.get(Hotel.class, h.getId()).get(5, TimeUnit.SECONDS);
+		Assert.assertEquals("async", loaded.getName());
+		Assert.assertEquals(Long.valueOf(1), async.getCount(Hotel.class).get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testManyInFlight() throws Exception {
+		List<MorphiaFuture<Key<Hotel>>> saves = new ArrayList<MorphiaFuture<Key<Hotel>>>();
+		for (int i = 0; i < 100; i++) {
+			Hotel h = Hotel.create();
+			h.setName("h" + i);
+			saves.add(async.save(h));
+		}
+		for (MorphiaFuture<Key<Hotel>> f : saves)
+			Assert.assertNotNull(f.get(5, TimeUnit.SECONDS));
+
+		List<Hotel> hotels = async.asList(async.createQuery(Hotel.class)).get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(100, hotels.size());
+	}
+
+	@Test
+	public void testCallback() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final AtomicReference<List<Hotel>> result = new AtomicReference<List<Hotel>>();
+		ds.save(Hotel.create());
+
+		async.asList(async.createQuery(Hotel.class)).addCallback(new AsyncCallback<List<Hotel>>() {
+			public void onSuccess(List<Hotel> hotels) {
+				result.set(hotels);
+				latch.countDown();
+			}
+			public void onFailure(Throwable t) {
+				latch.countDown();
+			}
+		});
+
+		Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(1, result.get().size());
+	}
+
+	@Test
+	public void testWaitingIsBoundedAndRunOnShutdown() throws Exception {
+		ExecutorService executor = AsyncDatastoreImpl.createExecutor(1, 16);
+		AsyncDatastoreImpl limited = new AsyncDatastoreImpl(ds, executor, null, 1, 2);
+		final CountDownLatch release = new CountDownLatch(1);
+		Callable<Integer> blocked = new Callable<Integer>() {
+			public Integer call() throws Exception {
+				release.await();
+				return 1;
+			}
+		};
+		List<MorphiaFuture<Integer>> accepted = new ArrayList<MorphiaFuture<Integer>>();
+		for (int i = 0; i < 3; i++)
+			accepted.add(limited.submit("kind", blocked));
+		MorphiaFuture<Integer> rejected = limited.submit("kind", blocked);
+		try {
+			rejected.get(5, TimeUnit.SECONDS);
+			Assert.fail("only 2 may wait");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+
+		limited.shutdown();
+		Assert.assertFalse(executor.isShutdown());
+		release.countDown();
+		for (MorphiaFuture<Integer> f : accepted)
+			Assert.assertEquals(Integer.valueOf(1), f.get(5, TimeUnit.SECONDS));
+		Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+		try {
+			limited.submit("kind", blocked).get(5, TimeUnit.SECONDS);
+			Assert.fail("shut down");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package com.google.code.morphia;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.Indexed;
+import com.google.code.morphia.annotations.PostPersist;
+import com.google.code.morphia.annotations.PrePersist;
+import com.google.code.morphia.annotations.Version;
+import com.google.code.morphia.testutil.AssertedFailure;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+
+public class TestBatchSave extends TestBase {
+
+	@Entity("batch_plain")
+	static class Plain {
+		@Id ObjectId id;
+		int i;
+		Plain() {}
+		Plain(int i) { this.i = i; }
+	}
+
+	@Entity("batch_versioned")
+	static class Versioned {
+		@Id ObjectId id;
+		@Version Long v;
+		String text;
+	}
+
+	@Entity("batch_callbacks")
+	static class Callbacks {
+		static List<String> events = new ArrayList<String>();
+		@Id ObjectId id;
+		String name;
+		Callbacks() {}
+		Callbacks(String name) { this.name = name; }
+		@PrePersist void pre() { events.add("pre-" + name); }
+		@PostPersist void post() { events.add("post-" + name); }
+	}
+
+	@Entity("batch_unique")
+	static class Unique {
+		@Id ObjectId id;
+		@Indexed(unique = true) String name;
+		Unique() {}
+		Unique(String name) { this.name = name; }
+	}
+
+	@Test
+	public void testInsertsAndUpserts() throws Exception {
+		List<Plain> ents = new ArrayList<Plain>();
+		for (int i = 0; i < 2500; i++)
+			ents.add(new Plain(i));
+
+		List<Key<Plain>> keys = new ArrayList<Key<Plain>>();
+		for (Key<Plain> k : ds.save(ents))
+			keys.add(k);
+
+		Assert.assertEquals(2500, keys.size());
+		Assert.assertEquals(2500, ds.getCount(Plain.class));
+		for (int i = 0; i < ents.size(); i++) {
+			Assert.assertNotNull(ents.get(i).id);
+			Assert.assertEquals(ents.get(i).id, keys.get(i).getId());
+		}
+
+		for (Plain p : ents)
+			p.i = -p.i;
+		ds.save(ents);
+		Assert.assertEquals(2500, ds.getCount(Plain.class));
+		Assert.assertEquals(-42, ds.get(Plain.class, ents.get(42).id).i);
+	}
+
+	@Test
+	public void testVersionConflicts() throws Exception {
+		List<Versioned> ents = new ArrayList<Versioned>();
+		for (int i = 0; i < 10; i++)
+			ents.add(new Versioned());
+		ds.save(ents);
+		for (Versioned v : ents)
+			Assert.assertEquals(Long.valueOf(1), v.v);
+
+		//concurrent modification of the third one
+		Versioned other = ds.get(Versioned.class, ents.get(2).id);
+		other.text = "changed";
+		ds.save(other);
+
+		BatchSaveResults<Versioned> res = ads.saveBatch(ents, WriteConcern.SAFE);
+		Assert.assertEquals(9, res.getSavedCount());
+		Assert.assertTrue(res.hasConflicts());
+		Assert.assertTrue(res.isConflicted(ents.get(2)));
+		Assert.assertEquals(Long.valueOf(1), ents.get(2).v);
+		Assert.assertEquals(Long.valueOf(2), ents.get(3).v);
+
+		final List<Versioned> stale = ents;
+		new AssertedFailure(ConcurrentModificationException.class) {
+			public void thisMustFail() throws Throwable {
+				ds.save(stale);
+			}
+		};
+	}
+
+	@Test
+	public void testEachEntityGetsItsOwnError() throws Exception {
+		ds.ensureIndexes(Unique.class);
+		List<Unique> ents = new ArrayList<Unique>();
+		for (String name : new String[] {"a", "b", "a", "c"})
+			ents.add(new Unique(name));
+
+		BatchSaveResults<Unique> res = ads.saveBatch(ents, WriteConcern.SAFE);
+		Assert.assertEquals(3, res.getSavedCount());
+		Assert.assertEquals(1, res.getFailures().size());
+		Assert.assertSame(ents.get(2), res.getFailures().get(0));
+		Assert.assertTrue(res.getFailure(ents.get(2)) instanceof MongoException);
+		Assert.assertNull(res.getFailure(ents.get(3)));
+		Assert.assertEquals(3, ds.getCount(Unique.class));
+
+		//existing entities are saved (not inserted), each acknowledged on its own
+		ents.get(0).name = "c";
+		ents.get(1).name = "d";
+		res = ads.saveBatch(ents.subList(0, 2), WriteConcern.SAFE);
+		Assert.assertEquals(1, res.getSavedCount());
+		Assert.assertSame(ents.get(0), res.getFailures().get(0));
+		Assert.assertEquals("d", ds.get(Unique.class, ents.get(1).id).name);
+
+		//saving an iterable stops at the first error, as saving them one by one would
+		ds.delete(ds.createQuery(Unique.class));
+		ents.clear();
+		for (String name : new String[] {"x", "x", "y"})
+			ents.add(new Unique(name));
+		try {
+			ds.save(ents, WriteConcern.SAFE);
+			Assert.fail("the second x is a duplicate");
+		} catch (MongoException e) {
+			//expected
+		}
+		Assert.assertEquals(1, ds.getCount(Unique.class));
+		Assert.assertNull(ds.find(Unique.class, "name", "y").get());
+	}
+
+	@Test
+	public void testCallbackOrdering() throws Exception {
+		Callbacks.events.clear();
+		List<Callbacks> ents = new ArrayList<Callbacks>();
+		ents.add(new Callbacks("a"));
+		ents.add(new Callbacks("b"));
+		ds.save(ents);
+
+		Assert.assertEquals(4, Callbacks.events.size());
+		Assert.assertTrue(Callbacks.events.indexOf("pre-a") < Callbacks.events.indexOf("pre-b"));
+		Assert.assertTrue(Callbacks.events.indexOf("pre-b") < Callbacks.events.indexOf("post-a"));
+		Assert.assertTrue(Callbacks.events.indexOf("post-a") < Callbacks.events.indexOf("post-b"));
+	}
+}
@@ -0,0 +1,108 @@
+package com.google.code.morphia;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.Indexed;
+import com.google.code.morphia.annotations.PrePersist;
+import com.google.code.morphia.annotations.Version;
+
+public class TestGroupCommitWriter extends TestBase {
+
+	@Entity("group_commit")
+	static class Event {
+		static final AtomicInteger prePersists = new AtomicInteger();
+		@Id ObjectId id;
+		@Indexed(unique = true) String name;
+		Event() {}
+		Event(String name) { this.name = name; }
+		@PrePersist void pre() { prePersists.incrementAndGet(); }
+	}
+
+	@Entity("group_commit_versioned")
+	static class VersionedEvent {
+		@Id ObjectId id;
+		@Version Long v;
+	}
+
+	@Test
+	public void testManyThreads() throws Exception {
+		final GroupCommitWriter writer = new GroupCommitWriter(ds, 2, TimeUnit.MILLISECONDS, 50);
+		final List<MorphiaFuture<Key<Event>>> futures = new ArrayList<MorphiaFuture<Key<Event>>>();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 8; t++) {
+			final int thread = t;
+			threads.add(new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < 25; i++) {
+						MorphiaFuture<Key<Event>> f = writer.save(new Event(thread + "-" + i));
+						synchronized (futures) {
+							futures.add(f);
+						}
+					}
+				}
+			});
+		}
+		for (Thread t : threads)
+			t.start();
+		start.countDown();
+		for (Thread t : threads)
+			t.join();
+
+		for (MorphiaFuture<Key<Event>> f : futures)
+			Assert.assertNotNull(f.get(5, TimeUnit.SECONDS).getId());
+		Assert.assertEquals(200, ds.getCount(Event.class));
+		writer.shutdown();
+	}
+
+	@Test
+	public void testOwnErrors() throws Exception {
+		ds.ensureIndexes();
+		ds.save(new Event("taken"));
+		Event.prePersists.set(0);
+
+		GroupCommitWriter writer = new GroupCommitWriter(ds, 50, TimeUnit.MILLISECONDS, 100);
+		MorphiaFuture<Key<Event>> ok1 = writer.save(new Event("a"));
+		MorphiaFuture<Key<Event>> dup = writer.save(new Event("taken"));
+		MorphiaFuture<Key<Event>> ok2 = writer.save(new Event("b"));
+
+		Assert.assertNotNull(ok1.get(5, TimeUnit.SECONDS));
+		Assert.assertNotNull(ok2.get(5, TimeUnit.SECONDS));
+		try {
+			dup.get(5, TimeUnit.SECONDS);
+			Assert.fail("duplicate should have failed");
+		} catch (ExecutionException e) {
+			//expected
+		}
+		Assert.assertEquals(3, ds.getCount(Event.class));
+		Assert.assertEquals(3, Event.prePersists.get());
+		writer.shutdown();
+	}
+
+	@Test
+	public void testVersioned() throws Exception {
+		GroupCommitWriter writer = new GroupCommitWriter(ds, 1, TimeUnit.MILLISECONDS, 10);
+		VersionedEvent e = new VersionedEvent();
+		writer.save(e).get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(Long.valueOf(1), e.v);
+		writer.save(e).get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(Long.valueOf(2), e.v);
+		writer.shutdown();
+	}
+}
@@ -1,6 +1,14 @@
 package com.google.code.morphia;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.Assert;
 
@@ -12,6 +20,8 @@ import com.google.code.morphia.annotations.Id;
 import com.google.code.morphia.annotations.PostLoad;
 import com.google.code.morphia.annotations.Property;
 import com.google.code.morphia.annotations.Reference;
+import com.google.code.morphia.mapping.MappedClass;
+import com.google.code.morphia.mapping.Mapper;
 import com.google.code.morphia.mapping.lazy.LazyFeatureDependencies;
 
 /**
@@ -191,4 +201,83 @@ public class TestMapper extends TestBase {
 		ds.save(ucio);
 	}
 	
+	@Entity
+	public static class SelfReferencing {
+		@Id ObjectId id;
+		@Reference SelfReferencing parent;
+	}
+	
+	@Test
+	public void testConcurrentMappingCreatesOnce() throws Exception {
+		final Mapper mapper = new Mapper();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Callable<MappedClass>> tasks = new ArrayList<Callable<MappedClass>>();
+		for (int i = 0; i < 16; i++)
+			tasks.add(new Callable<MappedClass>() {
+				public MappedClass call() throws Exception {
+					start.await();
+					return mapper.getMappedClass(HoldsMultipleA.class);
+				}
+			});
+		ExecutorService pool = Executors.newFixedThreadPool(tasks.size());
+		try {
+			List<Future<MappedClass>> results = new ArrayList<Future<MappedClass>>();
+			for (Callable<MappedClass> task : tasks)
+				results.add(pool.submit(task));
+			start.countDown();
+			for (Future<MappedClass> f : results)
+				Assert.assertSame(mapper.getMappedClass(HoldsMultipleA.class), f.get());
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	@Test
+	public void testSelfReferenceMapsOnce() throws Exception {
+		Mapper mapper = new Mapper();
+		MappedClass mc = mapper.addMappedClass(SelfReferencing.class);
+		Assert.assertSame(mc, mapper.getMappedClass(SelfReferencing.class));
+		Assert.assertSame(mc, mapper.addMappedClass(SelfReferencing.class));
+	}
+	
+	@Entity
+	public static class ReferencesB {
+		@Id ObjectId id;
+		@Reference ReferencesA a;
+	}
+	
+	@Entity
+	public static class ReferencesA {
+		@Id ObjectId id;
+		@Reference ReferencesB b;
+	}
+	
+	@Test
+	public void testConcurrentMappingOfClassesReferencingEachOther() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		try {
+			for (int i = 0; i < 200; i++) {
+				final Mapper mapper = new Mapper();
+				final CountDownLatch start = new CountDownLatch(1);
+				Future<MappedClass> a = pool.submit(new Callable<MappedClass>() {
+					public MappedClass call() throws Exception {
+						start.await();
+						return mapper.addMappedClass(ReferencesA.class);
+					}
+				});
+				Future<MappedClass> b = pool.submit(new Callable<MappedClass>() {
+					public MappedClass call() throws Exception {
+						start.await();
+						return mapper.addMappedClass(ReferencesB.class);
+					}
+				});
+				start.countDown();
+				//a deadlock times out
+				Assert.assertSame(mapper.getMappedClass(ReferencesA.class), a.get(10, TimeUnit.SECONDS));
+				Assert.assertSame(mapper.getMappedClass(ReferencesB.class), b.get(10, TimeUnit.SECONDS));
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
 }
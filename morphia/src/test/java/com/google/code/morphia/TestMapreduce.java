@@ -1,5 +1,7 @@
 package com.google.code.morphia;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
 
 import org.junit.Assert;
@@ -14,6 +16,8 @@ import com.google.code.morphia.testmodel.Rectangle;
 import com.google.code.morphia.testmodel.Shape;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
+import com.mongodb.MapReduceCommand;
+import com.mongodb.MapReduceCommand.OutputType;
 
 public class TestMapreduce extends TestBase{
 
@@ -60,5 +64,40 @@ public class TestMapreduce extends TestBase{
 		Assert.assertEquals(2, mrRes.createQuery().countAll());
 		Assert.assertEquals(100, mrRes.createQuery().get().value.count,0);
 	}
+
+	@Test
+    public void testInlineMR() throws Exception {
+		for(int i = 0; i < 10; i++){
+			ads.insert("shapes", new Circle(i));
+			ads.insert("shapes", new Rectangle(i, i));
+		}
+		ads.insert("shapes", new Circle(1));
+		String map = "function () { if(this['radius']) { emit('circle', {count:1}); return; } emit('rect', {count:1}); }";
+		String reduce = "function (key, values) { var total = 0; for ( var i=0; i<values.length; i++ ) {total += values[i].count;} return { count : total }; }";
+		MapreduceResults<ResultEntity> mrRes = ds.mapReduce(MapreduceType.INLINE, ads.createQuery(Shape.class), map, reduce, null, null, ResultEntity.class);
+		Assert.assertTrue(mrRes.isOk());
+		
+		Map<String, Double> counts = new HashMap<String, Double>();
+		for (ResultEntity r : mrRes)
+			counts.put(r.type, r.value.count);
+		Assert.assertEquals(Double.valueOf(11), counts.get("circle"));
+		Assert.assertEquals(Double.valueOf(10), counts.get("rect"));
+		//nothing was written
+		Assert.assertEquals(0, ds.getCount(ResultEntity.class));
+	}
+
+	@Test
+    public void testBaseCommandOptions() throws Exception {
+		for(int i = 0; i < 10; i++)
+			ads.insert("shapes", new Circle(i));
+		String map = "function () { emit('circle', {count:1}); }";
+		String reduce = "function (key, values) { var total = 0; for ( var i=0; i<values.length; i++ ) {total += values[i].count;} return { count : total }; }";
+		MapReduceCommand cmd = new MapReduceCommand(ds.getCollection(Shape.class), map, reduce, null, OutputType.INLINE, null);
+		cmd.setLimit(4);
+		cmd.setVerbose(true);
+		MapreduceResults<ResultEntity> mrRes = ds.mapReduce(MapreduceType.INLINE, ads.createQuery(Shape.class), ResultEntity.class, cmd);
+		Assert.assertTrue(mrRes.isOk());
+		Assert.assertEquals(4, mrRes.iterator().next().value.count, 0);
+	}
 	
 }
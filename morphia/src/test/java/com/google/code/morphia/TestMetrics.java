@@ -0,0 +1,176 @@
+package com.google.code.morphia;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.metrics.LatencyHistogram;
+import com.google.code.morphia.metrics.MetricsListener;
+import com.google.code.morphia.metrics.MorphiaMetrics;
+import com.google.code.morphia.metrics.OperationEvent;
+import com.google.code.morphia.metrics.OperationStats;
+import com.google.code.morphia.metrics.OperationType;
+import com.google.code.morphia.query.BatchHandler;
+import com.google.code.morphia.query.QuerySubscriber;
+import com.google.code.morphia.query.QuerySubscription;
+
+public class TestMetrics extends TestBase {
+
+	@Entity("measured")
+	static class Measured {
+		@Id ObjectId id;
+		int value;
+
+		Measured() {}
+		Measured(int value) { this.value = value; }
+	}
+
+	@Test
+	public void testOperationsAreCounted() throws Exception {
+		MorphiaMetrics metrics = ads.getMetrics();
+		metrics.reset();
+
+		Measured m = new Measured(1);
+		ds.save(m);
+		ds.save(new Measured(2), new Measured(3));
+		ds.get(Measured.class, m.id);
+		Assert.assertEquals(3, ds.getCount(Measured.class));
+		Assert.assertEquals(2, ds.find(Measured.class).filter("value >", 1).asList().size());
+		ds.update(ds.createQuery(Measured.class), ds.createUpdateOperations(Measured.class).inc("value"));
+
+		OperationStats saves = metrics.getStats(OperationType.SAVE, "measured", Measured.class);
+		Assert.assertTrue(saves.getCount() >= 2);
+		Assert.assertEquals(1, metrics.getStats(OperationType.GET, "measured", Measured.class).getCount());
+		Assert.assertEquals(1, metrics.getStats(OperationType.COUNT, "measured", Measured.class).getCount());
+		OperationStats finds = metrics.getStats(OperationType.FIND, "measured", Measured.class);
+		Assert.assertEquals(1, finds.getCount());
+		Assert.assertEquals(2, finds.getDocuments());
+		Assert.assertEquals(3, metrics.getStats(OperationType.UPDATE, "measured", Measured.class).getDocuments());
+	}
+
+	@Test
+	public void testFoundGetsAreCounted() throws Exception {
+		MorphiaMetrics metrics = ads.getMetrics();
+		Measured m = new Measured(1);
+		ds.save(m);
+		metrics.reset();
+
+		Assert.assertNotNull(ds.get(Measured.class, m.id));
+		Assert.assertNotNull(ds.find(Measured.class, "value", 1).get());
+		Assert.assertNotNull(ds.find(Measured.class, "value", 1).getKey());
+
+		Assert.assertEquals(1, metrics.getStats(OperationType.GET, "measured", Measured.class).getCount());
+		OperationStats finds = metrics.getStats(OperationType.FIND, "measured", Measured.class);
+		Assert.assertEquals(2, finds.getCount());
+		Assert.assertEquals(2, finds.getDocuments());
+	}
+
+	@Test
+	public void testStreamedReadsAreCounted() throws Exception {
+		ds.save(new Measured(1), new Measured(2), new Measured(3));
+		MorphiaMetrics metrics = ads.getMetrics();
+		metrics.reset();
+
+		ds.find(Measured.class).forEachBatch(2, new BatchHandler<Measured>() {
+			public void handle(List<Measured> batch) {
+			}
+		});
+		ds.find(Measured.class).subscribe(new QuerySubscriber<Measured>() {
+			public void onSubscribe(QuerySubscription subscription) {
+				subscription.request(Long.MAX_VALUE);
+			}
+			public void onNext(Measured entity) {
+			}
+			public void onError(Throwable t) {
+				Assert.fail(t.toString());
+			}
+			public void onComplete() {
+			}
+		});
+		AsyncDatastoreImpl async = new AsyncDatastoreImpl(ds, AsyncDatastoreImpl.createExecutor(1, 16), AsyncDatastoreImpl.createExecutor(1, 16), 1);
+		try {
+			Assert.assertEquals(3, async.asList(ds.find(Measured.class)).get().size());
+		} finally {
+			async.shutdown();
+		}
+
+		OperationStats finds = metrics.getStats(OperationType.FIND, "measured", Measured.class);
+		Assert.assertEquals(3, finds.getCount());
+		Assert.assertEquals(9, finds.getDocuments());
+	}
+
+	@Test
+	public void testListener() throws Exception {
+		final List<OperationEvent> events = new ArrayList<OperationEvent>();
+		MetricsListener listener = new MetricsListener() {
+			public void onOperation(OperationEvent event) {
+				events.add(event);
+			}
+		};
+		MorphiaMetrics metrics = ads.getMetrics();
+		metrics.addListener(listener);
+		try {
+			ds.save(new Measured(1));
+			ds.find(Measured.class).asList();
+		} finally {
+			metrics.removeListener(listener);
+		}
+
+		Assert.assertEquals(2, events.size());
+		Assert.assertEquals(OperationType.SAVE, events.get(0).getType());
+		Assert.assertEquals(OperationType.FIND, events.get(1).getType());
+		Assert.assertEquals(Measured.class, events.get(1).getEntityClass());
+		Assert.assertEquals(1, events.get(1).getDocuments());
+		Assert.assertTrue(events.get(1).getDriverNanos() > 0);
+
+		metrics.setEnabled(false);
+		try {
+			metrics.addListener(listener);
+			ds.save(new Measured(2));
+			metrics.removeListener(listener);
+		} finally {
+			metrics.setEnabled(true);
+		}
+		Assert.assertEquals(2, events.size());
+	}
+
+	@Test
+	public void testMBeans() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		MorphiaMetrics metrics = ads.getMetrics();
+		metrics.registerMBeans(server);
+		try {
+			ds.save(new Measured(1));
+			ObjectName pattern = new ObjectName(MorphiaMetrics.JMX_DOMAIN + ":type=Operations,operation=SAVE,*");
+			Assert.assertFalse(server.queryNames(pattern, null).isEmpty());
+			ObjectName on = server.queryNames(pattern, null).iterator().next();
+			Assert.assertTrue(((Number) server.getAttribute(on, "Count")).longValue() >= 1);
+		} finally {
+			metrics.unregisterMBeans();
+		}
+		Assert.assertTrue(server.queryNames(new ObjectName(MorphiaMetrics.JMX_DOMAIN + ":*"), null).isEmpty());
+	}
+
+	@Test
+	public void testHistogram() throws Exception {
+		LatencyHistogram h = new LatencyHistogram();
+		for (int i = 1; i <= 100; i++)
+			h.record(i * 1000);
+		Assert.assertEquals(100, h.getCount());
+		Assert.assertEquals(100000, h.getMaxNanos());
+		long p50 = h.getPercentileNanos(50);
+		Assert.assertTrue(p50 >= 32000 && p50 <= 131072);
+		Assert.assertTrue(h.getPercentileNanos(99) >= p50);
+		h.reset();
+		Assert.assertEquals(0, h.getCount());
+	}
+}
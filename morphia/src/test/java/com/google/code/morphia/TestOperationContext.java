@@ -0,0 +1,71 @@
+package com.google.code.morphia;
+
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.CappedAt;
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.NotSaved;
+import com.google.code.morphia.annotations.Version;
+import com.google.code.morphia.mapping.MappingException;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+
+public class TestOperationContext extends TestBase {
+	@Entity(value = "contexts", concern = "NORMAL", queryNonPrimary = true, cap = @CappedAt(4096))
+	static class Configured {
+		@Id ObjectId id;
+		@Version Long version;
+	}
+
+	@Entity
+	static class Plain {
+		@Id ObjectId id;
+	}
+
+	@NotSaved
+	@Entity
+	static class Unsaved {
+		@Id ObjectId id;
+	}
+
+	private DatastoreImpl dsi() {
+		return (DatastoreImpl) ds;
+	}
+
+	@Test
+	public void testConfigured() throws Exception {
+		OperationContext ctx = dsi().getOperationContext(Configured.class);
+		Assert.assertSame(ctx, dsi().getOperationContext(Configured.class));
+		Assert.assertEquals("contexts", ctx.getCollection().getName());
+		Assert.assertSame(ctx.getCollection(), ds.getCollection(Configured.class));
+		Assert.assertTrue(ctx.hasWriteConcern());
+		Assert.assertEquals(WriteConcern.NORMAL, dsi().getWriteConcern(new Configured()));
+		Assert.assertEquals(ReadPreference.SECONDARY, ctx.getReadPreference());
+		Assert.assertEquals(4096, ctx.getCap().value());
+		Assert.assertEquals("version", ctx.getVersionField().getJavaFieldName());
+		Assert.assertEquals("id", ctx.getIdField().getJavaFieldName());
+		Assert.assertFalse(ctx.isNotSaved());
+	}
+
+	@Test
+	public void testDefaults() throws Exception {
+		OperationContext ctx = dsi().getOperationContext(Plain.class);
+		Assert.assertFalse(ctx.hasWriteConcern());
+		Assert.assertEquals(ds.getDefaultWriteConcern(), dsi().getWriteConcern(Plain.class));
+		Assert.assertNull(ctx.getReadPreference());
+		Assert.assertNull(ctx.getCap());
+		Assert.assertNull(ctx.getVersionField());
+
+		ds.setDefaultWriteConcern(WriteConcern.FSYNC_SAFE);
+		Assert.assertEquals(WriteConcern.FSYNC_SAFE, dsi().getWriteConcern(Plain.class));
+	}
+
+	@Test(expected = MappingException.class)
+	public void testNotSaved() throws Exception {
+		Assert.assertTrue(dsi().getOperationContext(Unsaved.class).isNotSaved());
+		ds.save(new Unsaved());
+	}
+}
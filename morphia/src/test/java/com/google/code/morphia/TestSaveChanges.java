@@ -0,0 +1,119 @@
+package com.google.code.morphia;
+
+import java.util.ConcurrentModificationException;
+
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Embedded;
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.Version;
+import com.google.code.morphia.mapping.ChangeTracker;
+import com.google.code.morphia.testutil.AssertedFailure;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+public class TestSaveChanges extends TestBase {
+
+	@Embedded
+	static class Address {
+		String city;
+		String zip;
+	}
+
+	@Entity(value = "tracked", trackChanges = true)
+	static class Tracked {
+		@Id ObjectId id;
+		int counter;
+		String name;
+		String note;
+		Address address = new Address();
+	}
+
+	@Entity(value = "tracked_versioned", trackChanges = true)
+	static class TrackedVersioned {
+		@Id ObjectId id;
+		@Version Long v;
+		int counter;
+	}
+
+	private DBCollection coll(Class<?> c) {
+		return db.getCollection(morphia.getMapper().getCollectionName(c));
+	}
+
+	@Test
+	public void testOnlyChangesAreSent() throws Exception {
+		Tracked t = new Tracked();
+		t.name = "a";
+		t.note = "n";
+		t.address.city = "x";
+		ds.save(t);
+
+		Tracked loaded = ds.get(Tracked.class, t.id);
+		//changed behind our back; a full save would overwrite it
+		coll(Tracked.class).update(new BasicDBObject("_id", t.id), new BasicDBObject("$set", new BasicDBObject("name", "other")));
+
+		loaded.counter = 5;
+		loaded.note = null;
+		loaded.address.zip = "123";
+		ds.saveChanges(loaded);
+
+		DBObject doc = coll(Tracked.class).findOne(new BasicDBObject("_id", t.id));
+		Assert.assertEquals("other", doc.get("name"));
+		Assert.assertEquals(5, doc.get("counter"));
+		Assert.assertFalse(doc.containsField("note"));
+		DBObject addr = (DBObject) doc.get("address");
+		Assert.assertEquals("x", addr.get("city"));
+		Assert.assertEquals("123", addr.get("zip"));
+	}
+
+	@Test
+	public void testDiff() throws Exception {
+		DBObject stored = new BasicDBObject("_id", 1).append("a", 1).append("b", 2).append("e", new BasicDBObject("x", 1).append("y", 2));
+		DBObject current = new BasicDBObject("_id", 1).append("a", 1).append("c", 3).append("e", new BasicDBObject("x", 2));
+		DBObject u = ChangeTracker.diff(stored, current);
+
+		Assert.assertEquals(new BasicDBObject("c", 3).append("e.x", 2), u.get("$set"));
+		Assert.assertEquals(new BasicDBObject("b", 1).append("e.y", 1), u.get("$unset"));
+		Assert.assertTrue(ChangeTracker.diff(current, current).keySet().isEmpty());
+	}
+
+	@Test
+	public void testVersioned() throws Exception {
+		TrackedVersioned t = new TrackedVersioned();
+		ds.save(t);
+		Assert.assertEquals(Long.valueOf(1), t.v);
+
+		//nothing changed, nothing written
+		ds.saveChanges(t);
+		Assert.assertEquals(Long.valueOf(1), t.v);
+
+		t.counter = 1;
+		ds.saveChanges(t);
+		Assert.assertEquals(Long.valueOf(2), t.v);
+		Assert.assertEquals(2L, ((Number) coll(TrackedVersioned.class).findOne().get("v")).longValue());
+
+		final TrackedVersioned other = ds.get(TrackedVersioned.class, t.id);
+		t.counter = 2;
+		ds.saveChanges(t);
+
+		other.counter = 3;
+		new AssertedFailure(ConcurrentModificationException.class) {
+			public void thisMustFail() throws Throwable {
+				ds.saveChanges(other);
+			}
+		};
+	}
+
+	@Test
+	public void testUntrackedIsSavedWhole() throws Exception {
+		Tracked t = new Tracked();
+		t.name = "new";
+		Key<Tracked> key = ds.saveChanges(t);
+		Assert.assertNotNull(key);
+		Assert.assertEquals("new", ds.get(Tracked.class, t.id).name);
+	}
+}
@@ -0,0 +1,131 @@
+package com.google.code.morphia;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.metrics.MetricsListener;
+import com.google.code.morphia.metrics.MorphiaMetrics;
+import com.google.code.morphia.metrics.OperationEvent;
+import com.google.code.morphia.metrics.OperationType;
+import com.google.code.morphia.metrics.SlowOperation;
+import com.google.code.morphia.metrics.SlowOperationDetector;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class TestSlowOperations extends TestBase {
+
+	@Entity("slow_ops")
+	static class Account {
+		@Id ObjectId id;
+		String owner;
+		int balance;
+
+		Account() {}
+		Account(String owner, int balance) {
+			this.owner = owner;
+			this.balance = balance;
+		}
+	}
+
+	private final List<SlowOperation> slow = new ArrayList<SlowOperation>();
+	private final MetricsListener listener = new MetricsListener() {
+		public void onOperation(OperationEvent event) {
+			if (event.getSlowOperation() != null)
+				slow.add(event.getSlowOperation());
+		}
+	};
+
+	private MorphiaMetrics watch(SlowOperationDetector detector) {
+		MorphiaMetrics metrics = ads.getMetrics();
+		metrics.setSlowOperationDetector(detector);
+		metrics.addListener(listener);
+		return metrics;
+	}
+
+	@After
+	public void stopWatching() {
+		ads.getMetrics().removeListener(listener);
+		ads.getMetrics().setSlowOperationDetector(null);
+	}
+
+	@Test
+	public void testQueryShapeIsRedacted() throws Exception {
+		ds.save(new Account("secret-owner", 10));
+		watch(new SlowOperationDetector(0, TimeUnit.MILLISECONDS));
+
+		ds.find(Account.class).filter("owner", "secret-owner").filter("balance >", 5).order("-balance").limit(3).asList();
+
+		Assert.assertEquals(1, slow.size());
+		SlowOperation op = slow.get(0);
+		Assert.assertEquals(OperationType.FIND, op.getType());
+		Assert.assertEquals("slow_ops", op.getCollection());
+		Assert.assertEquals(new BasicDBObject("owner", "?").append("balance", new BasicDBObject("$gt", "?")), op.getQueryShape());
+		Assert.assertEquals(new BasicDBObject("balance", -1), op.getSort());
+		Assert.assertEquals(3, op.getLimit());
+		Assert.assertFalse(op.toString().contains("secret-owner"));
+		Assert.assertNull(op.getExplain());
+	}
+
+	@Test
+	public void testWritesAndThreshold() throws Exception {
+		watch(new SlowOperationDetector(1, TimeUnit.HOURS));
+		ds.save(new Account("a", 1));
+		ds.find(Account.class).asList();
+		Assert.assertTrue(slow.isEmpty());
+
+		watch(new SlowOperationDetector(0, TimeUnit.MILLISECONDS));
+		ds.save(new Account("b", 2));
+		ds.delete(ds.createQuery(Account.class).filter("owner", "b"));
+		Assert.assertEquals(2, slow.size());
+		Assert.assertEquals(OperationType.SAVE, slow.get(0).getType());
+		Assert.assertNull(slow.get(0).getQueryShape());
+		Assert.assertEquals(OperationType.DELETE, slow.get(1).getType());
+		Assert.assertEquals(new BasicDBObject("owner", "?"), slow.get(1).getQueryShape());
+	}
+
+	@Test
+	public void testExplainIsSampledAndRateLimited() throws Exception {
+		ds.save(new Account("a", 1));
+		watch(new SlowOperationDetector(0, TimeUnit.MILLISECONDS).setExplainSampling(1, 1));
+
+		ds.find(Account.class).asList();
+		ds.find(Account.class).asList();
+
+		Assert.assertEquals(2, slow.size());
+		Assert.assertNotNull(slow.get(0).getExplain());
+		Assert.assertNull(slow.get(1).getExplain());
+	}
+
+	@Test
+	public void testShapeOf() throws Exception {
+		BasicDBList or = new BasicDBList();
+		or.add(new BasicDBObject("a", 1));
+		or.add(new BasicDBObject("b", new BasicDBObject("$in", new int[] {1, 2})));
+		BasicDBList names = new BasicDBList();
+		names.add("x");
+		DBObject query = new BasicDBObject("$or", or).append("tags", new BasicDBObject("$all", names));
+
+		BasicDBList orShape = new BasicDBList();
+		orShape.add(new BasicDBObject("a", "?"));
+		orShape.add(new BasicDBObject("b", new BasicDBObject("$in", "?")));
+		Assert.assertEquals(new BasicDBObject("$or", orShape).append("tags", new BasicDBObject("$all", "?")), SlowOperation.shapeOf(query));
+	}
+
+	@Test
+	public void testExplainIsRedacted() throws Exception {
+		DBObject explain = new BasicDBObject("cursor", "BtreeCursor name_1").append("n", 1).append("nscanned", 2).append("millis", 3)
+				.append("indexBounds", new BasicDBObject("name", "secret")).append("parsedQuery", new BasicDBObject("name", "secret"));
+		SlowOperation op = new SlowOperation(OperationType.FIND, "accounts", null, 0, null, new BasicDBObject("name", "secret"), null, null, -1, null, explain);
+		Assert.assertEquals(new BasicDBObject("cursor", "BtreeCursor name_1").append("n", 1).append("nscanned", 2).append("millis", 3), op.getExplain());
+		Assert.assertFalse(op.toString(), op.toString().contains("secret"));
+	}
+}
@@ -0,0 +1,91 @@
+package com.google.code.morphia;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class TestWriteBehindBuffer extends TestBase {
+
+	@Entity("write_behind")
+	static class Counter {
+		@Id ObjectId id;
+		long hits;
+		String lastSeen;
+		List<String> tags;
+	}
+
+	@Test
+	public void testMerge() throws Exception {
+		DBObject pending = WriteBehindBuffer.copy(new BasicDBObject("$inc", new BasicDBObject("a", 1))
+				.append("$set", new BasicDBObject("s", "x"))
+				.append("$addToSet", new BasicDBObject("t", "one")));
+
+		Assert.assertTrue(WriteBehindBuffer.merge(pending, WriteBehindBuffer.copy(new BasicDBObject("$inc", new BasicDBObject("a", 2L))
+				.append("$set", new BasicDBObject("s", "y"))
+				.append("$addToSet", new BasicDBObject("t", "two")))));
+
+		Assert.assertEquals(3L, ((DBObject) pending.get("$inc")).get("a"));
+		Assert.assertEquals("y", ((DBObject) pending.get("$set")).get("s"));
+		Assert.assertEquals(Arrays.asList("one", "two"), ((DBObject) ((DBObject) pending.get("$addToSet")).get("t")).get("$each"));
+
+		//a different operator on the same field (or a path within it) is not merged
+		Assert.assertFalse(WriteBehindBuffer.merge(pending, WriteBehindBuffer.copy(new BasicDBObject("$set", new BasicDBObject("a", 0)))));
+		Assert.assertFalse(WriteBehindBuffer.merge(pending, WriteBehindBuffer.copy(new BasicDBObject("$set", new BasicDBObject("s.x", 0)))));
+		Assert.assertEquals(3L, ((DBObject) pending.get("$inc")).get("a"));
+	}
+
+	@Test
+	public void testCoalescing() throws Exception {
+		Counter c = new Counter();
+		ds.save(c);
+		Key<Counter> key = ds.getKey(c);
+
+		WriteBehindBuffer wb = new WriteBehindBuffer(ds, null).buffer(Counter.class, 1000, 1, TimeUnit.HOURS);
+		for (int i = 0; i < 500; i++)
+			wb.update(key, ds.createUpdateOperations(Counter.class).inc("hits").set("lastSeen", "t" + i));
+		Assert.assertEquals(1, wb.getPendingCount());
+		Assert.assertEquals(0, ds.get(Counter.class, c.id).hits);
+
+		wb.flush();
+		Counter loaded = ds.get(Counter.class, c.id);
+		Assert.assertEquals(500, loaded.hits);
+		Assert.assertEquals("t499", loaded.lastSeen);
+
+		wb.update(key, ds.createUpdateOperations(Counter.class).add("tags", "a"));
+		wb.update(key, ds.createUpdateOperations(Counter.class).add("tags", "b"));
+		wb.update(key, ds.createUpdateOperations(Counter.class).add("tags", "a"));
+		Assert.assertTrue(wb.shutdown(5, TimeUnit.SECONDS));
+		Assert.assertEquals(Arrays.asList("a", "b"), ds.get(Counter.class, c.id).tags);
+	}
+
+	@Test
+	public void testSizeTrigger() throws Exception {
+		WriteBehindBuffer wb = new WriteBehindBuffer(ds, null).buffer(Counter.class, 10, 1, TimeUnit.HOURS);
+		for (int i = 0; i < 10; i++) {
+			Counter c = new Counter();
+			ds.save(c);
+			wb.update(ds.getKey(c), ds.createUpdateOperations(Counter.class).inc("hits", 5));
+		}
+		//the 10th key queued a flush; this waits for it
+		wb.flush();
+		Assert.assertEquals(0, wb.getPendingCount());
+		Assert.assertEquals(10, ds.createQuery(Counter.class).filter("hits", 5L).countAll());
+		wb.shutdown(1, TimeUnit.SECONDS);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testFlushAfterShutdown() throws Exception {
+		WriteBehindBuffer wb = new WriteBehindBuffer(ds, null).buffer(Counter.class, 10, 1, TimeUnit.HOURS);
+		Assert.assertTrue(wb.shutdown(1, TimeUnit.SECONDS));
+		wb.flush();
+	}
+}
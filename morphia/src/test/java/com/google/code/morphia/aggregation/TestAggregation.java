@@ -0,0 +1,109 @@
+package com.google.code.morphia.aggregation;
+
+import static com.google.code.morphia.aggregation.Group.count;
+import static com.google.code.morphia.aggregation.Group.push;
+import static com.google.code.morphia.aggregation.Group.sum;
+import static com.google.code.morphia.aggregation.Projection.projection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.code.morphia.TestBase;
+import com.google.code.morphia.TestMapping.BaseEntity;
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.Property;
+import com.google.code.morphia.query.ValidationException;
+import com.google.code.morphia.testutil.AssertedFailure;
+import com.mongodb.BasicDBObject;
+
+public class TestAggregation extends TestBase {
+	@Entity
+	static class Book extends BaseEntity {
+		String author;
+		@Property("t") String title;
+		int copies;
+		List<String> tags = new ArrayList<String>();
+		Book() {}
+		Book(String author, String title, int copies, String... tags) {
+			this.author = author;
+			this.title = title;
+			this.copies = copies;
+			this.tags.addAll(Arrays.asList(tags));
+		}
+	}
+
+	static class AuthorStats {
+		@Id String author;
+		int copies;
+		int books;
+		List<String> titles;
+	}
+
+	static class TagCount {
+		@Id String tag;
+		int books;
+	}
+
+	private void saveBooks() {
+		ds.save(new Book("Dante", "Inferno", 3, "poem", "classic"),
+				new Book("Dante", "Paradiso", 2, "poem"),
+				new Book("Eco", "The Name of the Rose", 5, "novel"),
+				new Book("Homer", "Odyssey", 7, "poem", "classic"));
+	}
+
+	@Test
+	public void testStages() throws Exception {
+		AggregationPipeline<Book> pipeline = ds.createAggregation(ds.createQuery(Book.class).filter("copies >", 1))
+				.project(projection("author"), projection("name", "title"))
+				.sort("-name");
+		Assert.assertEquals(Arrays.asList(
+				new BasicDBObject("$match", new BasicDBObject("copies", new BasicDBObject("$gt", 1))),
+				new BasicDBObject("$project", new BasicDBObject("author", 1).append("name", "$t")),
+				new BasicDBObject("$sort", new BasicDBObject("name", -1))), pipeline.getStages());
+
+		new AssertedFailure(ValidationException.class) {
+			public void thisMustFail() throws Throwable {
+				ds.createAggregation(Book.class).group("writer", count("books"));
+			}
+		};
+	}
+
+	@Test
+	public void testGroup() throws Exception {
+		saveBooks();
+		Iterator<AuthorStats> it = ds.createAggregation(ds.createQuery(Book.class).order("title"))
+				.group("author", sum("copies", "copies"), count("books"), push("titles", "title"))
+				.sort("_id")
+				.aggregate(AuthorStats.class);
+
+		AuthorStats dante = it.next();
+		Assert.assertEquals("Dante", dante.author);
+		Assert.assertEquals(5, dante.copies);
+		Assert.assertEquals(2, dante.books);
+		Assert.assertEquals(Arrays.asList("Inferno", "Paradiso"), dante.titles);
+		Assert.assertEquals("Eco", it.next().author);
+		Assert.assertEquals(7, it.next().copies);
+		Assert.assertFalse(it.hasNext());
+	}
+
+	@Test
+	public void testUnwind() throws Exception {
+		saveBooks();
+		Iterator<TagCount> it = ds.createAggregation(ds.createQuery(Book.class).filter("author !=", "Eco"))
+				.unwind("tags")
+				.group("tags", count("books"))
+				.sort("-books, _id")
+				.limit(1)
+				.aggregate(TagCount.class);
+		TagCount poem = it.next();
+		Assert.assertEquals("poem", poem.tag);
+		Assert.assertEquals(3, poem.books);
+		Assert.assertFalse(it.hasNext());
+	}
+}
@@ -0,0 +1,84 @@
+package com.google.code.morphia.indexing;
+
+import java.util.Arrays;
+
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.code.morphia.TestBase;
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.Index;
+import com.google.code.morphia.annotations.Indexed;
+import com.google.code.morphia.annotations.Indexes;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+
+public class TestIndexSync extends TestBase {
+	@Entity("sync_users")
+	@Indexes(@Index("lastName, -age"))
+	static class User {
+		@Id ObjectId id;
+		@Indexed(unique = true) String email;
+		String lastName;
+		int age;
+	}
+
+	private DBCollection users() {
+		return db.getCollection("sync_users");
+	}
+
+	@Test
+	public void testDryRunAndSync() throws Exception {
+		morphia.map(User.class);
+
+		IndexSyncReport report = ds.syncIndexes(true);
+		Assert.assertTrue(report.isDryRun());
+		Assert.assertEquals(2, report.getMissing().size());
+		Assert.assertTrue(report.getCreated().isEmpty());
+		Assert.assertFalse(report.isInSync());
+		Assert.assertTrue(users().getIndexInfo().size() <= 1);
+
+		report = ds.syncIndexes(false);
+		Assert.assertEquals(2, report.getCreated().size());
+		Assert.assertTrue(report.isInSync());
+		Assert.assertEquals(3, users().getIndexInfo().size());
+
+		report = ds.syncIndexes(false);
+		Assert.assertTrue(report.getMissing().isEmpty());
+		Assert.assertTrue(report.getExtra().isEmpty());
+		Assert.assertTrue(report.isInSync());
+	}
+
+	@Test
+	public void testChangedAndExtra() throws Exception {
+		morphia.map(User.class);
+		users().createIndex(new BasicDBObject("email", 1));
+		users().createIndex(new BasicDBObject("age", 1));
+
+		IndexSyncReport report = new IndexSynchronizer(ds).threads(1).sync();
+		Assert.assertEquals(1, report.getCreated().size());
+		Assert.assertEquals(new BasicDBObject("lastName", 1).append("age", -1), report.getCreated().get(0).getKeys());
+		Assert.assertEquals(1, report.getChanged().size());
+		Assert.assertEquals("email_1", report.getChanged().get(0).getDeclared().getIndexName());
+		Assert.assertEquals(1, report.getExtra().size());
+		Assert.assertEquals("age_1", report.getExtra().get(0).get("name"));
+		Assert.assertFalse(report.isInSync());
+
+		//nothing is dropped
+		Assert.assertEquals(4, users().getIndexInfo().size());
+	}
+
+	@Test
+	public void testDefinitions() throws Exception {
+		IndexDefinition def = new IndexDefinition(User.class, null, new BasicDBObject("a", 1).append("b", -1), true, false, false, false);
+		Assert.assertEquals("a_1_b_-1", def.getIndexName());
+		Assert.assertTrue(def.hasKeysOf(new BasicDBObject("key", new BasicDBObject("a", 1.0).append("b", -1))));
+		Assert.assertFalse(def.hasKeysOf(new BasicDBObject("key", new BasicDBObject("b", -1).append("a", 1))));
+		Assert.assertTrue(def.hasOptionsOf(new BasicDBObject("unique", true)));
+		Assert.assertFalse(def.hasOptionsOf(new BasicDBObject()));
+		Assert.assertEquals(new BasicDBObject("unique", true).append("background", true), def.getOptions(true));
+		Assert.assertEquals(Arrays.asList("unique"), Arrays.asList(def.getOptions(false).keySet().toArray()));
+	}
+}
@@ -0,0 +1,115 @@
+package com.google.code.morphia.mapping;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.PrePersist;
+import com.mongodb.DBObject;
+
+public class TestMappingIndex {
+	static class Base {
+		@Id String id;
+	}
+
+	static class Indexed extends Base {
+		String a;
+		String b;
+		boolean touched;
+
+		@PrePersist void touch(DBObject dbObj) { touched = true; }
+	}
+
+	/** no @Id; only passes if the build-time rules are skipped */
+	static class NoId {
+		String a;
+	}
+
+	private static List<String> names(MappedClass mc) {
+		String[] names = new String[mc.getPersistenceFields().size()];
+		for (int i = 0; i < names.length; i++)
+			names[i] = mc.getPersistenceFields().get(i).getJavaFieldName();
+		return Arrays.asList(names);
+	}
+
+	private static MappingIndex.Entry indexed(boolean validated, String... fields) {
+		MappingIndex.Entry entry = new MappingIndex.Entry(Indexed.class.getName(), validated);
+		for (String f : fields)
+			entry.addField(f.equals("id") ? Base.class.getName() : Indexed.class.getName(), f);
+		entry.addMethod(Indexed.class.getName(), "touch", DBObject.class.getName());
+		return entry;
+	}
+
+	@Test
+	public void testReadWrite() throws Exception {
+		StringWriter out = new StringWriter();
+		MappingIndex.write(Arrays.asList(indexed(true, "b", "a", "touched", "id")), out);
+		List<MappingIndex.Entry> entries = MappingIndex.read(new StringReader(out.toString()));
+		Assert.assertEquals(1, entries.size());
+		Assert.assertTrue(entries.get(0).isValidated());
+		Assert.assertEquals(4, entries.get(0).resolveFields(Indexed.class).length);
+		Assert.assertEquals("touch", entries.get(0).resolveMethods(Indexed.class).get(0).getName());
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	@Test
+	public void testMappingUsesIndex() throws Exception {
+		Mapper mapper = new Mapper();
+		mapper.setMappingIndex(new MappingIndex(Arrays.asList(indexed(true, "b", "a", "touched", "id"))));
+		MappedClass mc = mapper.getMappedClass(Indexed.class);
+		Assert.assertEquals(Arrays.asList("b", "a", "touched", "id"), names(mc));
+		Assert.assertEquals(1, mc.getLifecycleMethods((Class) PrePersist.class).size());
+	}
+
+	@Test
+	public void testStaleIndexFallsBack() throws Exception {
+		Mapper mapper = new Mapper();
+		mapper.setMappingIndex(new MappingIndex(Arrays.asList(indexed(true, "b", "gone"))));
+		Assert.assertEquals(Arrays.asList("a", "b", "touched", "id"), names(mapper.getMappedClass(Indexed.class)));
+	}
+
+	@Test
+	public void testIndexOfOtherRootIsNotUsed() throws Exception {
+		String resource = Indexed.class.getName().replace('.', '/') + ".class";
+		String url = Indexed.class.getClassLoader().getResource(resource).toString();
+		String root = url.substring(0, url.length() - resource.length());
+		MappingIndex.Entry entry = MappingIndex.read(new StringReader(index("b", "a", "touched", "id")), root).get(0);
+		Assert.assertEquals(4, entry.resolveFields(Indexed.class).length);
+		Assert.assertEquals(1, entry.resolveMethods(Indexed.class).size());
+
+		//a superclass (or the class) from another jar may have changed since the index was made
+		entry = MappingIndex.read(new StringReader(index("b", "a")), "file:/elsewhere/").get(0);
+		Assert.assertNull(entry.resolveFields(Indexed.class));
+		Assert.assertNull(entry.resolveMethods(Indexed.class));
+		Mapper mapper = new Mapper();
+		mapper.setMappingIndex(new MappingIndex(Arrays.asList(entry)));
+		Assert.assertEquals(Arrays.asList("a", "b", "touched", "id"), names(mapper.getMappedClass(Indexed.class)));
+	}
+
+	private static String index(String... fields) throws Exception {
+		StringWriter out = new StringWriter();
+		MappingIndex.write(Arrays.asList(indexed(true, fields)), out);
+		return out.toString();
+	}
+
+	@Test
+	public void testValidatedClassesSkipBuildTimeRules() throws Exception {
+		Mapper mapper = new Mapper();
+		MappingIndex.Entry entry = new MappingIndex.Entry(NoId.class.getName(), true);
+		entry.addField(NoId.class.getName(), "a");
+		mapper.setMappingIndex(new MappingIndex(Arrays.asList(entry)));
+		mapper.addMappedClass(NoId.class);
+
+		try {
+			new Mapper().addMappedClass(NoId.class);
+			Assert.fail("the class has no @Id");
+		} catch (RuntimeException e) {
+			//expected
+		}
+	}
+}
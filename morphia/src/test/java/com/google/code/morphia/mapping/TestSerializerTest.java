@@ -4,6 +4,9 @@
 package com.google.code.morphia.mapping;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 
 import junit.framework.Assert;
 
@@ -13,6 +16,8 @@ import org.junit.Test;
 import com.google.code.morphia.TestBase;
 import com.google.code.morphia.annotations.Id;
 import com.google.code.morphia.annotations.Serialized;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
 
 /**
  * @author Uwe Schaefer, (us@thomas-daily.de)
@@ -41,6 +46,64 @@ public class TestSerializerTest extends TestBase {
 		Assert.assertTrue(new String(after).startsWith(TEST_TEXT));
 	}
 	
+	@Test
+	public final void testCodecs() throws IOException, ClassNotFoundException {
+		byte[] test = new byte[2048];
+		byte[] stringBytes = TEST_TEXT.getBytes();
+		System.arraycopy(stringBytes, 0, test, 0, stringBytes.length);
+		
+		byte[] ser = Serializer.serialize(test, new Serializer.DeflateCodec());
+		Assert.assertEquals(2, ser[0]);
+		Assert.assertTrue(ser.length < 2048);
+		byte[] after = (byte[]) Serializer.deserialize(ser, true);
+		Assert.assertTrue(after.length == 2048);
+		Assert.assertTrue(new String(after).startsWith(TEST_TEXT));
+		
+		ser = Serializer.serialize(test, Serializer.JAVA);
+		Assert.assertEquals(1, ser[0]);
+		after = (byte[]) Serializer.deserialize(ser, false);
+		Assert.assertTrue(new String(after).startsWith(TEST_TEXT));
+		
+		//the format is told by the data, not by the flag
+		after = (byte[]) Serializer.deserialize(Serializer.serialize(test, true), false);
+		Assert.assertTrue(new String(after).startsWith(TEST_TEXT));
+	}
+	
+	@Test
+	public final void testNestedCodecs() throws IOException, ClassNotFoundException {
+		Nested outer = new Nested(TEST_TEXT, new Nested("inner", null));
+		byte[] ser = Serializer.serialize(outer, Nested.CODEC);
+		Nested after = (Nested) Serializer.deserialize(ser, true);
+		Assert.assertEquals(TEST_TEXT, after.text);
+		Assert.assertEquals("inner", after.inner.text);
+		//the kept deflater and inflater are still good
+		Assert.assertEquals(TEST_TEXT, Serializer.deserialize(Serializer.serialize(TEST_TEXT, Nested.CODEC), true));
+	}
+	
+	/** Serializes its inner value with the codec it is serialized with, from within its own serialization */
+	private static class Nested implements Serializable {
+		private static final long serialVersionUID = 1L;
+		static final Serializer.DeflateCodec CODEC = new Serializer.DeflateCodec();
+		String text;
+		transient Nested inner;
+		
+		Nested(String text, Nested inner) {
+			this.text = text;
+			this.inner = inner;
+		}
+		
+		private void writeObject(ObjectOutputStream out) throws IOException {
+			out.defaultWriteObject();
+			out.writeObject(inner == null ? null : Serializer.serialize(inner, CODEC));
+		}
+		
+		private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+			in.defaultReadObject();
+			byte[] data = (byte[]) in.readObject();
+			inner = data == null ? null : (Nested) Serializer.deserialize(data, true);
+		}
+	}
+	
 	@Test
 	public final void testSerializedAttribute() throws IOException, ClassNotFoundException {
 		byte[] test = new byte[2048];
@@ -62,6 +125,41 @@ public class TestSerializerTest extends TestBase {
 		
 	}
 	
+	@Test
+	public final void testSerializedCodecAttribute() throws IOException, ClassNotFoundException {
+		byte[] test = new byte[2048];
+		byte[] stringBytes = TEST_TEXT.getBytes();
+		System.arraycopy(stringBytes, 0, test, 0, stringBytes.length);
+		
+		//written before a codec was chosen
+		E old = new E();
+		old.payload1 = test;
+		ds.save(old);
+		
+		morphia.getMapper().getOptions().serializationCodec = new Serializer.DeflateCodec();
+		C c = new C();
+		c.payload1 = test;
+		c.payload2 = test;
+		ds.save(c);
+		
+		DBObject stored = ds.getCollection(C.class).findOne(new BasicDBObject("_id", c.id));
+		Assert.assertEquals(1, ((byte[]) stored.get("payload1"))[0]);
+		Assert.assertEquals(2, ((byte[]) stored.get("payload2"))[0]);
+		
+		c = ds.get(c);
+		Assert.assertTrue(new String(c.payload1).startsWith(TEST_TEXT));
+		Assert.assertTrue(new String(c.payload2).startsWith(TEST_TEXT));
+		Assert.assertTrue(new String(ds.get(old).payload1).startsWith(TEST_TEXT));
+	}
+	
+	private static class C {
+		@Id ObjectId id;
+		@Serialized(codec = Serializer.JavaCodec.class)
+		byte[] payload1;
+		@Serialized
+		byte[] payload2;
+	}
+	
 	private static class E {
 		@Id ObjectId id;
 		@Serialized
@@ -0,0 +1,80 @@
+package com.google.code.morphia.mapping.cache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/** Runs without a server. */
+public class TestMappedSnapshot {
+	private static final List<String> INDEXED = Arrays.asList("region", "tags");
+
+	private static DBObject currency(String code, String region, String... tags) {
+		return new BasicDBObject("_id", code).append("region", region).append("tags", Arrays.asList(tags));
+	}
+
+	private static List<Object> ids(List<DBObject> docs) {
+		List<Object> ids = new ArrayList<Object>();
+		for (DBObject doc : docs)
+			ids.add(doc.get("_id"));
+		return ids;
+	}
+
+	private static File tempFile() throws Exception {
+		File file = File.createTempFile("morphia-snapshot", "");
+		file.deleteOnExit();
+		return file;
+	}
+
+	@Test
+	public void testAppend() throws Exception {
+		File file = tempFile();
+		MappedSnapshot.write(file, Arrays.asList(currency("EUR", "EU", "a"), currency("DKK", "EU", "a", "b"), currency("USD", "US", "b")), INDEXED, 0, MappedSnapshot.MARK_NONE);
+		MappedSnapshot before = MappedSnapshot.open(file);
+		Assert.assertEquals(3, before.size());
+
+		//DKK is deleted, EUR changes region and GBP is new
+		BitSet deleted = new BitSet();
+		deleted.set(before.number("DKK"));
+		MappedSnapshot.append(file, before, Arrays.asList(currency("GBP", "UK", "b"), currency("EUR", "EMU", "b")), deleted, INDEXED, 0, MappedSnapshot.MARK_NONE);
+		MappedSnapshot after = MappedSnapshot.open(file);
+		Assert.assertFalse(before.isOf(file));
+		Assert.assertTrue(after.isOf(file));
+
+		Assert.assertEquals(3, after.size());
+		Assert.assertNull(after.get("DKK"));
+		Assert.assertEquals("EMU", after.get("EUR").get("region"));
+		Assert.assertEquals("UK", after.get("GBP").get("region"));
+		Assert.assertEquals("US", after.get("USD").get("region"));
+		Assert.assertEquals(Collections.emptyList(), after.find("region", "EU"));
+		Assert.assertEquals(Arrays.asList("EUR"), ids(after.find("region", "EMU")));
+		Assert.assertEquals(Arrays.asList("EUR", "GBP", "USD"), ids(after.find("tags", "b")));
+		Assert.assertEquals(Collections.emptyList(), after.find("tags", "a"));
+
+		//what was mapped before is as it was
+		Assert.assertEquals("EU", before.get("EUR").get("region"));
+		Assert.assertEquals(Arrays.asList("DKK", "EUR"), ids(before.find("region", "EU")));
+	}
+
+	@Test
+	public void testGarbage() throws Exception {
+		File file = tempFile();
+		MappedSnapshot.write(file, Arrays.asList(currency("EUR", "EU", "a"), currency("USD", "US", "b")), INDEXED, 0, MappedSnapshot.MARK_NONE);
+		MappedSnapshot on = MappedSnapshot.open(file);
+		Assert.assertFalse(on.isMostlyGarbage());
+		for (int i = 0; i < 3; i++) {
+			MappedSnapshot.append(file, on, Arrays.asList(currency("EUR", "EU" + i, "a"), currency("USD", "US" + i, "b")), new BitSet(), INDEXED, 0, MappedSnapshot.MARK_NONE);
+			on = MappedSnapshot.open(file);
+		}
+		Assert.assertTrue(on.isMostlyGarbage());
+		Assert.assertEquals("US2", on.get("USD").get("region"));
+	}
+}
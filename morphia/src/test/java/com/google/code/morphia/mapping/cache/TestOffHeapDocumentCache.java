@@ -0,0 +1,181 @@
+package com.google.code.morphia.mapping.cache;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.code.morphia.DatastoreImpl;
+import com.google.code.morphia.Key;
+import com.google.code.morphia.TestBase;
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.Reference;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class TestOffHeapDocumentCache extends TestBase {
+	@Entity
+	static class Cached {
+		@Id ObjectId id;
+		String name;
+		@Reference Cached ref;
+
+		Cached() {
+		}
+
+		Cached(String name) {
+			this.name = name;
+		}
+	}
+
+	/** @return a document of about a hundred bytes, in the 128 byte size class */
+	private static DBObject doc(int i) {
+		char[] text = new char[80];
+		Arrays.fill(text, 'x');
+		return new BasicDBObject("_id", i).append("text", new String(text));
+	}
+
+	@Test
+	public void testPutGet() throws Exception {
+		OffHeapDocumentCache docs = new OffHeapDocumentCache(4096, 1024);
+		docs.put("a", 1, doc(1));
+		Assert.assertEquals(doc(1), docs.get("a", 1));
+		Assert.assertNull(docs.get("b", 1));
+		Assert.assertNull(docs.get("a", 2));
+		Assert.assertEquals(1, docs.getHits());
+		Assert.assertEquals(2, docs.getMisses());
+		Assert.assertEquals(1, docs.getCount());
+
+		docs.invalidate("a", 1);
+		Assert.assertNull(docs.get("a", 1));
+		Assert.assertEquals(0, docs.getCount());
+		Assert.assertEquals(0, docs.getUsedBytes());
+	}
+
+	@Test
+	public void testClockEviction() throws Exception {
+		//two slabs of eight chunks
+		OffHeapDocumentCache docs = new OffHeapDocumentCache(2048, 1024);
+		for (int i = 0; i < 16; i++)
+			docs.put("a", i, doc(i));
+		Assert.assertEquals(16, docs.getCount());
+		Assert.assertEquals(0, docs.getEvictions());
+
+		//the first was read since, so it gets a second chance
+		Assert.assertNotNull(docs.get("a", 0));
+		docs.put("a", 16, doc(16));
+		Assert.assertEquals(1, docs.getEvictions());
+		Assert.assertEquals(16, docs.getCount());
+		Assert.assertNotNull(docs.get("a", 0));
+		Assert.assertNull(docs.get("a", 1));
+		Assert.assertNotNull(docs.get("a", 16));
+		Assert.assertEquals(2048, docs.getAllocatedBytes());
+	}
+
+	@Test
+	public void testSlabIsTakenOver() throws Exception {
+		OffHeapDocumentCache docs = new OffHeapDocumentCache(2048, 1024);
+		for (int i = 0; i < 16; i++)
+			docs.put("a", i, doc(i));
+		BasicDBObject big = new BasicDBObject("_id", "big").append("data", new byte[600]);
+		docs.put("a", "big", big);
+		Assert.assertNotNull(docs.get("a", "big"));
+		Assert.assertEquals(8, docs.getEvictions());
+		Assert.assertEquals(9, docs.getCount());
+
+		//bigger than a slab
+		docs.put("a", "huge", new BasicDBObject("_id", "huge").append("data", new byte[2000]));
+		Assert.assertNull(docs.get("a", "huge"));
+	}
+
+	@Test
+	public void testInvalidateCollection() throws Exception {
+		OffHeapDocumentCache docs = new OffHeapDocumentCache(4096, 1024);
+		docs.put("a", 1, doc(1));
+		docs.put("b", 1, doc(1));
+		docs.invalidate("a");
+		Assert.assertNull(docs.get("a", 1));
+		Assert.assertNotNull(docs.get("b", 1));
+		docs.clear();
+		Assert.assertNull(docs.get("b", 1));
+		Assert.assertEquals(0, docs.getCount());
+	}
+
+	@Test
+	public void testDatastoreReadsThrough() throws Exception {
+		OffHeapDocumentCache docs = new OffHeapDocumentCache(1024 * 1024, 64 * 1024);
+		((DatastoreImpl) ds).setDocumentCache(docs);
+
+		Cached referenced = new Cached("referenced");
+		ds.save(referenced);
+		Cached c = new Cached("first");
+		c.ref = referenced;
+		ds.save(c);
+
+		Assert.assertEquals("first", ds.get(Cached.class, c.id).name);
+		Assert.assertEquals(0, docs.getHits());
+		//the reference was fetched through the cache too
+		Assert.assertEquals(2, docs.getCount());
+
+		Cached again = ds.get(Cached.class, c.id);
+		Assert.assertEquals("first", again.name);
+		Assert.assertEquals("referenced", again.ref.name);
+		Assert.assertEquals(2, docs.getHits());
+
+		List<Cached> byKeys = ds.getByKeys(Cached.class, Arrays.asList(ds.getKey(c), new Key<Cached>(Cached.class, referenced.id)));
+		Assert.assertEquals(2, byKeys.size());
+		//and the reference of the first, again
+		Assert.assertEquals(5, docs.getHits());
+
+		//the writes invalidate
+		c.name = "second";
+		ds.save(c);
+		Assert.assertEquals("second", ds.get(Cached.class, c.id).name);
+		ds.update(ds.createQuery(Cached.class).filter("_id", c.id), ds.createUpdateOperations(Cached.class).set("name", "third"));
+		Assert.assertEquals("third", ds.get(Cached.class, c.id).name);
+		ds.delete(c);
+		Assert.assertNull(ds.get(Cached.class, c.id));
+	}
+
+	@Test
+	public void testWriteDuringReadIsNotCachedOver() throws Exception {
+		final OffHeapDocumentCache docs = new OffHeapDocumentCache(1024 * 1024, 64 * 1024);
+		final Cached c = new Cached("first");
+		ds.save(c);
+		//the write lands between the read of the document and its put
+		((DatastoreImpl) ds).setDocumentCache(new DocumentCache() {
+			private boolean written = false;
+
+			public DBObject get(String collection, Object id) {
+				return docs.get(collection, id);
+			}
+
+			public void put(String collection, Object id, DBObject doc) {
+				if (!written) {
+					written = true;
+					ds.update(ds.createQuery(Cached.class).filter("_id", c.id), ds.createUpdateOperations(Cached.class).set("name", "second"));
+				}
+				docs.put(collection, id, doc);
+			}
+
+			public void invalidate(String collection, Object id) {
+				docs.invalidate(collection, id);
+			}
+
+			public void invalidate(String collection) {
+				docs.invalidate(collection);
+			}
+
+			public void clear() {
+				docs.clear();
+			}
+		});
+
+		Assert.assertEquals("first", ds.get(Cached.class, c.id).name);
+		Assert.assertEquals(0, docs.getCount());
+		Assert.assertEquals("second", ds.get(Cached.class, c.id).name);
+	}
+}
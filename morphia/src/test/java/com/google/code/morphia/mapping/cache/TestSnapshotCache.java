@@ -0,0 +1,107 @@
+package com.google.code.morphia.mapping.cache;
+
+import java.io.File;
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.code.morphia.DatastoreImpl;
+import com.google.code.morphia.TestBase;
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.Version;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+
+public class TestSnapshotCache extends TestBase {
+	@Entity
+	static class Currency {
+		@Id String code;
+		@Version Long version;
+		String region;
+		double rate;
+
+		Currency() {
+		}
+
+		Currency(String code, String region, double rate) {
+			this.code = code;
+			this.region = region;
+			this.rate = rate;
+		}
+	}
+
+	@Entity
+	static class Setting {
+		@Id String name;
+		String value;
+		Date updated = new Date();
+
+		Setting() {
+		}
+
+		Setting(String name, String value) {
+			this.name = name;
+			this.value = value;
+		}
+	}
+
+	private static File tempDir() throws Exception {
+		File dir = File.createTempFile("morphia-snapshot", "");
+		dir.delete();
+		dir.mkdirs();
+		return dir;
+	}
+
+	@Test
+	public void testVersionedSnapshot() throws Exception {
+		ds.save(new Currency("EUR", "EU", 1.0), new Currency("DKK", "EU", 7.4), new Currency("USD", "US", 1.1));
+		File dir = tempDir();
+		SnapshotCache snapshots = new SnapshotCache(ds, dir).snapshot(Currency.class, "region");
+		((DatastoreImpl) ds).setDocumentCache(snapshots);
+		String kind = ds.getCollection(Currency.class).getName();
+		Assert.assertEquals(3, snapshots.size(kind));
+		Assert.assertEquals(2, snapshots.find(Currency.class, "region", "EU").size());
+
+		//written behind the datastore's back, so read from the snapshot until it is refreshed
+		DBCollection coll = ds.getCollection(Currency.class);
+		coll.update(new BasicDBObject("_id", "EUR"), new BasicDBObject("$set", new BasicDBObject("rate", 2.0)).append("$inc", new BasicDBObject("version", 1L)));
+		coll.remove(new BasicDBObject("_id", "DKK"));
+		Assert.assertEquals(1.0, ds.get(Currency.class, "EUR").rate, 0);
+		snapshots.refresh();
+		Assert.assertEquals(2.0, ds.get(Currency.class, "EUR").rate, 0);
+		Assert.assertEquals(2, snapshots.size(kind));
+		Assert.assertEquals(1, snapshots.find(Currency.class, "region", "EU").size());
+
+		//written through the datastore, so read from the server until it is refreshed
+		Currency usd = ds.get(Currency.class, "USD");
+		usd.rate = 1.2;
+		ds.save(usd);
+		Assert.assertEquals(1.2, ds.get(Currency.class, "USD").rate, 0);
+		Assert.assertNull(snapshots.get(kind, "USD"));
+		snapshots.refresh();
+		Assert.assertEquals(1.2, ((Number) snapshots.get(kind, "USD").get("rate")).doubleValue(), 0);
+
+		//another JVM (or a restart) finds it
+		SnapshotCache other = new SnapshotCache(ds, dir).snapshot(Currency.class, "region");
+		Assert.assertEquals(2, other.size(kind));
+		Assert.assertEquals(1.2, ((Number) other.get(kind, "USD").get("rate")).doubleValue(), 0);
+	}
+
+	@Test
+	public void testTimestampSnapshot() throws Exception {
+		ds.save(new Setting("theme", "dark"), new Setting("locale", "en"));
+		SnapshotCache snapshots = new SnapshotCache(ds, tempDir()).snapshotByTimestamp(Setting.class, "updated");
+		String kind = ds.getCollection(Setting.class).getName();
+		Assert.assertEquals("dark", snapshots.get(kind, "theme").get("value"));
+
+		DBCollection coll = ds.getCollection(Setting.class);
+		coll.update(new BasicDBObject("_id", "theme"), new BasicDBObject("$set", new BasicDBObject("value", "light").append("updated", new Date(System.currentTimeMillis() + 1000))));
+		coll.insert(new BasicDBObject("_id", "currency").append("value", "EUR").append("updated", new Date()));
+		snapshots.refresh();
+		Assert.assertEquals("light", snapshots.get(kind, "theme").get("value"));
+		Assert.assertEquals("EUR", snapshots.get(kind, "currency").get("value"));
+		Assert.assertEquals(3, snapshots.size(kind));
+	}
+}
@@ -0,0 +1,263 @@
+package com.google.code.morphia.memory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.code.morphia.Key;
+import com.google.code.morphia.Morphia;
+import com.google.code.morphia.mapping.MappingException;
+import com.google.code.morphia.annotations.Embedded;
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.Index;
+import com.google.code.morphia.annotations.Indexed;
+import com.google.code.morphia.annotations.Indexes;
+import com.google.code.morphia.annotations.Reference;
+import com.google.code.morphia.annotations.Version;
+import com.google.code.morphia.query.Query;
+import com.google.code.morphia.query.UpdateResults;
+import com.google.code.morphia.testutil.AssertedFailure;
+import com.mongodb.MongoException;
+
+/** Runs without a server. */
+public class TestInMemoryDatastore {
+
+	@Embedded
+	static class Address {
+		String city;
+
+		Address() {}
+		Address(String city) { this.city = city; }
+	}
+
+	@Entity("people")
+	@Indexes(@Index("lastName, age"))
+	static class Person {
+		@Id ObjectId id;
+		@Indexed(unique = true) String email;
+		String lastName;
+		int age;
+		List<String> tags = new ArrayList<String>();
+		Address address;
+
+		Person() {}
+		Person(String email, String lastName, int age, String... tags) {
+			this.email = email;
+			this.lastName = lastName;
+			this.age = age;
+			this.tags.addAll(Arrays.asList(tags));
+		}
+	}
+
+	@Entity("versioned")
+	static class Versioned {
+		@Id ObjectId id;
+		@Version Long version;
+		String name;
+	}
+
+	@Entity("teams")
+	static class Team {
+		@Id ObjectId id;
+		@Reference Person lead;
+		@Reference(lazy = true) Person coach;
+		@Reference(lazy = true) List<Person> members = new ArrayList<Person>();
+	}
+
+	private Morphia morphia;
+	private InMemoryDatastore ds;
+
+	@Before
+	public void setUp() {
+		morphia = new Morphia().map(Person.class).map(Versioned.class).map(Team.class);
+		ds = new InMemoryDatastore(morphia);
+		ds.ensureIndexes();
+
+		Person ann = new Person("ann@x.org", "Smith", 31, "a", "b");
+		ann.address = new Address("Oslo");
+		ds.save(ann);
+		ds.save(new Person("bob@x.org", "Smith", 25, "b"));
+		ds.save(new Person("cy@x.org", "Jones", 40));
+		ds.save(new Person("dee@x.org", "Brown", 25, "a", "c"));
+	}
+
+	private List<String> emails(Query<Person> q) {
+		List<String> emails = new ArrayList<String>();
+		for (Person p : q.asList())
+			emails.add(p.email);
+		return emails;
+	}
+
+	@Test
+	public void testSaveAndGet() throws Exception {
+		Person p = new Person("ed@x.org", "Green", 50);
+		Key<Person> key = ds.save(p);
+		Assert.assertNotNull(p.id);
+		Assert.assertEquals("people", key.getKind());
+
+		Person loaded = ds.get(Person.class, p.id);
+		Assert.assertEquals("Green", loaded.lastName);
+		Assert.assertNotSame(p, loaded);
+		Assert.assertEquals(5, ds.getCount(Person.class));
+
+		loaded.age = 51;
+		ds.save(loaded);
+		Assert.assertEquals(51, ds.get(Person.class, p.id).age);
+		Assert.assertEquals(5, ds.getCount(Person.class));
+	}
+
+	@Test
+	public void testFilters() throws Exception {
+		Assert.assertEquals(Arrays.asList("ann@x.org", "bob@x.org"), emails(ds.createQuery(Person.class).filter("lastName", "Smith")));
+		Assert.assertEquals(Arrays.asList("ann@x.org", "cy@x.org"), emails(ds.createQuery(Person.class).filter("age >", 30)));
+		Assert.assertEquals(Arrays.asList("bob@x.org", "dee@x.org"), emails(ds.createQuery(Person.class).filter("age <=", 25)));
+		Assert.assertEquals(Arrays.asList("cy@x.org", "dee@x.org"), emails(ds.createQuery(Person.class).field("lastName").in(Arrays.asList("Jones", "Brown"))));
+		Assert.assertEquals(Arrays.asList("ann@x.org", "dee@x.org"), emails(ds.createQuery(Person.class).filter("tags", "a")));
+		Assert.assertEquals(Arrays.asList("ann@x.org"), emails(ds.createQuery(Person.class).field("tags").hasAllOf(Arrays.asList("a", "b"))));
+		Assert.assertEquals(Arrays.asList("ann@x.org"), emails(ds.createQuery(Person.class).field("address").exists()));
+		Assert.assertEquals(Arrays.asList("ann@x.org"), emails(ds.createQuery(Person.class).filter("address.city", "Oslo")));
+		Assert.assertEquals(Arrays.asList("cy@x.org", "dee@x.org"), emails(ds.createQuery(Person.class).filter("email", Pattern.compile("^[cd]"))));
+		Assert.assertEquals(Arrays.asList("bob@x.org"), emails(ds.createQuery(Person.class).filter("lastName", "Smith").filter("age <", 30)));
+
+		Query<Person> or = ds.createQuery(Person.class);
+		or.or(or.criteria("age").equal(40), or.criteria("email").equal("bob@x.org"));
+		Assert.assertEquals(Arrays.asList("bob@x.org", "cy@x.org"), emails(or));
+		Assert.assertEquals(2, ds.getCount(or));
+	}
+
+	@Test
+	public void testSortSkipLimit() throws Exception {
+		Assert.assertEquals(Arrays.asList("cy@x.org", "ann@x.org", "bob@x.org", "dee@x.org"), emails(ds.createQuery(Person.class).order("-age")));
+		Assert.assertEquals(Arrays.asList("dee@x.org", "cy@x.org", "bob@x.org", "ann@x.org"), emails(ds.createQuery(Person.class).order("lastName, age")));
+		Assert.assertEquals(Arrays.asList("ann@x.org", "bob@x.org"), emails(ds.createQuery(Person.class).order("-age").offset(1).limit(2)));
+	}
+
+	@Test
+	public void testUpdates() throws Exception {
+		UpdateResults<Person> res = ds.update(ds.createQuery(Person.class).filter("lastName", "Smith"),
+				ds.createUpdateOperations(Person.class).inc("age").add("tags", "z"));
+		Assert.assertEquals(2, res.getUpdatedCount());
+		Assert.assertNull(res.getWriteResult());
+		Person ann = ds.find(Person.class, "email", "ann@x.org").get();
+		Assert.assertEquals(32, ann.age);
+		Assert.assertEquals(Arrays.asList("a", "b", "z"), ann.tags);
+
+		ds.updateFirst(ds.createQuery(Person.class).filter("email", "ann@x.org"),
+				ds.createUpdateOperations(Person.class).removeAll("tags", "a").unset("address"));
+		ann = ds.get(Person.class, ann.id);
+		Assert.assertEquals(Arrays.asList("b", "z"), ann.tags);
+		Assert.assertNull(ann.address);
+
+		res = ds.updateFirst(ds.createQuery(Person.class).filter("email", "new@x.org"),
+				ds.createUpdateOperations(Person.class).set("age", 1), true);
+		Assert.assertEquals(1, res.getInsertedCount());
+		Assert.assertNotNull(res.getNewId());
+		Assert.assertEquals(1, ds.find(Person.class, "email", "new@x.org").get().age);
+
+		Person cy = ds.findAndModify(ds.createQuery(Person.class).filter("email", "cy@x.org"),
+				ds.createUpdateOperations(Person.class).set("lastName", "Jonas"));
+		Assert.assertEquals("Jonas", cy.lastName);
+		Assert.assertNotNull(ds.findAndDelete(ds.createQuery(Person.class).filter("email", "cy@x.org")));
+		Assert.assertNull(ds.find(Person.class, "email", "cy@x.org").get());
+
+		Assert.assertEquals(2, ds.delete(ds.createQuery(Person.class).filter("lastName", "Smith")).getN());
+		Assert.assertEquals(2, ds.getCount(Person.class));
+		Assert.assertEquals(0, ds.delete(Person.class, ann.id).getN());
+	}
+
+	@Test
+	public void testUniqueIndex() throws Exception {
+		try {
+			ds.save(new Person("ann@x.org", "Other", 1));
+			Assert.fail("the duplicate email should have been rejected");
+		} catch (MongoException e) {
+			Assert.assertEquals(11000, e.getCode());
+		}
+		Assert.assertEquals(4, ds.getCount(Person.class));
+
+		//an update may not make a duplicate either, and is not applied
+		try {
+			ds.update(ds.createQuery(Person.class).filter("email", "bob@x.org"), ds.createUpdateOperations(Person.class).set("email", "ann@x.org"));
+			Assert.fail("the duplicate email should have been rejected");
+		} catch (MongoException e) {
+			Assert.assertEquals(11000, e.getCode());
+		}
+		Assert.assertNotNull(ds.find(Person.class, "email", "bob@x.org").get());
+	}
+
+	@Test
+	public void testIndexLookups() throws Exception {
+		Assert.assertTrue(ds.getIndexNames("people").contains("email_1"));
+
+		MemoryQuery<Person> byEmail = (MemoryQuery<Person>) ds.createQuery(Person.class).filter("email", "cy@x.org");
+		Assert.assertEquals("BtreeCursor email_1", byEmail.explain().get("cursor"));
+		Assert.assertEquals(1, byEmail.explain().get("nscanned"));
+
+		MemoryQuery<Person> compound = (MemoryQuery<Person>) ds.createQuery(Person.class).filter("lastName", "Smith").filter("age >=", 30);
+		Assert.assertEquals(2, compound.explain().get("nscanned"));
+		Assert.assertEquals(1, compound.explain().get("n"));
+		Assert.assertEquals(Arrays.asList("ann@x.org"), emails(compound));
+
+		MemoryQuery<Person> unindexed = (MemoryQuery<Person>) ds.createQuery(Person.class).filter("age", 25);
+		Assert.assertEquals("BasicCursor", unindexed.explain().get("cursor"));
+		Assert.assertEquals(Arrays.asList("bob@x.org", "dee@x.org"), emails(unindexed));
+
+		//the index follows updates and deletes
+		ds.update(ds.createQuery(Person.class).filter("email", "cy@x.org"), ds.createUpdateOperations(Person.class).set("email", "cyrus@x.org"));
+		Assert.assertNull(ds.find(Person.class, "email", "cy@x.org").get());
+		Assert.assertEquals(40, ds.find(Person.class, "email", "cyrus@x.org").get().age);
+		ds.delete(ds.createQuery(Person.class).filter("email", "cyrus@x.org"));
+		Assert.assertEquals(0, ((MemoryQuery<Person>) ds.createQuery(Person.class).filter("email", "cyrus@x.org")).explain().get("nscanned"));
+	}
+
+	@Test
+	public void testVersioning() throws Exception {
+		Versioned v = new Versioned();
+		v.name = "one";
+		ds.save(v);
+		Assert.assertEquals(Long.valueOf(1), v.version);
+
+		Versioned stale = ds.get(Versioned.class, v.id);
+		v.name = "two";
+		ds.save(v);
+		try {
+			stale.name = "three";
+			ds.save(stale);
+			Assert.fail("the stale version should have been rejected");
+		} catch (java.util.ConcurrentModificationException e) {
+			//expected
+		}
+		Assert.assertEquals("two", ds.get(Versioned.class, v.id).name);
+	}
+
+	@Test
+	public void testReferences() throws Exception {
+		final Team team = new Team();
+		team.lead = ds.find(Person.class, "email", "ann@x.org").get();
+		team.coach = ds.find(Person.class, "email", "cy@x.org").get();
+		team.members.add(ds.find(Person.class, "email", "bob@x.org").get());
+		team.members.add(ds.find(Person.class, "email", "dee@x.org").get());
+		ds.save(team);
+
+		Team loaded = ds.get(Team.class, team.id);
+		Assert.assertEquals("ann@x.org", loaded.lead.email);
+		Assert.assertEquals("cy@x.org", loaded.coach.email);
+		Assert.assertEquals(2, loaded.members.size());
+		Assert.assertEquals("dee@x.org", loaded.members.get(1).email);
+
+		ds.delete(team.coach);
+		new AssertedFailure(MappingException.class) {
+			@Override
+			protected void thisMustFail() throws Throwable {
+				ds.get(Team.class, team.id);
+			}
+		};
+	}
+}
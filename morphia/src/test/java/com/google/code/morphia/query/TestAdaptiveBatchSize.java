@@ -0,0 +1,82 @@
+package com.google.code.morphia.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.code.morphia.TestBase;
+import com.google.code.morphia.TestMapping.BaseEntity;
+import com.google.code.morphia.annotations.Entity;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+public class TestAdaptiveBatchSize extends TestBase {
+	@Entity
+	static class Doc extends BaseEntity {
+		int n;
+		String payload;
+		Doc() {}
+		Doc(int n, String payload) { this.n = n; this.payload = payload; }
+	}
+
+	private static final long MS = 1000000;
+
+	/** Feeds the sizer a batch of documents, and returns the batch size it asks for after */
+	private int batch(AdaptiveBatchSizer sizer, DBObject doc, long roundTrip, long perDoc) {
+		int size = sizer.getBatchSize();
+		for (int i = 0; i < size; i++)
+			sizer.observe(doc, i == 0 ? roundTrip : 0, 0, perDoc);
+		return sizer.getBatchSize();
+	}
+
+	@Test
+	public void testFastConsumerGrows() throws Exception {
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(16 * 1024 * 1024, 10);
+		DBObject doc = new BasicDBObject("n", 1);
+		Assert.assertEquals(40, batch(sizer, doc, MS, 1000));
+		Assert.assertEquals(160, batch(sizer, doc, MS, 1000));
+		//a round trip of 1ms is 10% of 10000 documents at 1µs each
+		int size = 160;
+		for (int i = 0; i < 5; i++)
+			size = batch(sizer, doc, MS, 1000);
+		Assert.assertEquals(10000, size);
+	}
+
+	@Test
+	public void testSlowConsumerShrinks() throws Exception {
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(16 * 1024 * 1024, 0);
+		Assert.assertEquals(AdaptiveBatchSizer.DEFAULT_FIRST_BATCH, sizer.getBatchSize());
+		//10ms a document, so the round trip hardly matters
+		Assert.assertEquals(AdaptiveBatchSizer.MIN_BATCH, batch(sizer, new BasicDBObject("n", 1), MS, 10 * MS));
+	}
+
+	@Test
+	public void testMemoryBudget() throws Exception {
+		char[] chars = new char[10000];
+		Arrays.fill(chars, 'x');
+		DBObject big = new BasicDBObject("payload", new String(chars));
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100000, 50);
+		int size = batch(sizer, big, MS, 1000);
+		Assert.assertTrue(sizer.getAverageDocumentBytes() > 10000);
+		Assert.assertTrue("batch of " + size, size < 10);
+		Assert.assertTrue(size >= AdaptiveBatchSizer.MIN_BATCH);
+	}
+
+	@Test
+	public void testAdaptiveQuery() throws Exception {
+		List<Doc> docs = new ArrayList<Doc>();
+		for (int i = 0; i < 500; i++)
+			docs.add(new Doc(i, "doc" + i));
+		ds.save(docs);
+
+		Query<Doc> q = ds.createQuery(Doc.class).order("n").batchSize(5).adaptiveBatchSize(1024 * 1024);
+		int expected = 0;
+		for (Doc d : q.fetch())
+			Assert.assertEquals(expected++, d.n);
+		Assert.assertEquals(500, expected);
+		Assert.assertEquals(500, q.clone().asList().size());
+	}
+}
@@ -0,0 +1,60 @@
+package com.google.code.morphia.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.code.morphia.TestBase;
+import com.google.code.morphia.TestMapping.BaseEntity;
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.testutil.AssertedFailure;
+
+public class TestForEachBatch extends TestBase {
+	@Entity
+	static class Row extends BaseEntity {
+		int n;
+		Row() {}
+		Row(int n) { this.n = n; }
+	}
+
+	@Test
+	public void testBatches() throws Exception {
+		List<Row> rows = new ArrayList<Row>();
+		for (int i = 0; i < 105; i++)
+			rows.add(new Row(i));
+		ds.save(rows);
+
+		final List<Integer> sizes = new ArrayList<Integer>();
+		final List<Integer> seen = new ArrayList<Integer>();
+		ds.createQuery(Row.class).order("n").forEachBatch(25, new BatchHandler<Row>() {
+			public void handle(List<Row> batch) {
+				sizes.add(batch.size());
+				for (Row r : batch)
+					seen.add(r.n);
+			}
+		});
+
+		Assert.assertEquals(5, sizes.size());
+		Assert.assertEquals(Integer.valueOf(25), sizes.get(0));
+		Assert.assertEquals(Integer.valueOf(5), sizes.get(4));
+		Assert.assertEquals(105, seen.size());
+		Assert.assertEquals(Integer.valueOf(104), seen.get(104));
+	}
+
+	@Test
+	public void testEmptyAndInvalid() throws Exception {
+		final int[] calls = {0};
+		ds.createQuery(Row.class).forEachBatch(10, new BatchHandler<Row>() {
+			public void handle(List<Row> batch) { calls[0]++; }
+		});
+		Assert.assertEquals(0, calls[0]);
+
+		new AssertedFailure(IllegalArgumentException.class) {
+			public void thisMustFail() throws Throwable {
+				ds.createQuery(Row.class).forEachBatch(0, null);
+			}
+		};
+	}
+}
@@ -0,0 +1,109 @@
+package com.google.code.morphia.query;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.code.morphia.TestBase;
+import com.google.code.morphia.TestMapping.BaseEntity;
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.testutil.AssertedFailure;
+
+public class TestKeysetPaging extends TestBase {
+	@Entity
+	static class Item extends BaseEntity {
+		int rank;
+		String name;
+		List<String> tags = new ArrayList<String>();
+		Item() {}
+		Item(int rank, String name) { this.rank = rank; this.name = name; }
+	}
+
+	@Test
+	public void testPagesFollowTheOrder() throws Exception {
+		List<Item> items = new ArrayList<Item>();
+		//duplicate ranks, so paging must break ties by _id
+		for (int i = 0; i < 23; i++)
+			items.add(new Item(i / 3, "item" + i));
+		ds.save(items);
+
+		List<Integer> ranks = new ArrayList<Integer>();
+		Set<String> names = new HashSet<String>();
+		int pages = 0;
+		String token = null;
+		do {
+			Page<Item> page = ds.createQuery(Item.class).filter("rank >=", 1).order("-rank").page(token, 5);
+			for (Item it : page) {
+				ranks.add(it.rank);
+				Assert.assertTrue(names.add(it.name));
+			}
+			token = page.getNextToken();
+			pages++;
+		} while (token != null);
+
+		Assert.assertEquals(20, ranks.size());
+		Assert.assertEquals(4, pages);
+		Assert.assertEquals(Integer.valueOf(7), ranks.get(0));
+		for (int i = 1; i < ranks.size(); i++)
+			Assert.assertTrue(ranks.get(i - 1) >= ranks.get(i));
+	}
+
+	@Test
+	public void testLastPage() throws Exception {
+		ds.save(new Item(1, "a"), new Item(2, "b"));
+		Page<Item> page = ds.createQuery(Item.class).order("rank").page(2);
+		Assert.assertEquals(2, page.size());
+		Assert.assertFalse(page.hasNext());
+
+		page = ds.createQuery(Item.class).retrievedFields(true, "name").order("rank").page(1);
+		Assert.assertEquals("a", page.getItems().get(0).name);
+		Assert.assertEquals("b", ds.createQuery(Item.class).order("rank").page(page.getNextToken(), 1).getItems().get(0).name);
+	}
+
+	@Test
+	public void testPagesEndingOnNull() throws Exception {
+		ds.save(new Item(1, null), new Item(2, null), new Item(3, "a"), new Item(4, "b"));
+		for (String order : new String[] {"name", "-name"}) {
+			Set<Integer> ranks = new HashSet<Integer>();
+			String token = null;
+			do {
+				Page<Item> page = ds.createQuery(Item.class).order(order).page(token, 1);
+				for (Item it : page)
+					Assert.assertTrue(ranks.add(it.rank));
+				token = page.getNextToken();
+			} while (token != null);
+			Assert.assertEquals(order, 4, ranks.size());
+		}
+	}
+
+	@Test
+	public void testInvalid() throws Exception {
+		ds.save(new Item(1, "a"), new Item(2, "b"));
+		final String token = ds.createQuery(Item.class).order("rank").page(1).getNextToken();
+
+		new AssertedFailure(QueryException.class) {
+			public void thisMustFail() throws Throwable {
+				ds.createQuery(Item.class).order("name").page(token, 1);
+			}
+		};
+		new AssertedFailure(QueryException.class) {
+			public void thisMustFail() throws Throwable {
+				ds.createQuery(Item.class).order("rank").page("not a token", 1);
+			}
+		};
+		new AssertedFailure(QueryException.class) {
+			public void thisMustFail() throws Throwable {
+				ds.createQuery(Item.class).order("tags").page(1);
+			}
+		};
+		new AssertedFailure(QueryException.class) {
+			public void thisMustFail() throws Throwable {
+				ds.createQuery(Item.class).offset(10).page(1);
+			}
+		};
+	}
+}
@@ -0,0 +1,89 @@
+package com.google.code.morphia.query;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.code.morphia.TestBase;
+import com.google.code.morphia.TestMapping.BaseEntity;
+import com.google.code.morphia.annotations.Entity;
+
+public class TestPartitionedScan extends TestBase {
+	@Entity
+	static class Doc extends BaseEntity {
+		int n;
+		Doc() {}
+		Doc(int n) { this.n = n; }
+	}
+
+	private void insert(int count) {
+		List<Doc> docs = new ArrayList<Doc>();
+		for (int i = 0; i < count; i++)
+			docs.add(new Doc(i));
+		ds.save(docs);
+	}
+
+	@Test
+	public void testPartitionsAreDisjoint() throws Exception {
+		insert(200);
+		List<Query<Doc>> parts = ds.createQuery(Doc.class).partition(4);
+		Assert.assertEquals(4, parts.size());
+
+		Set<String> ids = new HashSet<String>();
+		int total = 0;
+		for (Query<Doc> q : parts) {
+			List<Doc> docs = q.asList();
+			Assert.assertTrue(docs.size() > 0);
+			total += docs.size();
+			for (Doc d : docs)
+				ids.add(d.getId());
+		}
+		Assert.assertEquals(200, total);
+		Assert.assertEquals(200, ids.size());
+	}
+
+	@Test
+	public void testFewResults() throws Exception {
+		insert(2);
+		Assert.assertEquals(2, ds.createQuery(Doc.class).partition(8).size());
+		Assert.assertEquals(1, ds.createQuery(Doc.class).filter("n", -1).partition(8).size());
+	}
+
+	@Test
+	public void testScanAndResume() throws Exception {
+		insert(300);
+		final Set<Integer> seen = new HashSet<Integer>();
+		final boolean[] fail = {true};
+		PartitionedScan<Doc> scan = new PartitionedScan<Doc>(ds.createQuery(Doc.class), 3).batchSize(20);
+		PartitionHandler<Doc> handler = new PartitionHandler<Doc>() {
+			public void handle(int partition, List<Doc> batch) {
+				if (partition == 1 && fail[0])
+					throw new IllegalStateException("boom");
+				synchronized (seen) {
+					for (Doc d : batch)
+						seen.add(d.n);
+				}
+			}
+			public void partitionComplete(int partition, ScanCheckpoint checkpoint) {}
+		};
+
+		try {
+			scan.run(3, handler);
+			Assert.fail("partition 1 should have failed");
+		} catch (IllegalStateException e) {
+			//expected
+		}
+		ScanCheckpoint cp = scan.getCheckpoint();
+		Assert.assertFalse(cp.isDone());
+		Assert.assertFalse(cp.isComplete(1));
+
+		fail[0] = false;
+		ScanCheckpoint done = new PartitionedScan<Doc>(ds.createQuery(Doc.class), cp).run(3, handler);
+		Assert.assertTrue(done.isDone());
+		Assert.assertEquals(300, seen.size());
+	}
+}
@@ -0,0 +1,120 @@
+package com.google.code.morphia.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.code.morphia.TestBase;
+import com.google.code.morphia.TestMapping.BaseEntity;
+import com.google.code.morphia.annotations.Entity;
+
+public class TestQuerySubscribe extends TestBase {
+	@Entity
+	static class Item extends BaseEntity {
+		int n;
+		Item() {}
+		Item(int n) { this.n = n; }
+	}
+
+	/** Records what it gets, and requests {@code step} more each time the last request is used up */
+	static class Recorder implements QuerySubscriber<Item> {
+		final List<Item> items = new ArrayList<Item>();
+		final int step;
+		final int cancelAfter;
+		QuerySubscription sub;
+		int outstanding;
+		boolean completed;
+		Throwable error;
+
+		Recorder(int step, int cancelAfter) {
+			this.step = step;
+			this.cancelAfter = cancelAfter;
+		}
+
+		public void onSubscribe(QuerySubscription subscription) {
+			sub = subscription;
+			outstanding = step;
+			sub.request(step);
+		}
+
+		public void onNext(Item entity) {
+			items.add(entity);
+			if (items.size() == cancelAfter) {
+				sub.cancel();
+				return;
+			}
+			if (--outstanding == 0) {
+				outstanding = step;
+				sub.request(step);
+			}
+		}
+
+		public void onError(Throwable t) { error = t; }
+		public void onComplete() { completed = true; }
+	}
+
+	private void insert(int count) {
+		List<Item> items = new ArrayList<Item>();
+		for (int i = 0; i < count; i++)
+			items.add(new Item(i));
+		ds.save(items);
+	}
+
+	@Test
+	public void testStreamsAll() throws Exception {
+		insert(250);
+		Recorder r = new Recorder(7, -1);
+		ds.createQuery(Item.class).order("n").subscribe(r);
+
+		Assert.assertTrue(r.completed);
+		Assert.assertNull(r.error);
+		Assert.assertEquals(250, r.items.size());
+		for (int i = 0; i < 250; i++)
+			Assert.assertEquals(i, r.items.get(i).n);
+	}
+
+	@Test
+	public void testDemandIsHonored() throws Exception {
+		insert(50);
+		final List<Item> got = new ArrayList<Item>();
+		final QuerySubscription[] sub = new QuerySubscription[1];
+		ds.createQuery(Item.class).subscribe(new QuerySubscriber<Item>() {
+			public void onSubscribe(QuerySubscription subscription) { sub[0] = subscription; }
+			public void onNext(Item entity) { got.add(entity); }
+			public void onError(Throwable t) { }
+			public void onComplete() { }
+		});
+
+		Assert.assertEquals(0, got.size());
+		sub[0].request(5);
+		Assert.assertEquals(5, got.size());
+		sub[0].request(10);
+		Assert.assertEquals(15, got.size());
+		sub[0].cancel();
+		sub[0].request(10);
+		Assert.assertEquals(15, got.size());
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		insert(100);
+		Recorder r = new Recorder(10, 25);
+		ds.createQuery(Item.class).subscribe(r);
+
+		Assert.assertEquals(25, r.items.size());
+		Assert.assertFalse(r.completed);
+		Assert.assertNull(r.error);
+	}
+
+	@Test
+	public void testBadRequest() throws Exception {
+		insert(3);
+		Recorder r = new Recorder(0, -1);
+		ds.createQuery(Item.class).subscribe(r);
+
+		Assert.assertTrue(r.error instanceof IllegalArgumentException);
+		Assert.assertEquals(0, r.items.size());
+	}
+}
@@ -0,0 +1,137 @@
+package com.google.code.morphia.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.code.morphia.testmodel.Circle;
+
+public class PackageScannerTest {
+	private static final String PACKAGE = Circle.class.getPackage().getName();
+
+	private static File packageDir() throws Exception {
+		return new File(PackageScannerTest.class.getClassLoader().getResource(PACKAGE.replace('.', '/')).toURI());
+	}
+
+	/** Writes the package's classes to a jar; extra entries change its checksum */
+	private static File jar(File file, String... extra) throws Exception {
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(file));
+		try {
+			//the class loader only finds the package if the jar has its directories
+			String dir = "";
+			for (String part : PACKAGE.split("\\.")) {
+				dir += part + "/";
+				out.putNextEntry(new ZipEntry(dir));
+			}
+			for (File f : packageDir().listFiles()) {
+				out.putNextEntry(new ZipEntry(PACKAGE.replace('.', '/') + "/" + f.getName()));
+				InputStream in = new FileInputStream(f);
+				try {
+					byte[] buf = new byte[4096];
+					for (int n; (n = in.read(buf)) > 0;)
+						out.write(buf, 0, n);
+				} finally {
+					in.close();
+				}
+			}
+			for (String name : extra)
+				out.putNextEntry(new ZipEntry(name));
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	@Test
+	public void testSameAsReflection() throws Exception {
+		Set<String> expected = new TreeSet<String>();
+		for (Class<?> c : ReflectionUtils.getClasses(PACKAGE))
+			if (ReflectionUtils.getClassEntityAnnotation(c) != null || ReflectionUtils.getClassEmbeddedAnnotation(c) != null)
+				expected.add(c.getName());
+		Assert.assertTrue(expected.contains(Circle.class.getName()));
+		Assert.assertEquals(expected, new PackageScanner(getClass().getClassLoader()).scan(PACKAGE));
+	}
+
+	@Test
+	public void testJarIndex() throws Exception {
+		File dir = File.createTempFile("morphia-scan", "");
+		dir.delete();
+		dir.mkdirs();
+		File jar = jar(new File(dir, "model.jar"));
+		File index = new File(dir, "scan.idx");
+		URLClassLoader loader = new URLClassLoader(new URL[] {jar.toURI().toURL()}, null);
+
+		Set<String> found = new PackageScanner(loader, index, 2).scan(PACKAGE);
+		Assert.assertTrue(found.contains(Circle.class.getName()));
+		Assert.assertTrue(index.isFile());
+
+		//the jar is unchanged, so what the (edited) index says is used
+		List<String> lines = new ArrayList<String>();
+		for (String line : readLines(index))
+			lines.add(line.replace("\t1\t", "\t0\t"));
+		writeLines(index, lines);
+		Assert.assertEquals(new HashSet<String>(), new PackageScanner(loader, index, 2).scan(PACKAGE));
+
+		jar(jar, "changed.txt");
+		Assert.assertEquals(found, new PackageScanner(loader, index, 2).scan(PACKAGE));
+	}
+
+	@Test
+	public void testScannersSharingAnIndex() throws Exception {
+		File dir = File.createTempFile("morphia-scan", "");
+		dir.delete();
+		dir.mkdirs();
+		File index = new File(dir, "scan.idx");
+		//both read the (missing) index before either writes it
+		PackageScanner first = new PackageScanner(new URLClassLoader(new URL[] {jar(new File(dir, "a.jar")).toURI().toURL()}, null), index, 2);
+		PackageScanner second = new PackageScanner(new URLClassLoader(new URL[] {jar(new File(dir, "b.jar")).toURI().toURL()}, null), index, 2);
+		first.scan(PACKAGE);
+		second.scan(PACKAGE);
+
+		int jars = 0;
+		for (String line : readLines(index))
+			if (line.startsWith("jar\t"))
+				jars++;
+		Assert.assertEquals(2, jars);
+		Assert.assertEquals(3, dir.list().length);
+	}
+
+	private static List<String> readLines(File f) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(f));
+		try {
+			for (String line; (line = in.readLine()) != null;)
+				lines.add(line);
+		} finally {
+			in.close();
+		}
+		return lines;
+	}
+
+	private static void writeLines(File f, List<String> lines) throws IOException {
+		FileWriter out = new FileWriter(f);
+		try {
+			for (String line : lines)
+				out.write(line + "\n");
+		} finally {
+			out.close();
+		}
+	}
+}